@@ -0,0 +1,60 @@
+package com.github.sb.nanorouter;
+
+import fi.iki.elonen.NanoHTTPD;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * An in-memory IHTTPSession, so that dispatch can be measured without sockets or parsing.
+ */
+public class BenchSession implements NanoHTTPD.IHTTPSession {
+  private final NanoHTTPD.Method method;
+  private final String uri;
+
+  public BenchSession(NanoHTTPD.Method method, String uri) {
+    this.method = method;
+    this.uri = uri;
+  }
+
+  @Override
+  public void execute() {}
+
+  @Override
+  public NanoHTTPD.CookieHandler getCookies() {
+    return null;
+  }
+
+  @Override
+  public Map<String, String> getHeaders() {
+    return Collections.emptyMap();
+  }
+
+  @Override
+  public InputStream getInputStream() {
+    return null;
+  }
+
+  @Override
+  public NanoHTTPD.Method getMethod() {
+    return this.method;
+  }
+
+  @Override
+  public Map<String, String> getParms() {
+    return Collections.emptyMap();
+  }
+
+  @Override
+  public String getQueryParameterString() {
+    return null;
+  }
+
+  @Override
+  public String getUri() {
+    return this.uri;
+  }
+
+  @Override
+  public void parseBody(Map<String, String> files) {}
+}
@@ -0,0 +1,88 @@
+package com.github.sb.nanorouter;
+
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.NanoHTTPD.Method;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end Router.handleRequest cost with a stub session: matching, context preparation and the
+ * handler call. The handler returns a shared Response so that only the router is measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class DispatchBenchmark {
+
+  @Param({ "STATIC", "PARAM", "DEEP" })
+  public RouteTables.Kind kind;
+
+  @Param({ "100", "1000" })
+  public int size;
+
+  @Param({ "false", "true" })
+  public boolean recycle;
+
+  @Param({ "false", "true" })
+  public boolean metrics;
+
+  private Router router;
+  private BenchSession[] hits;
+  private BenchSession[] misses;
+  private int next;
+
+  @Setup
+  public void setup() {
+    final NanoHTTPD.Response ok = NanoHTTPD.newFixedLengthResponse("ok");
+    Handler h = new Handler() {
+
+      @Override
+      public NanoHTTPD.Response handle(RequestContext ctx) {
+        return ok;
+      }
+    };
+
+    RouteTables tables = new RouteTables(kind, size);
+    router = new Router();
+    router.setRecycleContexts(recycle);
+    router.setMetricsEnabled(metrics);
+    router.setDefaultHandler(h);
+    for (String r : tables.routes) router.addHandler(Method.GET, r, h);
+
+    hits = new BenchSession[size];
+    misses = new BenchSession[size];
+    for (int i = 0; i < size; ++i) {
+      hits[i] = new BenchSession(Method.GET, tables.hits.get(i));
+      misses[i] = new BenchSession(Method.GET, tables.misses.get(i));
+    }
+  }
+
+  private int nextIndex() {
+    int i = next;
+    next = i + 1 == size ? 0 : i + 1;
+    return i;
+  }
+
+  @Benchmark
+  public NanoHTTPD.Response dispatchHit() {
+    return router.handleRequest(null, hits[nextIndex()]);
+  }
+
+  @Benchmark
+  public NanoHTTPD.Response dispatchMiss() {
+    return router.handleRequest(null, misses[nextIndex()]);
+  }
+}
@@ -0,0 +1,132 @@
+package com.github.sb.nanorouter;
+
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.NanoHTTPD.Method;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Dispatch with and without the resolution cache, for a uniform and a Zipf-skewed mix of 1,000 or
+ * 100,000 concrete URIs over the PARAM route table. 'resolve' measures the route lookup alone, which is
+ * what the cache replaces; 'dispatch' the whole request, of which it is a small part.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ResolutionCacheBenchmark {
+  private static final int SEQUENCE = 1 << 16;
+
+  public enum Distribution {
+    UNIFORM,
+    // Zipf with exponent 1, so that a few hundred URIs get most of the requests
+    SKEWED,
+  }
+
+  @Param({ "UNIFORM", "SKEWED" })
+  public Distribution distribution;
+
+  @Param({ "0", "1024" })
+  public int cacheSize;
+
+  // The number of distinct request URIs
+  @Param({ "1000", "100000" })
+  public int distinct;
+
+  private Router router;
+  private RouteTable table;
+
+  // The request URIs, as characters: every request gets a freshly built String, like NanoHTTPD
+  // does, so that hashing and comparing URIs is measured honestly.
+  private char[][] uris;
+
+  @State(Scope.Thread)
+  public static class Cursor {
+    int next;
+    final Params params = new Params();
+  }
+
+  @Setup
+  public void setup() {
+    final NanoHTTPD.Response ok = NanoHTTPD.newFixedLengthResponse("ok");
+    Handler h = new Handler() {
+
+      @Override
+      public NanoHTTPD.Response handle(RequestContext ctx) {
+        return ok;
+      }
+    };
+
+    RouteTables tables = new RouteTables(RouteTables.Kind.PARAM, 1000);
+    router = new Router();
+    router.setResolutionCacheSize(cacheSize);
+    for (String r : tables.routes) router.addHandler(Method.GET, r, h);
+    table = router.compile();
+
+    // Cumulative Zipf weights over the distinct URIs
+    double[] cdf = new double[distinct];
+    double total = 0;
+    for (int i = 0; i < distinct; ++i) {
+      total += distribution == Distribution.SKEWED ? 1.0 / (i + 1) : 1.0;
+      cdf[i] = total;
+    }
+
+    Random random = new Random(42);
+    uris = new char[SEQUENCE][];
+    for (int s = 0; s < SEQUENCE; ++s) {
+      double x = random.nextDouble() * total;
+      int i = Arrays.binarySearch(cdf, x);
+      if (i < 0) i = -(i + 1);
+
+      String uri = "/api/resource" + (i % 1000) + "/" + i + "/children/" + (i * 7);
+      uris[s] = uri.toCharArray();
+    }
+  }
+
+  @Benchmark
+  @Threads(1)
+  public Route resolve(Cursor cursor) {
+    int i = cursor.next;
+    cursor.next = (i + 1) & (SEQUENCE - 1);
+    return table.lookup(Method.GET, new String(uris[i]), cursor.params);
+  }
+
+  @Benchmark
+  @Threads(4)
+  public Route resolveContended(Cursor cursor) {
+    int i = cursor.next;
+    cursor.next = (i + 1) & (SEQUENCE - 1);
+    return table.lookup(Method.GET, new String(uris[i]), cursor.params);
+  }
+
+  @Benchmark
+  @Threads(1)
+  public NanoHTTPD.Response dispatch(Cursor cursor) {
+    int i = cursor.next;
+    cursor.next = (i + 1) & (SEQUENCE - 1);
+    return router.handleRequest(null, new BenchSession(Method.GET, new String(uris[i])));
+  }
+
+  @Benchmark
+  @Threads(4)
+  public NanoHTTPD.Response dispatchContended(Cursor cursor) {
+    int i = cursor.next;
+    cursor.next = (i + 1) & (SEQUENCE - 1);
+    return router.handleRequest(null, new BenchSession(Method.GET, new String(uris[i])));
+  }
+}
@@ -0,0 +1,50 @@
+package com.github.sb.nanorouter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Deterministic route tables used by the benchmarks, along with concrete request URIs that hit
+ * and miss them.
+ */
+public class RouteTables {
+
+  /**
+   * The shape of a generated route table.
+   */
+  public enum Kind {
+    // e.g. "/api/v1/resource17/items", no parameters
+    STATIC,
+    // e.g. "/api/resource17/:id/children/:childId"
+    PARAM,
+    // e.g. "/org/3/team/5/projects/17/:projectId/builds/latest/artifacts", long shared prefixes
+    DEEP,
+  }
+
+  public final List<String> routes = new ArrayList<>();
+  public final List<String> hits = new ArrayList<>();
+  public final List<String> misses = new ArrayList<>();
+
+  public RouteTables(Kind kind, int size) {
+    for (int i = 0; i < size; ++i) {
+      switch (kind) {
+        case STATIC:
+          routes.add("/api/v1/resource" + i + "/items");
+          hits.add("/api/v1/resource" + i + "/items");
+          misses.add("/api/v1/resource" + i + "/itemz");
+          break;
+        case PARAM:
+          routes.add("/api/resource" + i + "/:id/children/:childId");
+          hits.add("/api/resource" + i + "/" + (i * 31) + "/children/" + (i * 7));
+          misses.add("/api/resource" + i + "/" + (i * 31) + "/children");
+          break;
+        case DEEP:
+          String prefix = "/org/" + (i % 7) + "/team/" + (i % 13) + "/projects/" + i;
+          routes.add(prefix + "/:projectId/builds/latest/artifacts");
+          hits.add(prefix + "/p" + i + "/builds/latest/artifacts");
+          misses.add(prefix + "/p" + i + "/builds/latest/artifact");
+          break;
+      }
+    }
+  }
+}
@@ -0,0 +1,91 @@
+package com.github.sb.nanorouter;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Insert and search throughput of RouterTrie across table shapes and sizes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class RouterTrieBenchmark {
+
+  @Param({ "STATIC", "PARAM", "DEEP" })
+  public RouteTables.Kind kind;
+
+  @Param({ "10", "100", "1000", "10000" })
+  public int size;
+
+  private String[] routes;
+  private String[] hits;
+  private String[] misses;
+  private RouterTrie trie;
+  private Params params;
+  private int next;
+
+  @Setup
+  public void setup() {
+    RouteTables tables = new RouteTables(kind, size);
+    routes = tables.routes.toArray(new String[0]);
+    hits = tables.hits.toArray(new String[0]);
+    misses = tables.misses.toArray(new String[0]);
+
+    trie = new RouterTrie();
+    for (String r : routes) trie.insert(r);
+    params = new Params();
+  }
+
+  // Cycles through the request URIs so that one hot entry does not skew the result.
+  private int nextIndex() {
+    int i = next;
+    next = i + 1 == size ? 0 : i + 1;
+    return i;
+  }
+
+  /**
+   * Builds the whole table. Reported per table, not per route.
+   */
+  @Benchmark
+  public RouterTrie insertAll() {
+    RouterTrie t = new RouterTrie();
+    for (String r : routes) t.insert(r);
+    return t;
+  }
+
+  @Benchmark
+  public RouterTrie.Path searchHit() {
+    return trie.search(hits[nextIndex()]);
+  }
+
+  @Benchmark
+  public RouterTrie.Path searchMiss() {
+    return trie.search(misses[nextIndex()]);
+  }
+
+  /**
+   * The allocation-free lookup used by Router.handleRequest.
+   */
+  @Benchmark
+  public RouterTrie lookupHit() {
+    return trie.lookup(hits[nextIndex()], params);
+  }
+
+  @Benchmark
+  public RouterTrie lookupMiss() {
+    return trie.lookup(misses[nextIndex()], params);
+  }
+}
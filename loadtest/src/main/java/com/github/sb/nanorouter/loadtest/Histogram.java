@@ -0,0 +1,74 @@
+package com.github.sb.nanorouter.loadtest;
+
+/**
+ * A histogram of latencies in microseconds with log-linear buckets, in the style of
+ * HdrHistogram: every power of two is split into 128 linear sub-buckets, so percentiles are
+ * accurate to within 1% from a microsecond up to about 19 hours. Not thread safe; every connection
+ * records into its own, and they are merged for the report.
+ */
+final class Histogram {
+  private static final int SUB_BITS = 7;
+  private static final int SUB_COUNT = 1 << SUB_BITS;
+  private static final int MAX_EXPONENT = 36;
+  private static final int BUCKETS = SUB_COUNT + (MAX_EXPONENT - SUB_BITS + 1) * SUB_COUNT;
+
+  private final long[] counts = new long[BUCKETS];
+  private long total;
+  private long max;
+
+  void record(long micros) {
+    if (micros < 0) micros = 0;
+    this.counts[bucket(micros)]++;
+    this.total++;
+    if (micros > this.max) this.max = micros;
+  }
+
+  void add(Histogram other) {
+    for (int i = 0; i < BUCKETS; ++i) this.counts[i] += other.counts[i];
+    this.total += other.total;
+    this.max = Math.max(this.max, other.max);
+  }
+
+  long count() {
+    return this.total;
+  }
+
+  long max() {
+    return this.max;
+  }
+
+  /**
+   * Returns the value below which 'percentile' percent of the recorded values lie, reported as the
+   * upper end of its bucket (and never above the maximum).
+   */
+  long percentile(double percentile) {
+    if (this.total == 0) return 0;
+
+    long rank = Math.max(1, (long) Math.ceil(percentile / 100 * this.total));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; ++i) {
+      seen += this.counts[i];
+      if (seen >= rank) return Math.min(upperBound(i), this.max);
+    }
+    return this.max;
+  }
+
+  private static int bucket(long value) {
+    if (value < SUB_COUNT) return (int) value;
+
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    if (exponent > MAX_EXPONENT) return BUCKETS - 1;
+
+    int mantissa = (int) (value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+    return SUB_COUNT + (exponent - SUB_BITS) * SUB_COUNT + mantissa;
+  }
+
+  private static long upperBound(int bucket) {
+    if (bucket < SUB_COUNT) return bucket;
+
+    int exponent = (bucket - SUB_COUNT) / SUB_COUNT + SUB_BITS;
+    int mantissa = (bucket - SUB_COUNT) % SUB_COUNT;
+    long width = 1L << (exponent - SUB_BITS);
+    return (1L << exponent) + (mantissa + 1) * width - 1;
+  }
+}
@@ -0,0 +1,127 @@
+package com.github.sb.nanorouter.loadtest;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * A minimal HTTP/1.1 client over one persistent connection: it writes prebuilt requests and reads
+ * responses, skipping their bodies, with as little overhead as possible so that the numbers
+ * measure the server rather than the client.
+ */
+final class HttpConnection {
+  private final InetSocketAddress address;
+  private Socket socket;
+  private InputStream in;
+  private OutputStream out;
+
+  // Scratch space for status and header lines.
+  private final StringBuilder line = new StringBuilder(128);
+  private final byte[] skip = new byte[16 * 1024];
+
+  HttpConnection(InetSocketAddress address) {
+    this.address = address;
+  }
+
+  /**
+   * Sends 'request' and returns the status of its response. Reconnects first if needed, and after
+   * a response that closes the connection.
+   */
+  int exchange(byte[] request) throws IOException {
+    if (this.socket == null) connect();
+
+    try {
+      this.out.write(request);
+      this.out.flush();
+      return readResponse();
+    } catch (IOException e) {
+      close();
+      throw e;
+    }
+  }
+
+  void close() {
+    if (this.socket == null) return;
+    try {
+      this.socket.close();
+    } catch (IOException e) {
+      // Nothing to do.
+    }
+    this.socket = null;
+  }
+
+  private void connect() throws IOException {
+    Socket s = new Socket();
+    s.setTcpNoDelay(true);
+    s.setSoTimeout(60000);
+    s.connect(this.address, 5000);
+    this.socket = s;
+    this.in = new BufferedInputStream(s.getInputStream(), 64 * 1024);
+    this.out = s.getOutputStream();
+  }
+
+  private int readResponse() throws IOException {
+    String statusLine = readLine();
+    // "HTTP/1.1 200 OK"
+    int status = Integer.parseInt(statusLine.substring(9, 12));
+
+    long contentLength = -1;
+    boolean chunked = false;
+    boolean close = false;
+    for (String header; !(header = readLine()).isEmpty(); ) {
+      int colon = header.indexOf(':');
+      if (colon < 0) continue;
+
+      String name = header.substring(0, colon).trim();
+      String value = header.substring(colon + 1).trim();
+      if (name.equalsIgnoreCase("Content-Length")) {
+        contentLength = Long.parseLong(value);
+      } else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+        chunked = value.equalsIgnoreCase("chunked");
+      } else if (name.equalsIgnoreCase("Connection")) {
+        close = value.equalsIgnoreCase("close");
+      }
+    }
+
+    if (chunked) {
+      for (long size; (size = Long.parseLong(readLine().split(";")[0].trim(), 16)) > 0; ) {
+        skip(size);
+        readLine();
+      }
+      // Trailers, if any, up to the blank line.
+      while (!readLine().isEmpty()) {}
+    } else if (contentLength >= 0) {
+      skip(contentLength);
+    } else {
+      // Delimited by the end of the connection.
+      while (this.in.read(this.skip) >= 0) {}
+      close = true;
+    }
+
+    if (close) close();
+    return status;
+  }
+
+  private String readLine() throws IOException {
+    this.line.setLength(0);
+    while (true) {
+      int b = this.in.read();
+      if (b < 0) throw new EOFException("Connection closed by the server");
+      if (b == '\n') break;
+      if (b != '\r') this.line.append((char) b);
+    }
+    return this.line.toString();
+  }
+
+  private void skip(long n) throws IOException {
+    while (n > 0) {
+      int read = this.in.read(this.skip, 0, (int) Math.min(n, this.skip.length));
+      if (read < 0) throw new EOFException("Connection closed by the server");
+      n -= read;
+    }
+  }
+}
@@ -0,0 +1,150 @@
+package com.github.sb.nanorouter.loadtest;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends requests at a fixed rate over persistent connections (an open-loop load), and records
+ * their latencies corrected for coordinated omission.
+ *
+ * Each connection is driven by its own thread and owns an equal share of a fixed schedule: the
+ * i-th request of the run is due at start + i / rate, whatever happened to earlier requests. A
+ * closed-loop client that only sends once the previous response arrived stops sending while the
+ * server stalls, so the requests that would have waited during the stall are never measured and
+ * the tail latencies look far better than what users see. Here latency is measured from the time
+ * a request was due, not from when it could actually be sent, so a stall is charged to every
+ * request it delayed (like wrk2 does). The service time, measured from the actual send, is
+ * reported alongside for comparison.
+ */
+final class LoadGenerator {
+  private final InetSocketAddress address;
+  private final RouteMix mix;
+  private final int connections;
+  private final double rate;
+
+  LoadGenerator(InetSocketAddress address, RouteMix mix, int connections, double rate) {
+    this.address = address;
+    this.mix = mix;
+    this.connections = connections;
+    this.rate = rate;
+  }
+
+  /**
+   * What a run measured, past its warmup.
+   */
+  static final class Result {
+    final Histogram corrected = new Histogram();
+    final Histogram service = new Histogram();
+    long[] statuses = new long[6];
+    long errors;
+    long elapsedNanos;
+
+    long requests() {
+      return this.corrected.count();
+    }
+
+    double throughput() {
+      return this.elapsedNanos == 0 ? 0 : requests() * 1e9 / this.elapsedNanos;
+    }
+  }
+
+  /**
+   * Runs the load for 'warmup' and then 'duration', and returns what was measured after the
+   * warmup.
+   */
+  Result run(long warmup, long duration, TimeUnit unit) throws InterruptedException {
+    long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+    long measureFrom = start + unit.toNanos(warmup);
+    long end = measureFrom + unit.toNanos(duration);
+
+    Worker[] workers = new Worker[this.connections];
+    Thread[] threads = new Thread[this.connections];
+    for (int i = 0; i < this.connections; ++i) {
+      workers[i] = new Worker(i, start, measureFrom, end);
+      threads[i] = new Thread(workers[i], "loadtest-connection-" + i);
+      threads[i].setDaemon(true);
+      threads[i].start();
+    }
+
+    Result result = new Result();
+    long lastDone = measureFrom;
+    for (int i = 0; i < this.connections; ++i) {
+      threads[i].join();
+      Worker w = workers[i];
+      result.corrected.add(w.corrected);
+      result.service.add(w.service);
+      for (int s = 0; s < result.statuses.length; ++s) result.statuses[s] += w.statuses[s];
+      result.errors += w.errors;
+      lastDone = Math.max(lastDone, w.lastDone);
+    }
+    result.elapsedNanos = lastDone - measureFrom;
+    return result;
+  }
+
+  private final class Worker implements Runnable {
+    private final HttpConnection connection = new HttpConnection(LoadGenerator.this.address);
+    private final SplittableRandom random;
+    private final long first;
+    private final long interval;
+    private final long measureFrom;
+    private final long end;
+
+    final Histogram corrected = new Histogram();
+    final Histogram service = new Histogram();
+    // Responses by status class (1xx to 5xx), and errors.
+    final long[] statuses = new long[6];
+    long errors;
+    long lastDone;
+
+    Worker(int index, long start, long measureFrom, long end) {
+      double gap = 1e9 / LoadGenerator.this.rate;
+      this.random = new SplittableRandom(index);
+      // Connections take turns: connection k sends requests k, k + n, k + 2n...
+      this.first = start + (long) (index * gap);
+      this.interval = (long) (gap * LoadGenerator.this.connections);
+      this.measureFrom = measureFrom;
+      this.end = end;
+    }
+
+    @Override
+    public void run() {
+      try {
+        for (long n = 0;; ++n) {
+          long due = this.first + n * this.interval;
+          if (due >= this.end) break;
+
+          for (long now; (now = System.nanoTime()) < due; ) LockSupport.parkNanos(due - now);
+
+          byte[] request = LoadGenerator.this.mix.next(this.random);
+          long sent = System.nanoTime();
+          int status;
+          try {
+            status = this.connection.exchange(request);
+          } catch (IOException e) {
+            status = 0;
+          } catch (RuntimeException e) {
+            // A malformed response.
+            this.connection.close();
+            status = 0;
+          }
+          long done = System.nanoTime();
+
+          if (due < this.measureFrom) continue;
+          this.corrected.record((done - due) / 1000);
+          this.service.record((done - sent) / 1000);
+          if (status >= 100 && status < 600) {
+            this.statuses[status / 100]++;
+          } else {
+            this.errors++;
+          }
+          this.lastDone = done;
+        }
+      } finally {
+        this.connection.close();
+      }
+    }
+  }
+}
@@ -0,0 +1,172 @@
+package com.github.sb.nanorouter.loadtest;
+
+import com.github.sb.nanorouter.NioServer;
+import com.github.sb.nanorouter.Router;
+import com.github.sb.nanorouter.RouterServer;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Starts a Router-backed server in this process and puts it under a fixed-rate load, or loads a
+ * server that is already running. E.g.
+ *
+ *   java -jar target/loadtest.jar --server=nio --rate=20000 --connections=64 --duration=30
+ *
+ * Options (all optional):
+ *   --server=nio|nanohttpd|none  the backend to start, or none to load --target (default nio)
+ *   --target=host:port           where to send requests (default 127.0.0.1:9180)
+ *   --rate=N                     requests per second, over all connections (default 10000)
+ *   --connections=N              persistent connections (default 64)
+ *   --duration=S --warmup=S      seconds measured, and seconds sent before that (default 30, 5)
+ *   --routes=N                   static and param routes registered, N of each (default 100)
+ *   --mix=S,P,M                  percentages of static, param and missing URIs (default 60,30,10)
+ *   --body-bytes=N               size of every matched route's response body (default 256)
+ *   --event-loops=N              event loops of the nio backend (default: NioServer's)
+ */
+public final class LoadTest {
+  private LoadTest() {}
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    Map<String, String> options = parse(args);
+
+    String backend = option(options, "server", "nio");
+    String[] target = option(options, "target", "127.0.0.1:9180").split(":");
+    String host = target[0];
+    int port = Integer.parseInt(target[1]);
+    double rate = Double.parseDouble(option(options, "rate", "10000"));
+    int connections = Integer.parseInt(option(options, "connections", "64"));
+    long duration = Long.parseLong(option(options, "duration", "30"));
+    long warmup = Long.parseLong(option(options, "warmup", "5"));
+    int routes = Integer.parseInt(option(options, "routes", "100"));
+    int bodyBytes = Integer.parseInt(option(options, "body-bytes", "256"));
+
+    String[] parts = option(options, "mix", "60,30,10").split(",");
+    int[] mix = new int[parts.length];
+    for (int i = 0; i < parts.length; ++i) mix[i] = Integer.parseInt(parts[i].trim());
+
+    RouteMix routeMix = new RouteMix(routes, mix, bodyBytes, host + ":" + port);
+
+    Router router = new Router();
+    routeMix.register(router);
+
+    NioServer nio = null;
+    RouterServer blocking = null;
+    if (backend.equals("nio")) {
+      nio = new NioServer(host, port, router);
+      if (options.containsKey("event-loops")) nio.setEventLoops(Integer.parseInt(options.get("event-loops")));
+      nio.start();
+    } else if (backend.equals("nanohttpd")) {
+      blocking = new RouterServer(host, port, router);
+      blocking.start();
+    } else if (!backend.equals("none")) {
+      throw new IllegalArgumentException("Unknown server: " + backend);
+    }
+
+    System.out.printf(
+      Locale.ROOT,
+      "Server       %s at %s:%d, %d routes, mix %s (static, param, miss), %d byte bodies%n",
+      backend,
+      host,
+      port,
+      2 * routes,
+      option(options, "mix", "60,30,10"),
+      bodyBytes
+    );
+    System.out.printf(
+      Locale.ROOT,
+      "Load         %.0f req/s over %d connections for %d s, after a %d s warmup%n",
+      rate,
+      connections,
+      duration,
+      warmup
+    );
+
+    LoadGenerator.Result r;
+    try {
+      r = new LoadGenerator(new InetSocketAddress(host, port), routeMix, connections, rate)
+        .run(warmup, duration, TimeUnit.SECONDS);
+    } finally {
+      if (nio != null) nio.stop();
+      if (blocking != null) blocking.stop();
+    }
+
+    report(r, rate);
+  }
+
+  private static void report(LoadGenerator.Result r, double rate) {
+    System.out.printf(
+      Locale.ROOT,
+      "Throughput   %.0f req/s, %d requests, %d errors%n",
+      r.throughput(),
+      r.requests(),
+      r.errors
+    );
+    System.out.printf(
+      Locale.ROOT,
+      "Responses    2xx %d, 3xx %d, 4xx %d, 5xx %d%n",
+      r.statuses[2],
+      r.statuses[3],
+      r.statuses[4],
+      r.statuses[5]
+    );
+    latencies("Latency      ", r.corrected);
+    latencies("Service time ", r.service);
+    System.out.println("             (latency is measured from when each request was due, corrected for");
+    System.out.println("             coordinated omission; service time from when it was actually sent)");
+
+    if (r.throughput() < 0.95 * rate) {
+      System.out.printf(
+        Locale.ROOT,
+        "Warning      the target rate was not sustained (%.0f%%): the server or this client is saturated,%n" +
+        "             and the latencies above include the growing backlog%n",
+        100 * r.throughput() / rate
+      );
+    }
+  }
+
+  private static void latencies(String label, Histogram h) {
+    System.out.printf(
+      Locale.ROOT,
+      "%sp50 %s  p90 %s  p99 %s  p99.9 %s  p99.99 %s  max %s%n",
+      label,
+      millis(h.percentile(50)),
+      millis(h.percentile(90)),
+      millis(h.percentile(99)),
+      millis(h.percentile(99.9)),
+      millis(h.percentile(99.99)),
+      millis(h.max())
+    );
+  }
+
+  private static String millis(long micros) {
+    return String.format(Locale.ROOT, "%.3fms", micros / 1000.0);
+  }
+
+  private static String option(Map<String, String> options, String name, String fallback) {
+    String value = options.get(name);
+    return value != null ? value : fallback;
+  }
+
+  // Accepts "--name=value" and "--name value".
+  private static Map<String, String> parse(String[] args) {
+    Map<String, String> options = new HashMap<>();
+    for (int i = 0; i < args.length; ++i) {
+      String arg = args[i];
+      if (!arg.startsWith("--")) throw new IllegalArgumentException("Unexpected argument: " + arg);
+
+      int equals = arg.indexOf('=');
+      if (equals > 0) {
+        options.put(arg.substring(2, equals), arg.substring(equals + 1));
+      } else if (i + 1 < args.length) {
+        options.put(arg.substring(2), args[++i]);
+      } else {
+        throw new IllegalArgumentException("Missing value for " + arg);
+      }
+    }
+    return options;
+  }
+}
@@ -0,0 +1,101 @@
+package com.github.sb.nanorouter.loadtest;
+
+import com.github.sb.nanorouter.Handler;
+import com.github.sb.nanorouter.RequestContext;
+import com.github.sb.nanorouter.Router;
+import fi.iki.elonen.NanoHTTPD;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * The routes a load test registers, and the mix of requests it sends to them: static routes
+ * ("/api/v1/resource17/items"), parameterized routes ("/api/resource17/:id/children/:childId"),
+ * and misses that fall through to the 404 handler. Every matched route answers with a body of a
+ * fixed size.
+ */
+final class RouteMix {
+  private final int routes;
+  private final int bodyBytes;
+
+  // Cumulative percentages of static and param requests; the rest are misses.
+  private final int staticUpTo;
+  private final int paramUpTo;
+
+  // Prebuilt requests, so that the load loop allocates nothing.
+  private final byte[][] staticRequests;
+  private final byte[][] paramRequests;
+  private final byte[][] missRequests;
+
+  /**
+   * @param mix the percentages of static, param and miss requests, e.g. {60, 30, 10}.
+   */
+  RouteMix(int routes, int[] mix, int bodyBytes, String host) {
+    if (mix.length != 3 || mix[0] + mix[1] + mix[2] != 100 || mix[0] < 0 || mix[1] < 0 || mix[2] < 0) {
+      throw new IllegalArgumentException("The mix must be three percentages adding up to 100: " + Arrays.toString(mix));
+    }
+    this.routes = routes;
+    this.bodyBytes = bodyBytes;
+    this.staticUpTo = mix[0];
+    this.paramUpTo = mix[0] + mix[1];
+
+    this.staticRequests = new byte[routes][];
+    this.paramRequests = new byte[routes][];
+    this.missRequests = new byte[routes][];
+    for (int i = 0; i < routes; ++i) {
+      this.staticRequests[i] = request("/api/v1/resource" + i + "/items", host);
+      this.paramRequests[i] = request("/api/resource" + i + "/" + (i * 31) + "/children/" + (i * 7), host);
+      this.missRequests[i] = request("/api/v1/resource" + i + "/itemz", host);
+    }
+  }
+
+  private static byte[] request(String uri, String host) {
+    return ("GET " + uri + " HTTP/1.1\r\nHost: " + host + "\r\nUser-Agent: nanorouter-loadtest\r\n\r\n")
+      .getBytes(StandardCharsets.ISO_8859_1);
+  }
+
+  /**
+   * Registers the routes on 'router'.
+   */
+  void register(Router router) {
+    byte[] body = new byte[this.bodyBytes];
+    Arrays.fill(body, (byte) 'x');
+    Handler h = new FixedBody(body);
+
+    for (int i = 0; i < this.routes; ++i) {
+      router.addHandler(NanoHTTPD.Method.GET, "/api/v1/resource" + i + "/items", h);
+      router.addHandler(NanoHTTPD.Method.GET, "/api/resource" + i + "/:id/children/:childId", h);
+    }
+    router.compile();
+  }
+
+  /**
+   * Returns the next request to send.
+   */
+  byte[] next(SplittableRandom random) {
+    int kind = random.nextInt(100);
+    int route = random.nextInt(this.routes);
+    if (kind < this.staticUpTo) return this.staticRequests[route];
+    if (kind < this.paramUpTo) return this.paramRequests[route];
+    return this.missRequests[route];
+  }
+
+  private static final class FixedBody implements Handler {
+    private final byte[] body;
+
+    FixedBody(byte[] body) {
+      this.body = body;
+    }
+
+    @Override
+    public NanoHTTPD.Response handle(RequestContext ctx) {
+      return NanoHTTPD.newFixedLengthResponse(
+        NanoHTTPD.Response.Status.OK,
+        "application/octet-stream",
+        new ByteArrayInputStream(this.body),
+        this.body.length
+      );
+    }
+  }
+}
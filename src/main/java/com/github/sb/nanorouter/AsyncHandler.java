@@ -0,0 +1,33 @@
+package com.github.sb.nanorouter;
+
+import fi.iki.elonen.NanoHTTPD;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * A handler that produces its response asynchronously, e.g. by calling several backends at once
+ * and combining their replies.
+ *
+ * Register it with 'Router.addAsyncHandler'. If the returned stage does not complete within the
+ * route's timeout, the request is answered with 504 Gateway Timeout. If the stage fails, the
+ * request fails as if a synchronous Handler had thrown the same exception.
+ *
+ * Under an NioServer, a route without filters holds no thread while its stage is pending: the
+ * response is written once the stage completes, and a connection that fails in the meantime (e.g.
+ * reset by the client) is noticed at once. A client that only shuts down its sending side, as it
+ * may right after its last request, is still answered. Otherwise the serving thread waits for the
+ * stage, since filters and NanoHTTPD (which writes responses from the connection's thread) expect
+ * the response when the handler returns; under RouterServer a client that disconnects is then only
+ * noticed by the timeout.
+ *
+ * When the router gives up on the stage (timeout, disconnected client, server shutdown, or an
+ * interrupted serving thread), it cancels it. Cancelling a CompletableFuture does not interrupt
+ * the work behind it, but every stage depending on it fails with a CancellationException, so
+ * handlers can stop fanning out further calls by checking for that or by registering a
+ * 'whenComplete' callback.
+ *
+ * The RequestContext given to an async handler is never recycled, so it may be used from any
+ * thread until the stage completes.
+ */
+public interface AsyncHandler {
+  public CompletionStage<NanoHTTPD.Response> handle(RequestContext ctx);
+}
@@ -0,0 +1,187 @@
+package com.github.sb.nanorouter;
+
+import fi.iki.elonen.NanoHTTPD;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+
+/**
+ * Runs an AsyncHandler as a Handler.
+ *
+ * 'start' calls the handler and returns a Call, whose response completes without any thread
+ * waiting for it: with the handler's response, or with 504 Gateway Timeout once the route's
+ * timeout expires (on a shared timer thread) or the connection of an NioServer fails, which also
+ * cancel the handler's stage. The Router uses it directly for requests from an NioServer to routes
+ * without filters; every other request goes through 'handle', which blocks the serving thread
+ * until the response completes, since filters expect it when they call 'ctx.next()'.
+ *
+ * NanoHTTPD 2.2 does not expose its socket, so under RouterServer a client that disconnects is
+ * only noticed by the timeout; 'handle' only notices the server closing the connection itself
+ * (e.g. on 'stop()'), which makes the session's input stream fail.
+ */
+final class AsyncHandlerAdapter implements Handler {
+  // How often to check whether a NanoHTTPD connection was closed while waiting.
+  private static final long POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+  private final AsyncHandler handler;
+  private final long timeoutNanos;
+
+  AsyncHandlerAdapter(AsyncHandler handler, long timeout, TimeUnit unit) {
+    if (timeout <= 0) throw new IllegalArgumentException("timeout must be positive: " + timeout);
+
+    this.handler = handler;
+    this.timeoutNanos = unit.toNanos(timeout);
+  }
+
+  /**
+   * Fires the timeouts of every async route.
+   */
+  private static final class Timer {
+    static final ScheduledThreadPoolExecutor INSTANCE;
+
+    static {
+      INSTANCE = new ScheduledThreadPoolExecutor(
+        1,
+        new ThreadFactory() {
+
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "nanorouter-async-timeout");
+            t.setDaemon(true);
+            return t;
+          }
+        }
+      );
+      INSTANCE.setRemoveOnCancelPolicy(true);
+    }
+  }
+
+  /**
+   * One call to the handler: completes 'response' with the handler's response, or with 504 Gateway
+   * Timeout if abandoned first.
+   */
+  static final class Call implements BiConsumer<NanoHTTPD.Response, Throwable>, Runnable {
+    final CompletableFuture<NanoHTTPD.Response> response = new CompletableFuture<>();
+    private final CompletableFuture<NanoHTTPD.Response> stage;
+    private volatile ScheduledFuture<?> timeout;
+    private volatile boolean abandoned;
+
+    Call(CompletableFuture<NanoHTTPD.Response> stage) {
+      this.stage = stage;
+    }
+
+    /**
+     * The handler's stage completed, or was cancelled by 'run'.
+     */
+    @Override
+    public void accept(NanoHTTPD.Response r, Throwable t) {
+      ScheduledFuture<?> timeout = this.timeout;
+      if (timeout != null) timeout.cancel(false);
+
+      if (this.abandoned) {
+        this.response.complete(timedOut());
+      } else if (t != null) {
+        this.response.completeExceptionally(t);
+      } else {
+        this.response.complete(r);
+      }
+    }
+
+    /**
+     * Abandons the call (timeout, or no one left to read the response). The stage is cancelled
+     * before the response completes, so whoever waits for it finds the stage cancelled.
+     */
+    @Override
+    public void run() {
+      this.abandoned = true;
+      this.stage.cancel(true);
+      this.response.complete(timedOut());
+    }
+  }
+
+  public NanoHTTPD.Response handle(RequestContext ctx) {
+    Call call = start(ctx);
+    InputStream connection = ctx.session instanceof NioSession ? null : ctx.session.getInputStream();
+
+    try {
+      if (connection == null) return call.response.get();
+      while (true) {
+        try {
+          return call.response.get(POLL_NANOS, TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+          // Nobody is left to read the response.
+          if (isClosed(connection)) call.run();
+        }
+      }
+    } catch (InterruptedException e) {
+      call.run();
+      Thread.currentThread().interrupt();
+      return timedOut();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+      if (cause instanceof Error) throw (Error) cause;
+      throw new RuntimeException(cause);
+    }
+  }
+
+  /**
+   * Calls the handler, and returns the call, whose response completes without any thread waiting
+   * for it.
+   */
+  Call start(RequestContext ctx) {
+    Call call = new Call(toFuture(this.handler.handle(ctx)));
+    if (call.stage.isDone()) {
+      call.stage.whenComplete(call);
+      return call;
+    }
+
+    call.timeout = Timer.INSTANCE.schedule(call, this.timeoutNanos, TimeUnit.NANOSECONDS);
+    if (ctx.session instanceof NioSession) ((NioSession) ctx.session).disconnected.thenRun(call);
+    call.stage.whenComplete(call);
+    return call;
+  }
+
+  private static CompletableFuture<NanoHTTPD.Response> toFuture(CompletionStage<NanoHTTPD.Response> stage) {
+    try {
+      return stage.toCompletableFuture();
+    } catch (UnsupportedOperationException e) {
+      final CompletableFuture<NanoHTTPD.Response> f = new CompletableFuture<>();
+      stage.whenComplete(
+        new BiConsumer<NanoHTTPD.Response, Throwable>() {
+
+          @Override
+          public void accept(NanoHTTPD.Response r, Throwable t) {
+            if (t != null) f.completeExceptionally(t); else f.complete(r);
+          }
+        }
+      );
+      return f;
+    }
+  }
+
+  private static boolean isClosed(InputStream connection) {
+    try {
+      connection.available();
+      return false;
+    } catch (IOException e) {
+      return true;
+    }
+  }
+
+  private static NanoHTTPD.Response timedOut() {
+    return NanoHTTPD.newFixedLengthResponse(
+      HttpStatus.GATEWAY_TIMEOUT,
+      "application/text",
+      "Nanorouter: Request timed out"
+    );
+  }
+}
@@ -0,0 +1,16 @@
+package com.github.sb.nanorouter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes a streamed response body to an OutputStream, e.g. with a JSON library's streaming
+ * generator. See 'StreamingResponses.piped'.
+ */
+public interface BodyWriter {
+  /**
+   * Writes the whole body to 'out'. Writes block while the client is behind, and fail with an
+   * IOException once the client is gone. Throwing aborts the response.
+   */
+  public void writeTo(OutputStream out) throws IOException;
+}
@@ -0,0 +1,76 @@
+package com.github.sb.nanorouter;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded pool of equally sized byte arrays, used to build streamed responses without
+ * allocating a buffer for every chunk.
+ *
+ * At most 'maxPooled' free buffers are kept. When the pool is empty a new buffer is allocated, and
+ * buffers released while it is full are left to the garbage collector, so the pool never blocks
+ * and never holds more than 'bufferSize * maxPooled' bytes.
+ */
+public final class BufferPool {
+  private static final BufferPool SHARED = new BufferPool(8 * 1024, 256);
+
+  private final int bufferSize;
+  private final ArrayBlockingQueue<byte[]> free;
+
+  private final LongAdder allocated = new LongAdder();
+  private final LongAdder reused = new LongAdder();
+
+  public BufferPool(int bufferSize, int maxPooled) {
+    if (bufferSize <= 0) throw new IllegalArgumentException("bufferSize must be positive: " + bufferSize);
+    if (maxPooled <= 0) throw new IllegalArgumentException("maxPooled must be positive: " + maxPooled);
+
+    this.bufferSize = bufferSize;
+    this.free = new ArrayBlockingQueue<>(maxPooled);
+  }
+
+  /**
+   * Returns the pool used by StreamingResponses by default: 8 KiB buffers, at most 256 kept.
+   */
+  public static BufferPool shared() {
+    return SHARED;
+  }
+
+  public int getBufferSize() {
+    return this.bufferSize;
+  }
+
+  /**
+   * Returns the number of buffers allocated because the pool was empty.
+   */
+  public long getAllocated() {
+    return this.allocated.sum();
+  }
+
+  /**
+   * Returns the number of buffers handed out from the pool.
+   */
+  public long getReused() {
+    return this.reused.sum();
+  }
+
+  /**
+   * Returns a buffer of 'getBufferSize()' bytes, with undefined contents.
+   */
+  public byte[] acquire() {
+    byte[] b = this.free.poll();
+    if (b != null) {
+      this.reused.increment();
+      return b;
+    }
+
+    this.allocated.increment();
+    return new byte[this.bufferSize];
+  }
+
+  /**
+   * Returns a buffer obtained from 'acquire' to the pool. Buffers of another size are ignored.
+   */
+  public void release(byte[] b) {
+    if (b != null && b.length == this.bufferSize) this.free.offer(b);
+  }
+}
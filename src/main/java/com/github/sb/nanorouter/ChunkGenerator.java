@@ -0,0 +1,28 @@
+package com.github.sb.nanorouter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Produces a streamed response body piece by piece, on the connection's thread, as NanoHTTPD
+ * sends it. See 'StreamingResponses.chunked'.
+ *
+ * E.g.
+ *   return StreamingResponses.chunked(Status.OK, "application/json", new ChunkGenerator() {
+ *     private final Iterator<Book> books = db.books();
+ *
+ *     public boolean next(OutputStream out) throws IOException {
+ *       if (!books.hasNext()) return false;
+ *       out.write(books.next().toJson().getBytes(StandardCharsets.UTF_8));
+ *       return true;
+ *     }
+ *   });
+ */
+public interface ChunkGenerator {
+  /**
+   * Writes the next piece of the body to 'out', and returns false once the body is complete
+   * (possibly after writing a last piece). Pieces should be no larger than the buffer size of the
+   * pool (8 KiB by default) to keep memory use constant.
+   */
+  public boolean next(OutputStream out) throws IOException;
+}
@@ -0,0 +1,364 @@
+package com.github.sb.nanorouter;
+
+import fi.iki.elonen.NanoHTTPD;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A read-only, flattened copy of a RouterTrie.
+ *
+ * Nodes are numbered breadth first so that the static children of every node occupy a contiguous
+ * range of ids, followed by its constrained children. Each node is then described by a handful of
+ * primitive arrays indexed by its id, and all edge labels share a single char[] in which identical
+ * labels (e.g. "/projects/" under every tenant of a multi-tenant API) are stored once, as are
+ * identical "Allow" values. Matching follows
+ * exactly the same rules as RouterTrie (static, then constrained, then plain parameters, then the
+ * catch-all, with backtracking), but walks arrays instead of objects and can never observe a
+ * structure that is being modified.
+ *
+ * A single trie holds the routes of every method: each leaf carries an array of routes indexed by
+ * Method.ordinal(). While matching, a leaf only counts if it has a route for the request method, so
+ * "GET /books/book" still reaches "GET /books/:id" when only "POST /books/book" exists.
+ */
+final class CompiledTrie {
+  private static final int NONE = -1;
+
+  // Shallow sizes of a Route and of a String (without its characters), for 'footprint'.
+  private static final int ROUTE = 40;
+  private static final int STRING = 24;
+
+  // All distinct edge labels, back to back. Node n's label is chars[labelStart[n], labelEnd[n]).
+  private final char[] chars;
+  private final int[] labelStart;
+  private final int[] labelEnd;
+
+  // First character of each node's label, used to binary search a range of siblings.
+  private final char[] first;
+
+  // Static children of node n are the ids [childStart[n], childEnd[n]), and its constrained
+  // children are the ids [childEnd[n], constrainedEnd[n]).
+  private final int[] childStart;
+  private final int[] childEnd;
+  private final int[] constrainedEnd;
+
+  // The constraint on the value consumed when entering node n, if it is a constrained child.
+  private final Constraint[] constraint;
+
+  // Id of the parametric child of node n, or NONE.
+  private final int[] paramChild;
+
+  // Id of the catch-all child of node n, or NONE.
+  private final int[] catchAll;
+
+  // The routes registered at node n indexed by method ordinal, or null if n is not a leaf.
+  private final Route[][] leaves;
+
+  // The value of the "Allow" header for the URI at node n, or null if n is not a leaf.
+  private final String[] allow;
+
+  // The largest number of parameters of any route in this trie.
+  final int maxParams;
+
+  // The largest number of edges between the root and a node.
+  final int maxDepth;
+
+  // Matches the static routes without walking the trie, or null.
+  private final SpecializedMatcher specialized;
+
+  /**
+   * Flattens the trie rooted at 'root'. 'routes' maps each leaf to its routes by method ordinal.
+   */
+  CompiledTrie(RouterTrie root, Map<RouterTrie, Route[]> routes) {
+    this(root, routes, false);
+  }
+
+  /**
+   * Flattens the trie rooted at 'root', and if 'specialize' is set, builds a SpecializedMatcher
+   * for its static routes.
+   */
+  CompiledTrie(RouterTrie root, Map<RouterTrie, Route[]> routes, boolean specialize) {
+    // Pass 1: breadth first order, in the order children are tried while matching.
+    List<RouterTrie> order = new ArrayList<>();
+    order.add(root);
+    Map<String, Integer> labels = new HashMap<>();
+    int chars = 0;
+    for (int n = 0; n < order.size(); ++n) {
+      RouterTrie node = order.get(n);
+      String label = new String(node.label);
+      if (!labels.containsKey(label)) {
+        labels.put(label, chars);
+        chars += label.length();
+      }
+      order.addAll(Arrays.asList(node.children));
+      order.addAll(Arrays.asList(node.constrained));
+      if (node.paramChild != null) order.add(node.paramChild);
+      if (node.catchAll != null) order.add(node.catchAll);
+    }
+
+    int size = order.size();
+    this.chars = new char[chars];
+    this.labelStart = new int[size];
+    this.labelEnd = new int[size];
+    this.first = new char[size];
+    this.childStart = new int[size];
+    this.childEnd = new int[size];
+    this.constrainedEnd = new int[size];
+    this.constraint = new Constraint[size];
+    this.paramChild = new int[size];
+    this.catchAll = new int[size];
+    this.leaves = new Route[size][];
+    this.allow = new String[size];
+    this.maxParams = root.maxParams;
+
+    // Pass 2: the ids handed out here line up with the order of pass 1.
+    int[] depth = new int[size];
+    Map<String, String> allows = new HashMap<>();
+    int next = 1;
+    for (int n = 0; n < size; ++n) {
+      RouterTrie node = order.get(n);
+
+      int offset = labels.get(new String(node.label));
+      System.arraycopy(node.label, 0, this.chars, offset, node.label.length);
+      this.labelStart[n] = offset;
+      this.labelEnd[n] = offset + node.label.length;
+      if (node.label.length > 0) this.first[n] = node.label[0];
+      this.constraint[n] = node.constraint;
+
+      this.childStart[n] = next;
+      next += node.children.length;
+      this.childEnd[n] = next;
+      next += node.constrained.length;
+      this.constrainedEnd[n] = next;
+      this.paramChild[n] = node.paramChild != null ? next++ : NONE;
+      this.catchAll[n] = node.catchAll != null ? next++ : NONE;
+      for (int c = this.childStart[n]; c < next; ++c) depth[c] = depth[n] + 1;
+
+      Route[] leaf = routes.get(node);
+      if (leaf != null) {
+        this.leaves[n] = leaf;
+        String allow = allowOf(leaf);
+        String shared = allows.get(allow);
+        if (shared == null) allows.put(allow, shared = allow);
+        this.allow[n] = shared;
+      }
+    }
+
+    this.maxDepth = depth[size - 1];
+    this.specialized = specialize ? specialize() : null;
+  }
+
+  /**
+   * Builds a matcher for the leaves that are reached through static edges only, or returns null
+   * if there are none (or too many).
+   */
+  private SpecializedMatcher specialize() {
+    List<String> paths = new ArrayList<>();
+    List<Integer> nodes = new ArrayList<>();
+    collectStatic(0, "", paths, nodes);
+    if (paths.isEmpty()) return null;
+
+    int[] ids = new int[nodes.size()];
+    for (int i = 0; i < ids.length; ++i) ids[i] = nodes.get(i);
+    return SpecializedMatcher.build(paths.toArray(new String[0]), ids);
+  }
+
+  private void collectStatic(int node, String path, List<String> paths, List<Integer> nodes) {
+    if (this.leaves[node] != null) {
+      paths.add(path);
+      nodes.add(node);
+    }
+    for (int c = this.childStart[node]; c < this.childEnd[node]; ++c) {
+      String label = new String(this.chars, this.labelStart[c], this.labelEnd[c] - this.labelStart[c]);
+      collectStatic(c, path + label, paths, nodes);
+    }
+  }
+
+  /**
+   * Returns true if the static routes are matched by a SpecializedMatcher.
+   */
+  boolean isSpecialized() {
+    return this.specialized != null;
+  }
+
+  /**
+   * Returns the number of nodes.
+   */
+  int size() {
+    return this.labelStart.length;
+  }
+
+  /**
+   * Returns an estimate of the bytes used by this trie and its routes, assuming a 64-bit JVM with
+   * compressed references. Handlers, filters, constraints and metrics are not counted.
+   */
+  long footprint() {
+    int size = size();
+    long bytes = array(this.chars.length, 2) + array(size, 2); // chars, first
+    bytes += 8 * array(size, 4); // the seven int[]s and 'constraint'
+    bytes += 2 * array(size, 4); // leaves, allow
+    if (this.specialized != null) bytes += this.specialized.footprint();
+
+    // Each leaf array and its routes, and each distinct "Allow" value and parameter name array.
+    Map<Object, Boolean> shared = new IdentityHashMap<>();
+    for (int n = 0; n < size; ++n) {
+      Route[] leaf = this.leaves[n];
+      if (leaf == null) continue;
+
+      bytes += array(leaf.length, 4);
+      if (shared.put(this.allow[n], Boolean.TRUE) == null) bytes += STRING + array(this.allow[n].length(), 1);
+
+      for (Route r : leaf) {
+        if (r == null) continue;
+        bytes += ROUTE;
+        if (shared.put(r.paramNames, Boolean.TRUE) == null) bytes += array(r.paramNames.length, 4);
+      }
+    }
+    return bytes;
+  }
+
+  /**
+   * Returns the size of an array of 'length' elements of 'width' bytes, padded to 8 bytes.
+   */
+  private static long array(int length, int width) {
+    return (16 + (long) length * width + 7) & ~7L;
+  }
+
+  /**
+   * Returns the comma separated methods that have a route in 'leaf'.
+   */
+  private static String allowOf(Route[] leaf) {
+    StringBuilder sb = new StringBuilder();
+    for (Route r : leaf) {
+      if (r == null) continue;
+      if (sb.length() > 0) sb.append(", ");
+      sb.append(r.method.name());
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Searches for the Method + URI pair, capturing parameters into 'params'. Returns the matched
+   * route, or null.
+   */
+  Route lookup(NanoHTTPD.Method method, String uri, Params params) {
+    params.reset(uri, this.maxParams);
+
+    int ordinal = method.ordinal();
+    // A static route of the method is what the walk would find first, since it tries static edges
+    // before anything else.
+    int leaf = this.specialized != null ? this.specialized.match(uri) : NONE;
+    if (leaf == NONE || this.leaves[leaf][ordinal] == null) leaf = match(uri, 0, 0, params.offsets, 0, ordinal);
+    if (leaf == NONE) return null;
+
+    Route route = this.leaves[leaf][ordinal];
+    params.bind(route.paramNames);
+
+    return route;
+  }
+
+  /**
+   * Searches for the URI regardless of the method. Returns the value of the "Allow" header for it,
+   * or null if it does not match any route. This uses 'params' as scratch space.
+   */
+  String allowed(String uri, Params params) {
+    params.reset(uri, this.maxParams);
+
+    int leaf = this.specialized != null ? this.specialized.match(uri) : NONE;
+    if (leaf == NONE) leaf = match(uri, 0, 0, params.offsets, 0, NONE);
+    return leaf == NONE ? null : this.allow[leaf];
+  }
+
+  /**
+   * Matches 'path' from index 'i' below 'node', whose label has already been consumed. See
+   * RouterTrie.match for the meaning of 'offsets' and 'n'. Only leaves with a route for the
+   * method 'ordinal' are accepted, or any leaf if it is NONE.
+   *
+   * Returns the id of the matched leaf, or NONE.
+   */
+  private int match(String path, int node, int i, int[] offsets, int n, int ordinal) {
+    int length = path.length();
+    if (i == length) {
+      if (accepts(node, ordinal)) return node;
+
+      // An empty catch-all, e.g. "/static/" for "/static/*path"
+      int all = this.catchAll[node];
+      if (all != NONE && accepts(all, ordinal)) return capture(all, i, length, offsets, n);
+
+      return NONE;
+    }
+
+    // Static edges first
+    int from = this.childStart[node];
+    int to = this.childEnd[node];
+    if (from < to) {
+      int child = Arrays.binarySearch(this.first, from, to, path.charAt(i));
+
+      if (child >= 0) {
+        int start = this.labelStart[child];
+        int edge = this.labelEnd[child] - start;
+
+        if (length - i >= edge && regionMatches(path, i, start, edge)) {
+          int found = match(path, child, i + edge, offsets, n, ordinal);
+          if (found != NONE) return found;
+        }
+      }
+    }
+
+    // Then parameters, which swallow everything up to the next separator.
+    int constrainedEnd = this.constrainedEnd[node];
+    int param = this.paramChild[node];
+    if (to < constrainedEnd || param != NONE) {
+      int end = path.indexOf('/', i);
+      if (end < 0) end = length;
+
+      if (end > i) {
+        offsets[2 * n] = i;
+        offsets[2 * n + 1] = end;
+
+        for (int c = to; c < constrainedEnd; ++c) {
+          if (!this.constraint[c].matches(path, i, end)) continue;
+
+          int found = match(path, c, end, offsets, n + 1, ordinal);
+          if (found != NONE) return found;
+        }
+
+        if (param != NONE) {
+          int found = match(path, param, end, offsets, n + 1, ordinal);
+          if (found != NONE) return found;
+        }
+      }
+    }
+
+    // And finally the catch-all, which swallows the rest of the URI.
+    int all = this.catchAll[node];
+    if (all != NONE && accepts(all, ordinal)) return capture(all, i, length, offsets, n);
+
+    return NONE;
+  }
+
+  /**
+   * Returns true if node 'n' is a leaf with a route for the method 'ordinal' (any, if NONE).
+   */
+  private boolean accepts(int n, int ordinal) {
+    Route[] leaf = this.leaves[n];
+    return leaf != null && (ordinal == NONE || leaf[ordinal] != null);
+  }
+
+  private static int capture(int leaf, int start, int end, int[] offsets, int n) {
+    offsets[2 * n] = start;
+    offsets[2 * n + 1] = end;
+    return leaf;
+  }
+
+  private boolean regionMatches(String path, int i, int start, int edge) {
+    // The first character was already compared when the edge was selected.
+    for (int k = 1; k < edge; ++k) {
+      if (path.charAt(i + k) != this.chars[start + k]) return false;
+    }
+    return true;
+  }
+}
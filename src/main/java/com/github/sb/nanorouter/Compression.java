@@ -0,0 +1,501 @@
+package com.github.sb.nanorouter;
+
+import fi.iki.elonen.NanoHTTPD;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Gzip compression of responses, applied by the Router to every response once its handler and
+ * filters are done (see 'Router.setCompression'). It replaces NanoHTTPD's own gzip support, which
+ * RouterServer turns off when a Compression is set.
+ *
+ * A response is compressed when the client accepts gzip (with a non-zero quality), its status is
+ * 200 (or another 2xx with a body), it has no Content-Encoding yet, it does not say
+ * "Cache-Control: no-transform", and its MIME type is text or a textual application type (JSON,
+ * XML, JavaScript, SVG, ...). Bodies smaller than the minimum size are sent as they are, since the
+ * gzip framing would eat most of the gain, and so are bodies larger than the buffer limit. Bodies
+ * from StreamingResponses are compressed as they are produced, flushing after each piece.
+ *
+ * Deflaters are pooled rather than allocated (with their native memory) per response. Compressed
+ * bodies of responses that carry a strong ETag are also kept in a size-bounded cache, keyed by URI
+ * and ETag, so hot static responses are only compressed once. Since the compressed representation
+ * is not byte-for-byte the one the ETag was computed for, the ETag is sent weak ("W/...").
+ *
+ * Routes opt out with the 'disable()' filter. In opt-in mode ('setOptIn') only routes with the
+ * 'enable()' filter are compressed. E.g.
+ *
+ *   Compression gzip = new Compression();
+ *   router.setCompression(gzip);
+ *   router.addHandler(Method.GET, "/download/:id", downloads, Compression.disable());
+ */
+public final class Compression {
+  static final byte DEFAULT = 0;
+  static final byte ENABLED = 1;
+  static final byte DISABLED = 2;
+
+  // gzip member header: magic, CM = deflate, no flags, no mtime, no extra flags, OS = unknown.
+  private static final byte[] GZIP_HEADER = new byte[] { 0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+  private static final Filter ENABLE = new Filter() {
+
+    @Override
+    public NanoHTTPD.Response filter(RequestContext ctx) {
+      ctx.compression = ENABLED;
+      return ctx.next();
+    }
+  };
+
+  private static final Filter DISABLE = new Filter() {
+
+    @Override
+    public NanoHTTPD.Response filter(RequestContext ctx) {
+      ctx.compression = DISABLED;
+      return ctx.next();
+    }
+  };
+
+  private final int level;
+  private int minSize = 1024;
+  private int maxBufferedBytes = 1024 * 1024;
+  private boolean optIn;
+
+  private final DeflaterPool deflaters;
+  private final BufferPool buffers = BufferPool.shared();
+
+  // Compressed bodies by URI + ETag, least recently used first. Guarded by itself.
+  private final LinkedHashMap<String, byte[]> cache = new LinkedHashMap<>(16, 0.75f, true);
+  private long maxCacheBytes = 8 * 1024 * 1024;
+  private long cachedBytes;
+
+  private final LongAdder compressed = new LongAdder();
+  private final LongAdder cacheHits = new LongAdder();
+  private final LongAdder bytesIn = new LongAdder();
+  private final LongAdder bytesOut = new LongAdder();
+
+  /**
+   * Compresses with the default level (6), which is most of the ratio of level 9 for a fraction of
+   * the CPU.
+   */
+  public Compression() {
+    this(Deflater.DEFAULT_COMPRESSION);
+  }
+
+  /**
+   * Compresses with the given Deflater level, from 1 (fastest) to 9 (smallest).
+   */
+  public Compression(int level) {
+    if (level != Deflater.DEFAULT_COMPRESSION && (level < 1 || level > 9)) {
+      throw new IllegalArgumentException("Invalid compression level: " + level);
+    }
+    this.level = level;
+    this.deflaters = new DeflaterPool(level, 2 * Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Returns a filter that compresses the route's responses, even in opt-in mode.
+   */
+  public static Filter enable() {
+    return ENABLE;
+  }
+
+  /**
+   * Returns a filter that leaves the route's responses uncompressed.
+   */
+  public static Filter disable() {
+    return DISABLE;
+  }
+
+  /**
+   * Sets the smallest body that is compressed, 1 KiB by default.
+   */
+  public void setMinSize(int bytes) {
+    this.minSize = bytes;
+  }
+
+  /**
+   * Sets the largest fixed length body that is compressed, 1 MiB by default. Such bodies are read
+   * into memory before they are compressed, so that the response keeps a Content-Length.
+   */
+  public void setMaxBufferedBytes(int bytes) {
+    this.maxBufferedBytes = bytes;
+  }
+
+  /**
+   * Only compresses routes that have the 'enable()' filter.
+   */
+  public void setOptIn(boolean optIn) {
+    this.optIn = optIn;
+  }
+
+  /**
+   * Sets the total size of the compressed bodies kept for responses with an ETag, 8 MiB by
+   * default. 0 disables the cache.
+   */
+  public void setCacheSize(long bytes) {
+    synchronized (this.cache) {
+      this.maxCacheBytes = bytes;
+      evict();
+    }
+  }
+
+  public int getLevel() {
+    return this.level;
+  }
+
+  /**
+   * Returns the number of responses sent compressed.
+   */
+  public long getCompressed() {
+    return this.compressed.sum();
+  }
+
+  /**
+   * Returns the number of responses whose compressed body came from the cache.
+   */
+  public long getCacheHits() {
+    return this.cacheHits.sum();
+  }
+
+  /**
+   * Returns the total size of the bodies that were compressed, before compression.
+   */
+  public long getBytesIn() {
+    return this.bytesIn.sum();
+  }
+
+  /**
+   * Returns the total size of the bodies that were compressed, after compression.
+   */
+  public long getBytesOut() {
+    return this.bytesOut.sum();
+  }
+
+  /**
+   * Returns true if the Accept-Encoding header accepts 'coding' (with a non-zero quality).
+   */
+  static boolean accepts(String acceptEncoding, String coding) {
+    if (acceptEncoding == null) return false;
+
+    for (String part : acceptEncoding.split(",")) {
+      String[] params = part.split(";");
+      if (!params[0].trim().equalsIgnoreCase(coding)) continue;
+
+      for (int i = 1; i < params.length; ++i) {
+        String q = params[i].trim();
+        if (q.startsWith("q=") && q.substring(2).trim().matches("0(\\.0*)?")) return false;
+      }
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Returns true if responses of this MIME type are worth compressing.
+   */
+  static boolean compressible(String mimeType) {
+    if (mimeType == null) return false;
+
+    String m = mimeType.toLowerCase(Locale.ROOT);
+    int semicolon = m.indexOf(';');
+    if (semicolon >= 0) m = m.substring(0, semicolon).trim();
+
+    if (m.equals(EventStream.MIME_TYPE)) return false;
+    if (m.startsWith("text/")) return true;
+    if (!m.startsWith("application/") && !m.startsWith("image/svg")) return false;
+    return m.endsWith("json") || m.endsWith("xml") || m.endsWith("javascript") || m.equals("application/text") ||
+      m.equals("application/wasm");
+  }
+
+  /**
+   * Compresses 'r' if it should be, and returns the response to send (which is 'r').
+   */
+  NanoHTTPD.Response apply(RequestContext ctx, NanoHTTPD.Response r) {
+    if (r == null || ctx.compression == DISABLED) return r;
+    if (this.optIn && ctx.compression != ENABLED) return r;
+
+    int status = r.getStatus() == null ? 0 : r.getStatus().getRequestStatus();
+    if (status < 200 || status >= 300 || status == 204 || status == 206) return r;
+    if (r.getData() == null || r.getHeader("Content-Encoding") != null) return r;
+    if (!compressible(r.getMimeType())) return r;
+
+    String cacheControl = r.getHeader("Cache-Control");
+    if (cacheControl != null && cacheControl.toLowerCase(Locale.ROOT).contains("no-transform")) return r;
+
+    // Either representation may be sent for this URI from now on.
+    vary(r);
+
+    if (!accepts(ctx.session.getHeaders().get("accept-encoding"), "gzip")) return r;
+
+    if (r.getData() instanceof StreamingResponses.StreamingBody) {
+      r.setData(new GzipInputStream(r.getData()));
+      r.addHeader("Content-Encoding", "gzip");
+      weakenETag(r);
+      this.compressed.increment();
+      return r;
+    }
+
+    String etag = r.getHeader("ETag");
+    String key = etag != null && !etag.startsWith("W/") && cacheable(cacheControl) ? ctx.uri + '\n' + etag : null;
+
+    byte[] gzipped = key != null ? cached(key) : null;
+    if (gzipped != null) {
+      this.cacheHits.increment();
+      try {
+        r.getData().close();
+      } catch (IOException e) {
+        // Not read anyway
+      }
+    } else {
+      byte[] body = read(r);
+      if (body == null || body.length < this.minSize) return r;
+
+      gzipped = gzip(body);
+      if (gzipped.length >= body.length) return r;
+
+      this.bytesIn.add(body.length);
+      if (key != null) cache(key, gzipped);
+    }
+
+    this.bytesOut.add(gzipped.length);
+    this.compressed.increment();
+
+    r.setData(new ByteArrayInputStream(gzipped));
+    r.setChunkedTransfer(false);
+    // NanoHTTPD sends exactly this many bytes of the body.
+    r.addHeader("Content-Length", Integer.toString(gzipped.length));
+    r.addHeader("Content-Encoding", "gzip");
+    weakenETag(r);
+    return r;
+  }
+
+  private static boolean cacheable(String cacheControl) {
+    if (cacheControl == null) return true;
+    String lower = cacheControl.toLowerCase(Locale.ROOT);
+    return !lower.contains("no-store") && !lower.contains("private");
+  }
+
+  private static void vary(NanoHTTPD.Response r) {
+    String vary = r.getHeader("Vary");
+    if (vary == null) {
+      r.addHeader("Vary", "Accept-Encoding");
+    } else if (!vary.toLowerCase(Locale.ROOT).contains("accept-encoding")) {
+      r.addHeader("Vary", vary + ", Accept-Encoding");
+    }
+  }
+
+  private static void weakenETag(NanoHTTPD.Response r) {
+    String etag = r.getHeader("ETag");
+    if (etag != null && !etag.startsWith("W/")) r.addHeader("ETag", "W/" + etag);
+  }
+
+  /**
+   * Reads the body of 'r' into memory and puts an equivalent stream back. Returns null, leaving
+   * the body to be sent as it is, if it is larger than 'maxBufferedBytes' or cannot be read.
+   */
+  private byte[] read(NanoHTTPD.Response r) {
+    InputStream in = r.getData();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buf = this.buffers.acquire();
+
+    try {
+      for (int n; (n = in.read(buf)) >= 0; ) {
+        out.write(buf, 0, n);
+        if (out.size() > this.maxBufferedBytes) {
+          r.setData(new SequenceInputStream(new ByteArrayInputStream(out.toByteArray()), in));
+          return null;
+        }
+      }
+      in.close();
+    } catch (IOException e) {
+      r.setData(new ByteArrayInputStream(out.toByteArray()));
+      return null;
+    } finally {
+      this.buffers.release(buf);
+    }
+
+    byte[] body = out.toByteArray();
+    r.setData(new ByteArrayInputStream(body));
+    return body;
+  }
+
+  /**
+   * Returns 'body' as a single gzip member.
+   */
+  byte[] gzip(byte[] body) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 4 + 32);
+    out.write(GZIP_HEADER, 0, GZIP_HEADER.length);
+
+    Deflater deflater = this.deflaters.acquire();
+    byte[] buf = this.buffers.acquire();
+    try {
+      deflater.setInput(body);
+      deflater.finish();
+      while (!deflater.finished()) {
+        int n = deflater.deflate(buf);
+        out.write(buf, 0, n);
+      }
+    } finally {
+      this.buffers.release(buf);
+      this.deflaters.release(deflater);
+    }
+
+    CRC32 crc = new CRC32();
+    crc.update(body, 0, body.length);
+    writeTrailer(out, crc.getValue(), body.length);
+    return out.toByteArray();
+  }
+
+  private static void writeTrailer(ByteArrayOutputStream out, long crc, long size) {
+    for (int i = 0; i < 4; ++i) out.write((int) (crc >>> (8 * i)));
+    for (int i = 0; i < 4; ++i) out.write((int) (size >>> (8 * i)));
+  }
+
+  private byte[] cached(String key) {
+    synchronized (this.cache) {
+      return this.cache.get(key);
+    }
+  }
+
+  private void cache(String key, byte[] gzipped) {
+    synchronized (this.cache) {
+      if (gzipped.length > this.maxCacheBytes) return;
+
+      byte[] previous = this.cache.put(key, gzipped);
+      if (previous != null) this.cachedBytes -= previous.length;
+      this.cachedBytes += gzipped.length;
+      evict();
+    }
+  }
+
+  // Drops least recently used bodies until the cache fits. Called with 'cache' held.
+  private void evict() {
+    Iterator<byte[]> it = this.cache.values().iterator();
+    while (this.cachedBytes > this.maxCacheBytes && it.hasNext()) {
+      this.cachedBytes -= it.next().length;
+      it.remove();
+    }
+  }
+
+  /**
+   * A bounded pool of Deflaters with the same level, producing raw deflate data (the gzip framing
+   * is written separately). Deflaters beyond the bound are ended, which frees their native memory
+   * right away instead of at finalization.
+   */
+  private static final class DeflaterPool {
+    private final int level;
+    private final ArrayBlockingQueue<Deflater> free;
+
+    DeflaterPool(int level, int maxPooled) {
+      this.level = level;
+      this.free = new ArrayBlockingQueue<>(maxPooled);
+    }
+
+    Deflater acquire() {
+      Deflater d = this.free.poll();
+      return d != null ? d : new Deflater(this.level, true);
+    }
+
+    void release(Deflater d) {
+      d.reset();
+      if (!this.free.offer(d)) d.end();
+    }
+  }
+
+  /**
+   * Gzips a streamed body as it is read: every piece read from the source is compressed and
+   * flushed, so that the client receives it without waiting for the rest.
+   */
+  private final class GzipInputStream extends InputStream {
+    private final InputStream source;
+    private final CRC32 crc = new CRC32();
+    private Deflater deflater = Compression.this.deflaters.acquire();
+    private final byte[] input = Compression.this.buffers.acquire();
+    private long size;
+
+    // Compressed bytes waiting to be read: out[position, count).
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private byte[] out = GZIP_HEADER;
+    private int position;
+    private int count = GZIP_HEADER.length;
+    private boolean finished;
+
+    GzipInputStream(InputStream source) {
+      this.source = source;
+    }
+
+    // Returns false at the end of the compressed stream.
+    private boolean fill() throws IOException {
+      while (this.position == this.count) {
+        if (this.finished) return false;
+
+        this.pending.reset();
+        int n = this.source.read(this.input);
+        if (n < 0) {
+          this.deflater.finish();
+          drain(Deflater.NO_FLUSH);
+          writeTrailer(this.pending, this.crc.getValue(), this.size);
+          this.finished = true;
+        } else if (n > 0) {
+          this.crc.update(this.input, 0, n);
+          this.size += n;
+          this.deflater.setInput(this.input, 0, n);
+          drain(Deflater.SYNC_FLUSH);
+        }
+
+        this.out = this.pending.toByteArray();
+        this.position = 0;
+        this.count = this.out.length;
+      }
+      return true;
+    }
+
+    private void drain(int flush) {
+      byte[] buf = Compression.this.buffers.acquire();
+      try {
+        while (true) {
+          int n = this.deflater.deflate(buf, 0, buf.length, flush);
+          this.pending.write(buf, 0, n);
+          // A full buffer may mean there is more output waiting.
+          if (n < buf.length && (this.deflater.needsInput() || this.deflater.finished())) break;
+        }
+      } finally {
+        Compression.this.buffers.release(buf);
+      }
+    }
+
+    @Override
+    public int read() throws IOException {
+      return fill() ? this.out[this.position++] & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) return 0;
+      if (!fill()) return -1;
+
+      int n = Math.min(len, this.count - this.position);
+      System.arraycopy(this.out, this.position, b, off, n);
+      this.position += n;
+      return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (this.deflater == null) return;
+      Compression.this.deflaters.release(this.deflater);
+      Compression.this.buffers.release(this.input);
+      this.deflater = null;
+      this.source.close();
+    }
+  }
+}
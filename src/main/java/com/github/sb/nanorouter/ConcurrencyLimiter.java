@@ -0,0 +1,238 @@
+package com.github.sb.nanorouter;
+
+import fi.iki.elonen.NanoHTTPD;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounds the number of requests in flight through the routes it is applied to, and rejects the
+ * rest immediately with "503 Service Unavailable" and a Retry-After header, so that a slow route
+ * cannot hold every connection thread.
+ *
+ * A limiter is applied through its filters. Added with 'Router.addFilter(Filter)' it bounds the
+ * whole router; added to a route (or a prefix) it bounds that route alone. E.g.
+ *
+ *   ConcurrencyLimiter reports = ConcurrencyLimiter.fixed(4);
+ *   router.addHandler(Method.GET, "/reports/:id", reportHandler, reports.filter());
+ *
+ *   ConcurrencyLimiter server = ConcurrencyLimiter.adaptive(64, 8, 256);
+ *   router.addFilter("/api", server.filter());
+ *   router.addFilter("/admin", server.filter(ConcurrencyLimiter.Priority.CRITICAL));
+ *
+ * A request that passes through two filters of the same limiter is counted twice, so give each
+ * route at most one of them.
+ *
+ * Requests of each Priority may only use part of the limit, so that when the limiter fills up the
+ * least important requests are shed first: SHEDDABLE ones are rejected once half of the limit is
+ * in use, NORMAL ones at 90%, and CRITICAL ones only when it is exhausted.
+ *
+ * An adaptive limiter adjusts its limit to the latency of the requests it lets through (additive
+ * increase, multiplicative decrease). Every window of completed requests, it compares their mean
+ * latency to the lowest mean seen recently: if it has more than doubled, requests are queueing
+ * somewhere and the limit shrinks by 10%; otherwise, if the limit was reached during the window,
+ * it grows by one.
+ *
+ * Admission is a single compare-and-set on the in-flight count, which has to be exact for the bound
+ * to hold; everything else is counted in LongAdders, off the contended path.
+ */
+public final class ConcurrencyLimiter {
+
+  public enum Priority {
+    CRITICAL(1.0),
+    NORMAL(0.9),
+    SHEDDABLE(0.5);
+
+    // The fraction of the limit requests of this priority may use.
+    final double share;
+
+    Priority(double share) {
+      this.share = share;
+    }
+  }
+
+  // Completed requests per adaptive window.
+  private static final int WINDOW = 100;
+
+  // The mean latency of a window may be this many times the lowest recent one before shrinking.
+  private static final double TOLERANCE = 2.0;
+  private static final double BACKOFF = 0.9;
+
+  // The lowest mean latency is forgotten every this many windows, so that it can rise again.
+  private static final int MIN_LATENCY_WINDOWS = 50;
+
+  private final boolean adaptive;
+  private final int minLimit;
+  private final int maxLimit;
+
+  // Written by the thread that closes a window only.
+  private volatile int limit;
+
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private volatile int retryAfterSeconds = 1;
+
+  private final LongAdder accepted = new LongAdder();
+  private final LongAdder rejected = new LongAdder();
+
+  // The current adaptive window.
+  private final AtomicInteger samples = new AtomicInteger();
+  private final LongAdder latencyNanos = new LongAdder();
+  private volatile boolean saturated;
+  private final AtomicBoolean adjusting = new AtomicBoolean();
+
+  // Guarded by 'adjusting'.
+  private double minLatency = Double.MAX_VALUE;
+  private int windows;
+
+  private final Filter[] filters = new Filter[Priority.values().length];
+
+  private ConcurrencyLimiter(int initial, int minLimit, int maxLimit, boolean adaptive) {
+    if (minLimit <= 0 || initial < minLimit || maxLimit < initial) {
+      throw new IllegalArgumentException(
+        "Expected 0 < min <= initial <= max, got " + minLimit + ", " + initial + ", " + maxLimit
+      );
+    }
+
+    this.limit = initial;
+    this.minLimit = minLimit;
+    this.maxLimit = maxLimit;
+    this.adaptive = adaptive;
+
+    for (final Priority p : Priority.values()) {
+      this.filters[p.ordinal()] = new Filter() {
+
+        @Override
+        public NanoHTTPD.Response filter(RequestContext ctx) {
+          return admit(ctx, p);
+        }
+      };
+    }
+  }
+
+  /**
+   * Returns a limiter that lets at most 'limit' requests through at once.
+   */
+  public static ConcurrencyLimiter fixed(int limit) {
+    return new ConcurrencyLimiter(limit, limit, limit, false);
+  }
+
+  /**
+   * Returns a limiter that starts at 'initial' requests at once and adapts within [min, max].
+   */
+  public static ConcurrencyLimiter adaptive(int initial, int min, int max) {
+    return new ConcurrencyLimiter(initial, min, max, true);
+  }
+
+  /**
+   * Returns the filter that applies this limiter to NORMAL requests.
+   */
+  public Filter filter() {
+    return filter(Priority.NORMAL);
+  }
+
+  /**
+   * Returns the filter that applies this limiter to requests of the given priority. All the
+   * filters of a limiter share its limit.
+   */
+  public Filter filter(Priority priority) {
+    return this.filters[priority.ordinal()];
+  }
+
+  /**
+   * Sets the Retry-After value, in seconds, sent with rejections. 1 by default.
+   */
+  public void setRetryAfter(int seconds) {
+    this.retryAfterSeconds = seconds;
+  }
+
+  /**
+   * Returns the current limit.
+   */
+  public int getLimit() {
+    return this.limit;
+  }
+
+  /**
+   * Returns the number of requests currently let through.
+   */
+  public int getInFlight() {
+    return this.inFlight.get();
+  }
+
+  public long getAccepted() {
+    return this.accepted.sum();
+  }
+
+  public long getRejected() {
+    return this.rejected.sum();
+  }
+
+  private NanoHTTPD.Response admit(RequestContext ctx, Priority priority) {
+    int limit = this.limit;
+    int bound = Math.max(1, (int) (limit * priority.share));
+
+    int current;
+    do {
+      current = this.inFlight.get();
+      if (current >= bound) return reject(current >= limit);
+    } while (!this.inFlight.compareAndSet(current, current + 1));
+
+    this.accepted.increment();
+    if (current + 1 >= limit) this.saturated = true;
+
+    long start = this.adaptive ? System.nanoTime() : 0;
+    try {
+      return ctx.next();
+    } finally {
+      this.inFlight.decrementAndGet();
+      if (this.adaptive) record(System.nanoTime() - start);
+    }
+  }
+
+  private NanoHTTPD.Response reject(boolean full) {
+    this.rejected.increment();
+    if (full) this.saturated = true;
+
+    NanoHTTPD.Response r = NanoHTTPD.newFixedLengthResponse(
+      HttpStatus.SERVICE_UNAVAILABLE,
+      "application/text",
+      "Nanorouter: Service unavailable"
+    );
+    r.addHeader("Retry-After", Integer.toString(this.retryAfterSeconds));
+    return r;
+  }
+
+  private void record(long nanos) {
+    this.latencyNanos.add(nanos);
+    if (this.samples.incrementAndGet() < WINDOW) return;
+
+    // One thread closes the window; requests completing meanwhile count towards the next one.
+    if (!this.adjusting.compareAndSet(false, true)) return;
+    try {
+      int n = this.samples.get();
+      if (n < WINDOW) return; // Another thread just closed it
+      this.samples.addAndGet(-n);
+
+      double mean = (double) this.latencyNanos.sumThenReset() / n;
+      boolean saturated = this.saturated;
+      this.saturated = false;
+
+      if (++this.windows >= MIN_LATENCY_WINDOWS) {
+        this.windows = 0;
+        this.minLatency = mean;
+      } else {
+        this.minLatency = Math.min(this.minLatency, mean);
+      }
+
+      int limit = this.limit;
+      if (mean > TOLERANCE * this.minLatency) {
+        limit = Math.max(this.minLimit, (int) (limit * BACKOFF));
+      } else if (saturated) {
+        limit = Math.min(this.maxLimit, limit + 1);
+      }
+      this.limit = limit;
+    } finally {
+      this.adjusting.set(false);
+    }
+  }
+}
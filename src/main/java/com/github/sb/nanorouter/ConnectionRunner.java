@@ -0,0 +1,215 @@
+package com.github.sb.nanorouter;
+
+import fi.iki.elonen.NanoHTTPD;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A NanoHTTPD.AsyncRunner that serves connections on an ExecutorService, instead of starting a new
+ * platform thread for every connection like NanoHTTPD's default runner does.
+ *
+ * On JDK 21 and later, 'create()' serves every connection on its own virtual thread. On older JDKs
+ * it falls back to a bounded pool: connections beyond the pool size wait in a bounded queue, and
+ * connections that find the queue full are closed right away (and counted, see 'getRejected')
+ * rather than piling up threads until the process runs out of memory.
+ *
+ * Note that NanoHTTPD keeps a connection on its thread for as long as the client keeps it alive,
+ * so the size of a pool is the number of connections served concurrently, not requests.
+ *
+ * E.g.
+ *   server.setAsyncRunner(ConnectionRunner.create());
+ *
+ * RouterServer installs one by default.
+ */
+public class ConnectionRunner implements NanoHTTPD.AsyncRunner {
+  // Defaults of the fallback pool.
+  private static final int DEFAULT_THREADS = 256;
+  private static final int DEFAULT_QUEUE = 1024;
+
+  // How long idle pool threads are kept around.
+  private static final long KEEP_ALIVE_SECONDS = 60;
+
+  private final ExecutorService executor;
+
+  // Connections handed to the executor and not closed yet.
+  private final Set<NanoHTTPD.ClientHandler> running = ConcurrentHashMap.newKeySet();
+
+  private final AtomicLong rejected = new AtomicLong();
+
+  /**
+   * Serves connections on 'executor'. If it rejects a connection, the connection is closed.
+   */
+  public ConnectionRunner(ExecutorService executor) {
+    this.executor = executor;
+  }
+
+  /**
+   * Returns a runner backed by virtual threads if this JDK has them, or by a bounded pool of 256
+   * threads and a queue of 1024 connections otherwise.
+   */
+  public static ConnectionRunner create() {
+    return new ConnectionRunner(newDefaultExecutor("connection"));
+  }
+
+  /**
+   * Returns a virtual thread per task executor if this JDK has them, or a bounded pool of 256
+   * daemon threads named after 'role' with a queue of 1024 tasks otherwise.
+   */
+  static ExecutorService newDefaultExecutor(String role) {
+    ExecutorService virtual = newVirtualThreadExecutor();
+    if (virtual != null) return virtual;
+
+    return newBoundedPool(DEFAULT_THREADS, DEFAULT_QUEUE, role);
+  }
+
+  /**
+   * Returns a runner that starts one virtual thread per connection.
+   *
+   * @throws UnsupportedOperationException if this JDK has no virtual threads.
+   */
+  public static ConnectionRunner virtualThreads() {
+    ExecutorService virtual = newVirtualThreadExecutor();
+    if (virtual == null) throw new UnsupportedOperationException("Virtual threads are not available");
+
+    return new ConnectionRunner(virtual);
+  }
+
+  /**
+   * Returns true if this JDK supports virtual threads.
+   */
+  public static boolean isVirtualThreadsAvailable() {
+    ExecutorService virtual = newVirtualThreadExecutor();
+    if (virtual == null) return false;
+
+    virtual.shutdown();
+    return true;
+  }
+
+  /**
+   * Returns a runner that serves up to 'threads' connections at once on a pool of daemon threads,
+   * and queues up to 'queueSize' more. Further connections are closed until there is room.
+   */
+  public static ConnectionRunner bounded(int threads, int queueSize) {
+    return new ConnectionRunner(newBoundedPool(threads, queueSize, "connection"));
+  }
+
+  private static ExecutorService newBoundedPool(int threads, int queueSize, String role) {
+    if (threads <= 0) throw new IllegalArgumentException("threads must be positive: " + threads);
+    if (queueSize < 0) throw new IllegalArgumentException("queueSize must not be negative: " + queueSize);
+
+    BlockingQueue<Runnable> queue = queueSize == 0
+      ? new SynchronousQueue<Runnable>()
+      : new ArrayBlockingQueue<Runnable>(queueSize);
+
+    ThreadPoolExecutor pool = new ThreadPoolExecutor(
+      threads,
+      threads,
+      KEEP_ALIVE_SECONDS,
+      TimeUnit.SECONDS,
+      queue,
+      new DaemonThreadFactory(role)
+    );
+    pool.allowCoreThreadTimeOut(true);
+
+    return pool;
+  }
+
+  /**
+   * Calls Executors.newVirtualThreadPerTaskExecutor() if it exists, so that this class still
+   * compiles and runs on JDKs without virtual threads. Returns null if it does not exist, or if
+   * virtual threads are a disabled preview feature of this JDK.
+   */
+  private static ExecutorService newVirtualThreadExecutor() {
+    try {
+      Object executor = java.util.concurrent.Executors.class
+        .getMethod("newVirtualThreadPerTaskExecutor")
+        .invoke(null);
+      return (ExecutorService) executor;
+    } catch (NoSuchMethodException e) {
+      return null;
+    } catch (IllegalAccessException e) {
+      return null;
+    } catch (InvocationTargetException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Returns the number of open connections.
+   */
+  public int getRunning() {
+    return this.running.size();
+  }
+
+  /**
+   * Returns the number of connections that were closed because the executor had no room for them.
+   */
+  public long getRejected() {
+    return this.rejected.get();
+  }
+
+  /**
+   * Closes every open connection and stops the executor. The runner cannot be used afterwards.
+   */
+  public void shutdown() {
+    closeAll();
+    this.executor.shutdown();
+  }
+
+  @Override
+  public void exec(NanoHTTPD.ClientHandler code) {
+    this.running.add(code);
+    try {
+      this.executor.execute(code);
+    } catch (RejectedExecutionException e) {
+      this.running.remove(code);
+      this.rejected.incrementAndGet();
+      code.close();
+    }
+  }
+
+  @Override
+  public void closed(NanoHTTPD.ClientHandler clientHandler) {
+    this.running.remove(clientHandler);
+  }
+
+  @Override
+  public void closeAll() {
+    // Closing a connection makes its handler call 'closed', so iterate over a copy.
+    for (NanoHTTPD.ClientHandler h : new ArrayList<>(this.running)) h.close();
+  }
+
+  /**
+   * Names pool threads, and makes them daemons like NanoHTTPD's own request threads.
+   */
+  private static final class DaemonThreadFactory implements ThreadFactory {
+    private static final AtomicInteger pools = new AtomicInteger();
+
+    private final int pool = pools.incrementAndGet();
+    private final AtomicInteger threads = new AtomicInteger();
+    private final String role;
+
+    DaemonThreadFactory(String role) {
+      this.role = role;
+    }
+
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread t = new Thread(r, "nanorouter-" + this.pool + "-" + this.role + "-" + this.threads.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    }
+  }
+}
@@ -0,0 +1,204 @@
+package com.github.sb.nanorouter;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * The pattern a constrained parameter (e.g. ':id{[0-9]+}') must match, compiled once when the
+ * route is registered.
+ *
+ * The pattern must match the whole parameter value. Single character classes with a quantifier
+ * (e.g. "[0-9]+", "\d{4}", "[a-f0-9]{8,40}") are checked with a lookup table over the URI, which
+ * allocates nothing; anything else falls back to java.util.regex.
+ */
+final class Constraint {
+  private static final int ASCII = 128;
+  private static final int UNBOUNDED = Integer.MAX_VALUE;
+
+  // The pattern as registered, which identifies the constraint.
+  final String source;
+
+  // Fast path: allowed ASCII characters, and the allowed length range. Null if 'regex' is used.
+  private final boolean[] allowed;
+  private final int min;
+  private final int max;
+
+  private final Pattern regex;
+
+  private Constraint(String source, boolean[] allowed, int min, int max, Pattern regex) {
+    this.source = source;
+    this.allowed = allowed;
+    this.min = min;
+    this.max = max;
+    this.regex = regex;
+  }
+
+  /**
+   * Compiles 'pattern'.
+   *
+   * @throws IllegalArgumentException if it is not a valid regular expression.
+   */
+  static Constraint compile(String pattern) {
+    Constraint c = compileCharClass(pattern);
+    if (c != null) return c;
+
+    try {
+      return new Constraint(pattern, null, 0, 0, Pattern.compile(pattern));
+    } catch (PatternSyntaxException e) {
+      throw new IllegalArgumentException("Invalid parameter constraint: " + pattern, e);
+    }
+  }
+
+  /**
+   * Returns true if path[start, end) matches the pattern.
+   */
+  boolean matches(String path, int start, int end) {
+    if (this.regex != null) {
+      Matcher m = this.regex.matcher(path);
+      m.region(start, end);
+      return m.matches();
+    }
+
+    int length = end - start;
+    if (length < this.min || length > this.max) return false;
+
+    for (int i = start; i < end; ++i) {
+      char c = path.charAt(i);
+      if (c >= ASCII || !this.allowed[c]) return false;
+    }
+    return true;
+  }
+
+  /**
+   * Returns true if every value that 'other' accepts is accepted by this constraint. Only known
+   * for character class constraints; false if either one is a regular expression.
+   */
+  boolean covers(Constraint other) {
+    if (this.source.equals(other.source)) return true;
+    if (this.regex != null || other.regex != null) return false;
+    if (other.min < this.min || other.max > this.max) return false;
+
+    for (int c = 0; c < ASCII; ++c) {
+      if (other.allowed[c] && !this.allowed[c]) return false;
+    }
+    return true;
+  }
+
+  /**
+   * Returns true if some non-empty value is accepted by both constraints. Only known for character
+   * class constraints; false if either one is a regular expression.
+   */
+  boolean overlaps(Constraint other) {
+    if (this.source.equals(other.source)) return true;
+    if (this.regex != null || other.regex != null) return false;
+    if (Math.max(Math.max(this.min, other.min), 1) > Math.min(this.max, other.max)) return false;
+
+    for (int c = 0; c < ASCII; ++c) {
+      if (other.allowed[c] && this.allowed[c]) return true;
+    }
+    return false;
+  }
+
+  /**
+   * Compiles patterns made of a single ASCII character class and a quantifier, or returns null if
+   * 'pattern' has any other shape.
+   */
+  private static Constraint compileCharClass(String pattern) {
+    boolean[] allowed = new boolean[ASCII];
+    int i;
+
+    if (pattern.startsWith("\\d")) {
+      addRange(allowed, '0', '9');
+      i = 2;
+    } else if (pattern.startsWith("\\w")) {
+      addWord(allowed);
+      i = 2;
+    } else if (pattern.startsWith("[") && !pattern.startsWith("[^")) {
+      i = 1;
+      while (i < pattern.length() && pattern.charAt(i) != ']') {
+        char c = pattern.charAt(i);
+
+        if (c == '\\') {
+          if (i + 1 >= pattern.length()) return null;
+          char e = pattern.charAt(i + 1);
+          if (e == 'd') {
+            addRange(allowed, '0', '9');
+          } else if (e == 'w') {
+            addWord(allowed);
+          } else if (e == '-' || e == '.' || e == '_' || e == '\\' || e == ']') {
+            allowed[e] = true;
+          } else {
+            return null;
+          }
+          i += 2;
+          continue;
+        }
+
+        if (c == '[' || c == '&' || c >= ASCII) return null;
+
+        // A range, unless the '-' is the last character of the class.
+        if (i + 2 < pattern.length() && pattern.charAt(i + 1) == '-' && pattern.charAt(i + 2) != ']') {
+          char to = pattern.charAt(i + 2);
+          if (to < c || to >= ASCII || to == '\\' || to == '[') return null;
+          addRange(allowed, c, to);
+          i += 3;
+        } else {
+          allowed[c] = true;
+          i += 1;
+        }
+      }
+      // Unclosed, or empty (e.g. "[]+"), which java.util.regex rejects too.
+      if (i >= pattern.length() || i == 1) return null;
+      i++; // ']'
+    } else {
+      return null;
+    }
+
+    // The quantifier
+    String q = pattern.substring(i);
+    int min;
+    int max;
+    if (q.equals("+")) {
+      min = 1;
+      max = UNBOUNDED;
+    } else if (q.equals("*")) {
+      min = 0;
+      max = UNBOUNDED;
+    } else if (q.isEmpty()) {
+      min = 1;
+      max = 1;
+    } else if (q.startsWith("{") && q.endsWith("}")) {
+      String[] bounds = q.substring(1, q.length() - 1).split(",", -1);
+      try {
+        if (bounds.length == 1) {
+          min = Integer.parseInt(bounds[0]);
+          max = min;
+        } else if (bounds.length == 2) {
+          min = Integer.parseInt(bounds[0]);
+          max = bounds[1].isEmpty() ? UNBOUNDED : Integer.parseInt(bounds[1]);
+        } else {
+          return null;
+        }
+      } catch (NumberFormatException e) {
+        return null;
+      }
+      if (min < 0 || max < min) return null;
+    } else {
+      return null;
+    }
+
+    return new Constraint(pattern, allowed, min, max, null);
+  }
+
+  private static void addRange(boolean[] allowed, char from, char to) {
+    for (char c = from; c <= to; ++c) allowed[c] = true;
+  }
+
+  private static void addWord(boolean[] allowed) {
+    addRange(allowed, 'a', 'z');
+    addRange(allowed, 'A', 'Z');
+    addRange(allowed, '0', '9');
+    allowed['_'] = true;
+  }
+}
@@ -0,0 +1,177 @@
+package com.github.sb.nanorouter;
+
+import fi.iki.elonen.NanoHTTPD;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A stream of server-sent events (text/event-stream) to one client.
+ *
+ * The handler returns 'response()', and events are then sent from any thread with 'send' until
+ * either side closes the stream. E.g.
+ *
+ *   router.addHandler(Method.GET, "/prices", new Handler() {
+ *     public Response handle(RequestContext ctx) {
+ *       EventStream events = new EventStream();
+ *       subscribers.add(events);
+ *       return events.response();
+ *     }
+ *   });
+ *
+ *   for (EventStream s : subscribers) {
+ *     if (!s.send("price", null, json)) subscribers.remove(s);
+ *   }
+ *
+ * Events are queued, up to a fixed number, while the connection's thread writes them out. A client
+ * that falls so far behind that the queue fills up is disconnected (it may reconnect with
+ * Last-Event-ID) rather than slowing down the senders. A comment is sent whenever the stream has
+ * been idle for the heartbeat interval, which keeps proxies from timing it out and notices clients
+ * that are gone.
+ *
+ * NanoHTTPD compresses "text/" responses for clients that accept gzip, which would hold events
+ * back; RouterServer does not compress event streams, other servers should do the same.
+ */
+public final class EventStream implements Closeable {
+  public static final String MIME_TYPE = "text/event-stream";
+
+  private static final byte[] HEARTBEAT = ":\n\n".getBytes(StandardCharsets.UTF_8);
+  private static final byte[] END = new byte[0];
+
+  private final ArrayBlockingQueue<byte[]> queue;
+  private final long heartbeatNanos;
+  private volatile boolean closed;
+
+  /**
+   * Creates a stream that queues up to 1024 events, with a heartbeat every 15 seconds.
+   */
+  public EventStream() {
+    this(1024, 15, TimeUnit.SECONDS);
+  }
+
+  public EventStream(int capacity, long heartbeat, TimeUnit unit) {
+    // One more slot, so that closing never has to wait for room.
+    this.queue = new ArrayBlockingQueue<>(capacity + 1);
+    this.heartbeatNanos = unit.toNanos(heartbeat);
+  }
+
+  /**
+   * Returns the response that streams the events. Call it once.
+   */
+  public NanoHTTPD.Response response() {
+    NanoHTTPD.Response r = NanoHTTPD.newChunkedResponse(NanoHTTPD.Response.Status.OK, MIME_TYPE, new Events());
+    r.addHeader("Cache-Control", "no-cache");
+    // Tells nginx not to buffer the stream.
+    r.addHeader("X-Accel-Buffering", "no");
+    return r;
+  }
+
+  /**
+   * Returns true until either side has closed the stream.
+   */
+  public boolean isOpen() {
+    return !this.closed;
+  }
+
+  /**
+   * Sends an unnamed event. See 'send(String, String, String)'.
+   */
+  public boolean send(String data) {
+    return send(null, null, data);
+  }
+
+  /**
+   * Queues an event, with an optional name ('event:' field) and id. Lines of 'data' become
+   * separate 'data:' fields. Returns false if the stream is closed, or was just closed because
+   * the client is too far behind.
+   */
+  public boolean send(String event, String id, String data) {
+    if (this.closed) return false;
+
+    StringBuilder sb = new StringBuilder(data.length() + 16);
+    if (id != null) field(sb, "id", id);
+    if (event != null) field(sb, "event", event);
+    for (String line : data.split("\r\n|\r|\n", -1)) field(sb, "data", line);
+    sb.append('\n');
+
+    // Keep the last slot for close().
+    if (this.queue.remainingCapacity() > 1 && this.queue.offer(sb.toString().getBytes(StandardCharsets.UTF_8))) {
+      return true;
+    }
+    close();
+    return false;
+  }
+
+  private static void field(StringBuilder sb, String name, String value) {
+    for (int i = 0; i < value.length(); ++i) {
+      char c = value.charAt(i);
+      if (c == '\n' || c == '\r') throw new IllegalArgumentException(name + " must be a single line");
+    }
+    sb.append(name).append(": ").append(value).append('\n');
+  }
+
+  /**
+   * Ends the stream once the queued events are sent.
+   */
+  @Override
+  public void close() {
+    if (this.closed) return;
+    this.closed = true;
+    this.queue.offer(END);
+  }
+
+  /**
+   * The body of the response, read by the connection's thread.
+   */
+  private final class Events extends InputStream {
+    private byte[] current = HEARTBEAT;
+    private int position = HEARTBEAT.length;
+
+    // Returns false at the end of the stream.
+    private boolean fill() throws IOException {
+      while (this.position == this.current.length) {
+        if (this.current == END) return false;
+
+        byte[] next;
+        try {
+          next = EventStream.this.queue.poll(EventStream.this.heartbeatNanos, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException();
+        }
+
+        this.current = next != null ? next : HEARTBEAT;
+        this.position = 0;
+      }
+      return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+      return fill() ? this.current[this.position++] & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) return 0;
+      if (!fill()) return -1;
+
+      // One event per read, so that NanoHTTPD sends it right away.
+      int n = Math.min(len, this.current.length - this.position);
+      System.arraycopy(this.current, this.position, b, off, n);
+      this.position += n;
+      return n;
+    }
+
+    @Override
+    public void close() {
+      // The client is gone, or the stream ended.
+      EventStream.this.closed = true;
+      EventStream.this.queue.clear();
+    }
+  }
+}
@@ -0,0 +1,25 @@
+package com.github.sb.nanorouter;
+
+import fi.iki.elonen.NanoHTTPD;
+
+/**
+ * A middleware that runs before a route's Handler, e.g. for authentication, timing or compression.
+ *
+ * A filter continues the request by calling 'ctx.next()', which runs the rest of the chain and
+ * the handler, and returns their response (which it may modify or replace). It short-circuits the
+ * request by returning a response of its own without calling 'ctx.next()'.
+ *
+ * E.g.
+ *   router.addFilter("/admin", new Filter() {
+ *     public Response filter(RequestContext ctx) {
+ *       if (!authorized(ctx.session)) return newFixedLengthResponse(Status.UNAUTHORIZED, ...);
+ *       return ctx.next();
+ *     }
+ *   });
+ *
+ * Filters are registered globally, for a URI prefix, or for a single route; see Router. Every
+ * route's chain is compiled into an array once, when the routes are compiled.
+ */
+public interface Filter {
+  public NanoHTTPD.Response filter(RequestContext ctx);
+}
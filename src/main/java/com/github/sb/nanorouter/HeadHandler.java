@@ -0,0 +1,43 @@
+package com.github.sb.nanorouter;
+
+import fi.iki.elonen.NanoHTTPD;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Answers HEAD requests the way GET requests are answered, without the body.
+ *
+ * A URI that only registered a GET handler gets an implicit HEAD route with the same handler and
+ * filters, so that the route's filters and the Router's own stages (e.g. Compression) treat the
+ * response exactly like the GET response and set the same headers. The Router then drops the body
+ * of every HEAD response with 'strip'.
+ */
+final class HeadHandler {
+  private static final byte[] EMPTY = new byte[0];
+
+  private HeadHandler() {}
+
+  /**
+   * Drops the body of a response to a HEAD request. NanoHTTPD 2.2 still writes the body of HEAD
+   * responses, so it is replaced with an empty stream, keeping the length of in-memory bodies in
+   * the "Content-Length" header.
+   */
+  static NanoHTTPD.Response strip(NanoHTTPD.Response r) {
+    InputStream data = r.getData();
+    if (data != null) {
+      if (data instanceof ByteArrayInputStream && r.getHeader("content-length") == null) {
+        r.addHeader("content-length", Integer.toString(((ByteArrayInputStream) data).available()));
+      }
+
+      try {
+        data.close();
+      } catch (IOException e) {
+        // Nothing was going to be read from it anyway.
+      }
+      r.setData(new ByteArrayInputStream(EMPTY));
+    }
+
+    return r;
+  }
+}
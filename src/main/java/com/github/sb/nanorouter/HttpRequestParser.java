@@ -0,0 +1,230 @@
+package com.github.sb.nanorouter;
+
+import fi.iki.elonen.NanoHTTPD;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Parses HTTP/1.x requests incrementally, from whatever bytes a non-blocking read produced. One
+ * parser per connection: it keeps the part of a request received so far, so the buffer the bytes
+ * were read into can be reused for other connections right away.
+ *
+ * Request bodies must have a Content-Length; chunked request bodies are refused with 411 Length
+ * Required.
+ */
+final class HttpRequestParser {
+  private static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+  /**
+   * A request that cannot be served, to be answered with 'status' before closing the connection.
+   */
+  static final class ParseException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    final NanoHTTPD.Response.IStatus status;
+
+    ParseException(NanoHTTPD.Response.IStatus status, String message) {
+      super(message);
+      this.status = status;
+    }
+  }
+
+  private final int maxHeadBytes;
+  private final long maxBodyBytes;
+
+  // The head of the current request: head[0, headLength), of which 'scanned' bytes are known not
+  // to end it.
+  private byte[] head = new byte[1024];
+  private int headLength;
+  private int scanned;
+
+  // The current request once its head is parsed, and its body so far.
+  private NioSession request;
+  private byte[] body;
+  private int bodyLength;
+
+  // Set when a request asked for "100 Continue" before sending its body.
+  private boolean expectsContinue;
+
+  HttpRequestParser(int maxHeadBytes, long maxBodyBytes) {
+    this.maxHeadBytes = maxHeadBytes;
+    this.maxBodyBytes = maxBodyBytes;
+  }
+
+  /**
+   * Consumes bytes from 'in' until a request is complete, and returns it. Returns null once 'in' is
+   * drained without completing one; the bytes are kept for the next call.
+   */
+  NioSession parse(ByteBuffer in, NioSession.Factory factory) throws ParseException {
+    if (this.request == null) {
+      if (!readHead(in)) return null;
+      this.request = parseHead(factory);
+      if (this.body == null) return complete();
+    }
+
+    int n = Math.min(in.remaining(), this.body.length - this.bodyLength);
+    in.get(this.body, this.bodyLength, n);
+    this.bodyLength += n;
+    return this.bodyLength == this.body.length ? complete() : null;
+  }
+
+  /**
+   * Returns true once if the request being received asked for "100 Continue", and its body has not
+   * started arriving without it.
+   */
+  boolean takeExpectsContinue() {
+    boolean expects = this.expectsContinue && this.request != null && this.bodyLength == 0;
+    this.expectsContinue = false;
+    return expects;
+  }
+
+  /**
+   * Returns the interim response that tells a client to go ahead with its body.
+   */
+  static byte[] continueResponse() {
+    return CONTINUE;
+  }
+
+  private NioSession complete() {
+    NioSession s = this.request;
+    s.body = this.body;
+    this.request = null;
+    this.expectsContinue = false;
+    this.body = null;
+    this.bodyLength = 0;
+    this.headLength = 0;
+    this.scanned = 0;
+    return s;
+  }
+
+  // Appends to the head until its blank line. Returns true once it is complete, leaving 'in' at the
+  // first byte after it.
+  private boolean readHead(ByteBuffer in) throws ParseException {
+    // Empty lines before a request line are ignored (RFC 7230, 3.5).
+    if (this.headLength == 0) {
+      while (in.hasRemaining()) {
+        byte b = in.get(in.position());
+        if (b != '\r' && b != '\n') break;
+        in.get();
+      }
+    }
+
+    int n = in.remaining();
+    if (n == 0) return false;
+    if (this.headLength + n > this.head.length) {
+      int size = this.head.length;
+      while (size < this.headLength + n && size < this.maxHeadBytes) size *= 2;
+      byte[] grown = new byte[Math.min(size, this.maxHeadBytes)];
+      System.arraycopy(this.head, 0, grown, 0, this.headLength);
+      this.head = grown;
+    }
+
+    n = Math.min(n, this.head.length - this.headLength);
+    int start = this.headLength;
+    in.get(this.head, start, n);
+    this.headLength += n;
+
+    for (int i = Math.max(3, this.scanned); i < this.headLength; ++i) {
+      if (
+        this.head[i] == '\n' &&
+        this.head[i - 1] == '\r' &&
+        this.head[i - 2] == '\n' &&
+        this.head[i - 3] == '\r'
+      ) {
+        // Give back what belongs to the body, or to the next request.
+        int end = i + 1;
+        in.position(in.position() - (this.headLength - end));
+        this.headLength = end;
+        return true;
+      }
+    }
+
+    this.scanned = this.headLength;
+    if (this.headLength >= this.maxHeadBytes) {
+      throw new ParseException(HttpStatus.REQUEST_HEADER_FIELDS_TOO_LARGE, "Request head too large");
+    }
+    return false;
+  }
+
+  private NioSession parseHead(NioSession.Factory factory) throws ParseException {
+    // The head is ISO-8859-1, minus the final blank line.
+    String text = new String(this.head, 0, this.headLength - 4, StandardCharsets.ISO_8859_1);
+    String[] lines = text.split("\r\n", -1);
+
+    String[] requestLine = lines[0].split(" ", -1);
+    if (requestLine.length != 3) throw badRequest("Malformed request line");
+
+    String version = requestLine[2];
+    if (!version.startsWith("HTTP/1.")) {
+      throw new ParseException(NanoHTTPD.Response.Status.UNSUPPORTED_HTTP_VERSION, "Unsupported version: " + version);
+    }
+
+    NanoHTTPD.Method method;
+    try {
+      method = NanoHTTPD.Method.valueOf(requestLine[0]);
+    } catch (IllegalArgumentException e) {
+      throw new ParseException(NanoHTTPD.Response.Status.NOT_IMPLEMENTED, "Unsupported method: " + requestLine[0]);
+    }
+
+    Map<String, String> headers = new HashMap<>();
+    for (int i = 1; i < lines.length; ++i) {
+      String line = lines[i];
+      int colon = line.indexOf(':');
+      if (colon <= 0) throw badRequest("Malformed header");
+
+      String name = line.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+      String value = line.substring(colon + 1).trim();
+      String previous = headers.get(name);
+      headers.put(name, previous == null ? value : previous + ", " + value);
+    }
+
+    if (headers.containsKey("transfer-encoding")) {
+      throw new ParseException(HttpStatus.LENGTH_REQUIRED, "Chunked request bodies are not supported");
+    }
+
+    String contentLength = headers.get("content-length");
+    if (contentLength != null) {
+      long length;
+      try {
+        length = Long.parseLong(contentLength);
+      } catch (NumberFormatException e) {
+        throw badRequest("Malformed Content-Length");
+      }
+      if (length < 0) throw badRequest("Malformed Content-Length");
+      if (length > this.maxBodyBytes) throw new ParseException(HttpStatus.PAYLOAD_TOO_LARGE, "Request body too large");
+
+      this.body = new byte[(int) length];
+      this.expectsContinue = length > 0 && "100-continue".equalsIgnoreCase(headers.get("expect"));
+    }
+
+    String target = requestLine[1];
+    // Absolute form, e.g. from a proxy: keep the path only.
+    if (target.startsWith("http://") || target.startsWith("https://")) {
+      int slash = target.indexOf('/', target.indexOf("//") + 2);
+      target = slash < 0 ? "/" : target.substring(slash);
+    }
+    if (!target.startsWith("/") && !target.equals("*")) throw badRequest("Malformed request target");
+
+    int question = target.indexOf('?');
+    String path = question < 0 ? target : target.substring(0, question);
+    String query = question < 0 ? null : target.substring(question + 1);
+
+    String uri = NioSession.decode(path);
+    if (uri == null) throw badRequest("Malformed request target");
+
+    // HTTP/1.1 connections stay open unless the client closes them, HTTP/1.0 ones only on request.
+    String connection = headers.get("connection");
+    boolean keepAlive = version.equals("HTTP/1.1")
+      ? connection == null || !connection.toLowerCase(Locale.ROOT).contains("close")
+      : connection != null && connection.toLowerCase(Locale.ROOT).contains("keep-alive");
+
+    return factory.create(method, uri, query, headers, keepAlive);
+  }
+
+  private static ParseException badRequest(String message) {
+    return new ParseException(NanoHTTPD.Response.Status.BAD_REQUEST, message);
+  }
+}
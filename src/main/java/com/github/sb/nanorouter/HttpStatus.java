@@ -0,0 +1,36 @@
+package com.github.sb.nanorouter;
+
+import fi.iki.elonen.NanoHTTPD;
+
+/**
+ * Response statuses that the router sends but that NanoHTTPD 2.2's Status enum lacks.
+ */
+public enum HttpStatus implements NanoHTTPD.Response.IStatus {
+  LENGTH_REQUIRED(411, "Length Required"),
+  PAYLOAD_TOO_LARGE(413, "Payload Too Large"),
+  TOO_MANY_REQUESTS(429, "Too Many Requests"),
+  REQUEST_HEADER_FIELDS_TOO_LARGE(431, "Request Header Fields Too Large"),
+  SERVICE_UNAVAILABLE(503, "Service Unavailable"),
+  GATEWAY_TIMEOUT(504, "Gateway Timeout");
+
+  private final int requestStatus;
+  private final String description;
+
+  HttpStatus(int requestStatus, String description) {
+    this.requestStatus = requestStatus;
+    this.description = description;
+  }
+
+  /**
+   * Returns the status line text, e.g. "504 Gateway Timeout", like NanoHTTPD's own statuses do.
+   */
+  @Override
+  public String getDescription() {
+    return this.requestStatus + " " + this.description;
+  }
+
+  @Override
+  public int getRequestStatus() {
+    return this.requestStatus;
+  }
+}
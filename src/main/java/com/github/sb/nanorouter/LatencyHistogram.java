@@ -0,0 +1,137 @@
+package com.github.sb.nanorouter;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of durations in nanoseconds with logarithmic buckets, in the style of
+ * HdrHistogram.
+ *
+ * Every power of two is split into 8 linear sub-buckets, so a recorded value is known to within
+ * 12.5% whatever its magnitude, using a fixed 2.5KB of counters. The counters are not striped:
+ * the requests of a route tend to take similar times, so concurrent writers often increment the
+ * same few buckets and contend on them, which a busy route pays for in exchange for a small,
+ * fixed footprint per route. The sum of the values is kept alongside, in a LongAdder.
+ */
+public final class LatencyHistogram {
+  // log2 of the number of sub-buckets per power of two.
+  private static final int SUB_BITS = 3;
+  private static final int SUB_COUNT = 1 << SUB_BITS;
+
+  // Values above 2^40ns (about 18 minutes) all land in the last bucket.
+  private static final int MAX_EXPONENT = 40;
+
+  static final int BUCKETS = SUB_COUNT + (MAX_EXPONENT - SUB_BITS + 1) * SUB_COUNT;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final LongAdder sum = new LongAdder();
+
+  /**
+   * Records one duration.
+   */
+  public void record(long nanos) {
+    // The sum first, so that a snapshot never counts a value without its duration.
+    this.sum.add(nanos);
+    this.counts.incrementAndGet(bucket(nanos));
+  }
+
+  /**
+   * Returns the sum of the recorded durations.
+   */
+  long sum() {
+    return this.sum.sum();
+  }
+
+  static int bucket(long value) {
+    if (value < SUB_COUNT) return value < 0 ? 0 : (int) value;
+
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    if (exponent > MAX_EXPONENT) return BUCKETS - 1;
+
+    int mantissa = (int) (value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+    return SUB_COUNT + (exponent - SUB_BITS) * SUB_COUNT + mantissa;
+  }
+
+  /**
+   * Returns the largest value that falls into bucket 'b'.
+   */
+  static long upperBound(int b) {
+    if (b < SUB_COUNT) return b;
+
+    int exponent = (b - SUB_COUNT) / SUB_COUNT + SUB_BITS;
+    long mantissa = (b - SUB_COUNT) % SUB_COUNT;
+    long width = 1L << (exponent - SUB_BITS);
+
+    return ((SUB_COUNT + mantissa) << (exponent - SUB_BITS)) + width - 1;
+  }
+
+  /**
+   * Copies the current counts and sum. Recording may continue concurrently, in which case the sum
+   * may include durations that are not counted yet.
+   */
+  public Snapshot snapshot() {
+    long[] copy = new long[BUCKETS];
+    for (int b = 0; b < BUCKETS; ++b) copy[b] = this.counts.get(b);
+    return new Snapshot(copy, this.sum.sum());
+  }
+
+  /**
+   * A point-in-time copy of a histogram.
+   */
+  public static final class Snapshot {
+    private final long[] counts;
+    private final long total;
+    private final long sum;
+
+    Snapshot(long[] counts, long sum) {
+      this.counts = counts;
+      this.sum = sum;
+
+      long total = 0;
+      for (long c : counts) total += c;
+      this.total = total;
+    }
+
+    /**
+     * Returns the number of recorded values.
+     */
+    public long count() {
+      return this.total;
+    }
+
+    /**
+     * Returns the sum of the recorded values, in nanoseconds.
+     */
+    public long sum() {
+      return this.sum;
+    }
+
+    /**
+     * Returns an upper bound for the given quantile (e.g. 0.99) in nanoseconds, or 0 if nothing
+     * was recorded.
+     */
+    public long percentile(double quantile) {
+      if (this.total == 0) return 0;
+
+      long rank = (long) Math.ceil(quantile * this.total);
+      if (rank < 1) rank = 1;
+
+      long seen = 0;
+      for (int b = 0; b < this.counts.length; ++b) {
+        seen += this.counts[b];
+        if (seen >= rank) return upperBound(b);
+      }
+      return upperBound(this.counts.length - 1);
+    }
+
+    /**
+     * Returns how many recorded values are at most 'nanos'. Values sharing a bucket with 'nanos'
+     * are only counted if the whole bucket is at most 'nanos'.
+     */
+    public long countAtMost(long nanos) {
+      long seen = 0;
+      for (int b = 0; b < this.counts.length && upperBound(b) <= nanos; ++b) seen += this.counts[b];
+      return seen;
+    }
+  }
+}
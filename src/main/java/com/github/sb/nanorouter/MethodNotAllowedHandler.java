@@ -0,0 +1,19 @@
+package com.github.sb.nanorouter;
+
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.NanoHTTPD.Response.Status;
+
+/**
+ * This is the default handler called when a request matches a registered URI, but not for its
+ * Method. The router adds the "Allow" header listing the registered methods to its response.
+ */
+public class MethodNotAllowedHandler implements Handler {
+
+  public NanoHTTPD.Response handle(RequestContext ctx) {
+    return NanoHTTPD.newFixedLengthResponse(
+      Status.METHOD_NOT_ALLOWED,
+      "application/text",
+      "Nanorouter: Method not allowed"
+    );
+  }
+}
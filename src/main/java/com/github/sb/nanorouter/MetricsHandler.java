@@ -0,0 +1,27 @@
+package com.github.sb.nanorouter;
+
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.NanoHTTPD.Response.Status;
+
+/**
+ * Serves the metrics of a Router in the Prometheus text format.
+ *
+ * E.g.
+ *   router.setMetricsEnabled(true);
+ *   router.addHandler(Method.GET, "/metrics", new MetricsHandler(router));
+ */
+public class MetricsHandler implements Handler {
+  private final Router router;
+
+  public MetricsHandler(Router router) {
+    this.router = router;
+  }
+
+  public NanoHTTPD.Response handle(RequestContext ctx) {
+    return NanoHTTPD.newFixedLengthResponse(
+      Status.OK,
+      "text/plain; version=0.0.4",
+      this.router.getMetrics().toPrometheus()
+    );
+  }
+}
@@ -0,0 +1,550 @@
+package com.github.sb.nanorouter;
+
+import fi.iki.elonen.NanoHTTPD;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+
+/**
+ * One connection of an NioServer.
+ *
+ * Reading, parsing and writing happen on the connection's event loop and never block. Requests
+ * are answered one at a time, in order, on the server's executor: pipelined requests wait in a
+ * short queue (reading stops while it is full), and a request is only dispatched once the
+ * previous response has been handed over. The executor thread writes the response with
+ * NanoHTTPD's own serialization into an OutputStream that appends to a queue of pooled buffers,
+ * which the event loop writes to the socket as it becomes writable; the executor thread blocks
+ * while too much of the response is waiting, so a slow client holds a thread rather than memory.
+ * The response of an asynchronous route without filters is written by the executor thread that
+ * finishes it once the handler's stage completes; none waits in between.
+ */
+final class NioConnection implements NioSession.Factory {
+  // Requests received but not answered yet before reading stops.
+  private static final int MAX_PIPELINED = 16;
+
+  // Queued response bytes above which the response's writer waits, and below which it resumes.
+  private static final int HIGH_WATER = 256 * 1024;
+  private static final int LOW_WATER = 64 * 1024;
+
+  // Response.send(OutputStream) is protected; NanoHTTPD's sessions call it from its own package.
+  private static final Method SEND;
+
+  static {
+    try {
+      SEND = NanoHTTPD.Response.class.getDeclaredMethod("send", OutputStream.class);
+      SEND.setAccessible(true);
+    } catch (NoSuchMethodException e) {
+      throw new ExceptionInInitializerError(e);
+    }
+  }
+
+  /**
+   * A pooled buffer of queued response bytes, data[start, end).
+   */
+  private static final class Chunk {
+    final byte[] data;
+    int start;
+    int end;
+
+    Chunk(byte[] data) {
+      this.data = data;
+    }
+  }
+
+  private final NioServer server;
+  private final NioServer.EventLoop loop;
+  private final SocketChannel channel;
+  private final SelectionKey key;
+  private final String remoteAddress;
+  private final HttpRequestParser parser;
+
+  // Event loop state.
+  private final ArrayDeque<NioSession> requests = new ArrayDeque<>();
+  // The status to answer with once the requests before a malformed one are answered.
+  private NanoHTTPD.Response.IStatus failure;
+  private boolean busy;
+  // The request being answered, if any. Written by the event loop only.
+  private volatile NioSession serving;
+  private boolean closeAfterWrite;
+  private long lastActive = System.nanoTime();
+
+  // Response bytes waiting to be written. Guarded by 'this'.
+  private final ArrayDeque<Chunk> chunks = new ArrayDeque<>();
+  private long queued;
+
+  private final AtomicBoolean flushScheduled = new AtomicBoolean();
+  private volatile boolean closed;
+
+  private final Runnable flushTask = new Runnable() {
+
+    @Override
+    public void run() {
+      flush();
+    }
+  };
+
+  /**
+   * Where the router finishes the responses of asynchronous routes. A rejected task runs on the
+   * thread that completed the handler's stage, so that the response is still written.
+   */
+  private final Executor resume = new Executor() {
+
+    @Override
+    public void execute(Runnable task) {
+      Executor executor = NioConnection.this.server.executor;
+      if (executor != null) {
+        try {
+          executor.execute(task);
+          return;
+        } catch (RejectedExecutionException e) {
+          // Stopping.
+        }
+      }
+      task.run();
+    }
+  };
+
+  /**
+   * Where the executor thread writes the response.
+   */
+  private final OutputStream output = new OutputStream() {
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      append(b, off, len, true);
+      scheduleFlush();
+    }
+  };
+
+  NioConnection(NioServer server, NioServer.EventLoop loop, SocketChannel channel, SelectionKey key) {
+    this.server = server;
+    this.loop = loop;
+    this.channel = channel;
+    this.key = key;
+    this.parser = new HttpRequestParser(server.maxHeaderBytes, server.maxBodyBytes);
+
+    String address = null;
+    try {
+      SocketAddress remote = channel.getRemoteAddress();
+      if (remote instanceof InetSocketAddress) address = ((InetSocketAddress) remote).getAddress().getHostAddress();
+    } catch (IOException e) {
+      // Closed already; the first read will notice.
+    }
+    this.remoteAddress = address;
+  }
+
+  @Override
+  public NioSession create(
+    NanoHTTPD.Method method,
+    String uri,
+    String queryString,
+    Map<String, String> headers,
+    boolean keepAlive
+  ) {
+    if (this.remoteAddress != null) {
+      headers.put("remote-addr", this.remoteAddress);
+      headers.put("http-client-ip", this.remoteAddress);
+    }
+    return new NioSession(this.server.host, method, uri, queryString, headers, keepAlive);
+  }
+
+  /**
+   * Reads what the socket has, and dispatches the requests it completes. Event loop only.
+   */
+  void onReadable() {
+    ByteBuffer in = this.loop.readBuffer;
+    in.clear();
+
+    int n;
+    try {
+      n = this.channel.read(in);
+    } catch (IOException e) {
+      close();
+      return;
+    }
+
+    if (n < 0) {
+      // The client is done sending, which it may do right after its last request: answer what it
+      // sent, then close. Only a closed connection or a failed write abandons an async handler.
+      interest(SelectionKey.OP_READ, false);
+      this.closeAfterWrite = true;
+      closeIfDone();
+      return;
+    }
+
+    this.lastActive = System.nanoTime();
+    in.flip();
+    while (in.hasRemaining()) {
+      NioSession s;
+      try {
+        s = this.parser.parse(in, this);
+      } catch (HttpRequestParser.ParseException e) {
+        this.failure = e.status;
+        interest(SelectionKey.OP_READ, false);
+        break;
+      }
+      if (s == null) break;
+      this.requests.add(s);
+    }
+
+    if (this.requests.size() >= MAX_PIPELINED) interest(SelectionKey.OP_READ, false);
+    dispatchNext();
+  }
+
+  /**
+   * Tells the client to send the body of the request being received, if it asked to be told and
+   * the requests before it are answered. Event loop only.
+   */
+  private void continueIfExpected() {
+    if (!this.busy && this.requests.isEmpty() && this.failure == null && this.parser.takeExpectsContinue()) {
+      enqueue(HttpRequestParser.continueResponse());
+    }
+  }
+
+  /**
+   * Hands the next request to the executor, unless one is being answered. Event loop only.
+   */
+  private void dispatchNext() {
+    if (this.busy || this.closed) return;
+
+    final NioSession s = this.requests.poll();
+    if (s == null) {
+      if (this.failure != null) {
+        fail(this.failure);
+      } else {
+        continueIfExpected();
+      }
+      return;
+    }
+    if (!this.closeAfterWrite && this.failure == null && this.requests.size() < MAX_PIPELINED) {
+      interest(SelectionKey.OP_READ, true);
+    }
+
+    this.busy = true;
+    this.serving = s;
+    try {
+      this.server.executor.execute(
+        new Runnable() {
+
+          @Override
+          public void run() {
+            serve(s);
+          }
+        }
+      );
+    } catch (RejectedExecutionException e) {
+      this.busy = false;
+      this.serving = null;
+      fail(HttpStatus.SERVICE_UNAVAILABLE);
+    }
+  }
+
+  /**
+   * Answers the connection's last request with an empty response, and closes it once that is
+   * written. Event loop only.
+   */
+  private void fail(NanoHTTPD.Response.IStatus status) {
+    byte[] response = ("HTTP/1.1 " + status.getDescription() + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n")
+      .getBytes(StandardCharsets.ISO_8859_1);
+    this.requests.clear();
+    this.failure = null;
+    this.closeAfterWrite = true;
+    interest(SelectionKey.OP_READ, false);
+    enqueue(response);
+  }
+
+  /**
+   * Queues bytes from the event loop itself, which never waits for room, and writes them.
+   */
+  private void enqueue(byte[] bytes) {
+    try {
+      append(bytes, 0, bytes.length, false);
+    } catch (IOException e) {
+      return;
+    }
+    flush();
+  }
+
+  /**
+   * Routes a request, and writes its response once it is ready. Executor thread.
+   */
+  private void serve(final NioSession s) {
+    CompletionStage<NanoHTTPD.Response> stage;
+    try {
+      stage = this.server.host.serveAsync(s, this.resume);
+    } catch (Throwable e) {
+      stage = null;
+    }
+    if (stage == null) {
+      respond(s, null);
+      return;
+    }
+
+    stage.whenComplete(
+      new BiConsumer<NanoHTTPD.Response, Throwable>() {
+
+        @Override
+        public void accept(NanoHTTPD.Response r, Throwable t) {
+          respond(s, t == null ? r : null);
+        }
+      }
+    );
+  }
+
+  /**
+   * Writes the response to a request, or 500 if it is null. Whatever happens, the event loop is
+   * told once it is over, so the connection moves on to its next request or closes.
+   */
+  private void respond(NioSession s, NanoHTTPD.Response r) {
+    // Counted before any of it is written, so a client that has read the response sees it counted.
+    this.server.countRequest();
+
+    boolean keepAlive = false;
+    boolean sent = false;
+    try {
+      if (r == null) {
+        r = NanoHTTPD.newFixedLengthResponse(
+          NanoHTTPD.Response.Status.INTERNAL_ERROR,
+          NanoHTTPD.MIME_PLAINTEXT,
+          "Nanorouter: Internal error"
+        );
+        r.addHeader("Connection", "close");
+      }
+
+      try {
+        String connection = r.getHeader("Connection");
+        if (connection == null) connection = r.getHeader("connection");
+        keepAlive = s.keepAlive && this.server.isAlive() && !"close".equalsIgnoreCase(connection);
+
+        r.setRequestMethod(s.getMethod());
+        r.setKeepAlive(keepAlive);
+        SEND.invoke(r, this.output);
+        sent = true;
+      } catch (IllegalAccessException e) {
+        throw new AssertionError(e);
+      } catch (InvocationTargetException e) {
+        // Response.send handles I/O errors itself; anything else leaves the response unfinished.
+      } finally {
+        try {
+          r.close();
+        } catch (IOException e) {
+          // Sent already.
+        }
+      }
+    } finally {
+      if (!sent) closeLater();
+
+      final boolean done = keepAlive;
+      this.loop.execute(
+        new Runnable() {
+
+          @Override
+          public void run() {
+            responseDone(done);
+          }
+        }
+      );
+    }
+  }
+
+  private void closeLater() {
+    this.loop.execute(
+      new Runnable() {
+
+        @Override
+        public void run() {
+          close();
+        }
+      }
+    );
+  }
+
+  /**
+   * Moves on to the next request once a response is handed over. Event loop only.
+   */
+  private void responseDone(boolean keepAlive) {
+    this.busy = false;
+    this.serving = null;
+    if (this.closed) return;
+
+    if (!keepAlive) {
+      this.requests.clear();
+      this.failure = null;
+      this.closeAfterWrite = true;
+      interest(SelectionKey.OP_READ, false);
+    }
+    flush();
+    dispatchNext();
+  }
+
+  /**
+   * Appends response bytes. If 'wait', blocks while too many are queued already.
+   */
+  private synchronized void append(byte[] b, int off, int len, boolean wait) throws IOException {
+    while (wait && this.queued > HIGH_WATER && !this.closed) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException();
+      }
+    }
+    if (this.closed) throw new IOException("The client closed the connection");
+
+    while (len > 0) {
+      Chunk tail = this.chunks.peekLast();
+      if (tail == null || tail.end == tail.data.length) {
+        tail = new Chunk(this.server.buffers.acquire());
+        this.chunks.add(tail);
+      }
+
+      int n = Math.min(len, tail.data.length - tail.end);
+      System.arraycopy(b, off, tail.data, tail.end, n);
+      tail.end += n;
+      this.queued += n;
+      off += n;
+      len -= n;
+    }
+  }
+
+  private void scheduleFlush() {
+    if (this.flushScheduled.compareAndSet(false, true)) this.loop.execute(this.flushTask);
+  }
+
+  /**
+   * Writes queued response bytes until the socket would block. Event loop only.
+   */
+  void flush() {
+    this.flushScheduled.set(false);
+    if (this.closed) return;
+
+    ByteBuffer out = this.loop.writeBuffer;
+    try {
+      while (true) {
+        out.clear();
+        synchronized (this) {
+          for (Chunk c : this.chunks) {
+            int n = Math.min(c.end - c.start, out.remaining());
+            out.put(c.data, c.start, n);
+            if (!out.hasRemaining()) break;
+          }
+        }
+        out.flip();
+        if (!out.hasRemaining()) break;
+
+        int written = this.channel.write(out);
+        if (written > 0) this.lastActive = System.nanoTime();
+        consume(written);
+
+        if (out.hasRemaining()) {
+          interest(SelectionKey.OP_WRITE, true);
+          return;
+        }
+      }
+    } catch (IOException e) {
+      close();
+      return;
+    }
+
+    interest(SelectionKey.OP_WRITE, false);
+    closeIfDone();
+  }
+
+  // Drops 'written' bytes from the front of the queue.
+  private synchronized void consume(int written) {
+    while (written > 0) {
+      Chunk c = this.chunks.peekFirst();
+      int n = Math.min(written, c.end - c.start);
+      c.start += n;
+      written -= n;
+      this.queued -= n;
+
+      if (c.start == c.end) {
+        if (c.end == c.data.length || this.chunks.size() > 1) {
+          this.chunks.pollFirst();
+          this.server.buffers.release(c.data);
+        } else {
+          // The tail chunk, which the writer may keep filling.
+          c.start = 0;
+          c.end = 0;
+        }
+      }
+    }
+    if (this.queued <= LOW_WATER) notifyAll();
+  }
+
+  private synchronized boolean hasQueuedBytes() {
+    return this.queued > 0;
+  }
+
+  private void closeIfDone() {
+    if (this.closeAfterWrite && !this.busy && this.requests.isEmpty() && this.failure == null && !hasQueuedBytes()) {
+      close();
+    }
+  }
+
+  /**
+   * Closes the connection if it has been idle for 'timeoutNanos'. Event loop only.
+   */
+  void closeIfIdle(long now, long timeoutNanos) {
+    if (!this.busy && this.requests.isEmpty() && now - this.lastActive > timeoutNanos && !hasQueuedBytes()) close();
+  }
+
+  private void interest(int op, boolean on) {
+    if (!this.key.isValid()) return;
+    int ops = this.key.interestOps();
+    this.key.interestOps(on ? ops | op : ops & ~op);
+  }
+
+  /**
+   * Closes the socket, and fails the response being written, if any. Event loop only.
+   */
+  void close() {
+    if (this.closed) return;
+    this.closed = true;
+    this.key.cancel();
+    try {
+      this.channel.close();
+    } catch (IOException e) {
+      // Gone either way.
+    }
+
+    synchronized (this) {
+      for (Chunk c : this.chunks) this.server.buffers.release(c.data);
+      this.chunks.clear();
+      this.queued = 0;
+      notifyAll();
+    }
+    this.requests.clear();
+    disconnected();
+    this.server.connectionClosed();
+  }
+
+  /**
+   * Tells the request being answered that its client is gone.
+   */
+  private void disconnected() {
+    NioSession s = this.serving;
+    if (s != null) s.disconnected.complete(null);
+  }
+}
@@ -0,0 +1,388 @@
+package com.github.sb.nanorouter;
+
+import fi.iki.elonen.NanoHTTPD;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * An HTTP/1.1 server for a Router built on java.nio selectors, as an alternative to RouterServer
+ * (NanoHTTPD's blocking sockets, which keep a thread per open connection).
+ *
+ * A few event loop threads accept connections, read and parse requests, and write responses,
+ * without ever blocking; reads and writes go through direct buffers owned by each loop, and
+ * response bytes through pooled buffers. Only requests take a thread, from an Executor, while
+ * their handler runs and their response is written, so idle keep-alive connections cost a few
+ * kilobytes each instead of a thread. Keep-alive and pipelining are supported (pipelined
+ * requests are answered in order, one at a time). Request bodies must have a Content-Length, and
+ * are read entirely before the handler runs, up to a limit. Asynchronous routes without filters
+ * release their thread while the handler's stage is pending, and have it cancelled if the
+ * connection fails (see AsyncHandler).
+ *
+ * Handlers see the same RequestContext as with RouterServer. The session is NanoHTTPD-like
+ * (lowercase headers, "remote-addr", query parameters, 'parseBody' for url-encoded forms), and
+ * responses are serialized by NanoHTTPD, so they go out byte for byte as they would from
+ * RouterServer. 'ctx.server' is a NanoHTTPD instance that is never started. NanoHTTPD's own gzip
+ * does not apply; compress with a Compression (see 'Router.setCompression').
+ *
+ * E.g.
+ *   NioServer server = new NioServer("127.0.0.1", 9120, router);
+ *   server.start();
+ */
+public class NioServer {
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final String hostname;
+  private final int port;
+  private final Router router;
+
+  // Handed to the router as the server of every request.
+  final Host host;
+
+  final BufferPool buffers = new BufferPool(8 * 1024, 1024);
+
+  private int eventLoops = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+  Executor executor;
+  private ExecutorService ownExecutor;
+  private long idleTimeoutNanos = TimeUnit.SECONDS.toNanos(30);
+  int maxHeaderBytes = 16 * 1024;
+  long maxBodyBytes = 10 * 1024 * 1024;
+
+  private volatile boolean running;
+  private ServerSocketChannel serverChannel;
+  private EventLoop[] loops;
+  private final AtomicInteger nextLoop = new AtomicInteger();
+
+  private final AtomicInteger connections = new AtomicInteger();
+  private final LongAdder accepted = new LongAdder();
+  private final LongAdder requests = new LongAdder();
+
+  public NioServer(int port, Router router) {
+    this(null, port, router);
+  }
+
+  public NioServer(String hostname, int port, Router router) {
+    this.hostname = hostname;
+    this.port = port;
+    this.router = router;
+    this.host = new Host(hostname, port, router);
+  }
+
+  /**
+   * Returns the router requests are dispatched to.
+   */
+  public Router getRouter() {
+    return this.router;
+  }
+
+  /**
+   * Sets the number of event loop threads, by default the number of processors up to 4. Call
+   * before 'start'.
+   */
+  public void setEventLoops(int eventLoops) {
+    if (eventLoops <= 0) throw new IllegalArgumentException("eventLoops must be positive: " + eventLoops);
+    this.eventLoops = eventLoops;
+  }
+
+  /**
+   * Sets the executor that handlers run on. By default, requests run on virtual threads if the JDK
+   * has them, or on a pool of 256 daemon threads (with room for 1024 more requests) otherwise;
+   * requests the executor rejects are answered with 503 Service Unavailable. Call before 'start'.
+   */
+  public void setExecutor(Executor executor) {
+    this.executor = executor;
+  }
+
+  /**
+   * Closes connections that have not sent or received anything for 'timeout', 30 seconds by
+   * default. Connections with a request being answered are never closed for idleness.
+   */
+  public void setIdleTimeout(long timeout, TimeUnit unit) {
+    this.idleTimeoutNanos = unit.toNanos(timeout);
+  }
+
+  /**
+   * Sets the largest request line and headers, 16 KiB by default, and the largest request body,
+   * 10 MiB by default. Larger requests are answered with 431 or 413. Call before 'start'.
+   */
+  public void setRequestLimits(int maxHeaderBytes, long maxBodyBytes) {
+    if (maxBodyBytes > Integer.MAX_VALUE - 8) throw new IllegalArgumentException("maxBodyBytes is too large");
+    this.maxHeaderBytes = maxHeaderBytes;
+    this.maxBodyBytes = maxBodyBytes;
+  }
+
+  /**
+   * Binds the port and starts the event loops.
+   */
+  public synchronized void start() throws IOException {
+    if (this.running) throw new IllegalStateException("Already started");
+
+    if (this.executor == null) {
+      this.ownExecutor = ConnectionRunner.newDefaultExecutor("request");
+      this.executor = this.ownExecutor;
+    }
+
+    ServerSocketChannel server = ServerSocketChannel.open();
+    try {
+      server.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+      server.bind(
+        this.hostname != null ? new InetSocketAddress(this.hostname, this.port) : new InetSocketAddress(this.port),
+        1024
+      );
+      server.configureBlocking(false);
+
+      this.loops = new EventLoop[this.eventLoops];
+      for (int i = 0; i < this.loops.length; ++i) this.loops[i] = new EventLoop(i);
+      server.register(this.loops[0].selector, SelectionKey.OP_ACCEPT);
+    } catch (IOException e) {
+      server.close();
+      if (this.loops != null) {
+        for (EventLoop loop : this.loops) {
+          if (loop != null) loop.selector.close();
+        }
+      }
+      throw e;
+    }
+
+    this.serverChannel = server;
+    this.running = true;
+    for (EventLoop loop : this.loops) loop.thread.start();
+  }
+
+  /**
+   * Stops accepting connections, closes every open one, and waits for the event loops to exit.
+   * Responses being written are cut short.
+   */
+  public synchronized void stop() {
+    if (!this.running) return;
+    this.running = false;
+
+    try {
+      this.serverChannel.close();
+    } catch (IOException e) {
+      // Closed either way.
+    }
+    for (EventLoop loop : this.loops) loop.selector.wakeup();
+    for (EventLoop loop : this.loops) {
+      try {
+        loop.thread.join(TimeUnit.SECONDS.toMillis(5));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+
+    if (this.ownExecutor != null) {
+      this.ownExecutor.shutdown();
+      this.ownExecutor = null;
+      this.executor = null;
+    }
+  }
+
+  /**
+   * Returns true between 'start' and 'stop'.
+   */
+  public boolean isAlive() {
+    return this.running;
+  }
+
+  /**
+   * Returns the bound port, e.g. when started on port 0, or -1 if the server is not running.
+   */
+  public int getListeningPort() {
+    ServerSocketChannel server = this.serverChannel;
+    if (!this.running || server == null) return -1;
+    try {
+      return ((InetSocketAddress) server.getLocalAddress()).getPort();
+    } catch (IOException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Returns the number of open connections.
+   */
+  public int getConnections() {
+    return this.connections.get();
+  }
+
+  /**
+   * Returns the number of connections accepted since the server was created.
+   */
+  public long getAccepted() {
+    return this.accepted.sum();
+  }
+
+  /**
+   * Returns the number of requests answered since the server was created.
+   */
+  public long getRequests() {
+    return this.requests.sum();
+  }
+
+  void countRequest() {
+    this.requests.increment();
+  }
+
+  void connectionClosed() {
+    this.connections.decrementAndGet();
+  }
+
+  // Accepts every pending connection, spreading them over the loops. Called by the first loop.
+  private void acceptAll() {
+    while (true) {
+      final SocketChannel channel;
+      try {
+        channel = this.serverChannel.accept();
+      } catch (IOException e) {
+        // E.g. out of file descriptors: leave the rest in the backlog for now.
+        return;
+      }
+      if (channel == null) return;
+
+      this.accepted.increment();
+      this.connections.incrementAndGet();
+      final EventLoop loop = this.loops[(this.nextLoop.getAndIncrement() & Integer.MAX_VALUE) % this.loops.length];
+      loop.execute(
+        new Runnable() {
+
+          @Override
+          public void run() {
+            loop.register(channel);
+          }
+        }
+      );
+    }
+  }
+
+  /**
+   * A selector, its thread, and the buffers every connection of the loop reads into and writes
+   * from.
+   */
+  final class EventLoop implements Runnable {
+    final Selector selector;
+    final Thread thread;
+    final ByteBuffer readBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    EventLoop(int index) throws IOException {
+      this.selector = Selector.open();
+      this.thread = new Thread(this, "nanorouter-nio-" + NioServer.this.port + "-" + index);
+      this.thread.setDaemon(true);
+    }
+
+    /**
+     * Runs 'task' on this loop's thread.
+     */
+    void execute(Runnable task) {
+      this.tasks.add(task);
+      this.selector.wakeup();
+    }
+
+    void register(SocketChannel channel) {
+      try {
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        SelectionKey key = channel.register(this.selector, SelectionKey.OP_READ);
+        key.attach(new NioConnection(NioServer.this, this, channel, key));
+      } catch (IOException e) {
+        NioServer.this.connections.decrementAndGet();
+        try {
+          channel.close();
+        } catch (IOException ignored) {
+          // Nothing to do.
+        }
+      }
+    }
+
+    @Override
+    public void run() {
+      long nextIdleCheck = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+
+      while (NioServer.this.running) {
+        try {
+          this.selector.select(1000);
+        } catch (IOException e) {
+          break;
+        }
+
+        for (Runnable task; (task = this.tasks.poll()) != null; ) task.run();
+
+        Iterator<SelectionKey> it = this.selector.selectedKeys().iterator();
+        while (it.hasNext()) {
+          SelectionKey key = it.next();
+          it.remove();
+          if (!key.isValid()) continue;
+
+          if (key.isAcceptable()) {
+            acceptAll();
+            continue;
+          }
+
+          NioConnection conn = (NioConnection) key.attachment();
+          if (key.isReadable()) conn.onReadable();
+          if (key.isValid() && key.isWritable()) conn.flush();
+        }
+
+        long now = System.nanoTime();
+        if (now - nextIdleCheck >= 0) {
+          nextIdleCheck = now + TimeUnit.SECONDS.toNanos(1);
+          for (SelectionKey key : this.selector.keys()) {
+            Object conn = key.attachment();
+            if (conn != null && key.isValid()) ((NioConnection) conn).closeIfIdle(now, NioServer.this.idleTimeoutNanos);
+          }
+        }
+      }
+
+      // Stopped: close everything, including connections handed over since the last round.
+      for (Runnable task; (task = this.tasks.poll()) != null; ) task.run();
+      for (SelectionKey key : this.selector.keys()) {
+        Object conn = key.attachment();
+        if (conn != null) ((NioConnection) conn).close();
+      }
+      try {
+        this.selector.close();
+      } catch (IOException e) {
+        // Nothing to do.
+      }
+    }
+  }
+
+  /**
+   * The NanoHTTPD that requests are served through: it only routes, and is never started.
+   */
+  static final class Host extends NanoHTTPD {
+    private final Router router;
+
+    Host(String hostname, int port, Router router) {
+      super(hostname, port);
+      this.router = router;
+    }
+
+    @Override
+    public Response serve(IHTTPSession session) {
+      return this.router.handleRequest(this, session);
+    }
+
+    /**
+     * Serves without waiting for asynchronous routes; see 'Router.handleRequestAsync'.
+     */
+    CompletionStage<Response> serveAsync(IHTTPSession session, Executor executor) {
+      return this.router.handleRequestAsync(this, session, executor);
+    }
+  }
+}
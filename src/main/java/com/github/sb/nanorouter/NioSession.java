@@ -0,0 +1,176 @@
+package com.github.sb.nanorouter;
+
+import fi.iki.elonen.NanoHTTPD;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A request received by an NioServer, fully read, presented to the Router as a NanoHTTPD session.
+ * It mirrors what NanoHTTPD's own session offers: lowercase header names plus "remote-addr" and
+ * "http-client-ip", a percent-decoded URI, and query (and url-encoded form) parameters.
+ */
+final class NioSession implements NanoHTTPD.IHTTPSession {
+  private static final byte[] NO_BODY = new byte[0];
+
+  /**
+   * Creates the sessions of one connection.
+   */
+  interface Factory {
+    NioSession create(
+      NanoHTTPD.Method method,
+      String uri,
+      String queryString,
+      Map<String, String> headers,
+      boolean keepAlive
+    );
+  }
+
+  private final NanoHTTPD server;
+  private final NanoHTTPD.Method method;
+  private final String uri;
+  private final String queryString;
+  private final Map<String, String> headers;
+  final boolean keepAlive;
+
+  // Null if the request has no body. Set by the parser once it is complete.
+  byte[] body;
+
+  // Completed by the connection if the client goes away before the request is answered.
+  final CompletableFuture<Void> disconnected = new CompletableFuture<>();
+
+  // Decoded on first use.
+  private Map<String, String> parms;
+
+  NioSession(
+    NanoHTTPD server,
+    NanoHTTPD.Method method,
+    String uri,
+    String queryString,
+    Map<String, String> headers,
+    boolean keepAlive
+  ) {
+    this.server = server;
+    this.method = method;
+    this.uri = uri;
+    this.queryString = queryString;
+    this.headers = headers;
+    this.keepAlive = keepAlive;
+  }
+
+  /**
+   * Percent-decodes 'value' like NanoHTTPD does (a '+' is a space). Returns null if it is malformed.
+   */
+  static String decode(String value) {
+    try {
+      return URLDecoder.decode(value, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new AssertionError(e);
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  @Override
+  public void execute() {
+    // Requests are read and answered by their NioConnection.
+  }
+
+  @Override
+  public NanoHTTPD.CookieHandler getCookies() {
+    return this.server.new CookieHandler(this.headers);
+  }
+
+  @Override
+  public Map<String, String> getHeaders() {
+    return this.headers;
+  }
+
+  @Override
+  public InputStream getInputStream() {
+    return new ByteArrayInputStream(this.body != null ? this.body : NO_BODY);
+  }
+
+  @Override
+  public NanoHTTPD.Method getMethod() {
+    return this.method;
+  }
+
+  @Override
+  public Map<String, String> getParms() {
+    if (this.parms == null) {
+      this.parms = new HashMap<>();
+      decodeInto(this.queryString, this.parms);
+    }
+    return this.parms;
+  }
+
+  @Override
+  public String getQueryParameterString() {
+    return this.queryString;
+  }
+
+  @Override
+  public String getUri() {
+    return this.uri;
+  }
+
+  /**
+   * Like NanoHTTPD: a url-encoded form is decoded into the parameters, and any other body is put
+   * in 'files' as "postData". Multipart bodies are not supported.
+   */
+  @Override
+  public void parseBody(Map<String, String> files) throws NanoHTTPD.ResponseException {
+    if (this.body == null) return;
+
+    String contentType = this.headers.get("content-type");
+    String lower = contentType != null ? contentType.toLowerCase(Locale.ROOT) : "";
+    Charset charset = charsetOf(lower);
+
+    if (lower.startsWith("multipart/form-data")) {
+      throw new NanoHTTPD.ResponseException(
+        NanoHTTPD.Response.Status.NOT_IMPLEMENTED,
+        "Multipart bodies are not supported by NioServer"
+      );
+    }
+
+    String text = new String(this.body, charset);
+    if (lower.startsWith("application/x-www-form-urlencoded")) {
+      decodeInto(text, getParms());
+    } else {
+      files.put("postData", text);
+    }
+  }
+
+  private static Charset charsetOf(String contentType) {
+    int i = contentType.indexOf("charset=");
+    if (i < 0) return StandardCharsets.UTF_8;
+
+    String name = contentType.substring(i + "charset=".length()).split(";")[0].trim().replace("\"", "");
+    try {
+      return Charset.forName(name);
+    } catch (IllegalArgumentException e) {
+      return StandardCharsets.UTF_8;
+    }
+  }
+
+  private static void decodeInto(String encoded, Map<String, String> parms) {
+    if (encoded == null) return;
+
+    for (String pair : encoded.split("&")) {
+      if (pair.isEmpty()) continue;
+
+      int equals = pair.indexOf('=');
+      String name = decode(equals < 0 ? pair : pair.substring(0, equals));
+      String value = equals < 0 ? "" : decode(pair.substring(equals + 1));
+      if (name != null && value != null) parms.put(name.trim(), value);
+    }
+  }
+}
@@ -0,0 +1,22 @@
+package com.github.sb.nanorouter;
+
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.NanoHTTPD.Response.Status;
+
+/**
+ * Answers OPTIONS requests for URIs that did not register an OPTIONS handler, by listing the
+ * methods that are registered for it.
+ */
+final class OptionsHandler implements Handler {
+  private final String allow;
+
+  OptionsHandler(String allow) {
+    this.allow = allow;
+  }
+
+  public NanoHTTPD.Response handle(RequestContext ctx) {
+    NanoHTTPD.Response r = NanoHTTPD.newFixedLengthResponse(Status.OK, NanoHTTPD.MIME_PLAINTEXT, "");
+    r.addHeader("Allow", this.allow);
+    return r;
+  }
+}
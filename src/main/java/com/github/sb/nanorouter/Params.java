@@ -0,0 +1,222 @@
+package com.github.sb.nanorouter;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * URI parameters captured while matching a request against a registered URI.
+ *
+ * Values are stored as start/end offsets into the request URI and are only turned into Strings
+ * when a handler asks for them (and then memoized), so matching a parametric route does not
+ * allocate. This is a read-only Map: parameter names are those of the registered URI, in order.
+ */
+public class Params extends AbstractMap<String, String> {
+  private static final String[] NONE = new String[0];
+
+  // The request URI that the offsets point into.
+  private String uri;
+
+  // Parameter names of the matched URI. Shared with the trie leaf, never modified.
+  private String[] names = NONE;
+
+  // offsets[2i] and offsets[2i + 1] delimit the value of the i-th parameter.
+  // Written to directly by CompiledTrie (and RouterTrie) while matching.
+  int[] offsets = new int[0];
+
+  // Memoized values, filled on first access.
+  private String[] values = NONE;
+
+  Params() {}
+
+  /**
+   * Prepares this instance to capture up to 'capacity' parameters from 'uri'. This only allocates
+   * when 'capacity' grows beyond anything seen before.
+   */
+  void reset(String uri, int capacity) {
+    this.uri = uri;
+    this.names = NONE;
+
+    if (this.values.length < capacity) {
+      this.offsets = new int[capacity * 2];
+      this.values = new String[capacity];
+    }
+  }
+
+  /**
+   * Binds the captured offsets to the parameter names of the matched URI.
+   */
+  void bind(String[] names) {
+    this.names = names;
+    Arrays.fill(this.values, 0, names.length, null);
+  }
+
+  /**
+   * Returns a copy that no longer shares storage with this instance.
+   */
+  Params copy() {
+    Params p = new Params();
+    p.reset(this.uri, this.names.length);
+    System.arraycopy(this.offsets, 0, p.offsets, 0, 2 * this.names.length);
+    p.bind(this.names);
+    return p;
+  }
+
+  @Override
+  public int size() {
+    return this.names.length;
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    return indexOf(key) >= 0;
+  }
+
+  @Override
+  public String get(Object key) {
+    int i = indexOf(key);
+    return i < 0 ? null : value(i);
+  }
+
+  /**
+   * Returns the name of the i-th parameter.
+   */
+  public String name(int i) {
+    return this.names[i];
+  }
+
+  /**
+   * Returns the value of the i-th parameter.
+   */
+  public String value(int i) {
+    String v = this.values[i];
+    if (v == null) {
+      v = this.uri.substring(this.offsets[2 * i], this.offsets[2 * i + 1]);
+      this.values[i] = v;
+    }
+    return v;
+  }
+
+  /**
+   * Returns the value of the parameter as an int, parsed in place from the request URI.
+   *
+   * @throws IllegalArgumentException if there is no such parameter.
+   * @throws NumberFormatException if the value is not a decimal int.
+   */
+  public int getInt(String name) {
+    long v = getLong(name);
+    if (v < Integer.MIN_VALUE || v > Integer.MAX_VALUE) throw invalid(name, "an int");
+    return (int) v;
+  }
+
+  /**
+   * Returns the value of the parameter as a long, parsed in place from the request URI.
+   *
+   * @throws IllegalArgumentException if there is no such parameter.
+   * @throws NumberFormatException if the value is not a decimal long.
+   */
+  public long getLong(String name) {
+    int i = require(name);
+    int start = this.offsets[2 * i];
+    int end = this.offsets[2 * i + 1];
+
+    boolean negative = start < end && this.uri.charAt(start) == '-';
+    int p = negative ? start + 1 : start;
+    if (p == end || end - p > 19) throw invalid(name, "a long");
+
+    // Accumulate negatively, so that Long.MIN_VALUE fits.
+    long v = 0;
+    for (; p < end; ++p) {
+      int d = this.uri.charAt(p) - '0';
+      if (d < 0 || d > 9 || v < (Long.MIN_VALUE + d) / 10) throw invalid(name, "a long");
+      v = v * 10 - d;
+    }
+    if (!negative && v == Long.MIN_VALUE) throw invalid(name, "a long");
+    return negative ? v : -v;
+  }
+
+  /**
+   * Returns the value of the parameter as a UUID, parsed in place from the request URI.
+   *
+   * @throws IllegalArgumentException if there is no such parameter, or the value is not a UUID in
+   * its canonical form (8-4-4-4-12 hexadecimal digits).
+   */
+  public UUID getUUID(String name) {
+    int i = require(name);
+    int start = this.offsets[2 * i];
+    if (this.offsets[2 * i + 1] - start != 36) throw invalid(name, "a UUID");
+
+    long msb = 0;
+    long lsb = 0;
+    for (int k = 0; k < 36; ++k) {
+      char c = this.uri.charAt(start + k);
+      if (k == 8 || k == 13 || k == 18 || k == 23) {
+        if (c != '-') throw invalid(name, "a UUID");
+        continue;
+      }
+
+      int d = Character.digit(c, 16);
+      if (d < 0) throw invalid(name, "a UUID");
+      if (k < 18) msb = (msb << 4) | d;
+      else lsb = (lsb << 4) | d;
+    }
+    return new UUID(msb, lsb);
+  }
+
+  private int require(String name) {
+    int i = indexOf(name);
+    if (i < 0) throw new IllegalArgumentException("No such parameter: " + name);
+    return i;
+  }
+
+  private NumberFormatException invalid(String name, String type) {
+    return new NumberFormatException("Parameter " + name + " is not " + type + ": " + get(name));
+  }
+
+  private int indexOf(Object key) {
+    for (int i = 0; i < this.names.length; ++i) {
+      if (this.names[i].equals(key)) return i;
+    }
+    return -1;
+  }
+
+  @Override
+  public Set<Entry<String, String>> entrySet() {
+    return new AbstractSet<Entry<String, String>>() {
+
+      @Override
+      public int size() {
+        return Params.this.size();
+      }
+
+      @Override
+      public Iterator<Entry<String, String>> iterator() {
+        return new Iterator<Entry<String, String>>() {
+          private int next = 0;
+
+          @Override
+          public boolean hasNext() {
+            return this.next < Params.this.size();
+          }
+
+          @Override
+          public Entry<String, String> next() {
+            if (!hasNext()) throw new NoSuchElementException();
+
+            int i = this.next++;
+            return new SimpleImmutableEntry<>(name(i), value(i));
+          }
+
+          @Override
+          public void remove() {
+            throw new UnsupportedOperationException();
+          }
+        };
+      }
+    };
+  }
+}
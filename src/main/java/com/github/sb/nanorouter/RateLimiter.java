@@ -0,0 +1,257 @@
+package com.github.sb.nanorouter;
+
+import fi.iki.elonen.NanoHTTPD;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits the rate of requests per client, with a token bucket per key: the client's address, a
+ * request header (e.g. an API key) or a parameter of the matched route. A key may send 'burst'
+ * requests at once, and then 'permitsPerSecond' on average; the rest are rejected immediately
+ * with "429 Too Many Requests" and a Retry-After header telling when a token will be available.
+ *
+ * Like a ConcurrencyLimiter, a limiter is applied through its filter, to the whole router, a
+ * prefix or a route. E.g.
+ *
+ *   RateLimiter perClient = RateLimiter.perRemoteAddress(50, 100);
+ *   router.addFilter(perClient.filter());
+ *
+ *   RateLimiter perTenant = RateLimiter.perParam("tenant", 10, 20);
+ *   router.addFilter("/tenants/:tenant/reports", perTenant.filter());
+ *
+ * Requests without a key (no such header, or a route without that parameter) share one bucket.
+ *
+ * A bucket is a single AtomicLong holding the time at which it will be full again (the "generic
+ * cell rate algorithm"), so tokens are refilled lazily, by the request that reads the bucket, and
+ * taking one is a compare-and-set. Buckets live in a ConcurrentHashMap, which is read without
+ * locking, so requests for different keys never contend, and requests for the same key only retry
+ * a CAS. A bucket that has refilled completely is indistinguishable from a new one, so forgetting
+ * it loses nothing: idle keys are swept once every refill period (at least a second), or when
+ * 'maxKeys' keys are tracked and a new one shows up. If every tracked key is still active then,
+ * new keys share the keyless bucket until some become idle, so that memory stays bounded however
+ * many keys clients make up.
+ */
+public final class RateLimiter {
+  private static final byte REMOTE_ADDRESS = 0;
+  private static final byte HEADER = 1;
+  private static final byte PARAM = 2;
+
+  private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+  // How often a full table may be swept.
+  private static final long FULL_SWEEP_SPACING = TimeUnit.MILLISECONDS.toNanos(100);
+
+  private final byte source;
+  private final String name;
+
+  private final double permitsPerSecond;
+  private final int burst;
+
+  // Nanoseconds per token, and how far ahead of now a bucket may be full again.
+  private final long interval;
+  private final long tolerance;
+
+  private final ConcurrentHashMap<String, AtomicLong> buckets = new ConcurrentHashMap<>(1024);
+  private final AtomicInteger keys = new AtomicInteger();
+  private volatile int maxKeys = 1 << 17;
+
+  // Shared by requests without a key, and by new keys while the table is full.
+  private final AtomicLong shared = new AtomicLong(System.nanoTime());
+
+  private final AtomicBoolean sweeping = new AtomicBoolean();
+  private final long sweepPeriod;
+  private volatile long lastSweep;
+
+  private final LongAdder accepted = new LongAdder();
+  private final LongAdder rejected = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  private final Filter filter = new Filter() {
+
+    @Override
+    public NanoHTTPD.Response filter(RequestContext ctx) {
+      return admit(ctx);
+    }
+  };
+
+  private RateLimiter(byte source, String name, double permitsPerSecond, int burst) {
+    if (!(permitsPerSecond > 0) || burst <= 0) {
+      throw new IllegalArgumentException(
+        "Expected a positive rate and burst, got " + permitsPerSecond + " and " + burst
+      );
+    }
+
+    this.source = source;
+    this.name = name;
+    this.permitsPerSecond = permitsPerSecond;
+    this.burst = burst;
+    this.interval = Math.max(1, (long) (SECOND / permitsPerSecond));
+    this.tolerance = this.interval * burst;
+    this.sweepPeriod = Math.max(SECOND, this.tolerance);
+    this.lastSweep = System.nanoTime();
+  }
+
+  /**
+   * Returns a limiter keyed by the address of the client ("remote-addr"). Behind a proxy, key by
+   * the header it forwards the address in instead.
+   */
+  public static RateLimiter perRemoteAddress(double permitsPerSecond, int burst) {
+    return new RateLimiter(REMOTE_ADDRESS, "remote-addr", permitsPerSecond, burst);
+  }
+
+  /**
+   * Returns a limiter keyed by the value of a request header, e.g. "X-Api-Key".
+   */
+  public static RateLimiter perHeader(String header, double permitsPerSecond, int burst) {
+    // NanoHTTPD lower cases header names as it parses them.
+    return new RateLimiter(HEADER, header.toLowerCase(Locale.ROOT), permitsPerSecond, burst);
+  }
+
+  /**
+   * Returns a limiter keyed by a parameter of the matched route, e.g. "tenant" for the route
+   * "/tenants/:tenant/reports".
+   */
+  public static RateLimiter perParam(String param, double permitsPerSecond, int burst) {
+    return new RateLimiter(PARAM, param, permitsPerSecond, burst);
+  }
+
+  /**
+   * Returns the filter that applies this limiter.
+   */
+  public Filter filter() {
+    return this.filter;
+  }
+
+  /**
+   * Sets the number of keys tracked at most. 131072 by default.
+   */
+  public void setMaxKeys(int maxKeys) {
+    if (maxKeys <= 0) throw new IllegalArgumentException("maxKeys must be positive: " + maxKeys);
+    this.maxKeys = maxKeys;
+  }
+
+  public double getPermitsPerSecond() {
+    return this.permitsPerSecond;
+  }
+
+  public int getBurst() {
+    return this.burst;
+  }
+
+  /**
+   * Returns the number of keys currently tracked.
+   */
+  public int getKeys() {
+    return this.keys.get();
+  }
+
+  public long getAccepted() {
+    return this.accepted.sum();
+  }
+
+  public long getRejected() {
+    return this.rejected.sum();
+  }
+
+  /**
+   * Returns the number of idle keys that were forgotten.
+   */
+  public long getEvictions() {
+    return this.evictions.sum();
+  }
+
+  private String key(RequestContext ctx) {
+    switch (this.source) {
+      case PARAM:
+        return ctx.params == null ? null : ctx.params.get(this.name);
+      default:
+        return ctx.session.getHeaders().get(this.name);
+    }
+  }
+
+  private NanoHTTPD.Response admit(RequestContext ctx) {
+    long now = System.nanoTime();
+    long wait = acquire(bucket(key(ctx), now), now);
+    if (wait <= 0) {
+      this.accepted.increment();
+      return ctx.next();
+    }
+
+    this.rejected.increment();
+    NanoHTTPD.Response r = NanoHTTPD.newFixedLengthResponse(
+      HttpStatus.TOO_MANY_REQUESTS,
+      "application/text",
+      "Nanorouter: Too many requests"
+    );
+    // Rounded up, so that a client that waits that long gets a token.
+    r.addHeader("Retry-After", Long.toString((wait + SECOND - 1) / SECOND));
+    return r;
+  }
+
+  /**
+   * Takes a token from 'bucket', and returns 0, or the nanoseconds until one is available.
+   */
+  private long acquire(AtomicLong bucket, long now) {
+    while (true) {
+      long full = bucket.get();
+      // The bucket refilled completely at 'full', and is empty at 'full - tolerance'.
+      long next = (full - now < 0 ? now : full) + this.interval;
+      long wait = next - now - this.tolerance;
+      if (wait > 0) return wait;
+      if (bucket.compareAndSet(full, next)) return 0;
+    }
+  }
+
+  private AtomicLong bucket(String key, long now) {
+    if (key == null) return this.shared;
+
+    AtomicLong bucket = this.buckets.get(key);
+    if (bucket != null) return bucket;
+
+    long sinceSweep = now - this.lastSweep;
+    if (this.keys.get() >= this.maxKeys) {
+      // While every key is active, new ones would sweep the whole table each time.
+      if (sinceSweep >= FULL_SWEEP_SPACING) sweep(now);
+      if (this.keys.get() >= this.maxKeys) return this.shared;
+    } else if (sinceSweep >= this.sweepPeriod) {
+      sweep(now);
+    }
+
+    bucket = new AtomicLong(now);
+    AtomicLong existing = this.buckets.putIfAbsent(key, bucket);
+    if (existing != null) return existing;
+
+    this.keys.incrementAndGet();
+    return bucket;
+  }
+
+  // Forgets the buckets that have refilled completely. One thread sweeps at a time; the others go
+  // on without waiting.
+  private void sweep(long now) {
+    if (!this.sweeping.compareAndSet(false, true)) return;
+    try {
+      this.lastSweep = now;
+
+      Iterator<Map.Entry<String, AtomicLong>> it = this.buckets.entrySet().iterator();
+      while (it.hasNext()) {
+        Map.Entry<String, AtomicLong> e = it.next();
+        if (e.getValue().get() - now > 0) continue;
+        // A request may still take a token from a bucket as it is removed, in which case that key
+        // gets one request more than its limit.
+        if (this.buckets.remove(e.getKey(), e.getValue())) {
+          this.keys.decrementAndGet();
+          this.evictions.increment();
+        }
+      }
+    } finally {
+      this.sweeping.set(false);
+    }
+  }
+}
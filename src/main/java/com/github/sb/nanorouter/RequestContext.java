@@ -1,7 +1,14 @@
 package com.github.sb.nanorouter;
 
 import fi.iki.elonen.NanoHTTPD;
-import java.util.HashMap;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
 
 /**
  * A RequestContext is provided to every handler which can be used to gain access to request
@@ -14,9 +21,11 @@ public class RequestContext {
    * E.g. If the registered handler URI was "/author/:authorId/books/:booksId" then this will contain
    * the "authorId", and "booksId" values from the matched request URI.
    *
+   * Values are extracted from the request URI lazily, the first time they are read.
+   *
    * If this request did not match any registered URI, then this will be null.
    */
-  public HashMap<String, String> params;
+  public Params params;
 
   /**
    * The original NanoHTTPD instance that the router is operating under.
@@ -42,4 +51,189 @@ public class RequestContext {
    * The original URI that was registered to a handler if there was a match. Otherwise, null.
    */
   public String registeredUri;
+
+  // The request body stream handed out by 'body', if any. Cleared for every request.
+  InputStream body;
+
+  // Whether the route opted in or out of compression, see Compression.
+  byte compression;
+
+  // When the request started and when it was routed (System.nanoTime), if it is traced. See
+  // RequestTracer.
+  long traceStart;
+  long traceRouted;
+
+  // Parameter storage owned by this context. Kept across requests when contexts are recycled.
+  Params buffer;
+
+  // The filters of the matched route, the position of the next one to run, and the handler that
+  // ends the chain.
+  Filter[] chain;
+  int position;
+  Handler target;
+
+  /**
+   * Returns the value of a request header, or null. Names are case insensitive.
+   */
+  public String header(String name) {
+    // NanoHTTPD lower cases header names as it parses them.
+    return this.session.getHeaders().get(lowerCase(name));
+  }
+
+  /**
+   * Returns the (decoded) value of the first query string parameter with this name, or null. The
+   * query string is scanned in place, and only the value that is returned is decoded.
+   */
+  public String query(String name) {
+    String q = this.session.getQueryParameterString();
+    if (q == null) return null;
+
+    int length = q.length();
+    for (int start = 0; start <= length; ) {
+      int end = q.indexOf('&', start);
+      if (end < 0) end = length;
+
+      int eq = q.indexOf('=', start);
+      if (eq < 0 || eq > end) eq = end;
+
+      if (keyEquals(q, start, eq, name)) return eq == end ? "" : decode(q, eq + 1, end);
+      start = end + 1;
+    }
+    return null;
+  }
+
+  /**
+   * Returns the value of the Content-Length header, or -1 if there is none (or it is invalid).
+   */
+  public long contentLength() {
+    String length = header("content-length");
+    if (length == null) return -1;
+    try {
+      return Long.parseLong(length.trim());
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Returns the request body as a stream, without buffering it or writing it to temporary files
+   * (as 'session.parseBody' does). The stream ends with the body, which is delimited by the
+   * Content-Length header (NanoHTTPD does not read chunked request bodies); without one, the body
+   * is empty. Every call for the same request returns the same stream.
+   *
+   * @throws IOException if the Content-Length is larger than 'maxBytes', so that the handler can
+   * answer with "413 Payload Too Large" without reading anything.
+   */
+  public InputStream body(long maxBytes) throws IOException {
+    if (this.body != null) return this.body;
+
+    long length = contentLength();
+    if (length > maxBytes) {
+      throw new IOException("Request body of " + length + " bytes exceeds the limit of " + maxBytes);
+    }
+
+    InputStream in = this.session.getInputStream();
+    this.body = new BoundedInputStream(in, Math.max(length, 0));
+    return this.body;
+  }
+
+  /**
+   * Reads the whole request body, of at most 'maxBytes', as a UTF-8 String. See 'body'.
+   */
+  public String bodyAsString(int maxBytes) throws IOException {
+    InputStream in = body(maxBytes);
+    ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(Math.max(contentLength(), 0), maxBytes));
+    byte[] buf = new byte[4096];
+    for (int n; (n = in.read(buf)) >= 0; ) out.write(buf, 0, n);
+    return new String(out.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  private static String lowerCase(String name) {
+    for (int i = 0; i < name.length(); ++i) {
+      char c = name.charAt(i);
+      if (c >= 'A' && c <= 'Z') return name.toLowerCase(Locale.ROOT);
+    }
+    return name;
+  }
+
+  // Compares the (possibly encoded) key q[start, end) with 'name'.
+  private static boolean keyEquals(String q, int start, int end, String name) {
+    for (int i = start; i < end; ++i) {
+      char c = q.charAt(i);
+      if (c == '%' || c == '+') return name.equals(decode(q, start, end));
+    }
+    return end - start == name.length() && q.regionMatches(start, name, 0, name.length());
+  }
+
+  // Decodes q[start, end), or returns it as is if it is not validly encoded.
+  private static String decode(String q, int start, int end) {
+    String raw = q.substring(start, end);
+    if (raw.indexOf('%') < 0 && raw.indexOf('+') < 0) return raw;
+    try {
+      return URLDecoder.decode(raw, "UTF-8");
+    } catch (IllegalArgumentException | UnsupportedEncodingException e) {
+      return raw;
+    }
+  }
+
+  /**
+   * Reads at most 'remaining' bytes from the connection's stream, which goes on past the end of
+   * the body and must stay open for the next request.
+   */
+  private static final class BoundedInputStream extends FilterInputStream {
+    private long remaining;
+
+    BoundedInputStream(InputStream in, long remaining) {
+      super(in);
+      this.remaining = remaining;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (this.remaining <= 0) return -1;
+
+      int b = this.in.read();
+      if (b >= 0) this.remaining--;
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) return 0;
+      if (this.remaining <= 0) return -1;
+
+      int n = this.in.read(b, off, (int) Math.min(len, this.remaining));
+      if (n > 0) this.remaining -= n;
+      return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = this.in.skip(Math.min(n, this.remaining));
+      this.remaining -= skipped;
+      return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+      return (int) Math.min(this.in.available(), this.remaining);
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+
+    @Override
+    public void close() {}
+  }
+
+  /**
+   * Runs the rest of the filter chain and then the handler, and returns the response. Filters call
+   * this (at most once) to let the request through; see Filter.
+   */
+  public NanoHTTPD.Response next() {
+    if (this.position < this.chain.length) return this.chain[this.position++].filter(this);
+    return this.target.handle(this);
+  }
 }
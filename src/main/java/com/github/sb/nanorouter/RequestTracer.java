@@ -0,0 +1,362 @@
+package com.github.sb.nanorouter;
+
+import fi.iki.elonen.NanoHTTPD;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Times the phases of requests, to tell where the time of a slow one went (see
+ * 'Router.setTracer'):
+ *
+ *   routing   matching the URI against the route table,
+ *   handler   the filters and the handler,
+ *   response  the router's own stages on the complete response (e.g. Compression),
+ *   write     sending the response, until its body was read to the end and closed.
+ *
+ * A fraction of the requests is sampled into rings of recent traces, and every request that took
+ * longer than the threshold is kept in a bounded log of slow requests, with its route, parameters
+ * and phases. Both are read with 'getRecent' and 'getSlow', or served by a TraceHandler. E.g.
+ *
+ *   RequestTracer tracer = new RequestTracer(0.01, 250, TimeUnit.MILLISECONDS);
+ *   router.setTracer(tracer);
+ *   router.addHandler(Method.GET, "/debug/traces", new TraceHandler(tracer));
+ *
+ * The phases are measured with System.nanoTime, and a request that is neither sampled nor slow
+ * allocates nothing: its timestamps stay in its RequestContext and the decision is taken once the
+ * response is complete. Only recorded requests take a Trace, and sampled ones a wrapper around
+ * their body to time the write. Since timing the write takes that wrapper, a request that is only
+ * slow to write is caught when it was sampled.
+ *
+ * The rings are allocated up front and striped by thread, so request threads do not contend to
+ * record, and a thread that records a lot only overwrites its own stripe's history. The slow log
+ * is a single ring of the most recent slow requests.
+ */
+public final class RequestTracer {
+  private final double sampleRate;
+  private final long thresholdNanos;
+
+  private final Ring[] recent;
+  private final int mask;
+  private final Ring slow;
+
+  private final LongAdder sampled = new LongAdder();
+  private final LongAdder slowCount = new LongAdder();
+
+  /**
+   * Samples 'sampleRate' (between 0 and 1) of the requests, and logs the ones slower than
+   * 'slowThreshold'. Keeps 256 recent traces per stripe, and the last 128 slow requests.
+   */
+  public RequestTracer(double sampleRate, long slowThreshold, TimeUnit unit) {
+    this(sampleRate, slowThreshold, unit, 256, 128);
+  }
+
+  public RequestTracer(double sampleRate, long slowThreshold, TimeUnit unit, int recentPerStripe, int slowLogSize) {
+    if (!(sampleRate >= 0 && sampleRate <= 1)) {
+      throw new IllegalArgumentException("sampleRate must be between 0 and 1: " + sampleRate);
+    }
+    if (recentPerStripe <= 0 || slowLogSize <= 0) {
+      throw new IllegalArgumentException("Expected positive sizes, got " + recentPerStripe + " and " + slowLogSize);
+    }
+
+    this.sampleRate = sampleRate;
+    this.thresholdNanos = unit.toNanos(slowThreshold);
+
+    // A power of two, at least twice the number of processors.
+    int stripes = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 4 - 1);
+    this.recent = new Ring[stripes];
+    for (int i = 0; i < stripes; ++i) this.recent[i] = new Ring(recentPerStripe);
+    this.mask = stripes - 1;
+    this.slow = new Ring(slowLogSize);
+  }
+
+  /**
+   * The phases of one request. Durations are in nanoseconds.
+   */
+  public static final class Trace {
+    private final long startMillis;
+    private final NanoHTTPD.Method method;
+    private final String uri;
+    private final String route;
+    private final Map<String, String> params;
+    private final int status;
+    private final long routing;
+    private final long handler;
+    private final long response;
+    private final long write;
+
+    Trace(Pending p, long write) {
+      this.startMillis = p.startMillis;
+      this.method = p.method;
+      this.uri = p.uri;
+      this.route = p.route;
+      this.params = p.params;
+      this.status = p.status;
+      this.routing = p.routing;
+      this.handler = p.handler;
+      this.response = p.response;
+      this.write = write;
+    }
+
+    /**
+     * Returns when the request started, in milliseconds since the epoch.
+     */
+    public long getStartMillis() {
+      return this.startMillis;
+    }
+
+    public NanoHTTPD.Method getMethod() {
+      return this.method;
+    }
+
+    public String getUri() {
+      return this.uri;
+    }
+
+    /**
+     * Returns the registered URI of the matched route, or null if none matched.
+     */
+    public String getRoute() {
+      return this.route;
+    }
+
+    public Map<String, String> getParams() {
+      return this.params;
+    }
+
+    public int getStatus() {
+      return this.status;
+    }
+
+    public long getRoutingNanos() {
+      return this.routing;
+    }
+
+    public long getHandlerNanos() {
+      return this.handler;
+    }
+
+    public long getResponseNanos() {
+      return this.response;
+    }
+
+    /**
+     * Returns the time spent sending the response, or -1 if it was not timed.
+     */
+    public long getWriteNanos() {
+      return this.write;
+    }
+
+    public long getTotalNanos() {
+      return this.routing + this.handler + this.response + Math.max(0, this.write);
+    }
+
+    /**
+     * E.g. "2024-05-01T10:00:00.123Z GET /books/12 route=/books/:id params={id=12} status=200
+     * total=1.250ms routing=0.004ms handler=1.100ms response=0.046ms write=0.100ms"
+     */
+    @Override
+    public String toString() {
+      return String.format(
+        Locale.ROOT,
+        "%s %s %s route=%s params=%s status=%d total=%s routing=%s handler=%s response=%s write=%s",
+        Instant.ofEpochMilli(this.startMillis),
+        this.method,
+        this.uri,
+        this.route,
+        this.params,
+        this.status,
+        millis(getTotalNanos()),
+        millis(this.routing),
+        millis(this.handler),
+        millis(this.response),
+        this.write < 0 ? "-" : millis(this.write)
+      );
+    }
+
+    private static String millis(long nanos) {
+      return String.format(Locale.ROOT, "%.3fms", nanos / 1e6);
+    }
+  }
+
+  public double getSampleRate() {
+    return this.sampleRate;
+  }
+
+  public long getSlowThreshold(TimeUnit unit) {
+    return unit.convert(this.thresholdNanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Returns the number of sampled requests so far.
+   */
+  public long getSampled() {
+    return this.sampled.sum();
+  }
+
+  /**
+   * Returns the number of slow requests so far, including those no longer in the log.
+   */
+  public long getSlowCount() {
+    return this.slowCount.sum();
+  }
+
+  /**
+   * Returns the recent sampled traces still held, oldest first.
+   */
+  public List<Trace> getRecent() {
+    List<Trace> traces = new ArrayList<>();
+    for (Ring r : this.recent) r.copyTo(traces);
+    return sorted(traces);
+  }
+
+  /**
+   * Returns the slow requests still held in the log, oldest first.
+   */
+  public List<Trace> getSlow() {
+    List<Trace> traces = new ArrayList<>();
+    this.slow.copyTo(traces);
+    return sorted(traces);
+  }
+
+  private static List<Trace> sorted(List<Trace> traces) {
+    Collections.sort(
+      traces,
+      new Comparator<Trace>() {
+
+        @Override
+        public int compare(Trace a, Trace b) {
+          return Long.compare(a.startMillis, b.startMillis);
+        }
+      }
+    );
+    return traces;
+  }
+
+  /**
+   * Called by the Router once the response of a request is complete, at 'finished'. The request
+   * was routed by 'ctx.traceRouted' and its handler returned at 'handled'.
+   */
+  NanoHTTPD.Response record(RequestContext ctx, NanoHTTPD.Response r, long handled, long finished) {
+    long total = finished - ctx.traceStart;
+    boolean sampled = this.sampleRate > 0 && (this.sampleRate >= 1 || ThreadLocalRandom.current().nextDouble() < this.sampleRate);
+    if (!sampled && total < this.thresholdNanos) return r;
+
+    Pending p = new Pending(ctx, r, handled, finished);
+    InputStream body = r.getData();
+    if (sampled && body != null) {
+      r.setData(new TimedBody(body, p, finished));
+    } else {
+      commit(p, -1, sampled);
+    }
+    return r;
+  }
+
+  private void commit(Pending p, long write, boolean sampled) {
+    Trace t = new Trace(p, write);
+    if (sampled) {
+      this.sampled.increment();
+      this.recent[(int) Thread.currentThread().getId() & this.mask].add(t);
+    }
+    if (t.getTotalNanos() >= this.thresholdNanos) {
+      this.slowCount.increment();
+      this.slow.add(t);
+    }
+  }
+
+  /**
+   * What is known of a recorded request before its response is written.
+   */
+  private static final class Pending {
+    final long startMillis;
+    final NanoHTTPD.Method method;
+    final String uri;
+    final String route;
+    final Map<String, String> params;
+    final int status;
+    final long routing;
+    final long handler;
+    final long response;
+
+    Pending(RequestContext ctx, NanoHTTPD.Response r, long handled, long finished) {
+      this.startMillis = System.currentTimeMillis() - TimeUnit.NANOSECONDS.toMillis(finished - ctx.traceStart);
+      this.method = ctx.method;
+      this.uri = ctx.uri;
+      this.route = ctx.registeredUri;
+      // The parameters may be recycled along with the context once the response is complete.
+      this.params = ctx.params == null
+        ? Collections.<String, String>emptyMap()
+        : Collections.unmodifiableMap(new LinkedHashMap<>(ctx.params));
+      this.status = r.getStatus() == null ? 0 : r.getStatus().getRequestStatus();
+      this.routing = ctx.traceRouted - ctx.traceStart;
+      this.handler = handled - ctx.traceRouted;
+      this.response = finished - handled;
+    }
+  }
+
+  /**
+   * A response body that commits its trace when the server closes it, which NanoHTTPD (and
+   * NioServer) do once the response was sent.
+   */
+  private final class TimedBody extends FilterInputStream {
+    private final Pending pending;
+    private final long finished;
+    private boolean committed;
+
+    TimedBody(InputStream in, Pending pending, long finished) {
+      super(in);
+      this.pending = pending;
+      this.finished = finished;
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        super.close();
+      } finally {
+        if (!this.committed) {
+          this.committed = true;
+          commit(this.pending, System.nanoTime() - this.finished, true);
+        }
+      }
+    }
+  }
+
+  /**
+   * A fixed-size ring of traces, overwriting the oldest. Writers claim slots with one atomic
+   * increment; readers may miss a trace that is being written.
+   */
+  private static final class Ring {
+    private final AtomicReferenceArray<Trace> slots;
+    private final AtomicLong next = new AtomicLong();
+
+    Ring(int size) {
+      this.slots = new AtomicReferenceArray<>(size);
+    }
+
+    void add(Trace t) {
+      int slot = (int) (this.next.getAndIncrement() % this.slots.length());
+      this.slots.lazySet(slot, t);
+    }
+
+    void copyTo(List<Trace> traces) {
+      for (int i = 0; i < this.slots.length(); ++i) {
+        Trace t = this.slots.get(i);
+        if (t != null) traces.add(t);
+      }
+    }
+  }
+}
@@ -0,0 +1,306 @@
+package com.github.sb.nanorouter;
+
+import fi.iki.elonen.NanoHTTPD;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded cache of resolved request URIs, consulted before walking the route trie.
+ *
+ * Entries map a concrete Method + URI pair (e.g. GET "/books/123") to its Route and the offsets of
+ * its parameters, so a hit skips matching altogether. Only requests that matched a route are
+ * cached. A cache belongs to a single RouteTable, so it is discarded whenever the routes change.
+ *
+ * Lookups are lock-free: one ConcurrentHashMap per method, keyed by the URI String itself so
+ * that a hit allocates nothing. Eviction follows the CLOCK algorithm (entries that were hit since
+ * the hand last passed get a second chance), and admission is guarded by a small frequency sketch
+ * in the style of TinyLFU: a new URI only replaces the CLOCK victim if it has been requested more
+ * often recently. This keeps one-off URIs (e.g. a crawler walking "/books/1" to "/books/100000")
+ * from flushing the hot set, and keeps them off the insertion lock.
+ *
+ * A hit writes nothing shared, except the entry's referenced bit the first time it is hit after
+ * the CLOCK hand passed. Hits reach the frequency sketch through that bit: the hand credits the
+ * entries it finds referenced as it sweeps, under the insertion lock. The hit count is sampled, 1
+ * in 16 hits picked at random, so it is an estimate. Hot URIs thus do not make every request
+ * thread write to the same counters.
+ *
+ * When traffic is not skewed enough for the cache to pay off (less than 5% hits over a window of
+ * lookups), it steps aside: only 1 in 16 URIs, picked by hash, keeps going through it, so that
+ * it notices when the traffic becomes skewed again, and the rest go straight to the trie.
+ */
+public final class ResolutionCache {
+  // A URI must have been seen at least this many times (recently) to be worth caching.
+  private static final int ADMIT_MIN = 2;
+
+  // The hit ratio is checked every WINDOW lookups, and must be at least MIN_HIT_RATIO.
+  private static final int WINDOW = 4096;
+  private static final double MIN_HIT_RATIO = 0.05;
+
+  // While bypassed, URIs whose hash has these bits clear still use the cache.
+  private static final int SAMPLE_MASK = 15;
+
+  // 1 in HIT_SAMPLE hits is counted, standing for HIT_SAMPLE of them. A power of two.
+  private static final int HIT_SAMPLE = 16;
+
+  private final int capacity;
+
+  // Indexed by Method.ordinal().
+  private final ConcurrentHashMap<String, Entry>[] maps;
+
+  // CLOCK ring, guarded by 'this'.
+  private final Entry[] ring;
+  private int hand;
+  private int size;
+
+  private final FrequencySketch sketch;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  private volatile boolean bypassed;
+
+  // Lookups left until the next hit ratio check, counted as they are recorded. Updated without
+  // synchronization, so the windows are only approximately WINDOW long.
+  private int untilCheck = WINDOW;
+
+  // Counter values at the last check, guarded by 'this'.
+  private long checkedHits;
+  private long checkedMisses;
+
+  /**
+   * A cached resolution.
+   */
+  static final class Entry {
+    final int method;
+    final String uri;
+    final Route route;
+    final int[] offsets;
+    final int hash;
+
+    // Set on every hit, cleared as the CLOCK hand passes.
+    volatile boolean referenced;
+
+    Entry(int method, String uri, Route route, int[] offsets, int hash) {
+      this.method = method;
+      this.uri = uri;
+      this.route = route;
+      this.offsets = offsets;
+      this.hash = hash;
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  ResolutionCache(int capacity) {
+    if (capacity <= 0) throw new IllegalArgumentException("capacity must be positive: " + capacity);
+
+    this.capacity = capacity;
+    this.ring = new Entry[capacity];
+    this.sketch = new FrequencySketch(capacity);
+
+    NanoHTTPD.Method[] methods = NanoHTTPD.Method.values();
+    this.maps = (ConcurrentHashMap<String, Entry>[]) new ConcurrentHashMap<?, ?>[methods.length];
+    for (int m = 0; m < methods.length; ++m) this.maps[m] = new ConcurrentHashMap<>();
+  }
+
+  /**
+   * Returns the maximum number of cached URIs.
+   */
+  public int getCapacity() {
+    return this.capacity;
+  }
+
+  /**
+   * Returns the number of cached URIs.
+   */
+  public synchronized int getSize() {
+    return this.size;
+  }
+
+  /**
+   * Returns an estimate of the number of hits, which are sampled (see above).
+   */
+  public long getHits() {
+    return this.hits.sum();
+  }
+
+  public long getMisses() {
+    return this.misses.sum();
+  }
+
+  /**
+   * Returns the number of entries that were replaced by more frequently requested URIs.
+   */
+  public long getEvictions() {
+    return this.evictions.sum();
+  }
+
+  /**
+   * Returns true if the cache is currently stepping aside because too few lookups hit.
+   */
+  public boolean isBypassed() {
+    return this.bypassed;
+  }
+
+  /**
+   * Returns false if this lookup should skip the cache and go straight to the trie.
+   */
+  boolean consult(String uri) {
+    return !this.bypassed || (uri.hashCode() & SAMPLE_MASK) == 0;
+  }
+
+  // Counts 'lookups' towards the current window.
+  private void recorded(int lookups) {
+    if ((this.untilCheck -= lookups) <= 0) checkHitRatio();
+  }
+
+  private synchronized void checkHitRatio() {
+    if (this.untilCheck > 0) return; // Another thread just did
+    this.untilCheck = WINDOW;
+
+    long hits = this.hits.sum();
+    long misses = this.misses.sum();
+    long windowHits = hits - this.checkedHits;
+    long windowLookups = windowHits + misses - this.checkedMisses;
+    this.checkedHits = hits;
+    this.checkedMisses = misses;
+
+    this.bypassed = windowHits < MIN_HIT_RATIO * windowLookups;
+  }
+
+  private static int hash(int method, String uri) {
+    int h = uri.hashCode() * 31 + method;
+    return h ^ (h >>> 16);
+  }
+
+  /**
+   * Returns the cached resolution for the pair, or null.
+   */
+  Entry get(NanoHTTPD.Method method, String uri) {
+    int m = method.ordinal();
+    Entry e = this.maps[m].get(uri);
+
+    if (e == null) {
+      this.misses.increment();
+      this.sketch.increment(hash(m, uri));
+      recorded(1);
+      return null;
+    }
+
+    // Avoid dirtying the cache line when the bit is already set.
+    if (!e.referenced) e.referenced = true;
+
+    if ((ThreadLocalRandom.current().nextInt() & (HIT_SAMPLE - 1)) == 0) {
+      this.hits.add(HIT_SAMPLE);
+      recorded(HIT_SAMPLE);
+    }
+    return e;
+  }
+
+  /**
+   * Offers a resolution that missed the cache. It is admitted if there is room, or if the URI is
+   * requested more frequently than the entry it would evict.
+   */
+  void offer(NanoHTTPD.Method method, String uri, Route route, int[] offsets) {
+    int m = method.ordinal();
+    int hash = hash(m, uri);
+
+    int frequency = this.sketch.frequency(hash);
+    if (frequency < ADMIT_MIN) return;
+
+    // Racy peek at the next victim, so that hopeless candidates skip the lock and the allocation.
+    if (this.size == this.capacity) {
+      Entry next = this.ring[this.hand];
+      if (next != null && !next.referenced && frequency <= this.sketch.frequency(next.hash)) return;
+    }
+
+    int[] copy = Arrays.copyOf(offsets, 2 * route.paramNames.length);
+    Entry candidate = new Entry(m, uri, route, copy, hash);
+
+    synchronized (this) {
+      if (this.maps[m].containsKey(uri)) return; // Another thread got there first
+
+      if (this.size < this.capacity) {
+        this.ring[this.size++] = candidate;
+        this.maps[m].put(uri, candidate);
+        return;
+      }
+
+      // Second chance: skip and clear referenced entries until an unreferenced one comes up,
+      // crediting their hits to the sketch. Hits may set the bits again concurrently, so give up
+      // after two full turns.
+      Entry victim = this.ring[this.hand];
+      for (int turns = 0; victim.referenced && turns < 2 * this.capacity; ++turns) {
+        victim.referenced = false;
+        this.sketch.increment(victim.hash);
+        this.hand = (this.hand + 1) % this.capacity;
+        victim = this.ring[this.hand];
+      }
+
+      if (frequency <= this.sketch.frequency(victim.hash)) return;
+
+      this.maps[victim.method].remove(victim.uri);
+      this.ring[this.hand] = candidate;
+      this.maps[m].put(uri, candidate);
+      this.hand = (this.hand + 1) % this.capacity;
+      this.evictions.increment();
+    }
+  }
+
+  /**
+   * An approximate count of how often each hash was seen recently: a count-min sketch with four
+   * rows of counters that saturate at 15, all halved once enough increments have been made so
+   * that old popularity fades.
+   *
+   * Updates are not synchronized. Lost increments only make the counts a little less accurate.
+   */
+  private static final class FrequencySketch {
+    private static final int MAX = 15;
+    private static final int[] SEEDS = new int[] { 0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F };
+
+    private final byte[] table;
+    private final int mask;
+    private final int sampleSize;
+    private int additions;
+
+    FrequencySketch(int capacity) {
+      // About 16 counters per entry keeps collisions between the four rows rare.
+      int width = Integer.highestOneBit(Math.max(capacity, 16) * 16 - 1) << 1;
+      this.table = new byte[width];
+      this.mask = width - 1;
+      this.sampleSize = 10 * Math.max(capacity, 16);
+    }
+
+    private int index(int hash, int row) {
+      int h = hash * SEEDS[row];
+      return (h ^ (h >>> 15)) & this.mask;
+    }
+
+    void increment(int hash) {
+      boolean added = false;
+      for (int row = 0; row < SEEDS.length; ++row) {
+        int i = index(hash, row);
+        if (this.table[i] < MAX) {
+          this.table[i]++;
+          added = true;
+        }
+      }
+
+      if (added && ++this.additions >= this.sampleSize) reset();
+    }
+
+    int frequency(int hash) {
+      int min = MAX;
+      for (int row = 0; row < SEEDS.length; ++row) min = Math.min(min, this.table[index(hash, row)]);
+      return min;
+    }
+
+    // Halves every counter
+    private void reset() {
+      this.additions = 0;
+      for (int i = 0; i < this.table.length; ++i) this.table[i] = (byte) (this.table[i] >> 1);
+    }
+  }
+}
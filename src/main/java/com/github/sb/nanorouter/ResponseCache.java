@@ -0,0 +1,400 @@
+package com.github.sb.nanorouter;
+
+import fi.iki.elonen.NanoHTTPD;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A filter that caches the responses of routes whose GET handlers are pure functions of their
+ * parameters, and replays them without running the handler.
+ *
+ * Add it to the routes it should cache (one cache may serve several routes):
+ *
+ *   ResponseCache cache = new ResponseCache(30, TimeUnit.SECONDS, 64 * 1024 * 1024);
+ *   router.addHandler(Method.GET, "/books/:id", books, cache);
+ *
+ * Entries are keyed by the registered URI, the parameter values, and the values of the request
+ * headers given to 'setKeyHeaders' (e.g. "Accept-Language"). The query string is not part of the
+ * key, so handlers that read it should not be cached. Only the responses of GET requests are
+ * cached, and only "200 OK" ones that do not say "Cache-Control: no-store" or "private"; HEAD
+ * requests are answered from the entries of GET requests (the Router drops the body). The body is
+ * kept as a byte[] and replayed as a fixed length response, along with its MIME type and the
+ * headers given to 'setReplayedHeaders' (NanoHTTPD does not let other headers be listed).
+ *
+ * When several requests miss the same key at once, only the first runs the handler and the others
+ * wait for its response, so an expired hot entry does not send a herd of requests to the backend.
+ * If that response cannot be cached, each waiting request then runs the handler itself.
+ *
+ * Entries live for the TTL given at construction, and the cache holds at most 'maxBytes' of them
+ * (bodies plus keys plus a fixed overhead per entry). When it is full, expired entries are dropped
+ * first, then entries that were not hit since the last eviction sweep.
+ *
+ * Responses that are streamed (e.g. chunked or server-sent events) must not be cached: the whole
+ * body is read before the response is returned.
+ */
+public final class ResponseCache implements Filter {
+  // Bytes accounted for each entry on top of its body and key.
+  private static final int ENTRY_OVERHEAD = 128;
+
+  private static final String[] DEFAULT_REPLAYED_HEADERS = new String[] {
+    "Cache-Control", "Content-Encoding", "Content-Language", "ETag", "Expires", "Last-Modified", "Vary",
+  };
+
+  private final long ttlNanos;
+  private final long maxBytes;
+  private long maxEntryBytes;
+
+  // Lower case request header names that are part of the key.
+  private String[] keyHeaders = new String[0];
+  private String[] replayedHeaders = DEFAULT_REPLAYED_HEADERS;
+
+  private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, CompletableFuture<Entry>> pending = new ConcurrentHashMap<>();
+  private final AtomicLong bytes = new AtomicLong();
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder coalesced = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  /**
+   * A cached response.
+   */
+  private static final class Entry {
+    final String key;
+    final NanoHTTPD.Response.IStatus status;
+    final String mimeType;
+    final byte[] body;
+
+    // Header names and values, alternating.
+    final String[] headers;
+
+    final long expiresAt;
+    final long size;
+
+    // Set on every hit, cleared by eviction sweeps.
+    volatile boolean referenced;
+
+    Entry(String key, NanoHTTPD.Response.IStatus status, String mimeType, byte[] body, String[] headers, long expiresAt) {
+      this.key = key;
+      this.status = status;
+      this.mimeType = mimeType;
+      this.body = body;
+      this.headers = headers;
+      this.expiresAt = expiresAt;
+      this.size = body.length + 2L * key.length() + ENTRY_OVERHEAD;
+    }
+
+    /**
+     * Returns the cached response. For a HEAD request the Router drops the body once it is done
+     * with it, like for any other HEAD response.
+     */
+    NanoHTTPD.Response replay() {
+      NanoHTTPD.Response r = NanoHTTPD.newFixedLengthResponse(
+        this.status,
+        this.mimeType,
+        new ByteArrayInputStream(this.body),
+        this.body.length
+      );
+      for (int i = 0; i < this.headers.length; i += 2) r.addHeader(this.headers[i], this.headers[i + 1]);
+      return r;
+    }
+  }
+
+  /**
+   * Creates a cache whose entries live for 'ttl', holding at most 'maxBytes' of them. Responses
+   * larger than 1 MiB (or 'maxBytes', if smaller) are not cached; see 'setMaxEntryBytes'.
+   */
+  public ResponseCache(long ttl, TimeUnit unit, long maxBytes) {
+    if (ttl <= 0) throw new IllegalArgumentException("ttl must be positive: " + ttl);
+    if (maxBytes <= 0) throw new IllegalArgumentException("maxBytes must be positive: " + maxBytes);
+
+    this.ttlNanos = unit.toNanos(ttl);
+    this.maxBytes = maxBytes;
+    this.maxEntryBytes = Math.min(maxBytes, 1024 * 1024);
+  }
+
+  /**
+   * Sets the largest body that is cached. Larger responses are passed through.
+   */
+  public void setMaxEntryBytes(long maxEntryBytes) {
+    this.maxEntryBytes = Math.min(maxEntryBytes, this.maxBytes);
+  }
+
+  /**
+   * Makes the values of these request headers part of the key, e.g. "Accept-Language" for routes
+   * whose response depends on it.
+   */
+  public void setKeyHeaders(String... names) {
+    String[] lower = new String[names.length];
+    for (int i = 0; i < names.length; ++i) lower[i] = names[i].toLowerCase(Locale.ROOT);
+    this.keyHeaders = lower;
+  }
+
+  /**
+   * Sets the response headers that are stored and replayed with the body. By default these are
+   * Cache-Control, Content-Encoding, Content-Language, ETag, Expires, Last-Modified and Vary.
+   */
+  public void setReplayedHeaders(String... names) {
+    this.replayedHeaders = names.clone();
+  }
+
+  public long getHits() {
+    return this.hits.sum();
+  }
+
+  /**
+   * Returns the number of requests that ran the handler, including those that found their
+   * response could not be cached.
+   */
+  public long getMisses() {
+    return this.misses.sum();
+  }
+
+  /**
+   * Returns the number of requests that missed, but were served the response another request was
+   * computing for the same key.
+   */
+  public long getCoalesced() {
+    return this.coalesced.sum();
+  }
+
+  /**
+   * Returns the number of entries dropped to make room, expired or not.
+   */
+  public long getEvictions() {
+    return this.evictions.sum();
+  }
+
+  /**
+   * Returns the fraction of cacheable requests served from the cache (including coalesced ones).
+   */
+  public double getHitRatio() {
+    long hits = getHits() + getCoalesced();
+    long total = hits + getMisses();
+    return total == 0 ? 0 : (double) hits / total;
+  }
+
+  /**
+   * Returns the number of cached responses.
+   */
+  public int getSize() {
+    return this.entries.size();
+  }
+
+  /**
+   * Returns the bytes accounted for the cached responses.
+   */
+  public long getBytes() {
+    return this.bytes.get();
+  }
+
+  /**
+   * Drops every cached response, e.g. after the data behind them changed.
+   */
+  public void clear() {
+    for (Entry e : this.entries.values()) remove(e);
+  }
+
+  @Override
+  public NanoHTTPD.Response filter(RequestContext ctx) {
+    // Requests that matched no route (when the cache is a global filter) have nothing to key on.
+    if (ctx.registeredUri == null) return ctx.next();
+
+    NanoHTTPD.Method method = ctx.method;
+    if (method != NanoHTTPD.Method.GET && method != NanoHTTPD.Method.HEAD) return ctx.next();
+
+    String key = key(ctx);
+    long now = System.nanoTime();
+
+    Entry e = this.entries.get(key);
+    if (e != null) {
+      if (now - e.expiresAt < 0) {
+        this.hits.increment();
+        if (!e.referenced) e.referenced = true;
+        return e.replay();
+      }
+      remove(e);
+    }
+
+    // Only the responses to GET requests are cached.
+    if (method == NanoHTTPD.Method.HEAD) {
+      this.misses.increment();
+      return ctx.next();
+    }
+
+    CompletableFuture<Entry> computing = new CompletableFuture<>();
+    CompletableFuture<Entry> leader = this.pending.putIfAbsent(key, computing);
+    if (leader != null) {
+      Entry shared = await(leader);
+      if (shared != null) {
+        this.coalesced.increment();
+        return shared.replay();
+      }
+
+      // The leader's response could not be cached.
+      this.misses.increment();
+      return ctx.next();
+    }
+
+    this.misses.increment();
+    Entry computed = null;
+    try {
+      NanoHTTPD.Response r = ctx.next();
+      computed = store(key, r, now);
+      return r;
+    } finally {
+      this.pending.remove(key, computing);
+      computing.complete(computed);
+    }
+  }
+
+  private static Entry await(CompletableFuture<Entry> leader) {
+    try {
+      return leader.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    } catch (ExecutionException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Returns the key of the request: the registered URI, parameter values and key headers, each
+   * prefixed with its length so that values cannot run into each other.
+   */
+  private String key(RequestContext ctx) {
+    StringBuilder sb = new StringBuilder(ctx.registeredUri);
+
+    Params params = ctx.params;
+    int n = params == null ? 0 : params.size();
+    for (int i = 0; i < n; ++i) append(sb, params.value(i));
+
+    for (String name : this.keyHeaders) {
+      String value = ctx.session.getHeaders().get(name);
+      if (value == null) sb.append('-');
+      else append(sb, value);
+    }
+    return sb.toString();
+  }
+
+  private static void append(StringBuilder sb, String value) {
+    sb.append(value.length()).append(':').append(value);
+  }
+
+  /**
+   * Caches the response if it can be, and returns the entry. 'r' stays usable either way: its body
+   * is replaced by one that yields the same bytes.
+   */
+  private Entry store(String key, NanoHTTPD.Response r, long now) {
+    if (r == null || r.getStatus() != NanoHTTPD.Response.Status.OK || r.getData() == null) return null;
+
+    String cacheControl = r.getHeader("Cache-Control");
+    if (cacheControl != null) {
+      String lower = cacheControl.toLowerCase(Locale.ROOT);
+      if (lower.contains("no-store") || lower.contains("private")) return null;
+    }
+
+    byte[] body = read(r);
+    if (body == null) return null;
+
+    int count = 0;
+    String[] headers = new String[2 * this.replayedHeaders.length];
+    for (String name : this.replayedHeaders) {
+      String value = r.getHeader(name);
+      if (value == null) continue;
+      headers[count++] = name;
+      headers[count++] = value;
+    }
+    if (count < headers.length) {
+      String[] trimmed = new String[count];
+      System.arraycopy(headers, 0, trimmed, 0, count);
+      headers = trimmed;
+    }
+
+    Entry e = new Entry(key, r.getStatus(), r.getMimeType(), body, headers, now + this.ttlNanos);
+    if (e.size > this.maxBytes) return e;
+
+    Entry previous = this.entries.put(key, e);
+    if (previous != null) this.bytes.addAndGet(-previous.size);
+    if (this.bytes.addAndGet(e.size) > this.maxBytes) evict(e);
+
+    return e;
+  }
+
+  /**
+   * Reads the body of 'r' into memory and puts an equivalent stream back. Returns null if the body
+   * is larger than 'maxEntryBytes', or cannot be read.
+   */
+  private byte[] read(NanoHTTPD.Response r) {
+    InputStream in = r.getData();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buf = new byte[8192];
+
+    try {
+      for (int n; (n = in.read(buf)) >= 0; ) {
+        out.write(buf, 0, n);
+        if (out.size() > this.maxEntryBytes) {
+          // Too large: serve what was read so far, followed by the rest.
+          r.setData(new SequenceInputStream(new ByteArrayInputStream(out.toByteArray()), in));
+          return null;
+        }
+      }
+      in.close();
+    } catch (IOException e) {
+      r.setData(new ByteArrayInputStream(out.toByteArray()));
+      return null;
+    }
+
+    byte[] body = out.toByteArray();
+    r.setData(new ByteArrayInputStream(body));
+    return body;
+  }
+
+  /**
+   * Drops entries until the cache fits: expired ones first, then ones that were not hit since the
+   * previous sweep, then any. 'kept' is the entry just added, which is dropped last.
+   */
+  private synchronized void evict(Entry kept) {
+    long now = System.nanoTime();
+
+    for (int pass = 0; pass < 3 && this.bytes.get() > this.maxBytes; ++pass) {
+      Iterator<Entry> it = this.entries.values().iterator();
+      while (it.hasNext() && this.bytes.get() > this.maxBytes) {
+        Entry e = it.next();
+        if (e == kept) continue;
+
+        if (pass == 0 && now - e.expiresAt < 0) continue;
+        if (pass == 1 && e.referenced) {
+          e.referenced = false;
+          continue;
+        }
+
+        if (remove(e)) this.evictions.increment();
+      }
+    }
+
+    if (this.bytes.get() > this.maxBytes && remove(kept)) this.evictions.increment();
+  }
+
+  /**
+   * Removes the entry unless it was already replaced or removed. Returns true if it was removed.
+   */
+  private boolean remove(Entry e) {
+    if (!this.entries.remove(e.key, e)) return false;
+    this.bytes.addAndGet(-e.size);
+    return true;
+  }
+}
@@ -0,0 +1,74 @@
+package com.github.sb.nanorouter;
+
+import fi.iki.elonen.NanoHTTPD;
+
+/**
+ * A single registered Method + URI pair and everything the router needs to serve it.
+ *
+ * Routes are immutable once they are part of a compiled RouteTable, which allows them to be shared
+ * by all serving threads without synchronization.
+ */
+final class Route {
+  private static final Filter[] NO_FILTERS = new Filter[0];
+
+  final NanoHTTPD.Method method;
+
+  // The URI as it was registered, e.g. "/books/:id"
+  final String uri;
+
+  final Handler handler;
+
+  // Filters registered for this route only.
+  final Filter[] filters;
+
+  // Names of the URI parameters in order. Filled in when the route is compiled.
+  final String[] paramNames;
+
+  // Every filter that applies to this route (global, prefix and own, in that order). Filled in
+  // when the route is compiled.
+  final Filter[] chain;
+
+  final RouteMetrics metrics;
+
+  // True if the handler completes asynchronously, in which case its context must not be recycled.
+  final boolean async;
+
+  Route(NanoHTTPD.Method method, String uri, Handler handler, Filter[] filters, RouteMetrics metrics) {
+    this(method, uri, handler, filters, null, null, metrics, handler instanceof AsyncHandlerAdapter);
+  }
+
+  private Route(
+    NanoHTTPD.Method method,
+    String uri,
+    Handler handler,
+    Filter[] filters,
+    String[] paramNames,
+    Filter[] chain,
+    RouteMetrics metrics,
+    boolean async
+  ) {
+    this.method = method;
+    this.uri = uri;
+    this.handler = handler;
+    this.filters = filters;
+    this.paramNames = paramNames;
+    this.chain = chain;
+    this.metrics = metrics;
+    this.async = async;
+  }
+
+  /**
+   * Returns a copy of this route bound to the parameter names found by the trie and to its
+   * complete filter chain.
+   */
+  Route compiled(String[] paramNames, Filter[] chain) {
+    return new Route(this.method, this.uri, this.handler, this.filters, paramNames, chain, this.metrics, this.async);
+  }
+
+  /**
+   * Returns a route for the same URI that serves 'method' with 'handler' through 'chain'.
+   */
+  Route derive(NanoHTTPD.Method method, Handler handler, Filter[] chain, RouteMetrics metrics, boolean async) {
+    return new Route(method, this.uri, handler, NO_FILTERS, this.paramNames, chain, metrics, async);
+  }
+}
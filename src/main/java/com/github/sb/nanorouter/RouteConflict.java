@@ -0,0 +1,165 @@
+package com.github.sb.nanorouter;
+
+import fi.iki.elonen.NanoHTTPD;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A problem found while compiling routes: two routes of the same method that compete for the same
+ * requests. See 'RouteTable.Builder.validate'.
+ */
+public final class RouteConflict {
+
+  public enum Kind {
+    /**
+     * Both routes have the same URI pattern (possibly with different parameter names, e.g.
+     * "/books/:id" and "/books/:bookId"). The route registered last wins.
+     */
+    DUPLICATE,
+
+    /**
+     * The route can never be reached: an earlier constrained parameter at the same position
+     * accepts every value its own constraint does, and leads to the same rest of the URI.
+     */
+    SHADOWED,
+
+    /**
+     * Some values are accepted by the constraints of both routes, and go to the one registered
+     * first. The route is only reached for the values the other one rejects.
+     */
+    AMBIGUOUS,
+  }
+
+  private final Kind kind;
+  private final NanoHTTPD.Method method;
+  private final String uri;
+  private final String otherUri;
+
+  RouteConflict(Kind kind, NanoHTTPD.Method method, String uri, String otherUri) {
+    this.kind = kind;
+    this.method = method;
+    this.uri = uri;
+    this.otherUri = otherUri;
+  }
+
+  public Kind getKind() {
+    return this.kind;
+  }
+
+  public NanoHTTPD.Method getMethod() {
+    return this.method;
+  }
+
+  /**
+   * Returns the URI of the route that loses, i.e. is replaced, shadowed or tried last.
+   */
+  public String getUri() {
+    return this.uri;
+  }
+
+  /**
+   * Returns the URI of the route that wins.
+   */
+  public String getOtherUri() {
+    return this.otherUri;
+  }
+
+  @Override
+  public String toString() {
+    String route = this.method + " " + this.uri;
+    String other = this.method + " " + this.otherUri;
+
+    switch (this.kind) {
+      case DUPLICATE:
+        return this.uri.equals(this.otherUri)
+          ? route + " is registered more than once; the last handler wins"
+          : route + " duplicates " + other + " (they only differ in parameter names); the last one wins";
+      case SHADOWED:
+        return route + " is unreachable: " + other + " accepts every value it does and is tried first";
+      default:
+        return route + " is ambiguous with " + other + ": values both accept go to the latter, which is tried first";
+    }
+  }
+
+  /**
+   * Finds the SHADOWED and AMBIGUOUS routes below 'node'. 'leaves' maps every leaf of the trie to
+   * its routes by method ordinal.
+   *
+   * Only constraints that are single character classes can be compared (see Constraint); routes
+   * behind other regular expressions are never reported.
+   */
+  static void detect(RouterTrie node, Map<RouterTrie, Route[]> leaves, List<RouteConflict> out) {
+    RouterTrie[] constrained = node.constrained;
+
+    for (int j = 1; j < constrained.length; ++j) {
+      Map<String, Route[]> later = null;
+
+      for (int i = 0; i < j; ++i) {
+        Constraint first = constrained[i].constraint;
+        Constraint second = constrained[j].constraint;
+
+        boolean covers = first.covers(second);
+        if (!covers && !first.overlaps(second)) continue;
+
+        if (later == null) later = suffixes(constrained[j], leaves);
+        Map<String, Route[]> earlier = suffixes(constrained[i], leaves);
+
+        for (Map.Entry<String, Route[]> e : later.entrySet()) {
+          Route[] winners = earlier.get(e.getKey());
+          if (winners == null) continue;
+
+          Route[] losers = e.getValue();
+          for (int m = 0; m < losers.length; ++m) {
+            if (losers[m] == null || winners[m] == null) continue;
+
+            Kind kind = covers ? Kind.SHADOWED : Kind.AMBIGUOUS;
+            out.add(new RouteConflict(kind, losers[m].method, losers[m].uri, winners[m].uri));
+          }
+        }
+      }
+    }
+
+    for (RouterTrie child : node.children) detect(child, leaves, out);
+    for (RouterTrie child : constrained) detect(child, leaves, out);
+    if (node.paramChild != null) detect(node.paramChild, leaves, out);
+  }
+
+  /**
+   * Returns the routes below 'node' keyed by the rest of their URI pattern, without parameter
+   * names (e.g. "/pages/:" for ".../:id/pages/:page").
+   */
+  private static Map<String, Route[]> suffixes(RouterTrie node, Map<RouterTrie, Route[]> leaves) {
+    Map<String, Route[]> out = new LinkedHashMap<>();
+    collect(node, new StringBuilder(), leaves, out);
+    return out;
+  }
+
+  private static void collect(
+    RouterTrie node,
+    StringBuilder path,
+    Map<RouterTrie, Route[]> leaves,
+    Map<String, Route[]> out
+  ) {
+    Route[] leaf = leaves.get(node);
+    if (leaf != null) out.put(path.toString(), leaf);
+
+    int length = path.length();
+    for (RouterTrie child : node.children) {
+      collect(child, path.append(child.label), leaves, out);
+      path.setLength(length);
+    }
+    for (RouterTrie child : node.constrained) {
+      collect(child, path.append(":{").append(child.constraint.source).append('}'), leaves, out);
+      path.setLength(length);
+    }
+    if (node.paramChild != null) {
+      collect(node.paramChild, path.append(':'), leaves, out);
+      path.setLength(length);
+    }
+    if (node.catchAll != null) {
+      collect(node.catchAll, path.append('*'), leaves, out);
+      path.setLength(length);
+    }
+  }
+}
@@ -0,0 +1,30 @@
+package com.github.sb.nanorouter;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Thrown when strict routes are compiled and some of them conflict. The message lists every
+ * conflict, one per line.
+ */
+public class RouteConflictException extends IllegalStateException {
+  private static final long serialVersionUID = 1L;
+
+  private final List<RouteConflict> conflicts;
+
+  RouteConflictException(List<RouteConflict> conflicts) {
+    super(describe(conflicts));
+    this.conflicts = Collections.unmodifiableList(conflicts);
+  }
+
+  public List<RouteConflict> getConflicts() {
+    return this.conflicts;
+  }
+
+  private static String describe(List<RouteConflict> conflicts) {
+    StringBuilder sb = new StringBuilder();
+    sb.append(conflicts.size()).append(conflicts.size() == 1 ? " route conflict:" : " route conflicts:");
+    for (RouteConflict c : conflicts) sb.append("\n  ").append(c);
+    return sb.toString();
+  }
+}
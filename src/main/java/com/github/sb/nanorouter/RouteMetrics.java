@@ -0,0 +1,80 @@
+package com.github.sb.nanorouter;
+
+import fi.iki.elonen.NanoHTTPD;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Request counters and latencies of a single registered Method + URI pair.
+ *
+ * Only updated while metrics are enabled on the Router (see 'Router.setMetricsEnabled').
+ */
+public final class RouteMetrics {
+  private final NanoHTTPD.Method method;
+  private final String uri;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder errors = new LongAdder();
+
+  // Created on the first recorded request, so that idle routes stay small.
+  private volatile LatencyHistogram latency;
+
+  RouteMetrics(NanoHTTPD.Method method, String uri) {
+    this.method = method;
+    this.uri = uri;
+  }
+
+  public NanoHTTPD.Method getMethod() {
+    return this.method;
+  }
+
+  /**
+   * The URI as it was registered, e.g. "/books/:id".
+   */
+  public String getUri() {
+    return this.uri;
+  }
+
+  /**
+   * Returns the number of requests dispatched to this route.
+   */
+  public long getHits() {
+    return this.hits.sum();
+  }
+
+  /**
+   * Returns the number of requests for which the handler threw.
+   */
+  public long getErrors() {
+    return this.errors.sum();
+  }
+
+  /**
+   * Returns the total time spent in the handler, in nanoseconds.
+   */
+  public long getTotalNanos() {
+    LatencyHistogram h = this.latency;
+    return h != null ? h.sum() : 0;
+  }
+
+  /**
+   * Returns a copy of the handler latency distribution.
+   */
+  public LatencyHistogram.Snapshot getLatency() {
+    LatencyHistogram h = this.latency;
+    return h != null ? h.snapshot() : new LatencyHistogram().snapshot();
+  }
+
+  void record(long nanos, boolean failed) {
+    this.hits.increment();
+    if (failed) this.errors.increment();
+
+    LatencyHistogram h = this.latency;
+    if (h == null) h = histogram();
+    h.record(nanos);
+  }
+
+  private synchronized LatencyHistogram histogram() {
+    if (this.latency == null) this.latency = new LatencyHistogram();
+    return this.latency;
+  }
+}
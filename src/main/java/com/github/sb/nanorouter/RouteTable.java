@@ -0,0 +1,516 @@
+package com.github.sb.nanorouter;
+
+import fi.iki.elonen.NanoHTTPD;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An immutable, compiled set of routes.
+ *
+ * Routes of every method share a single compiled trie, so a request is resolved with one walk,
+ * whether it ends up matching a route, the URI of a route registered for other methods only
+ * (405 Method Not Allowed), or nothing at all. URIs that register a GET handler but no HEAD handler
+ * answer HEAD requests with the GET handler, and URIs without an OPTIONS handler answer OPTIONS
+ * requests with the list of their methods.
+ *
+ * Each route's filters (global ones, then those of every matching prefix in registration order,
+ * then the route's own) are compiled into a single array along with the routes, so dispatching
+ * through a chain walks that array and allocates nothing.
+ *
+ * A RouteTable is built once through a Builder, and can then be read by any number of threads
+ * without locking. To change the routes of a live Router, build a new table (for instance from
+ * 'toBuilder()' of the current one) and publish it with 'Router.setRoutes', which swaps it in
+ * atomically: in-flight requests finish against the table they started with.
+ *
+ * E.g.
+ *   RouteTable next = router.getRoutes().toBuilder()
+ *     .add(Method.GET, "/beta/search", searchHandler)
+ *     .remove(Method.GET, "/legacy/search")
+ *     .build();
+ *   router.setRoutes(next);
+ */
+public final class RouteTable {
+  // Every registered route, in registration order.
+  private final Route[] routes;
+
+  // The routes of all methods.
+  private final CompiledTrie trie;
+
+  // Shared with every table derived from this one through 'toBuilder'.
+  private final RouterMetrics metrics;
+
+  // Resolutions of hot URIs, or null if caching is disabled.
+  private final ResolutionCache cache;
+
+  // Global filters, which also run in front of the default and 405 handlers.
+  final Filter[] filters;
+
+  // Prefix filters, parallel arrays in registration order. Kept for 'toBuilder'.
+  private final String[] prefixes;
+  private final Filter[] prefixFilters;
+
+  // Whether the table was built by a strict builder. Kept for 'toBuilder'.
+  private final boolean strict;
+
+  // Whether the builder asked for a specialized matcher. Kept for 'toBuilder'.
+  private final boolean specialize;
+
+  private RouteTable(
+    Route[] routes,
+    CompiledTrie trie,
+    RouterMetrics metrics,
+    ResolutionCache cache,
+    Filter[] filters,
+    String[] prefixes,
+    Filter[] prefixFilters,
+    boolean strict,
+    boolean specialize
+  ) {
+    this.routes = routes;
+    this.trie = trie;
+    this.metrics = metrics;
+    this.cache = cache;
+    this.filters = filters;
+    this.prefixes = prefixes;
+    this.prefixFilters = prefixFilters;
+    this.strict = strict;
+    this.specialize = specialize;
+  }
+
+  /**
+   * Returns the number of registered routes.
+   */
+  public int size() {
+    return this.routes.length;
+  }
+
+  /**
+   * Returns the metrics that the routes of this table report into.
+   */
+  public RouterMetrics getMetrics() {
+    return this.metrics;
+  }
+
+  /**
+   * Returns the size and shape of the compiled routes.
+   */
+  public Summary getSummary() {
+    return new Summary(this.routes.length, this.trie.size(), this.trie.maxDepth, this.trie.footprint());
+  }
+
+  /**
+   * Returns the resolution cache of this table, or null if it has none.
+   */
+  public ResolutionCache getResolutionCache() {
+    return this.cache;
+  }
+
+  /**
+   * Returns a Builder that starts out with all the routes and filters of this table, and that
+   * reports into the same metrics. Its resolution cache size, strictness and specialization are the
+   * same as this table's.
+   */
+  public Builder toBuilder() {
+    Builder b = new Builder(this.metrics);
+    b.cacheSize = this.cache != null ? this.cache.getCapacity() : 0;
+    b.strict = this.strict;
+    b.specialize = this.specialize;
+    b.routes.addAll(Arrays.asList(this.routes));
+    b.filters.addAll(Arrays.asList(this.filters));
+    b.prefixes.addAll(Arrays.asList(this.prefixes));
+    b.prefixFilters.addAll(Arrays.asList(this.prefixFilters));
+    return b;
+  }
+
+  /**
+   * Searches for the Method + URI pair, capturing parameters into 'params'. Returns the matched
+   * route, or null.
+   */
+  Route lookup(NanoHTTPD.Method method, String uri, Params params) {
+    ResolutionCache c = this.cache;
+    if (c == null || !c.consult(uri)) return this.trie.lookup(method, uri, params);
+
+    ResolutionCache.Entry e = c.get(method, uri);
+    if (e != null) {
+      params.reset(uri, this.trie.maxParams);
+      System.arraycopy(e.offsets, 0, params.offsets, 0, e.offsets.length);
+      params.bind(e.route.paramNames);
+      return e.route;
+    }
+
+    Route route = this.trie.lookup(method, uri, params);
+    if (route != null) c.offer(method, uri, route, params.offsets);
+    return route;
+  }
+
+  /**
+   * Returns true if static routes are matched by a SpecializedMatcher rather than by the trie.
+   */
+  boolean isSpecialized() {
+    return this.trie.isSpecialized();
+  }
+
+  /**
+   * Returns the value of the "Allow" header for the URI, or null if no route matches it for any
+   * method. This uses 'params' as scratch space.
+   */
+  String allowed(String uri, Params params) {
+    return this.trie.allowed(uri, params);
+  }
+
+  /**
+   * The size and shape of a compiled RouteTable, e.g. for logging at startup.
+   */
+  public static final class Summary {
+    private final int routes;
+    private final int nodes;
+    private final int depth;
+    private final long bytes;
+
+    Summary(int routes, int nodes, int depth, long bytes) {
+      this.routes = routes;
+      this.nodes = nodes;
+      this.depth = depth;
+      this.bytes = bytes;
+    }
+
+    /**
+     * Returns the number of registered routes.
+     */
+    public int getRoutes() {
+      return this.routes;
+    }
+
+    /**
+     * Returns the number of nodes of the compiled trie.
+     */
+    public int getNodes() {
+      return this.nodes;
+    }
+
+    /**
+     * Returns the largest number of edges between the root and a node of the compiled trie.
+     */
+    public int getDepth() {
+      return this.depth;
+    }
+
+    /**
+     * Returns an estimate of the heap used by the compiled trie and its routes, not counting
+     * handlers, filters or metrics.
+     */
+    public long getEstimatedBytes() {
+      return this.bytes;
+    }
+
+    @Override
+    public String toString() {
+      return this.routes + " routes, " + this.nodes + " nodes, depth " + this.depth + ", ~" + this.bytes + " bytes";
+    }
+  }
+
+  /**
+   * Collects routes and compiles them into a RouteTable. Builders are not thread safe.
+   */
+  public static class Builder {
+    private static final Filter[] NO_FILTERS = new Filter[0];
+
+    private final List<Route> routes = new ArrayList<>();
+    private final List<Filter> filters = new ArrayList<>();
+    private final List<String> prefixes = new ArrayList<>();
+    private final List<Filter> prefixFilters = new ArrayList<>();
+    private final RouterMetrics metrics;
+    private int cacheSize;
+    private boolean strict;
+    private boolean specialize;
+
+    public Builder() {
+      this(new RouterMetrics());
+    }
+
+    Builder(RouterMetrics metrics) {
+      this.metrics = metrics;
+    }
+
+    /**
+     * Register the handler for the given Method and URI. Registering the same pair twice keeps the
+     * latter handler, unless routes are strict.
+     */
+    public Builder add(NanoHTTPD.Method method, String uri, Handler h) {
+      return add(method, uri, h, NO_FILTERS);
+    }
+
+    /**
+     * Register the handler for the given Method and URI, behind filters that only apply to this
+     * route. They run after the global and prefix filters, in the given order.
+     */
+    public Builder add(NanoHTTPD.Method method, String uri, Handler h, Filter... filters) {
+      Filter[] own = filters.length == 0 ? NO_FILTERS : filters.clone();
+      Route r = new Route(method, uri, h, own, this.metrics.forRoute(method, uri));
+      this.routes.add(r);
+      return this;
+    }
+
+    /**
+     * Register an asynchronous handler for the given Method and URI. The request is answered with
+     * 504 Gateway Timeout if its response is not ready within 'timeout'. See AsyncHandler.
+     */
+    public Builder addAsync(
+      NanoHTTPD.Method method,
+      String uri,
+      AsyncHandler h,
+      long timeout,
+      TimeUnit unit,
+      Filter... filters
+    ) {
+      return add(method, uri, new AsyncHandlerAdapter(h, timeout, unit), filters);
+    }
+
+    /**
+     * Adds a filter in front of every route, and of the default and 405 handlers. Filters run in
+     * the order they were added.
+     */
+    public Builder addFilter(Filter f) {
+      this.filters.add(f);
+      return this;
+    }
+
+    /**
+     * Adds a filter in front of every route whose registered URI is 'prefix' or lies below it,
+     * e.g. "/admin" applies to "/admin" and "/admin/users/:id", but not to "/administrators".
+     */
+    public Builder addFilter(String prefix, Filter f) {
+      this.prefixes.add(prefix);
+      this.prefixFilters.add(f);
+      return this;
+    }
+
+    /**
+     * Adds every route of 'child' below 'prefix', e.g. "/books/:id" of a child mounted at
+     * "/api/:version" becomes "/api/:version/books/:id", and "/" becomes "/api/:version". The
+     * child's global and prefix filters keep applying to its own routes only, ahead of their route
+     * filters; filters of this builder apply to them like to any other route. Parameters of the
+     * prefix are captured along with those of the child's routes.
+     *
+     * The routes are merged into this builder, so the compiled table matches them in the same
+     * single walk as every other route. Later changes to 'child' are not seen.
+     *
+     * @throws IllegalArgumentException if the prefix does not start with '/' or has a catch-all.
+     */
+    public Builder mount(String prefix, RouteTable child) {
+      if (!prefix.startsWith("/") || prefix.contains("*")) {
+        throw new IllegalArgumentException("Invalid mount prefix: " + prefix);
+      }
+      String base = prefix.endsWith("/") ? prefix.substring(0, prefix.length() - 1) : prefix;
+
+      List<Filter> filters = Arrays.asList(child.filters);
+      List<String> prefixes = Arrays.asList(child.prefixes);
+      List<Filter> prefixFilters = Arrays.asList(child.prefixFilters);
+
+      for (Route r : child.routes) {
+        String uri = r.uri.equals("/") && !base.isEmpty() ? base : base + r.uri;
+        add(r.method, uri, r.handler, chain(filters, prefixes, prefixFilters, r.uri, r.filters));
+      }
+      return this;
+    }
+
+    /**
+     * Removes the handler registered for the given Method and URI, if any.
+     */
+    public Builder remove(NanoHTTPD.Method method, String uri) {
+      for (int i = this.routes.size() - 1; i >= 0; --i) {
+        Route r = this.routes.get(i);
+        if (r.method == method && r.uri.equals(uri)) this.routes.remove(i);
+      }
+      return this;
+    }
+
+    /**
+     * Puts a cache of up to 'maxEntries' resolved URIs in front of the compiled trie, or removes it
+     * if 'maxEntries' is 0. See ResolutionCache.
+     */
+    public Builder setResolutionCacheSize(int maxEntries) {
+      if (maxEntries < 0) throw new IllegalArgumentException("maxEntries must not be negative: " + maxEntries);
+      this.cacheSize = maxEntries;
+      return this;
+    }
+
+    /**
+     * If true, 'build' throws a RouteConflictException instead of compiling routes that conflict
+     * (see 'validate'). To replace a route of a strict builder, remove it first.
+     */
+    public Builder setStrict(boolean strict) {
+      this.strict = strict;
+      return this;
+    }
+
+    /**
+     * If true, the compiled table matches its static routes (those without parameters) with a
+     * decision tree specialized to them, see SpecializedMatcher, before walking the trie for
+     * everything else. This pays off for large, mostly static route sets, at the cost of a slower
+     * 'build'.
+     */
+    public Builder setSpecializedMatching(boolean specialize) {
+      this.specialize = specialize;
+      return this;
+    }
+
+    /**
+     * Returns every conflict between the routes added so far, without building a table: routes
+     * registered twice, routes that can never be reached, and routes whose reachability depends on
+     * the order of registration. See RouteConflict.
+     */
+    public List<RouteConflict> validate() {
+      return insertAll(new RouterTrie(), new IdentityHashMap<RouterTrie, Route[]>(), true);
+    }
+
+    /**
+     * Compiles the routes added so far. The builder can keep being used afterwards.
+     *
+     * @throws RouteConflictException if routes are strict and some of them conflict.
+     */
+    public RouteTable build() {
+      Route[] all = this.routes.toArray(new Route[0]);
+
+      RouterTrie trie = new RouterTrie();
+      IdentityHashMap<RouterTrie, Route[]> leaves = new IdentityHashMap<>();
+
+      // Conflicts are only looked for if they would be refused.
+      List<RouteConflict> conflicts = insertAll(trie, leaves, this.strict);
+      if (!conflicts.isEmpty()) throw new RouteConflictException(conflicts);
+
+      for (Route[] byMethod : leaves.values()) addImplicitRoutes(byMethod);
+
+      ResolutionCache cache = this.cacheSize > 0 ? new ResolutionCache(this.cacheSize) : null;
+
+      return new RouteTable(
+        all,
+        new CompiledTrie(trie, leaves, this.specialize),
+        this.metrics,
+        cache,
+        this.filters.toArray(NO_FILTERS),
+        this.prefixes.toArray(new String[0]),
+        this.prefixFilters.toArray(NO_FILTERS),
+        this.strict,
+        this.specialize
+      );
+    }
+
+    /**
+     * Inserts every route into 'trie', collecting the compiled routes of each leaf into 'leaves',
+     * and returns the conflicts between them if 'detect', or an empty list.
+     */
+    private List<RouteConflict> insertAll(RouterTrie trie, Map<RouterTrie, Route[]> leaves, boolean detect) {
+      int methods = NanoHTTPD.Method.values().length;
+      List<RouteConflict> conflicts = new ArrayList<>();
+
+      // Routes with the same parameter names share one array.
+      Map<List<String>, String[]> names = new HashMap<>();
+
+      for (Route r : this.routes) {
+        RouterTrie leaf = trie.insert(r.uri);
+
+        Route[] byMethod = leaves.get(leaf);
+        if (byMethod == null) {
+          byMethod = new Route[methods];
+          leaves.put(leaf, byMethod);
+        }
+
+        // Later registrations of a Method + URI pair replace earlier ones.
+        Route previous = byMethod[r.method.ordinal()];
+        if (previous != null && detect) {
+          conflicts.add(new RouteConflict(RouteConflict.Kind.DUPLICATE, r.method, previous.uri, r.uri));
+        }
+        String[] paramNames = names.get(Arrays.asList(leaf.paramNames));
+        if (paramNames == null) {
+          paramNames = leaf.paramNames;
+          names.put(Arrays.asList(paramNames), paramNames);
+        }
+        byMethod[r.method.ordinal()] = r.compiled(paramNames, chainOf(r.uri, r.filters));
+      }
+
+      if (detect) RouteConflict.detect(trie, leaves, conflicts);
+      return conflicts;
+    }
+
+    /**
+     * Returns every filter that applies to the URI: the global ones, those of the prefixes that
+     * contain it, and then 'own'.
+     */
+    private Filter[] chainOf(String uri, Filter[] own) {
+      return chain(this.filters, this.prefixes, this.prefixFilters, uri, own);
+    }
+
+    private static Filter[] chain(
+      List<Filter> filters,
+      List<String> prefixes,
+      List<Filter> prefixFilters,
+      String uri,
+      Filter[] own
+    ) {
+      List<Filter> chain = new ArrayList<>(filters);
+      for (int i = 0; i < prefixes.size(); ++i) {
+        if (isUnder(uri, prefixes.get(i))) chain.add(prefixFilters.get(i));
+      }
+      chain.addAll(Arrays.asList(own));
+
+      return chain.isEmpty() ? NO_FILTERS : chain.toArray(NO_FILTERS);
+    }
+
+    /**
+     * Returns true if 'uri' is 'prefix' or one of the URIs below it, whole segments only.
+     */
+    private static boolean isUnder(String uri, String prefix) {
+      if (!uri.startsWith(prefix)) return false;
+      return uri.length() == prefix.length() || prefix.endsWith("/") || uri.charAt(prefix.length()) == '/';
+    }
+
+    /**
+     * Fills in the HEAD and OPTIONS routes of a leaf if they were not registered explicitly.
+     */
+    private void addImplicitRoutes(Route[] byMethod) {
+      int head = NanoHTTPD.Method.HEAD.ordinal();
+      int get = NanoHTTPD.Method.GET.ordinal();
+      int options = NanoHTTPD.Method.OPTIONS.ordinal();
+
+      Route g = byMethod[get];
+      if (byMethod[head] == null && g != null) {
+        // HEAD goes through exactly what GET goes through; the Router drops the body.
+        byMethod[head] = g.derive(
+          NanoHTTPD.Method.HEAD,
+          g.handler,
+          g.chain,
+          this.metrics.forRoute(NanoHTTPD.Method.HEAD, g.uri),
+          g.async
+        );
+      }
+
+      if (byMethod[options] == null) {
+        // Same format and order as CompiledTrie lists them for 405 responses.
+        Route any = null;
+        StringBuilder allow = new StringBuilder();
+        for (NanoHTTPD.Method m : NanoHTTPD.Method.values()) {
+          Route r = byMethod[m.ordinal()];
+          if (r == null && m != NanoHTTPD.Method.OPTIONS) continue;
+          if (any == null) any = r;
+          if (allow.length() > 0) allow.append(", ");
+          allow.append(m.name());
+        }
+
+        // Filters of individual routes do not apply, since OPTIONS is answered for the URI.
+        byMethod[options] = any.derive(
+          NanoHTTPD.Method.OPTIONS,
+          new OptionsHandler(allow.toString()),
+          chainOf(any.uri, NO_FILTERS),
+          this.metrics.forRoute(NanoHTTPD.Method.OPTIONS, any.uri),
+          false
+        );
+      }
+    }
+  }
+}
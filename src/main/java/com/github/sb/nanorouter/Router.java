@@ -1,43 +1,224 @@
 package com.github.sb.nanorouter;
 
 import fi.iki.elonen.NanoHTTPD;
-import java.util.HashMap;
+import java.io.File;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
 
+/**
+ * Dispatches NanoHTTPD requests to the handler registered for their Method and URI.
+ *
+ * Routes are served from an immutable RouteTable that is published through a volatile field, so
+ * request threads never lock. Routes may be added or replaced while the server is running:
+ * 'addHandler' marks the table stale and it is recompiled once, by the next request (or by an
+ * explicit call to 'compile'), while 'setRoutes' swaps in a prebuilt table atomically.
+ *
+ * Filters (see Filter) can be added in front of every route, of every route below a URI prefix,
+ * or of a single route. They are compiled into each route's chain along with the table.
+ */
 public class Router {
-  // Holds registered handlers for each method + URI pair
-  private HashMap<NanoHTTPD.Method, HashMap<String, Handler>> handlers;
+  private static final long DEFAULT_ASYNC_TIMEOUT_SECONDS = 30;
 
-  // Holds registered URIs for each method for fast lookups
-  private HashMap<NanoHTTPD.Method, RouterTrie> tries;
+  // Guards 'builder' and the (re)compilation of 'table'.
+  private final Object lock = new Object();
+
+  // Holds every registered route. The source for the next compiled table.
+  private RouteTable.Builder builder;
+
+  // The table requests are served from. Null if routes were added since it was last compiled.
+  private volatile RouteTable table;
 
   // If a request does not match a registered handler, then invoke this one.
   private Handler defaultHandler;
 
+  // If a request matches a registered URI but not for its method, then invoke this one.
+  private Handler methodNotAllowedHandler;
+
+  // If true, every thread reuses a single RequestContext for all the requests it serves.
+  private boolean recycleContexts;
+
+  // If true, requests are counted and timed into the metrics of the route table.
+  private volatile boolean metricsEnabled;
+
+  // Compresses responses once they are complete. Null if disabled.
+  private volatile Compression compression;
+
+  // Times the phases of requests. Null if disabled.
+  private volatile RequestTracer tracer;
+
+  // Per-thread contexts, used only when 'recycleContexts' is set.
+  private final ThreadLocal<RequestContext> contexts = new ThreadLocal<RequestContext>() {
+
+    @Override
+    protected RequestContext initialValue() {
+      return new RequestContext();
+    }
+  };
+
   /**
    * The default constructor for the Router.
    *
    * Notes on space allocation:
-   * By default, this makes two HashMap allocations for each permissible HTTP method.
-   * Lazy initialization when attempting to locate the right handler for a request is avoided to skip a branch on every request.
+   * Routes are compiled into a RouteTable lazily, so registering many handlers up front does not
+   * rebuild the table for every single one.
    */
   public Router() {
     this.defaultHandler = new DefaultHandler();
-    this.handlers = new HashMap<>();
-    this.tries = new HashMap<>();
-
-    for (NanoHTTPD.Method m : NanoHTTPD.Method.values()) {
-      this.handlers.put(m, new HashMap<String, Handler>());
-      this.tries.put(m, new RouterTrie());
-    }
+    this.methodNotAllowedHandler = new MethodNotAllowedHandler();
+    this.builder = new RouteTable.Builder();
   }
 
   /**
    * Register the handler for the given Method and URI.
+   *
+   * This is safe to call while requests are being served; they will see the new route once the
+   * table has been recompiled.
    */
   public void addHandler(NanoHTTPD.Method method, String uri, Handler h) {
-    // Null safety: handlers and tries are guaranteed to contain an entry for each method
-    this.handlers.get(method).put(uri, h);
-    this.tries.get(method).insert(uri);
+    synchronized (this.lock) {
+      this.builder.add(method, uri, h);
+      this.table = null;
+    }
+  }
+
+  /**
+   * Register the handler for the given Method and URI, behind filters that only apply to this
+   * route. They run after the global and prefix filters, in the given order.
+   */
+  public void addHandler(NanoHTTPD.Method method, String uri, Handler h, Filter... filters) {
+    synchronized (this.lock) {
+      this.builder.add(method, uri, h, filters);
+      this.table = null;
+    }
+  }
+
+  /**
+   * Register an asynchronous handler for the given Method and URI, with a timeout of 30 seconds.
+   * See AsyncHandler.
+   */
+  public void addAsyncHandler(NanoHTTPD.Method method, String uri, AsyncHandler h) {
+    addAsyncHandler(method, uri, h, DEFAULT_ASYNC_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Register an asynchronous handler for the given Method and URI, behind filters that only apply
+   * to this route. The request is answered with 504 Gateway Timeout if its response is not ready
+   * within 'timeout'.
+   */
+  public void addAsyncHandler(
+    NanoHTTPD.Method method,
+    String uri,
+    AsyncHandler h,
+    long timeout,
+    TimeUnit unit,
+    Filter... filters
+  ) {
+    synchronized (this.lock) {
+      this.builder.addAsync(method, uri, h, timeout, unit, filters);
+      this.table = null;
+    }
+  }
+
+  /**
+   * Serves the files below 'root' at "prefix/...", e.g. "/assets/css/site.css" for "css/site.css"
+   * with the prefix "/assets". Returns the handler, to configure it. See StaticFileHandler.
+   */
+  public StaticFileHandler addStaticFiles(String prefix, File root, Filter... filters) {
+    StaticFileHandler h = new StaticFileHandler(root);
+    String base = prefix.endsWith("/") ? prefix : prefix + "/";
+    addHandler(NanoHTTPD.Method.GET, base + "*path", h, filters);
+    return h;
+  }
+
+  /**
+   * Adds every route of 'child' below 'prefix', e.g. to assemble an API from modules that each
+   * build their own Router. See 'RouteTable.Builder.mount'.
+   *
+   * The child's routes are copied into this router as they are at the time of the call, and
+   * compiled into the same table as the routes of this router: a request is matched with one walk,
+   * not dispatched again by the child. Mount a module once its routes are registered: routes added
+   * to it afterwards are not seen.
+   */
+  public void mount(String prefix, Router child) {
+    if (child == this) throw new IllegalArgumentException("A router cannot be mounted on itself");
+    RouteTable routes = child.compile();
+
+    synchronized (this.lock) {
+      this.builder.mount(prefix, routes);
+      this.table = null;
+    }
+  }
+
+  /**
+   * Adds a filter in front of every route, and of the default and 405 handlers.
+   */
+  public void addFilter(Filter f) {
+    synchronized (this.lock) {
+      this.builder.addFilter(f);
+      this.table = null;
+    }
+  }
+
+  /**
+   * Adds a filter in front of every route whose registered URI is 'prefix' or lies below it
+   * (whole segments only, e.g. "/admin" covers "/admin/users" but not "/administrators").
+   */
+  public void addFilter(String prefix, Filter f) {
+    synchronized (this.lock) {
+      this.builder.addFilter(prefix, f);
+      this.table = null;
+    }
+  }
+
+  /**
+   * Atomically replaces every route of this router with the ones in 'routes'.
+   */
+  public void setRoutes(RouteTable routes) {
+    synchronized (this.lock) {
+      this.builder = routes.toBuilder();
+      this.table = routes;
+    }
+  }
+
+  /**
+   * Returns the routes currently being served, compiling them first if needed.
+   */
+  public RouteTable getRoutes() {
+    return compile();
+  }
+
+  /**
+   * Compiles the registered routes if they changed since the last compilation, and returns the
+   * resulting table. Call this after registering routes to keep compilation off the first request.
+   */
+  public RouteTable compile() {
+    RouteTable t = this.table;
+    if (t != null) return t;
+
+    synchronized (this.lock) {
+      t = this.table;
+      if (t == null) {
+        t = this.builder.build();
+        this.table = t;
+      }
+      return t;
+    }
+  }
+
+  /**
+   * If true, compiling routes that conflict (see 'RouteTable.Builder.validate') fails with a
+   * RouteConflictException instead of letting the last registration win. Call 'compile' once all
+   * routes are registered to report conflicts at startup rather than on the first request.
+   */
+  public void setStrictRoutes(boolean strict) {
+    synchronized (this.lock) {
+      this.builder.setStrict(strict);
+      this.table = null;
+    }
   }
 
   /**
@@ -47,6 +228,105 @@ public class Router {
     this.defaultHandler = h;
   }
 
+  /**
+   * Customize the handler for requests to a registered URI with an unregistered method. The router
+   * adds the "Allow" header to its response.
+   */
+  public void setMethodNotAllowedHandler(Handler h) {
+    this.methodNotAllowedHandler = h;
+  }
+
+  /**
+   * Enables the zero-garbage dispatch mode.
+   *
+   * When enabled, each serving thread reuses one RequestContext (and its Params) for every request
+   * instead of allocating new ones, so dispatching a request allocates nothing on the router's
+   * side. Handlers must then not keep a reference to the context, or to its params, after
+   * 'handle' returns. Requests to asynchronous routes always get a context of their own.
+   */
+  public void setRecycleContexts(boolean recycle) {
+    this.recycleContexts = recycle;
+  }
+
+  /**
+   * Caches the resolution of up to 'maxEntries' concrete URIs (e.g. "/books/123") in front of the
+   * route trie, which pays off when a small set of URIs receives most of the traffic. 0 disables
+   * the cache, which is the default. The cache is emptied whenever the routes change.
+   */
+  public void setResolutionCacheSize(int maxEntries) {
+    synchronized (this.lock) {
+      this.builder.setResolutionCacheSize(maxEntries);
+      this.table = null;
+    }
+  }
+
+  /**
+   * Matches static routes with a decision tree specialized to them (see SpecializedMatcher) rather
+   * than by walking the route trie, which pays off for large, mostly static route sets. Routes with
+   * parameters are still matched by the trie. Disabled by default.
+   */
+  public void setSpecializedMatching(boolean specialize) {
+    synchronized (this.lock) {
+      this.builder.setSpecializedMatching(specialize);
+      this.table = null;
+    }
+  }
+
+  /**
+   * Returns the resolution cache of the routes currently being served, or null if disabled.
+   */
+  public ResolutionCache getResolutionCache() {
+    return compile().getResolutionCache();
+  }
+
+  /**
+   * Enables per-route request counters and latency histograms. See 'getMetrics'.
+   *
+   * This costs two System.nanoTime calls and a few uncontended atomic increments per request.
+   * When disabled (the default), requests are not timed at all.
+   */
+  public void setMetricsEnabled(boolean enabled) {
+    this.metricsEnabled = enabled;
+  }
+
+  /**
+   * Returns the metrics of the routes currently being served. These are only updated while
+   * metrics are enabled, and can be served to Prometheus with a MetricsHandler.
+   */
+  public RouterMetrics getMetrics() {
+    return compile().getMetrics();
+  }
+
+  /**
+   * Compresses the responses of every route (unless it opts out, see Compression) with 'c'. Null
+   * disables compression, which is the default.
+   */
+  public void setCompression(Compression c) {
+    this.compression = c;
+  }
+
+  /**
+   * Returns the response compression, or null if disabled.
+   */
+  public Compression getCompression() {
+    return this.compression;
+  }
+
+  /**
+   * Times the phases of requests (routing, handler, response stages and write) with 't', which
+   * samples some of them and logs the slow ones. Null disables tracing, which is the default.
+   */
+  public void setTracer(RequestTracer t) {
+    this.tracer = t;
+  }
+
+  /**
+   * Returns the request tracer, or null if disabled.
+   */
+  public RequestTracer getTracer() {
+    return this.tracer;
+  }
+
   /**
    * Forward your serve requests to this method.
    *
@@ -57,31 +337,202 @@ public class Router {
     NanoHTTPD server,
     NanoHTTPD.IHTTPSession session
   ) {
-    NanoHTTPD.Method m = session.getMethod();
-    String uri = session.getUri();
+    RequestContext ctx = prepare(server, session);
+    Params params = ctx.buffer;
+
+    RouteTable t = this.table;
+    if (t == null) t = compile();
+
+    Route route = t.lookup(ctx.method, ctx.uri, params);
+    if (ctx.traceStart != 0) ctx.traceRouted = System.nanoTime();
+
+    if (route == null) return unrouted(ctx, t);
 
-    RouterTrie.Path path = this.tries.get(m).search(uri);
+    // matching path was found
+    ctx = bind(ctx, route);
+
+    if (!this.metricsEnabled) return finish(ctx, dispatch(ctx, route.chain, route.handler));
+
+    return finish(ctx, handleMeasured(route, ctx));
+  }
+
+  /**
+   * Like 'handleRequest', except that a request to an asynchronous route without filters does not
+   * wait for the handler: the returned stage completes once its response is ready (or the route
+   * times out), after the router's stages ran on 'executor'. Used by NioServer, so that such
+   * requests hold no thread while their handler works.
+   */
+  CompletionStage<NanoHTTPD.Response> handleRequestAsync(
+    NanoHTTPD server,
+    NanoHTTPD.IHTTPSession session,
+    Executor executor
+  ) {
+    RequestContext ctx = prepare(server, session);
+    Params params = ctx.buffer;
+
+    RouteTable t = this.table;
+    if (t == null) t = compile();
+
+    Route route = t.lookup(ctx.method, ctx.uri, params);
+    if (ctx.traceStart != 0) ctx.traceRouted = System.nanoTime();
+
+    if (route == null) return CompletableFuture.completedFuture(unrouted(ctx, t));
+
+    ctx = bind(ctx, route);
+
+    if (!route.async || route.chain.length != 0) {
+      NanoHTTPD.Response r = this.metricsEnabled
+        ? handleMeasured(route, ctx)
+        : dispatch(ctx, route.chain, route.handler);
+      return CompletableFuture.completedFuture(finish(ctx, r));
+    }
+
+    return deferred(route, ctx, executor);
+  }
+
+  /**
+   * Returns the context of a new request, with its Params buffer.
+   */
+  private RequestContext prepare(NanoHTTPD server, NanoHTTPD.IHTTPSession session) {
+    long start = this.tracer != null ? System.nanoTime() : 0;
 
     // Prepare context for the handler
-    RequestContext ctx = new RequestContext();
+    RequestContext ctx = this.recycleContexts ? this.contexts.get() : new RequestContext();
     ctx.server = server;
-    ctx.method = m;
-    ctx.uri = uri;
+    ctx.method = session.getMethod();
+    ctx.uri = session.getUri();
     ctx.session = session;
+    ctx.body = null;
+    ctx.compression = Compression.DEFAULT;
+    ctx.traceStart = start;
+
+    if (ctx.buffer == null) ctx.buffer = new Params();
+    return ctx;
+  }
 
-    if (path == null) {
-      ctx.params = null;
-      ctx.registeredUri = null;
+  /**
+   * Answers a request that matched no route, with 404 or with 405 and the allowed methods.
+   */
+  private NanoHTTPD.Response unrouted(RequestContext ctx, RouteTable t) {
+    ctx.params = null;
+    ctx.registeredUri = null;
 
-      return this.defaultHandler.handle(ctx);
+    String allow = t.allowed(ctx.uri, ctx.buffer);
+    if (allow == null) {
+      if (this.metricsEnabled) t.getMetrics().recordNotFound();
+      return finish(ctx, dispatch(ctx, t.filters, this.defaultHandler));
     }
 
-    // matching path was found
-    ctx.params = path.params;
-    ctx.registeredUri = path.uri;
+    if (this.metricsEnabled) t.getMetrics().recordMethodNotAllowed();
+    NanoHTTPD.Response r = dispatch(ctx, t.filters, this.methodNotAllowedHandler);
+    r.addHeader("Allow", allow);
+    return finish(ctx, r);
+  }
 
-    Handler h = this.handlers.get(m).get(path.uri);
+  /**
+   * Binds the context to the matched route, detaching it first if the route is asynchronous.
+   */
+  private RequestContext bind(RequestContext ctx, Route route) {
+    if (route.async && this.recycleContexts) {
+      // The handler may still be running on another thread once this one serves the next request.
+      ctx = detach(ctx);
+    }
+
+    ctx.params = ctx.buffer;
+    ctx.registeredUri = route.uri;
+    return ctx;
+  }
+
+  /**
+   * Starts the asynchronous handler of 'route', and applies the router's stages to its response
+   * on 'executor'.
+   */
+  private CompletionStage<NanoHTTPD.Response> deferred(final Route route, final RequestContext ctx, Executor executor) {
+    final boolean measured = this.metricsEnabled;
+    final long start = measured ? System.nanoTime() : 0;
+
+    CompletableFuture<NanoHTTPD.Response> f;
+    try {
+      f = ((AsyncHandlerAdapter) route.handler).start(ctx).response;
+    } catch (RuntimeException | Error e) {
+      if (measured) route.metrics.record(System.nanoTime() - start, true);
+      throw e;
+    }
+
+    return f.handleAsync(
+      new BiFunction<NanoHTTPD.Response, Throwable, NanoHTTPD.Response>() {
+
+        @Override
+        public NanoHTTPD.Response apply(NanoHTTPD.Response r, Throwable t) {
+          if (measured) route.metrics.record(System.nanoTime() - start, t != null);
+          if (t != null) throw t instanceof CompletionException ? (CompletionException) t : new CompletionException(t);
+          return finish(ctx, r);
+        }
+      },
+      executor
+    );
+  }
 
-    return h.handle(ctx);
+  /**
+   * Applies the router-level stages that run on every complete response.
+   */
+  private NanoHTTPD.Response finish(RequestContext ctx, NanoHTTPD.Response r) {
+    RequestTracer tracer = this.tracer;
+    Compression c = this.compression;
+    // Tracing may have been turned on during the request.
+    if (tracer == null || ctx.traceStart == 0) return head(ctx, c == null ? r : c.apply(ctx, r));
+
+    long handled = System.nanoTime();
+    if (c != null) r = c.apply(ctx, r);
+    return tracer.record(ctx, head(ctx, r), handled, System.nanoTime());
+  }
+
+  /**
+   * Drops the body of the response to a HEAD request, once it got the same headers as a GET.
+   */
+  private static NanoHTTPD.Response head(RequestContext ctx, NanoHTTPD.Response r) {
+    return ctx.method == NanoHTTPD.Method.HEAD && r != null ? HeadHandler.strip(r) : r;
+  }
+
+  /**
+   * Returns a new context for the same request, which owns a copy of the parameters.
+   */
+  private static RequestContext detach(RequestContext recycled) {
+    RequestContext ctx = new RequestContext();
+    ctx.server = recycled.server;
+    ctx.method = recycled.method;
+    ctx.uri = recycled.uri;
+    ctx.session = recycled.session;
+    ctx.traceStart = recycled.traceStart;
+    ctx.traceRouted = recycled.traceRouted;
+    ctx.buffer = recycled.buffer.copy();
+    return ctx;
+  }
+
+  /**
+   * Runs the request through 'chain' and then 'handler'.
+   */
+  private static NanoHTTPD.Response dispatch(RequestContext ctx, Filter[] chain, Handler handler) {
+    if (chain.length == 0) return handler.handle(ctx);
+
+    ctx.chain = chain;
+    ctx.position = 0;
+    ctx.target = handler;
+    return ctx.next();
+  }
+
+  /**
+   * Runs the route's filters and handler, recording their latency and whether they threw.
+   */
+  private NanoHTTPD.Response handleMeasured(Route route, RequestContext ctx) {
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      NanoHTTPD.Response r = dispatch(ctx, route.chain, route.handler);
+      failed = false;
+      return r;
+    } finally {
+      route.metrics.record(System.nanoTime() - start, failed);
+    }
   }
 }
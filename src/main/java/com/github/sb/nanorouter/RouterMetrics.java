@@ -0,0 +1,145 @@
+package com.github.sb.nanorouter;
+
+import fi.iki.elonen.NanoHTTPD;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The metrics of all the routes of a Router, along with requests that did not match any route.
+ *
+ * Route metrics are keyed by Method + URI, and survive route table swaps: a table built from
+ * 'RouteTable.toBuilder()' keeps reporting into the same RouterMetrics as the original.
+ */
+public final class RouterMetrics {
+  // Upper bounds, in seconds, of the histogram buckets exported to Prometheus.
+  private static final double[] PROMETHEUS_BUCKETS = new double[] {
+    0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10,
+  };
+
+  // Indexed by Method.ordinal(), keyed by the registered URI (which is shared, not copied).
+  private final ConcurrentHashMap<String, RouteMetrics>[] routes;
+
+  private final LongAdder notFound = new LongAdder();
+  private final LongAdder methodNotAllowed = new LongAdder();
+
+  @SuppressWarnings("unchecked")
+  public RouterMetrics() {
+    NanoHTTPD.Method[] methods = NanoHTTPD.Method.values();
+    this.routes = (ConcurrentHashMap<String, RouteMetrics>[]) new ConcurrentHashMap<?, ?>[methods.length];
+    for (int m = 0; m < methods.length; ++m) this.routes[m] = new ConcurrentHashMap<>();
+  }
+
+  /**
+   * Returns the metrics for the given Method + URI, creating them if needed.
+   */
+  RouteMetrics forRoute(NanoHTTPD.Method method, String uri) {
+    ConcurrentHashMap<String, RouteMetrics> byUri = this.routes[method.ordinal()];
+
+    RouteMetrics m = byUri.get(uri);
+    if (m != null) return m;
+
+    RouteMetrics created = new RouteMetrics(method, uri);
+    m = byUri.putIfAbsent(uri, created);
+    return m != null ? m : created;
+  }
+
+  void recordNotFound() {
+    this.notFound.increment();
+  }
+
+  void recordMethodNotAllowed() {
+    this.methodNotAllowed.increment();
+  }
+
+  /**
+   * Returns the number of requests that did not match any registered URI.
+   */
+  public long getNotFound() {
+    return this.notFound.sum();
+  }
+
+  /**
+   * Returns the number of requests that matched a registered URI, but not for their method.
+   */
+  public long getMethodNotAllowed() {
+    return this.methodNotAllowed.sum();
+  }
+
+  /**
+   * Returns the metrics of every route that was registered at some point.
+   */
+  public List<RouteMetrics> getRoutes() {
+    List<RouteMetrics> all = new ArrayList<>();
+    for (ConcurrentHashMap<String, RouteMetrics> byUri : this.routes) all.addAll(byUri.values());
+    return all;
+  }
+
+  /**
+   * Returns the metrics in the Prometheus text exposition format (version 0.0.4).
+   */
+  public String toPrometheus() {
+    StringBuilder sb = new StringBuilder();
+
+    sb.append("# HELP nanorouter_not_found_total Requests that did not match any route.\n");
+    sb.append("# TYPE nanorouter_not_found_total counter\n");
+    sb.append("nanorouter_not_found_total ").append(getNotFound()).append('\n');
+
+    sb.append("# HELP nanorouter_method_not_allowed_total Requests that matched a route for other methods only.\n");
+    sb.append("# TYPE nanorouter_method_not_allowed_total counter\n");
+    sb.append("nanorouter_method_not_allowed_total ").append(getMethodNotAllowed()).append('\n');
+
+    List<RouteMetrics> all = getRoutes();
+
+    sb.append("# HELP nanorouter_requests_total Requests dispatched to a route.\n");
+    sb.append("# TYPE nanorouter_requests_total counter\n");
+    for (RouteMetrics m : all) {
+      sb.append("nanorouter_requests_total");
+      labels(sb, m).append("} ").append(m.getHits()).append('\n');
+    }
+
+    sb.append("# HELP nanorouter_errors_total Requests for which the route handler threw.\n");
+    sb.append("# TYPE nanorouter_errors_total counter\n");
+    for (RouteMetrics m : all) {
+      sb.append("nanorouter_errors_total");
+      labels(sb, m).append("} ").append(m.getErrors()).append('\n');
+    }
+
+    sb.append("# HELP nanorouter_request_duration_seconds Time spent in the route handler.\n");
+    sb.append("# TYPE nanorouter_request_duration_seconds histogram\n");
+    for (RouteMetrics m : all) {
+      LatencyHistogram.Snapshot latency = m.getLatency();
+
+      for (double le : PROMETHEUS_BUCKETS) {
+        sb.append("nanorouter_request_duration_seconds_bucket");
+        labels(sb, m).append(",le=\"").append(le).append("\"} ");
+        sb.append(latency.countAtMost((long) (le * 1e9))).append('\n');
+      }
+      sb.append("nanorouter_request_duration_seconds_bucket");
+      labels(sb, m).append(",le=\"+Inf\"} ").append(latency.count()).append('\n');
+
+      sb.append("nanorouter_request_duration_seconds_sum");
+      labels(sb, m).append("} ").append(latency.sum() / 1e9).append('\n');
+      sb.append("nanorouter_request_duration_seconds_count");
+      labels(sb, m).append("} ").append(latency.count()).append('\n');
+    }
+
+    return sb.toString();
+  }
+
+  // Appends the opening brace and the route labels, leaving the label set open.
+  private static StringBuilder labels(StringBuilder sb, RouteMetrics m) {
+    sb.append("{method=\"").append(m.getMethod().name()).append("\",route=\"");
+    for (int i = 0; i < m.getUri().length(); ++i) {
+      char c = m.getUri().charAt(i);
+      if (c == '\\' || c == '"') sb.append('\\');
+      if (c == '\n') {
+        sb.append("\\n");
+        continue;
+      }
+      sb.append(c);
+    }
+    return sb.append('"');
+  }
+}
@@ -0,0 +1,57 @@
+package com.github.sb.nanorouter;
+
+import fi.iki.elonen.NanoHTTPD;
+
+/**
+ * A NanoHTTPD server that forwards every request to a Router, so that serving routes takes no
+ * subclassing. Connections are served by a ConnectionRunner (see 'ConnectionRunner.create') unless
+ * another runner is given.
+ *
+ * E.g.
+ *   RouterServer server = new RouterServer("127.0.0.1", 9120, router);
+ *   server.start();
+ */
+public class RouterServer extends NanoHTTPD {
+  private final Router router;
+
+  public RouterServer(int port, Router router) {
+    this(null, port, router);
+  }
+
+  public RouterServer(String hostname, int port, Router router) {
+    this(hostname, port, router, ConnectionRunner.create());
+  }
+
+  public RouterServer(String hostname, int port, Router router, NanoHTTPD.AsyncRunner runner) {
+    super(hostname, port);
+    this.router = router;
+    setAsyncRunner(runner);
+  }
+
+  /**
+   * Returns the router requests are forwarded to.
+   */
+  public Router getRouter() {
+    return this.router;
+  }
+
+  @Override
+  public Response serve(IHTTPSession session) {
+    return this.router.handleRequest(this, session);
+  }
+
+  /**
+   * Leaves responses that are already encoded (e.g. precompressed static files) and partial
+   * responses alone: compressing them again would corrupt the body, or the byte range. Event
+   * streams are not compressed either, since the compressor would hold events back. When the
+   * router has a Compression, it does all of the compressing.
+   */
+  @Override
+  protected boolean useGzipWhenAccepted(Response r) {
+    if (this.router.getCompression() != null) return false;
+    if (r.getHeader("Content-Encoding") != null) return false;
+    if (r.getStatus() == Response.Status.PARTIAL_CONTENT) return false;
+    if (EventStream.MIME_TYPE.equals(r.getMimeType())) return false;
+    return super.useGzipWhenAccepted(r);
+  }
+}
@@ -1,57 +1,94 @@
 package com.github.sb.nanorouter;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.List;
 
 /**
- * Backing data structure for the router to store a list of endpoints (for a single method).
+ * The tree that RouteTable.Builder inserts the URIs of every method into. Once all routes
+ * are in, it is flattened into a CompiledTrie, which is what requests are matched against, with
+ * the routes of each leaf kept by method. 'search' applies the same rules to the tree itself.
  *
- * This is a fast data structure which allows O(k) insertion and search, where 'k' is the length
- * of the key under question.
+ * This is a radix tree: runs of static characters are compressed into a single edge label, and
+ * every node has at most one dedicated parametric child. Matching walks the URI once, comparing
+ * whole labels against the URI in place, which gives O(k) search where 'k' is the length of the
+ * key under question, without allocating anything per character.
  *
- * Invariants:
- *  1. Do not add two URLs that only differ in the name of the parameter. This does not make sense
- *  semantically, and is therefore an invariant in the data structure. (e.g "/books/:bookId"
- *  and "/books/:id"). Searching for "/books/123" in this case may non-deterministically yield a
- *  parameter name of either "bookId" or "id".
+ * Three kinds of parameters are supported:
+ *  - ':name' matches one or more characters up to the next '/' or the end of the URI.
+ *  - ':name{pattern}' additionally requires the whole value to match 'pattern', e.g. ':id{[0-9]+}'.
+ *  Simple character classes are checked without java.util.regex, see Constraint.
+ *  - '*name' must end the URI, start a segment, and matches the rest of the URI, including any
+ *  '/' (and nothing at all, so "/static/*path" matches "/static/").
  *
- *  2. Trailing slashes are *strict* matches. e.g. /books/ and /books are two different URIs.
+ * Matching rules:
+ *  1. At every position, candidates are tried in a strict order: the static edge, then constrained
+ *  parameters (in registration order), then the plain parameter, then the catch-all. If a branch
+ *  fails to match the rest of the URI, the search backtracks and tries the next candidate.
+ *
+ *  2. Parameter names are stored with the registered URI (at the leaf), not on the shared
+ *  parametric node, so "/books/:bookId/pages" and "/books/:id" may coexist and each reports its
+ *  own names. Registering two URIs that only differ in the name of the parameter
+ *  (e.g "/books/:bookId" and "/books/:id") resolves to the same leaf, and the latter wins. For
+ *  routes of the same method, RouteTable reports this as a RouteConflict.
+ *
+ *  3. Trailing slashes are *strict* matches. e.g. /books/ and /books are two different URIs.
+ *
+ *  4. A parameter matches one or more characters up to the next '/' or the end of the URI.
+ *
+ *  5. Two parameters at the same position with the same pattern share a node, so they only differ
+ *  by name, as in rule 2.
  */
 class RouterTrie {
+  // Note: node fields are package-private so that CompiledTrie can flatten a finished trie.
+
   // Parameters start with a ':' (e.g  ':id')
-  private final char PARAM_START = ':';
+  private static final char PARAM_START = ':';
 
-  // The key stored at this node. If it is not a parameter, then it's length will be one.
-  // Otherwise, it is the length of the parameter key.
-  private String key;
+  // Catch-all parameters start with a '*' (e.g '*path'), at the start of a segment.
+  private static final char CATCH_ALL_START = '*';
 
-  // True if this is a leaf node.
-  private boolean is_leaf;
+  // Constraints are enclosed in braces after the parameter name (e.g ':id{[0-9]+}').
+  private static final char CONSTRAINT_START = '{';
+  private static final char CONSTRAINT_END = '}';
 
-  // Set of children under this node.
-  // Unfortunately, Java HashSets do not support 'get' operations
-  // which is problematic for cases when for a HashSet<T>, hashCode is implemented over a type that is not T.
-  // (such as this case). Therefore, we hackily resort to a HashMap<T, T>
-  private HashMap<RouterTrie, RouterTrie> children;
+  // Parameters extend up to the next separator.
+  private static final char SEPARATOR = '/';
 
-  /**
-   * Hash only based on the key. Child keys in a trie under any given parent are
-   * guaranteed to be unique therefore this is safe.
-   */
-  @Override
-  public int hashCode() {
-    return this.key.hashCode();
-  }
+  private static final char[] EMPTY_LABEL = new char[0];
+  private static final char[] NO_INDICES = new char[0];
+  private static final RouterTrie[] NO_CHILDREN = new RouterTrie[0];
 
-  @Override
-  public boolean equals(Object o) {
-    if (!(o instanceof RouterTrie)) return false;
+  // The static characters consumed when entering this node. Empty for the root and for
+  // parametric nodes.
+  char[] label;
 
-    RouterTrie other = (RouterTrie) o;
+  // First character of each static child's label, sorted. This is kept parallel to 'children'
+  // so that picking the next edge is a binary search over a primitive array.
+  char[] indices;
 
-    return this.key.equals(other.key);
-  }
+  // Static children, ordered the same way as 'indices'.
+  RouterTrie[] children;
+
+  // Children for constrained parameters, in registration order.
+  RouterTrie[] constrained;
+
+  // The constraint on the value consumed when entering this node, if it is a constrained child.
+  Constraint constraint;
+
+  // The single parametric child of this node, if any.
+  RouterTrie paramChild;
+
+  // The catch-all child of this node, if any. It is always a leaf.
+  RouterTrie catchAll;
+
+  // The URI registered at this node, or null if this is not a leaf.
+  String uri;
+
+  // Names of the parameters along the path to this leaf, in URI order. Only set on leaves.
+  String[] paramNames;
+
+  // The largest number of parameters of any URI inserted under this root.
+  int maxParams;
 
   /**
    * A search operation on this structure will return one of these.
@@ -70,174 +107,291 @@ class RouterTrie {
    * Creates the root of the trie, which is a null node.
    */
   public RouterTrie() {
-    this.key = null;
-    this.is_leaf = false;
-    this.children = new HashMap<>();
+    this(EMPTY_LABEL);
+  }
+
+  private RouterTrie(char[] label) {
+    this.label = label;
+    this.indices = NO_INDICES;
+    this.children = NO_CHILDREN;
+    this.constrained = NO_CHILDREN;
   }
 
   /**
-   * Creates a node with the provided key.
+   * Searches for the URI in the trie. If it exists, returns an object containing
+   * the parameters. Otherwise, returns null.
    */
-  public RouterTrie(String key) {
-    this.key = key;
-    this.is_leaf = false;
-    this.children = new HashMap<>();
+  public Path search(String uri) {
+    Params params = new Params();
+
+    RouterTrie leaf = lookup(uri, params);
+    if (leaf == null) return null;
+
+    return new Path(new HashMap<>(params), leaf.uri);
   }
 
   /**
-   * Splits the string 's' into a List of strings according to the following criteria:
-   *
-   * For any characters that are not meant to be used as parameters, they will be left in tact
-   * for all non-parameterized strings this method is effectively the same as 'toCharArray()'
-   *
-   * Otherwise, any characters that are part of parameters will be left intact.
+   * Searches for the URI in the trie, capturing parameters into 'params'. Returns the matched
+   * leaf, or null. This does not allocate once 'params' has seen a URI with as many parameters.
+   */
+  RouterTrie lookup(String uri, Params params) {
+    params.reset(uri, this.maxParams);
+
+    RouterTrie leaf = match(uri, 0, params.offsets, 0);
+    if (leaf != null) params.bind(leaf.paramNames);
+
+    return leaf;
+  }
+
+  /**
+   * Matches 'path' from index 'i' against the subtree below this node, whose label has already
+   * been consumed. 'n' parameters have been captured so far; the start and end of the p-th
+   * parameter value are written to offsets[2p] and offsets[2p + 1].
    *
-   * e.g. "/xy/:xyId/ab/:abId" is split into
-   *        ["/", "x", "y", "/", ":xyId", "/", "a", "b", "/", ":abId"]
+   * Returns the matched leaf, or null.
    */
-  private List<String> split(String s) {
-    ArrayList<String> result = new ArrayList<>();
+  private RouterTrie match(String path, int i, int[] offsets, int n) {
+    int length = path.length();
+    if (i == length) {
+      if (this.uri != null) return this;
+      // An empty catch-all, e.g. "/static/" for "/static/*path"
+      return this.catchAll != null ? capture(this.catchAll, i, length, offsets, n) : null;
+    }
 
-    for (int i = 0; i < s.length();) {
-      char key = s.charAt(i);
+    // Static edges first
+    int idx = Arrays.binarySearch(this.indices, path.charAt(i));
+    if (idx >= 0) {
+      RouterTrie child = this.children[idx];
+      char[] edge = child.label;
 
-      // Parameter string found, jump to the next "/" or the end of string.
-      if (key == PARAM_START) {
-        int jmp = s.indexOf("/", i);
-        jmp = jmp > 0 ? jmp : s.length();
+      if (length - i >= edge.length && regionMatches(path, i, edge)) {
+        RouterTrie found = child.match(path, i + edge.length, offsets, n);
+        if (found != null) return found;
+      }
+    }
 
-        result.add(s.substring(i, jmp));
-        i = jmp;
-      } else {
-        result.add(Character.toString(key));
-        i++;
+    // Then parameters, which swallow everything up to the next separator.
+    if (this.constrained.length > 0 || this.paramChild != null) {
+      int end = path.indexOf(SEPARATOR, i);
+      if (end < 0) end = length;
+
+      if (end > i) {
+        offsets[2 * n] = i;
+        offsets[2 * n + 1] = end;
+
+        for (RouterTrie c : this.constrained) {
+          if (!c.constraint.matches(path, i, end)) continue;
+
+          RouterTrie found = c.match(path, end, offsets, n + 1);
+          if (found != null) return found;
+        }
+
+        if (this.paramChild != null) {
+          RouterTrie found = this.paramChild.match(path, end, offsets, n + 1);
+          if (found != null) return found;
+        }
       }
     }
 
-    return result;
-  }
+    // And finally the catch-all, which swallows the rest of the URI.
+    if (this.catchAll != null) return capture(this.catchAll, i, length, offsets, n);
 
-  /**
-   * Returns true if this is a parametric node.
-   */
-  private boolean isParametric() {
-    return this.key.startsWith(Character.toString(PARAM_START));
+    return null;
   }
 
   /**
-   * Returns the parameter name at this node. Call this *only* for nodes for which isParametric()
-   * returns true.
-   *
-   * Removes the leading PARAM_START and returns the rest of the key.
+   * Records path[start, end) as the value of parameter 'n' and returns 'leaf'.
    */
-  private String getParameter() {
-    return this.key.substring(1);
+  private static RouterTrie capture(RouterTrie leaf, int start, int end, int[] offsets, int n) {
+    offsets[2 * n] = start;
+    offsets[2 * n + 1] = end;
+    return leaf;
   }
 
   /**
-   * Try to find a node that contains 'key' as a descendant of 'node'. Otherwise, return null.
-   * If there isn't a match for an exact field, but a parameterized entry exists then it will
-   * be considered a match.
-   *
-   * e.g. if there are two entries in the trie:
-   *   1. "/books/book/:id" and
-   *   2. "/books/:id"
-   * Then,
-   *   1. "/books/book" will match the second entry (i.e id = "book")
-   *   2. "/books/book/12" will match the first entry (i.e. id = "12").
-   *
-   * As mentioned in the invariants section in the class documentation, if there are two
-   * parameterized fields at the same height (i.e. "/books/:id" and "/books/:bookId") this
-   * method may return one or the other.
+   * Returns true if 'path' contains 'edge' starting at index 'i'. The caller guarantees that
+   * 'path' is long enough.
    */
-  private RouterTrie find(String key, RouterTrie node) {
-    RouterTrie result = node.children.get(new RouterTrie(key));
-    if (result != null) return result;
-
-    for (HashMap.Entry<RouterTrie, RouterTrie> c : node.children.entrySet()) {
-      // Return a parametric child if we have one
-      RouterTrie child = c.getValue();
-      if (child.isParametric()) return child;
+  private static boolean regionMatches(String path, int i, char[] edge) {
+    // The first character was already compared when the edge was selected.
+    for (int k = 1; k < edge.length; ++k) {
+      if (path.charAt(i + k) != edge[k]) return false;
     }
-    return null;
+    return true;
   }
 
   /**
-   * Searches for the URI in the trie. If it exists, returns an object containing
-   * the parameters. Otherwise, returns null.
+   * Inserts the URI into the trie and returns its leaf.
+   *
+   * @throws IllegalArgumentException if a constraint is malformed, or a catch-all does not end the
+   * URI.
    */
-  public Path search(String uri) {
-    HashMap<String, String> params = new HashMap<>();
-    char[] parts = uri.toCharArray();
-
-    // This will hold the URI that the trie stores i.e. this is the full URI string that
-    // was inserted into the trie in the first place.
-    String matchedPath = "";
-
+  public RouterTrie insert(String uri) {
+    String[] names = new String[0];
     RouterTrie node = this;
+
     for (int i = 0; i < uri.length();) {
-      String target = Character.toString(parts[i]);
-      assert (target != null);
+      if (isCatchAll(uri, i)) {
+        String name = uri.substring(i + 1);
+        if (name.indexOf(SEPARATOR) >= 0) {
+          throw new IllegalArgumentException("A catch-all parameter must end the URI: " + uri);
+        }
+
+        names = append(names, name);
+        if (node.catchAll == null) node.catchAll = new RouterTrie();
+        node = node.catchAll;
+        break;
+      }
 
-      // Try finding the target.
-      RouterTrie next = find(target, node);
-      if (next == null) return null; // Not found, the search target cannot exist
+      if (uri.charAt(i) == PARAM_START) {
+        // Parameter string found, the name extends to the next "/", "{" or the end of string.
+        int jmp = i + 1;
+        while (jmp < uri.length() && uri.charAt(jmp) != SEPARATOR && uri.charAt(jmp) != CONSTRAINT_START) jmp++;
 
-      // Save the parameter if it is a parametric node
-      if (next.isParametric()) {
-        int jmp = uri.indexOf("/", i);
-        jmp = jmp > 0 ? jmp : uri.length();
+        names = append(names, uri.substring(i + 1, jmp));
 
-        String param = next.getParameter();
-        String paramValue = uri.substring(i, jmp);
-        params.put(param, paramValue);
+        if (jmp < uri.length() && uri.charAt(jmp) == CONSTRAINT_START) {
+          int close = closingBrace(uri, jmp);
+          node = node.constrainedChild(Constraint.compile(uri.substring(jmp + 1, close)));
+          jmp = close + 1;
 
-        i = jmp; // Jump to the next slash in the string
-      } else {
-        i++;
+          if (jmp < uri.length() && uri.charAt(jmp) != SEPARATOR) {
+            throw new IllegalArgumentException("A constrained parameter must end its segment: " + uri);
+          }
+        } else {
+          if (node.paramChild == null) node.paramChild = new RouterTrie();
+          node = node.paramChild;
+        }
+
+        i = jmp;
+        continue;
       }
 
-      // Keep assembling this path as we traverse the trie.
-      matchedPath = matchedPath.concat(next.key);
+      // Static run: everything up to the next parameter or the end of string.
+      int end = i + 1;
+      while (end < uri.length() && uri.charAt(end) != PARAM_START && !isCatchAll(uri, end)) end++;
 
-      node = next;
+      node = node.insertStatic(uri, i, end);
+      i = end;
     }
 
-    // If we got to this point, then we found the entire uri but it is not a leaf node, then it
-    // is not a valid entry.
-    //
-    // If it is a leaf then construct the final Path to be returned.
-    if (!node.is_leaf) return null;
+    // At this point, 'node' contains the final key inserted. Mark it as a leaf node.
+    node.uri = uri;
+    node.paramNames = names;
+    this.maxParams = Math.max(this.maxParams, names.length);
+
+    return node;
+  }
 
-    return new Path(params, matchedPath);
+  private static String[] append(String[] names, String name) {
+    names = Arrays.copyOf(names, names.length + 1);
+    names[names.length - 1] = name;
+    return names;
   }
 
   /**
-   * Inserts the URI into the trie.
-   *
-   * @param uri
+   * Returns true if a catch-all parameter starts at index 'i' of 'uri'.
+   */
+  private static boolean isCatchAll(String uri, int i) {
+    return uri.charAt(i) == CATCH_ALL_START && i > 0 && uri.charAt(i - 1) == SEPARATOR;
+  }
+
+  /**
+   * Returns the index of the brace closing the one at 'open', allowing for nested braces (e.g.
+   * ':year{[0-9]{4}}').
+   */
+  private static int closingBrace(String uri, int open) {
+    int depth = 0;
+    for (int i = open; i < uri.length(); ++i) {
+      char c = uri.charAt(i);
+      if (c == '\\') {
+        i++;
+      } else if (c == CONSTRAINT_START) {
+        depth++;
+      } else if (c == CONSTRAINT_END && --depth == 0) {
+        return i;
+      }
+    }
+    throw new IllegalArgumentException("Unterminated parameter constraint: " + uri);
+  }
+
+  /**
+   * Returns the constrained child with the same pattern as 'constraint', adding it if needed.
    */
-  public void insert(String uri) {
-    List<String> parts = split(uri);
+  private RouterTrie constrainedChild(Constraint constraint) {
+    for (RouterTrie c : this.constrained) {
+      if (c.constraint.source.equals(constraint.source)) return c;
+    }
+
+    RouterTrie child = new RouterTrie();
+    child.constraint = constraint;
+    this.constrained = Arrays.copyOf(this.constrained, this.constrained.length + 1);
+    this.constrained[this.constrained.length - 1] = child;
+    return child;
+  }
 
+  /**
+   * Inserts the static characters uri[start, end) below this node, splitting existing edges
+   * where they diverge, and returns the node at which the run ends.
+   */
+  private RouterTrie insertStatic(String uri, int start, int end) {
     RouterTrie node = this;
-    for (int i = 0; i < parts.size(); ++i) {
-      String target = parts.get(i);
-      assert (target != null);
+    int i = start;
+
+    while (i < end) {
+      char c = uri.charAt(i);
+      int idx = Arrays.binarySearch(node.indices, c);
+
+      // Not found, create a child branch holding the whole run.
+      if (idx < 0) {
+        RouterTrie child = new RouterTrie(uri.substring(i, end).toCharArray());
+        node.addChild(-(idx + 1), child);
+        return child;
+      }
 
-      RouterTrie next = node.children.get(new RouterTrie(target));
+      RouterTrie child = node.children[idx];
+      char[] edge = child.label;
 
-      // Not found, create a child branch
-      if (next == null) {
-        next = new RouterTrie(target);
-        node.children.put(next, next);
+      int common = 1;
+      while (common < edge.length && i + common < end && edge[common] == uri.charAt(i + common)) {
+        common++;
       }
 
-      // Move onto next target
-      node = next;
+      // The run diverges within the edge: split it so that the shared prefix becomes its own node.
+      if (common < edge.length) {
+        RouterTrie prefix = new RouterTrie(Arrays.copyOf(edge, common));
+        child.label = Arrays.copyOfRange(edge, common, edge.length);
+        prefix.indices = new char[] { child.label[0] };
+        prefix.children = new RouterTrie[] { child };
+
+        node.children[idx] = prefix;
+        child = prefix;
+      }
+
+      node = child;
+      i += common;
     }
 
-    // At this point, 'node' contains the final key inserted. Mark it as a leaf node.
-    node.is_leaf = true;
+    return node;
+  }
+
+  /**
+   * Adds a static child at position 'pos', keeping 'indices' and 'children' sorted.
+   */
+  private void addChild(int pos, RouterTrie child) {
+    int count = this.children.length;
+
+    char[] indices = new char[count + 1];
+    RouterTrie[] children = new RouterTrie[count + 1];
+
+    System.arraycopy(this.indices, 0, indices, 0, pos);
+    System.arraycopy(this.children, 0, children, 0, pos);
+    indices[pos] = child.label[0];
+    children[pos] = child;
+    System.arraycopy(this.indices, pos, indices, pos + 1, count - pos);
+    System.arraycopy(this.children, pos, children, pos + 1, count - pos);
+
+    this.indices = indices;
+    this.children = children;
   }
 }
@@ -0,0 +1,175 @@
+package com.github.sb.nanorouter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Matches request URIs against the static routes of a CompiledTrie without walking it: a decision
+ * tree specialized to the set of static paths, that switches on the length of the URI and then on
+ * the characters at the positions that best tell the remaining candidates apart, and finally
+ * compares the URI with the one candidate left. E.g. with "/books", "/authors" and "/stores", a
+ * 6-character URI can only be "/books", and a 7-character one is told apart by its second
+ * character.
+ *
+ * The whole tree lives in one int[], so a lookup reads one branch per character it switches on
+ * (a handful, even for thousands of routes, and whatever their depth in the trie) and then
+ * compares two Strings, instead of following a node, comparing an edge label and searching its
+ * children per segment.
+ *
+ * This plays the role of a generated matcher class, with the switches laid out as tables rather
+ * than as bytecode, which would take a bytecode library (or hidden classes, after Java 8). Only
+ * fully static routes are specialized; the CompiledTrie still matches everything else, and is used
+ * instead of this matcher when the tree would grow too large.
+ */
+final class SpecializedMatcher {
+  static final int NONE = -1;
+
+  // The tree is abandoned past this many entries.
+  private static final int MAX_TREE = 1 << 22;
+
+  // A slot of the tree (or of 'byLength') is 0 if no path matches, the index of a branch if it is
+  // positive, and (-1 - i) for candidate i when one is left. A branch is laid out as: the position
+  // of the character it switches on, the lowest such character, the number of slots, and the slots.
+  private final int[] tree;
+  private final int[] byLength;
+
+  // The static paths, and the trie nodes they lead to.
+  private final String[] paths;
+  private final int[] nodes;
+
+  private SpecializedMatcher(int[] tree, int[] byLength, String[] paths, int[] nodes) {
+    this.tree = tree;
+    this.byLength = byLength;
+    this.paths = paths;
+    this.nodes = nodes;
+  }
+
+  /**
+   * Builds a matcher for 'paths', which lead to the trie nodes 'nodes', or returns null if the
+   * tree would be too large.
+   */
+  static SpecializedMatcher build(String[] paths, int[] nodes) {
+    int maxLength = 0;
+    for (String p : paths) maxLength = Math.max(maxLength, p.length());
+
+    // Candidates grouped by length.
+    List<List<Integer>> groups = new ArrayList<>();
+    for (int l = 0; l <= maxLength; ++l) groups.add(new ArrayList<Integer>());
+    for (int i = 0; i < paths.length; ++i) groups.get(paths[i].length()).add(i);
+
+    Tree tree = new Tree();
+    int[] byLength = new int[maxLength + 1];
+    for (int l = 0; l <= maxLength; ++l) {
+      List<Integer> group = groups.get(l);
+      if (group.isEmpty()) continue;
+
+      byLength[l] = tree.build(paths, group);
+      if (byLength[l] == Integer.MIN_VALUE) return null;
+    }
+
+    return new SpecializedMatcher(Arrays.copyOf(tree.entries, tree.size), byLength, paths, nodes);
+  }
+
+  /**
+   * Returns the trie node of the static path equal to 'uri', or NONE.
+   */
+  int match(String uri) {
+    int length = uri.length();
+    if (length >= this.byLength.length) return NONE;
+
+    int[] tree = this.tree;
+    int slot = this.byLength[length];
+    while (slot > 0) {
+      int c = uri.charAt(tree[slot]) - tree[slot + 1];
+      if (c < 0 || c >= tree[slot + 2]) return NONE;
+      slot = tree[slot + 3 + c];
+    }
+    if (slot == 0) return NONE;
+
+    int candidate = -1 - slot;
+    return uri.equals(this.paths[candidate]) ? this.nodes[candidate] : NONE;
+  }
+
+  /**
+   * Returns an estimate of the bytes used by this matcher, not counting the paths' characters.
+   */
+  long footprint() {
+    return 4L * (this.tree.length + this.byLength.length + this.nodes.length) + 4L * this.paths.length + 48;
+  }
+
+  /**
+   * The tree under construction.
+   */
+  private static final class Tree {
+    // Entry 0 is never used, so that 0 can mean "no match" in a slot.
+    int[] entries = new int[64];
+    int size = 1;
+
+    /**
+     * Builds the subtree that tells the candidates of 'group' (distinct paths of the same length)
+     * apart, and returns the slot that leads to it, or Integer.MIN_VALUE if it is too large.
+     */
+    int build(String[] paths, List<Integer> group) {
+      if (group.size() == 1) return -1 - group.get(0);
+
+      // Switch on the position where the candidates differ the most, i.e. with the most distinct
+      // characters. There is always one with at least two, since the paths are distinct.
+      int length = paths[group.get(0)].length();
+      int position = -1;
+      int best = 0;
+      char lo = 0;
+      char hi = 0;
+      char[] column = new char[group.size()];
+      for (int p = 0; p < length; ++p) {
+        for (int k = 0; k < column.length; ++k) column[k] = paths[group.get(k)].charAt(p);
+        Arrays.sort(column);
+
+        int distinct = 1;
+        for (int k = 1; k < column.length; ++k) if (column[k] != column[k - 1]) ++distinct;
+        char min = column[0];
+        char max = column[column.length - 1];
+        if (distinct > best || (distinct == best && max - min < hi - lo)) {
+          best = distinct;
+          position = p;
+          lo = min;
+          hi = max;
+        }
+      }
+
+      int span = hi - lo + 1;
+      int branch = this.size;
+      if (!reserve(3 + span)) return Integer.MIN_VALUE;
+      this.entries[branch] = position;
+      this.entries[branch + 1] = lo;
+      this.entries[branch + 2] = span;
+
+      List<List<Integer>> partitions = new ArrayList<>(span);
+      for (int s = 0; s < span; ++s) partitions.add(null);
+      for (int candidate : group) {
+        int s = paths[candidate].charAt(position) - lo;
+        if (partitions.get(s) == null) partitions.set(s, new ArrayList<Integer>());
+        partitions.get(s).add(candidate);
+      }
+
+      for (int s = 0; s < span; ++s) {
+        List<Integer> partition = partitions.get(s);
+        if (partition == null) continue;
+
+        int slot = build(paths, partition);
+        if (slot == Integer.MIN_VALUE) return slot;
+        this.entries[branch + 3 + s] = slot;
+      }
+      return branch;
+    }
+
+    private boolean reserve(int n) {
+      if (this.size + n > MAX_TREE) return false;
+      if (this.size + n > this.entries.length) {
+        this.entries = Arrays.copyOf(this.entries, Math.max(this.size + n, 2 * this.entries.length));
+      }
+      this.size += n;
+      return true;
+    }
+  }
+}
@@ -0,0 +1,502 @@
+package com.github.sb.nanorouter;
+
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.NanoHTTPD.Response.Status;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Serves the files below a root directory.
+ *
+ * Register it under a URI that ends with a catch-all parameter, whose value is the path of the file
+ * relative to the root (see 'Router.addStaticFiles'):
+ *
+ *   router.addHandler(Method.GET, "/assets/*path", new StaticFileHandler(new File("public")));
+ *
+ * Requests for a directory are served its "index.html". Responses carry an ETag and Last-Modified,
+ * and conditional requests (If-None-Match, If-Modified-Since) are answered with 304 Not Modified.
+ * Single byte ranges are supported (206 Partial Content, or 416 if unsatisfiable); requests for
+ * several ranges get the whole file. If the client accepts it and "file.br" or "file.gz" exists
+ * next to "file", the precompressed variant is sent instead with the matching Content-Encoding.
+ *
+ * Small files are kept in memory, in a least recently used cache bounded by total size, so hot
+ * assets are served without touching the disk. Larger files are streamed from a FileChannel
+ * positioned at the requested range. The result of resolving a path (including that it does not
+ * exist) is remembered for a short time, so a burst of requests for the same files does not turn
+ * into a burst of filesystem lookups. A file read from disk is checked against that result once it
+ * is open, and resolved again if it has changed since.
+ *
+ * Paths containing ".." segments, backslashes or NUL characters are rejected, and so are files
+ * whose real path (after following symbolic links) lies outside the root.
+ *
+ * Configure the handler before it serves requests.
+ */
+public class StaticFileHandler implements Handler {
+  private static final String INDEX = "index.html";
+
+  // IMF-fixdate, e.g. "Sun, 06 Nov 1994 08:49:37 GMT"
+  private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter
+    .ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US)
+    .withZone(ZoneOffset.UTC);
+
+  // Marks paths that do not resolve to a servable file.
+  private static final Resolved MISSING = new Resolved(null, null, null, 0);
+
+  private final Path root;
+
+  private long metadataTtlMillis = 1000;
+  private int maxMetadataEntries = 10000;
+  private long maxCachedFileBytes = 64 * 1024;
+  private long maxCacheBytes = 16 * 1024 * 1024;
+  private int maxAgeSeconds = -1;
+
+  // Resolutions of request paths, keyed by the path relative to the root.
+  private final ConcurrentHashMap<String, Resolved> metadata = new ConcurrentHashMap<>();
+
+  // Contents of small files, least recently used first. Guarded by itself.
+  private final LinkedHashMap<Path, Body> bodies = new LinkedHashMap<>(16, 0.75f, true);
+  private long cachedBytes;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  /**
+   * @throws IllegalArgumentException if 'root' is not a readable directory.
+   */
+  public StaticFileHandler(File root) {
+    try {
+      this.root = root.toPath().toRealPath();
+    } catch (IOException e) {
+      throw new IllegalArgumentException("Cannot read the static file root: " + root, e);
+    }
+    if (!Files.isDirectory(this.root)) throw new IllegalArgumentException("Not a directory: " + root);
+  }
+
+  /**
+   * Sets how long the result of resolving a path is trusted before checking the filesystem again,
+   * 1 second by default. 0 checks on every request.
+   */
+  public void setMetadataTtl(long millis) {
+    this.metadataTtlMillis = millis;
+  }
+
+  /**
+   * Keeps the contents of files of up to 'maxFileBytes' in memory, up to 'maxTotalBytes' in all.
+   * The defaults are 64 KiB and 16 MiB. A total of 0 disables the cache.
+   */
+  public void setCacheLimits(long maxFileBytes, long maxTotalBytes) {
+    synchronized (this.bodies) {
+      this.maxCachedFileBytes = maxFileBytes;
+      this.maxCacheBytes = maxTotalBytes;
+
+      Iterator<Body> it = this.bodies.values().iterator();
+      while (it.hasNext()) {
+        Body b = it.next();
+        if (b.data.length <= maxFileBytes) continue;
+        this.cachedBytes -= b.data.length;
+        it.remove();
+      }
+      evict();
+    }
+  }
+
+  /**
+   * Adds "Cache-Control: public, max-age=seconds" to responses. Not sent by default.
+   */
+  public void setMaxAge(int seconds) {
+    this.maxAgeSeconds = seconds;
+  }
+
+  /**
+   * Returns the number of requests served from the in-memory cache.
+   */
+  public long getCacheHits() {
+    return this.hits.sum();
+  }
+
+  /**
+   * Returns the number of requests for cacheable files that had to read the disk.
+   */
+  public long getCacheMisses() {
+    return this.misses.sum();
+  }
+
+  /**
+   * Returns the total size of the files held in memory.
+   */
+  public long getCachedBytes() {
+    synchronized (this.bodies) {
+      return this.cachedBytes;
+    }
+  }
+
+  public NanoHTTPD.Response handle(RequestContext ctx) {
+    // The catch-all is always the last parameter.
+    Params params = ctx.params;
+    String path = params == null || params.isEmpty() ? "" : params.value(params.size() - 1);
+    Map<String, String> headers = ctx.session.getHeaders();
+
+    NanoHTTPD.Response r = serve(resolve(path), headers);
+    if (r != null) return r;
+
+    // Changed since it was resolved: resolve it again, and serve the current file.
+    this.metadata.remove(path);
+    r = serve(resolve(path), headers);
+    return r != null ? r : notFound();
+  }
+
+  /**
+   * Answers the request with the resolved file, or returns null if the file no longer matches
+   * what was resolved (deleted, replaced, truncated, ...).
+   */
+  private NanoHTTPD.Response serve(Resolved resolved, Map<String, String> headers) {
+    if (resolved == MISSING) return notFound();
+
+    FileInfo file = resolved.select(headers.get("accept-encoding"));
+
+    if (notModified(file, headers)) {
+      NanoHTTPD.Response r = NanoHTTPD.newFixedLengthResponse(Status.NOT_MODIFIED, file.mimeType, "");
+      addHeaders(r, file, resolved);
+      return r;
+    }
+
+    long start = 0;
+    long length = file.length;
+    Status status = Status.OK;
+
+    long[] range = range(headers, file);
+    if (range != null) {
+      if (range[0] >= file.length) {
+        NanoHTTPD.Response r = NanoHTTPD.newFixedLengthResponse(
+          Status.RANGE_NOT_SATISFIABLE,
+          "application/text",
+          "Nanorouter: Range not satisfiable"
+        );
+        r.addHeader("Content-Range", "bytes */" + file.length);
+        return r;
+      }
+
+      start = range[0];
+      length = Math.min(range[1], file.length - 1) - start + 1;
+      status = Status.PARTIAL_CONTENT;
+    }
+
+    InputStream body;
+    try {
+      body = open(file, start, length);
+    } catch (IOException e) {
+      // Deleted since it was resolved.
+      return null;
+    }
+    if (body == null) return null;
+
+    NanoHTTPD.Response r = NanoHTTPD.newFixedLengthResponse(status, file.mimeType, body, length);
+    addHeaders(r, file, resolved);
+    if (status == Status.PARTIAL_CONTENT) {
+      r.addHeader("Content-Range", "bytes " + start + "-" + (start + length - 1) + "/" + file.length);
+    }
+    return r;
+  }
+
+  private void addHeaders(NanoHTTPD.Response r, FileInfo file, Resolved resolved) {
+    r.addHeader("ETag", file.etag);
+    r.addHeader("Last-Modified", HTTP_DATE.format(Instant.ofEpochMilli(file.lastModified)));
+    r.addHeader("Accept-Ranges", "bytes");
+    if (file.encoding != null) r.addHeader("Content-Encoding", file.encoding);
+    if (resolved.gzip != null || resolved.brotli != null) r.addHeader("Vary", "Accept-Encoding");
+    if (this.maxAgeSeconds >= 0) r.addHeader("Cache-Control", "public, max-age=" + this.maxAgeSeconds);
+  }
+
+  private static NanoHTTPD.Response notFound() {
+    return NanoHTTPD.newFixedLengthResponse(Status.NOT_FOUND, "application/text", "Nanorouter: File not found");
+  }
+
+  /**
+   * Returns true if the client's copy of 'file' is current.
+   */
+  private static boolean notModified(FileInfo file, Map<String, String> headers) {
+    String ifNoneMatch = headers.get("if-none-match");
+    if (ifNoneMatch != null) return matches(ifNoneMatch, file.etag);
+
+    String ifModifiedSince = headers.get("if-modified-since");
+    if (ifModifiedSince != null) {
+      long since = parseDate(ifModifiedSince);
+      return since >= 0 && file.lastModified / 1000 <= since;
+    }
+
+    return false;
+  }
+
+  /**
+   * Returns true if the comma separated list of entity tags contains 'etag' (weakly) or is "*".
+   */
+  private static boolean matches(String list, String etag) {
+    for (String tag : list.split(",")) {
+      tag = tag.trim();
+      if (tag.startsWith("W/")) tag = tag.substring(2);
+      if (tag.equals("*") || tag.equals(etag)) return true;
+    }
+    return false;
+  }
+
+  /**
+   * Returns the date in seconds since the epoch, or -1 if it cannot be parsed.
+   */
+  private static long parseDate(String date) {
+    try {
+      return ZonedDateTime.parse(date, DateTimeFormatter.RFC_1123_DATE_TIME).toEpochSecond();
+    } catch (DateTimeParseException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Returns the first and last byte of the single range requested, with the last one possibly
+   * beyond the end of the file. Returns null to serve the whole file: no Range header, a malformed
+   * or multiple one, or an If-Range that does not match.
+   */
+  private static long[] range(Map<String, String> headers, FileInfo file) {
+    String range = headers.get("range");
+    if (range == null || !range.startsWith("bytes=") || range.indexOf(',') >= 0) return null;
+
+    String ifRange = headers.get("if-range");
+    if (ifRange != null && !ifRange.trim().equals(file.etag)) return null;
+
+    String spec = range.substring(6).trim();
+    int dash = spec.indexOf('-');
+    if (dash < 0) return null;
+
+    try {
+      if (dash == 0) {
+        // The last N bytes
+        long suffix = Long.parseLong(spec.substring(1));
+        if (suffix <= 0) return null;
+        return new long[] { Math.max(0, file.length - suffix), file.length - 1 };
+      }
+
+      long first = Long.parseLong(spec.substring(0, dash));
+      long last = dash == spec.length() - 1 ? Long.MAX_VALUE : Long.parseLong(spec.substring(dash + 1));
+      if (first < 0 || last < first) return null;
+      return new long[] { first, last };
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Returns the bytes [start, start + length) of 'file', from memory if it is small enough, or null
+   * if the file on disk is no longer the one described by 'file'. The response length comes from
+   * 'file', which may be up to the metadata TTL old, so the file is checked once it is open.
+   */
+  private InputStream open(FileInfo file, long start, long length) throws IOException {
+    boolean small = file.length <= this.maxCachedFileBytes && this.maxCacheBytes > 0;
+    if (small) {
+      byte[] data = cached(file);
+      if (data != null) {
+        this.hits.increment();
+        return new ByteArrayInputStream(data, (int) start, (int) length);
+      }
+      this.misses.increment();
+    }
+
+    FileChannel channel = FileChannel.open(file.path, StandardOpenOption.READ);
+    boolean streamed = false;
+    try {
+      if (channel.size() != file.length) return null;
+      if (Files.getLastModifiedTime(file.path).toMillis() != file.lastModified) return null;
+
+      if (!small) {
+        channel.position(start);
+        streamed = true;
+        // NanoHTTPD stops reading after 'length' bytes, and closes the stream.
+        return Channels.newInputStream(channel);
+      }
+
+      ByteBuffer data = ByteBuffer.allocate((int) file.length);
+      while (data.hasRemaining()) {
+        if (channel.read(data) < 0) return null;
+      }
+      cache(file, data.array());
+      return new ByteArrayInputStream(data.array(), (int) start, (int) length);
+    } finally {
+      if (!streamed) channel.close();
+    }
+  }
+
+  private byte[] cached(FileInfo file) {
+    synchronized (this.bodies) {
+      Body b = this.bodies.get(file.path);
+      if (b == null) return null;
+      if (b.lastModified == file.lastModified && b.data.length == file.length) return b.data;
+
+      // Stale
+      this.bodies.remove(file.path);
+      this.cachedBytes -= b.data.length;
+      return null;
+    }
+  }
+
+  private void cache(FileInfo file, byte[] data) {
+    synchronized (this.bodies) {
+      if (data.length > this.maxCacheBytes) return;
+
+      Body previous = this.bodies.put(file.path, new Body(file.lastModified, data));
+      if (previous != null) this.cachedBytes -= previous.data.length;
+      this.cachedBytes += data.length;
+      evict();
+    }
+  }
+
+  // Drops least recently used files until the cache fits. Called with 'bodies' held.
+  private void evict() {
+    Iterator<Body> it = this.bodies.values().iterator();
+    while (this.cachedBytes > this.maxCacheBytes && it.hasNext()) {
+      this.cachedBytes -= it.next().data.length;
+      it.remove();
+    }
+  }
+
+  /**
+   * Returns what the request path resolves to, checking the filesystem at most once per metadata
+   * TTL for each path.
+   */
+  private Resolved resolve(String path) {
+    long now = System.currentTimeMillis();
+
+    Resolved r = this.metadata.get(path);
+    if (r != null && now - r.checkedAt < this.metadataTtlMillis) return r;
+
+    r = lookup(path, now);
+    if (this.metadata.size() >= this.maxMetadataEntries) {
+      // Unbounded numbers of distinct (e.g. made up) paths must not grow the map forever.
+      this.metadata.clear();
+    }
+    this.metadata.put(path, r);
+    return r;
+  }
+
+  private Resolved lookup(String path, long now) {
+    if (path.indexOf('\\') >= 0 || path.indexOf('\0') >= 0) return MISSING;
+    for (String segment : path.split("/")) {
+      if (segment.equals("..")) return MISSING;
+    }
+
+    Path p = this.root.resolve(path).normalize();
+    if (!p.startsWith(this.root)) return MISSING;
+    if (Files.isDirectory(p)) p = p.resolve(INDEX);
+
+    FileInfo identity = stat(p, null);
+    if (identity == null) return MISSING;
+
+    String name = p.getFileName().toString();
+    FileInfo gzip = stat(p.resolveSibling(name + ".gz"), "gzip");
+    FileInfo brotli = stat(p.resolveSibling(name + ".br"), "br");
+
+    // Variants are served with the type of the original file.
+    if (gzip != null) gzip = gzip.withMimeType(identity.mimeType);
+    if (brotli != null) brotli = brotli.withMimeType(identity.mimeType);
+
+    return new Resolved(identity, gzip, brotli, now);
+  }
+
+  /**
+   * Returns the file at 'p', or null if it is not a regular file inside the root.
+   */
+  private FileInfo stat(Path p, String encoding) {
+    try {
+      Path real = p.toRealPath();
+      if (!real.startsWith(this.root)) return null;
+
+      BasicFileAttributes attrs = Files.readAttributes(real, BasicFileAttributes.class);
+      if (!attrs.isRegularFile()) return null;
+
+      long length = attrs.size();
+      long lastModified = attrs.lastModifiedTime().toMillis();
+      String etag = "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) +
+        (encoding != null ? "-" + encoding : "") + "\"";
+      String mimeType = NanoHTTPD.getMimeTypeForFile(real.getFileName().toString());
+
+      return new FileInfo(real, length, lastModified, etag, encoding, mimeType);
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  /**
+   * A resolved request path: the file and its precompressed variants, if any.
+   */
+  private static final class Resolved {
+    final FileInfo identity;
+    final FileInfo gzip;
+    final FileInfo brotli;
+    final long checkedAt;
+
+    Resolved(FileInfo identity, FileInfo gzip, FileInfo brotli, long checkedAt) {
+      this.identity = identity;
+      this.gzip = gzip;
+      this.brotli = brotli;
+      this.checkedAt = checkedAt;
+    }
+
+    FileInfo select(String acceptEncoding) {
+      if (this.brotli != null && Compression.accepts(acceptEncoding, "br")) return this.brotli;
+      if (this.gzip != null && Compression.accepts(acceptEncoding, "gzip")) return this.gzip;
+      return this.identity;
+    }
+  }
+
+  private static final class FileInfo {
+    final Path path;
+    final long length;
+    final long lastModified;
+    final String etag;
+
+    // The Content-Encoding of a precompressed variant, or null.
+    final String encoding;
+
+    final String mimeType;
+
+    FileInfo(Path path, long length, long lastModified, String etag, String encoding, String mimeType) {
+      this.path = path;
+      this.length = length;
+      this.lastModified = lastModified;
+      this.etag = etag;
+      this.encoding = encoding;
+      this.mimeType = mimeType;
+    }
+
+    FileInfo withMimeType(String mimeType) {
+      return new FileInfo(this.path, this.length, this.lastModified, this.etag, this.encoding, mimeType);
+    }
+  }
+
+  private static final class Body {
+    final long lastModified;
+    final byte[] data;
+
+    Body(long lastModified, byte[] data) {
+      this.lastModified = lastModified;
+      this.data = data;
+    }
+  }
+}
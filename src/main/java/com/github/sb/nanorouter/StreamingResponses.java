@@ -0,0 +1,359 @@
+package com.github.sb.nanorouter;
+
+import fi.iki.elonen.NanoHTTPD;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Responses whose body is produced while it is sent, with chunked transfer encoding, so that a
+ * handler can answer with megabytes of data in constant memory and the client starts receiving it
+ * right away.
+ *
+ * 'chunked' pulls the body from a ChunkGenerator on the connection's thread, one pooled buffer at
+ * a time. 'piped' runs a BodyWriter that pushes the body into an OutputStream on another thread,
+ * for code that can only write (e.g. a streaming JSON generator); at most a few buffers are in
+ * flight between the two threads, and the writer blocks while the client is behind. For
+ * server-sent events see EventStream.
+ */
+public final class StreamingResponses {
+  // Buffers that a piped writer may fill before it blocks.
+  private static final int PIPE_BUFFERS = 4;
+
+  // How often a blocked piped writer checks whether the client is gone.
+  private static final long PIPE_POLL_MILLIS = 100;
+
+  private StreamingResponses() {}
+
+  /**
+   * Returns a chunked response whose body is pulled from 'generator' as it is sent.
+   */
+  public static NanoHTTPD.Response chunked(
+    NanoHTTPD.Response.IStatus status,
+    String mimeType,
+    ChunkGenerator generator
+  ) {
+    return chunked(status, mimeType, generator, BufferPool.shared());
+  }
+
+  /**
+   * Returns a chunked response whose body is pulled from 'generator' as it is sent, into buffers
+   * from 'pool'.
+   */
+  public static NanoHTTPD.Response chunked(
+    NanoHTTPD.Response.IStatus status,
+    String mimeType,
+    ChunkGenerator generator,
+    BufferPool pool
+  ) {
+    return NanoHTTPD.newChunkedResponse(status, mimeType, new GeneratorInputStream(generator, pool));
+  }
+
+  /**
+   * Returns a chunked response whose body is written by 'writer', which is run on 'executor'.
+   */
+  public static NanoHTTPD.Response piped(
+    NanoHTTPD.Response.IStatus status,
+    String mimeType,
+    BodyWriter writer,
+    Executor executor
+  ) {
+    return piped(status, mimeType, writer, executor, BufferPool.shared());
+  }
+
+  /**
+   * Returns a chunked response whose body is written by 'writer', which is run on 'executor', into
+   * buffers from 'pool'.
+   */
+  public static NanoHTTPD.Response piped(
+    NanoHTTPD.Response.IStatus status,
+    String mimeType,
+    final BodyWriter writer,
+    Executor executor,
+    BufferPool pool
+  ) {
+    final Pipe pipe = new Pipe(pool);
+    executor.execute(
+      new Runnable() {
+
+        @Override
+        public void run() {
+          try {
+            writer.writeTo(pipe.output);
+            pipe.output.close();
+          } catch (Throwable t) {
+            pipe.fail(t);
+          }
+        }
+      }
+    );
+    return NanoHTTPD.newChunkedResponse(status, mimeType, pipe.input);
+  }
+
+  /**
+   * The body of a streaming response. Compression compresses these as they are read, flushing
+   * after every piece, instead of buffering them.
+   */
+  abstract static class StreamingBody extends InputStream {}
+
+  /**
+   * An OutputStream over a pooled buffer, which grows past it if a single piece is larger.
+   */
+  private static final class ChunkBuffer extends OutputStream {
+    private final BufferPool pool;
+    private byte[] pooled;
+    byte[] buf;
+    int count;
+
+    ChunkBuffer(BufferPool pool) {
+      this.pool = pool;
+      this.pooled = pool.acquire();
+      this.buf = this.pooled;
+    }
+
+    @Override
+    public void write(int b) {
+      ensure(1);
+      this.buf[this.count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      ensure(len);
+      System.arraycopy(b, off, this.buf, this.count, len);
+      this.count += len;
+    }
+
+    private void ensure(int len) {
+      if (this.buf == null) throw new IllegalStateException("Write after the response was closed");
+      if (this.count + len > this.buf.length) {
+        this.buf = Arrays.copyOf(this.buf, Math.max(2 * this.buf.length, this.count + len));
+      }
+    }
+
+    // Empties the buffer, going back to the pooled one if it had grown.
+    void clear() {
+      this.count = 0;
+      this.buf = this.pooled;
+    }
+
+    void release() {
+      this.pool.release(this.pooled);
+      this.pooled = null;
+      this.buf = null;
+    }
+  }
+
+  /**
+   * The body of a 'chunked' response: every read that finds the buffer drained asks the generator
+   * for the next piece.
+   */
+  private static final class GeneratorInputStream extends StreamingBody {
+    private final ChunkGenerator generator;
+    private final ChunkBuffer chunk;
+    private int position;
+    private boolean done;
+
+    GeneratorInputStream(ChunkGenerator generator, BufferPool pool) {
+      this.generator = generator;
+      this.chunk = new ChunkBuffer(pool);
+    }
+
+    // Returns false at the end of the body.
+    private boolean fill() throws IOException {
+      while (this.position == this.chunk.count) {
+        if (this.done || this.chunk.buf == null) return false;
+
+        this.chunk.clear();
+        this.position = 0;
+        this.done = !this.generator.next(this.chunk);
+      }
+      return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+      return fill() ? this.chunk.buf[this.position++] & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) return 0;
+      if (!fill()) return -1;
+
+      int n = Math.min(len, this.chunk.count - this.position);
+      System.arraycopy(this.chunk.buf, this.position, b, off, n);
+      this.position += n;
+      return n;
+    }
+
+    @Override
+    public void close() {
+      if (this.chunk.buf == null) return;
+      this.chunk.release();
+      if (this.generator instanceof AutoCloseable) {
+        try {
+          ((AutoCloseable) this.generator).close();
+        } catch (Exception e) {
+          // The response is over either way.
+        }
+      }
+    }
+  }
+
+  /**
+   * A bounded queue of pooled buffers between a writer thread and the connection's thread.
+   */
+  private static final class Pipe {
+    private static final Chunk END = new Chunk(null, 0, null);
+
+    private static final class Chunk {
+      final byte[] data;
+      final int length;
+      final Throwable error;
+
+      Chunk(byte[] data, int length, Throwable error) {
+        this.data = data;
+        this.length = length;
+        this.error = error;
+      }
+    }
+
+    private final BufferPool pool;
+    private final ArrayBlockingQueue<Chunk> queue = new ArrayBlockingQueue<>(PIPE_BUFFERS);
+
+    // Set once the connection's side is closed, i.e. the response is over.
+    private volatile boolean closed;
+
+    final OutputStream output = new OutputStream() {
+      private byte[] buf;
+      private int count;
+      private boolean finished;
+
+      @Override
+      public void write(int b) throws IOException {
+        if (this.buf == null || this.count == this.buf.length) next();
+        this.buf[this.count++] = (byte) b;
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+          if (this.buf == null || this.count == this.buf.length) next();
+
+          int n = Math.min(len, this.buf.length - this.count);
+          System.arraycopy(b, off, this.buf, this.count, n);
+          this.count += n;
+          off += n;
+          len -= n;
+        }
+      }
+
+      // Hands the current buffer over, and starts a new one.
+      private void next() throws IOException {
+        flush();
+        this.buf = Pipe.this.pool.acquire();
+      }
+
+      @Override
+      public void flush() throws IOException {
+        if (this.finished) throw new IOException("Stream closed");
+        if (this.buf == null || this.count == 0) return;
+
+        put(new Chunk(this.buf, this.count, null));
+        this.buf = null;
+        this.count = 0;
+      }
+
+      @Override
+      public void close() throws IOException {
+        if (this.finished) return;
+        flush();
+        this.finished = true;
+        put(END);
+      }
+    };
+
+    final InputStream input = new StreamingBody() {
+      private Chunk current;
+      private int position;
+
+      // Returns false at the end of the body.
+      private boolean fill() throws IOException {
+        while (this.current == null || this.position == this.current.length) {
+          if (this.current == END) return false;
+          if (this.current != null) {
+            if (this.current.error != null) throw new IOException("The body writer failed", this.current.error);
+            Pipe.this.pool.release(this.current.data);
+          }
+
+          try {
+            this.current = Pipe.this.queue.take();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+          }
+          this.position = 0;
+        }
+        return true;
+      }
+
+      @Override
+      public int read() throws IOException {
+        return fill() ? this.current.data[this.position++] & 0xff : -1;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        if (!fill()) return -1;
+
+        int n = Math.min(len, this.current.length - this.position);
+        System.arraycopy(this.current.data, this.position, b, off, n);
+        this.position += n;
+        return n;
+      }
+
+      @Override
+      public void close() {
+        Pipe.this.closed = true;
+        for (Chunk c; (c = Pipe.this.queue.poll()) != null; ) {
+          if (c.data != null) Pipe.this.pool.release(c.data);
+        }
+      }
+    };
+
+    Pipe(BufferPool pool) {
+      this.pool = pool;
+    }
+
+    private void put(Chunk c) throws IOException {
+      try {
+        do {
+          if (this.closed) {
+            this.pool.release(c.data);
+            // Drop whatever was queued since the reader drained the queue.
+            this.input.close();
+            throw new IOException("The client closed the connection");
+          }
+        } while (!this.queue.offer(c, PIPE_POLL_MILLIS, TimeUnit.MILLISECONDS));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException();
+      }
+    }
+
+    void fail(Throwable t) {
+      try {
+        put(new Chunk(null, 0, t));
+      } catch (IOException e) {
+        // Nobody is reading anymore.
+      }
+    }
+  }
+}
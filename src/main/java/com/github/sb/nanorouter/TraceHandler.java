@@ -0,0 +1,56 @@
+package com.github.sb.nanorouter;
+
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.NanoHTTPD.Response.Status;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serves the slow request log and the recent sampled traces of a RequestTracer as text, one trace
+ * per line, oldest first. "?only=slow" leaves out the sampled traces.
+ *
+ * E.g.
+ *   RequestTracer tracer = new RequestTracer(0.01, 250, TimeUnit.MILLISECONDS);
+ *   router.setTracer(tracer);
+ *   router.addHandler(Method.GET, "/debug/traces", new TraceHandler(tracer));
+ */
+public class TraceHandler implements Handler {
+  private final RequestTracer tracer;
+
+  public TraceHandler(RequestTracer tracer) {
+    this.tracer = tracer;
+  }
+
+  public NanoHTTPD.Response handle(RequestContext ctx) {
+    StringBuilder out = new StringBuilder();
+
+    List<RequestTracer.Trace> slow = this.tracer.getSlow();
+    out.append(
+      String.format(
+        Locale.ROOT,
+        "# Slow requests (over %dms): %d in the log, %d in total%n",
+        this.tracer.getSlowThreshold(TimeUnit.MILLISECONDS),
+        slow.size(),
+        this.tracer.getSlowCount()
+      )
+    );
+    for (RequestTracer.Trace t : slow) out.append(t).append('\n');
+
+    if (!"slow".equals(ctx.query("only"))) {
+      List<RequestTracer.Trace> recent = this.tracer.getRecent();
+      out.append(
+        String.format(
+          Locale.ROOT,
+          "# Sampled requests (%s%%): %d held, %d in total%n",
+          this.tracer.getSampleRate() * 100,
+          recent.size(),
+          this.tracer.getSampled()
+        )
+      );
+      for (RequestTracer.Trace t : recent) out.append(t).append('\n');
+    }
+
+    return NanoHTTPD.newFixedLengthResponse(Status.OK, "text/plain", out.toString());
+  }
+}
@@ -0,0 +1,274 @@
+package com.github.sb.nanorouter;
+
+import static org.junit.Assert.*;
+
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.NanoHTTPD.Method;
+import fi.iki.elonen.NanoHTTPD.Response;
+import fi.iki.elonen.NanoHTTPD.Response.Status;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import org.junit.Test;
+
+public class AsyncHandlerTest {
+
+  @Test
+  public void test_Async_CompletesOnAnotherThread() {
+    final AtomicReference<RequestContext> seen = new AtomicReference<>();
+
+    Router router = new Router();
+    router.setRecycleContexts(true);
+    router.addAsyncHandler(
+      Method.GET,
+      "/books/:id",
+      new AsyncHandler() {
+
+        @Override
+        public CompletionStage<Response> handle(final RequestContext ctx) {
+          seen.set(ctx);
+          return CompletableFuture.supplyAsync(
+            new Supplier<Response>() {
+
+              @Override
+              public Response get() {
+                return NanoHTTPD.newFixedLengthResponse("book " + ctx.params.get("id"));
+              }
+            }
+          );
+        }
+      }
+    );
+
+    Response resp = router.handleRequest(null, new StubSession(Method.GET, "/books/1"));
+    assertEquals("book 1", StubSession.body(resp));
+    RequestContext first = seen.get();
+
+    // Async routes never share a recycled context.
+    router.handleRequest(null, new StubSession(Method.GET, "/books/2"));
+    assertNotSame(first, seen.get());
+    assertEquals("1", first.params.get("id"));
+
+    // HEAD falls back to the async GET handler.
+    resp = router.handleRequest(null, new StubSession(Method.HEAD, "/books/3"));
+    assertEquals("6", resp.getHeader("content-length"));
+  }
+
+  @Test
+  public void test_Async_TimesOutAndCancels() {
+    final CompletableFuture<Response> never = new CompletableFuture<>();
+
+    Router router = new Router();
+    router.addAsyncHandler(
+      Method.GET,
+      "/slow",
+      new AsyncHandler() {
+
+        @Override
+        public CompletionStage<Response> handle(RequestContext ctx) {
+          return never;
+        }
+      },
+      50,
+      TimeUnit.MILLISECONDS
+    );
+
+    Response resp = router.handleRequest(null, new StubSession(Method.GET, "/slow"));
+    assertEquals(504, resp.getStatus().getRequestStatus());
+    assertTrue(never.isCancelled());
+  }
+
+  @Test
+  public void test_Async_FailurePropagates() {
+    Router router = new Router();
+    router.setMetricsEnabled(true);
+    router.addAsyncHandler(
+      Method.GET,
+      "/broken",
+      new AsyncHandler() {
+
+        @Override
+        public CompletionStage<Response> handle(RequestContext ctx) {
+          CompletableFuture<Response> f = new CompletableFuture<>();
+          f.completeExceptionally(new IllegalStateException("backend down"));
+          return f;
+        }
+      }
+    );
+
+    try {
+      router.handleRequest(null, new StubSession(Method.GET, "/broken"));
+      fail("expected the failure to propagate");
+    } catch (IllegalStateException e) {
+      assertEquals("backend down", e.getMessage());
+    }
+
+    for (RouteMetrics m : router.getMetrics().getRoutes()) {
+      if (m.getMethod() == Method.GET) assertEquals(1, m.getErrors());
+    }
+  }
+
+  @Test
+  public void test_Async_NioServerDoesNotWait() throws Exception {
+    final CompletableFuture<String> pending = new CompletableFuture<>();
+    final CompletableFuture<Response> abandoned = new CompletableFuture<>();
+
+    Router router = new Router();
+    router.setMetricsEnabled(true);
+    router.addAsyncHandler(
+      Method.GET,
+      "/pending",
+      new AsyncHandler() {
+
+        @Override
+        public CompletionStage<Response> handle(RequestContext ctx) {
+          return pending.thenApply(
+            new Function<String, Response>() {
+
+              @Override
+              public Response apply(String text) {
+                return NanoHTTPD.newFixedLengthResponse(Status.OK, "text/plain", text);
+              }
+            }
+          );
+        }
+      }
+    );
+    router.addAsyncHandler(
+      Method.GET,
+      "/abandoned",
+      new AsyncHandler() {
+
+        @Override
+        public CompletionStage<Response> handle(RequestContext ctx) {
+          return abandoned;
+        }
+      }
+    );
+    router.addHandler(
+      Method.GET,
+      "/sync",
+      new Handler() {
+
+        @Override
+        public Response handle(RequestContext ctx) {
+          return NanoHTTPD.newFixedLengthResponse("sync");
+        }
+      }
+    );
+
+    // One thread: the pending request must not hold it
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    NioServer nio = new NioServer("127.0.0.1", 0, router);
+    nio.setExecutor(executor);
+    nio.start();
+    try {
+      int port = nio.getListeningPort();
+
+      Socket waiting = send(port, "GET /pending HTTP/1.1\r\nHost: x\r\nConnection: close\r\n\r\n");
+      // Nor must the implicit HEAD route
+      Socket head = send(port, "HEAD /pending HTTP/1.1\r\nHost: x\r\nConnection: close\r\n\r\n");
+      Socket sync = send(port, "GET /sync HTTP/1.1\r\nHost: x\r\nConnection: close\r\n\r\n");
+      assertTrue(readAll(sync).endsWith("sync"));
+
+      pending.complete("done");
+      String response = readAll(waiting);
+      assertTrue(response, response.startsWith("HTTP/1.1 200 OK") && response.endsWith("done"));
+      response = readAll(head);
+      assertTrue(response, response.startsWith("HTTP/1.1 200 OK") && response.endsWith("\r\n\r\n"));
+
+      // A connection reset by the client cancels the stage long before the timeout
+      Socket gone = send(port, "GET /abandoned HTTP/1.1\r\nHost: x\r\n\r\n");
+      Thread.sleep(50);
+      gone.setSoLinger(true, 0);
+      gone.close();
+      for (int i = 0; i < 100 && !abandoned.isDone(); ++i) Thread.sleep(10);
+      assertTrue(abandoned.isCancelled());
+
+      for (RouteMetrics m : router.getMetrics().getRoutes()) {
+        if (m.getMethod() == Method.GET && m.getUri().equals("/pending")) assertEquals(1, m.getHits());
+      }
+    } finally {
+      nio.stop();
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void test_Async_NioServerAnswersAfterHalfClose() throws Exception {
+    final CompletableFuture<Response> pending = new CompletableFuture<>();
+
+    Router router = new Router();
+    router.addAsyncHandler(
+      Method.GET,
+      "/pending",
+      new AsyncHandler() {
+
+        @Override
+        public CompletionStage<Response> handle(RequestContext ctx) {
+          return pending;
+        }
+      }
+    );
+    router.addHandler(
+      Method.GET,
+      "/sync",
+      new Handler() {
+
+        @Override
+        public Response handle(RequestContext ctx) {
+          return NanoHTTPD.newFixedLengthResponse("sync");
+        }
+      }
+    );
+
+    NioServer nio = new NioServer("127.0.0.1", 0, router);
+    nio.start();
+    try {
+      // Two pipelined requests, after which the client shuts down its side only
+      Socket socket = send(
+        nio.getListeningPort(),
+        "GET /pending HTTP/1.1\r\nHost: x\r\n\r\nGET /sync HTTP/1.1\r\nHost: x\r\n\r\n"
+      );
+      socket.shutdownOutput();
+      Thread.sleep(50);
+      assertFalse(pending.isDone());
+
+      pending.complete(NanoHTTPD.newFixedLengthResponse(Status.OK, "text/plain", "done"));
+      String response = readAll(socket);
+      assertTrue(response, response.startsWith("HTTP/1.1 200 OK") && response.contains("done"));
+      assertTrue(response, response.endsWith("sync"));
+    } finally {
+      nio.stop();
+    }
+  }
+
+  private static Socket send(int port, String raw) throws IOException {
+    Socket socket = new Socket("127.0.0.1", port);
+    socket.setSoTimeout(5000);
+    socket.getOutputStream().write(raw.getBytes(StandardCharsets.ISO_8859_1));
+    return socket;
+  }
+
+  private static String readAll(Socket socket) throws IOException {
+    try {
+      InputStream in = socket.getInputStream();
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buf = new byte[8192];
+      for (int n; (n = in.read(buf)) >= 0; ) out.write(buf, 0, n);
+      return new String(out.toByteArray(), StandardCharsets.ISO_8859_1);
+    } finally {
+      socket.close();
+    }
+  }
+}
@@ -0,0 +1,235 @@
+package com.github.sb.nanorouter;
+
+import static org.junit.Assert.*;
+
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.NanoHTTPD.Method;
+import fi.iki.elonen.NanoHTTPD.Response;
+import fi.iki.elonen.NanoHTTPD.Response.Status;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import org.junit.Test;
+
+public class CompressionTest {
+  private static final String TEXT = repeat("All work and no play makes Jack a dull boy.\n", 200);
+
+  private static String repeat(String s, int times) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < times; ++i) sb.append(s);
+    return sb.toString();
+  }
+
+  private static Handler fixed(final String mimeType, final String body) {
+    return new Handler() {
+
+      @Override
+      public Response handle(RequestContext ctx) {
+        return NanoHTTPD.newFixedLengthResponse(Status.OK, mimeType, body);
+      }
+    };
+  }
+
+  private static Response get(Router router, String uri, String acceptEncoding) {
+    StubSession session = new StubSession(Method.GET, uri);
+    if (acceptEncoding != null) session.headers.put("accept-encoding", acceptEncoding);
+    return router.handleRequest(null, session);
+  }
+
+  private static String gunzip(byte[] data) throws IOException {
+    InputStream in = new GZIPInputStream(new ByteArrayInputStream(data));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buf = new byte[4096];
+    for (int n; (n = in.read(buf)) >= 0; ) out.write(buf, 0, n);
+    return new String(out.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void test_Compression_Negotiation() throws IOException {
+    Compression gzip = new Compression();
+    Router router = new Router();
+    router.setCompression(gzip);
+    router.addHandler(Method.GET, "/text", fixed("text/plain", TEXT));
+    router.addHandler(Method.GET, "/small", fixed("application/json", "{\"a\":1}"));
+    router.addHandler(Method.GET, "/image", fixed("image/png", TEXT));
+    router.addHandler(Method.GET, "/raw", fixed("text/plain", TEXT), Compression.disable());
+
+    Response r = get(router, "/text", "deflate, gzip;q=0.8");
+    assertEquals("gzip", r.getHeader("Content-Encoding"));
+    assertEquals("Accept-Encoding", r.getHeader("Vary"));
+    byte[] body = StubSession.bytes(r);
+    assertEquals(Integer.toString(body.length), r.getHeader("Content-Length"));
+    assertTrue(body.length < TEXT.length() / 10);
+    assertEquals(TEXT, gunzip(body));
+    assertEquals(1, gzip.getCompressed());
+    assertEquals(TEXT.length(), gzip.getBytesIn());
+    assertEquals(body.length, gzip.getBytesOut());
+
+    // Not accepted
+    r = get(router, "/text", null);
+    assertNull(r.getHeader("Content-Encoding"));
+    assertEquals("Accept-Encoding", r.getHeader("Vary"));
+    assertEquals(TEXT, StubSession.body(r));
+    r = get(router, "/text", "gzip;q=0, br");
+    assertNull(r.getHeader("Content-Encoding"));
+
+    // Too small, already compressed, opted out
+    r = get(router, "/small", "gzip");
+    assertNull(r.getHeader("Content-Encoding"));
+    assertEquals("{\"a\":1}", StubSession.body(r));
+    assertNull(get(router, "/image", "gzip").getHeader("Content-Encoding"));
+    assertNull(get(router, "/raw", "gzip").getHeader("Content-Encoding"));
+    assertNull(get(router, "/missing", "gzip").getHeader("Content-Encoding"));
+    assertEquals(1, gzip.getCompressed());
+
+    // Opt-in mode
+    gzip.setOptIn(true);
+    router.addHandler(Method.GET, "/opted", fixed("text/html", TEXT), Compression.enable());
+    assertNull(get(router, "/text", "gzip").getHeader("Content-Encoding"));
+    assertEquals("gzip", get(router, "/opted", "gzip").getHeader("Content-Encoding"));
+  }
+
+  @Test
+  public void test_Compression_HeadMatchesGet() {
+    Router router = new Router();
+    router.setCompression(new Compression());
+    router.addHandler(Method.GET, "/text", fixed("text/plain", TEXT));
+    router.addHandler(Method.GET, "/cached", fixed("text/plain", TEXT), new ResponseCache(1, TimeUnit.MINUTES, 1024 * 1024));
+
+    for (String uri : new String[] { "/text", "/cached", "/cached" }) {
+      Response get = get(router, uri, "gzip");
+      int length = StubSession.bytes(get).length;
+
+      StubSession session = new StubSession(Method.HEAD, uri);
+      session.headers.put("accept-encoding", "gzip");
+      Response head = router.handleRequest(null, session);
+      assertEquals(uri, "gzip", head.getHeader("Content-Encoding"));
+      assertEquals(uri, "Accept-Encoding", head.getHeader("Vary"));
+      assertEquals(uri, Integer.toString(length), head.getHeader("Content-Length"));
+      assertEquals(uri, 0, StubSession.bytes(head).length);
+    }
+
+    // Without gzip, the uncompressed length
+    Response head = router.handleRequest(null, new StubSession(Method.HEAD, "/text"));
+    assertNull(head.getHeader("Content-Encoding"));
+    assertEquals("Accept-Encoding", head.getHeader("Vary"));
+    assertEquals(Integer.toString(TEXT.length()), head.getHeader("Content-Length"));
+  }
+
+  @Test
+  public void test_Compression_CachesByETag() throws IOException {
+    Compression gzip = new Compression(1);
+    Router router = new Router();
+    router.setCompression(gzip);
+    router.addHandler(
+      Method.GET,
+      "/doc",
+      new Handler() {
+
+        @Override
+        public Response handle(RequestContext ctx) {
+          Response r = NanoHTTPD.newFixedLengthResponse(Status.OK, "text/html", TEXT);
+          r.addHeader("ETag", "\"v1\"");
+          return r;
+        }
+      }
+    );
+
+    Response r = get(router, "/doc", "gzip");
+    assertEquals("W/\"v1\"", r.getHeader("ETag"));
+    byte[] first = StubSession.bytes(r);
+
+    r = get(router, "/doc", "gzip");
+    assertArrayEquals(first, StubSession.bytes(r));
+    assertEquals(1, gzip.getCacheHits());
+    assertEquals(2, gzip.getCompressed());
+    assertEquals(TEXT, gunzip(first));
+
+    gzip.setCacheSize(0);
+    StubSession.bytes(get(router, "/doc", "gzip"));
+    assertEquals(1, gzip.getCacheHits());
+  }
+
+  @Test
+  public void test_Compression_ReusesDeflaters() throws IOException {
+    Compression gzip = new Compression();
+    for (int i = 0; i < 100; ++i) {
+      String text = repeat("line " + i + "\n", 100 + i);
+      assertEquals(text, gunzip(gzip.gzip(text.getBytes(StandardCharsets.UTF_8))));
+    }
+    assertEquals("", gunzip(gzip.gzip(new byte[0])));
+  }
+
+  @Test
+  public void test_Compression_Streaming() throws IOException {
+    Router router = new Router();
+    router.setCompression(new Compression());
+    router.addHandler(
+      Method.GET,
+      "/lines",
+      new Handler() {
+
+        @Override
+        public Response handle(RequestContext ctx) {
+          return StreamingResponses.chunked(
+            Status.OK,
+            "text/csv",
+            new ChunkGenerator() {
+              private int next = 0;
+
+              @Override
+              public boolean next(OutputStream out) throws IOException {
+                out.write(("line " + this.next++ + "\n").getBytes(StandardCharsets.UTF_8));
+                return this.next < 10000;
+              }
+            }
+          );
+        }
+      }
+    );
+
+    Response r = get(router, "/lines", "gzip");
+    assertEquals("gzip", r.getHeader("Content-Encoding"));
+    assertNull(r.getHeader("Content-Length"));
+    String body = gunzip(StubSession.bytes(r));
+    assertTrue(body.startsWith("line 0\nline 1\n"));
+    assertTrue(body.endsWith("line 9999\n"));
+  }
+
+  @Test
+  public void test_Compression_OverHttp() throws Exception {
+    Router router = new Router();
+    router.setCompression(new Compression());
+    router.addHandler(Method.GET, "/text", fixed("text/plain", TEXT));
+
+    RouterServer server = new RouterServer("127.0.0.1", 9126, router);
+    server.start();
+    try {
+      // Twice over one keep-alive connection: the Content-Length must match the compressed body.
+      for (int i = 0; i < 2; ++i) {
+        HttpURLConnection conn = (HttpURLConnection) new URL("http://127.0.0.1:9126/text").openConnection();
+        conn.setRequestProperty("Accept-Encoding", "gzip");
+        assertEquals("gzip", conn.getHeaderField("Content-Encoding"));
+        assertNull(conn.getHeaderField("Transfer-Encoding"));
+
+        InputStream in = conn.getInputStream();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        for (int n; (n = in.read(buf)) >= 0; ) out.write(buf, 0, n);
+        in.close();
+
+        assertEquals(conn.getContentLength(), out.size());
+        assertEquals(TEXT, gunzip(out.toByteArray()));
+      }
+    } finally {
+      server.stop();
+    }
+  }
+}
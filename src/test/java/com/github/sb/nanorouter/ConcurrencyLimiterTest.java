@@ -0,0 +1,157 @@
+package com.github.sb.nanorouter;
+
+import static org.junit.Assert.*;
+
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.NanoHTTPD.Method;
+import fi.iki.elonen.NanoHTTPD.Response;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class ConcurrencyLimiterTest {
+
+  // Blocks until 'release' is counted down.
+  private static Handler blocking(final CountDownLatch release) {
+    return new Handler() {
+
+      @Override
+      public Response handle(RequestContext ctx) {
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          throw new AssertionError(e);
+        }
+        return NanoHTTPD.newFixedLengthResponse("done");
+      }
+    };
+  }
+
+  private static Future<Response> submit(ExecutorService pool, final Router router, final String uri) {
+    return pool.submit(
+      new Callable<Response>() {
+
+        @Override
+        public Response call() {
+          return router.handleRequest(null, new StubSession(Method.GET, uri));
+        }
+      }
+    );
+  }
+
+  private static void awaitInFlight(ConcurrencyLimiter limiter, int n) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (limiter.getInFlight() < n && System.currentTimeMillis() < deadline) Thread.sleep(5);
+    assertEquals(n, limiter.getInFlight());
+  }
+
+  @Test
+  public void test_ConcurrencyLimiter_RejectsWhenFull() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    ConcurrencyLimiter reports = ConcurrencyLimiter.fixed(2);
+    reports.setRetryAfter(5);
+
+    Router router = new Router();
+    router.addHandler(Method.GET, "/reports/:id", blocking(release), reports.filter(ConcurrencyLimiter.Priority.CRITICAL));
+    router.addHandler(Method.GET, "/books", new DefaultHandler());
+
+    ExecutorService pool = Executors.newFixedThreadPool(2);
+    try {
+      Future<Response> first = submit(pool, router, "/reports/1");
+      Future<Response> second = submit(pool, router, "/reports/2");
+      awaitInFlight(reports, 2);
+
+      Response rejected = router.handleRequest(null, new StubSession(Method.GET, "/reports/3"));
+      assertEquals(503, rejected.getStatus().getRequestStatus());
+      assertEquals("5", rejected.getHeader("Retry-After"));
+
+      // Other routes are not affected
+      Response books = router.handleRequest(null, new StubSession(Method.GET, "/books"));
+      assertNotEquals(503, books.getStatus().getRequestStatus());
+
+      release.countDown();
+      assertEquals(Response.Status.OK, first.get(5, TimeUnit.SECONDS).getStatus());
+      assertEquals(Response.Status.OK, second.get(5, TimeUnit.SECONDS).getStatus());
+    } finally {
+      pool.shutdownNow();
+    }
+
+    assertEquals(0, reports.getInFlight());
+    assertEquals(2, reports.getAccepted());
+    assertEquals(1, reports.getRejected());
+    assertEquals(Response.Status.OK, router.handleRequest(null, new StubSession(Method.GET, "/reports/4")).getStatus());
+  }
+
+  @Test
+  public void test_ConcurrencyLimiter_ShedsLowPriorityFirst() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    ConcurrencyLimiter server = ConcurrencyLimiter.fixed(4);
+
+    Router router = new Router();
+    router.addFilter("/slow", server.filter());
+    router.addFilter("/admin", server.filter(ConcurrencyLimiter.Priority.CRITICAL));
+    router.addHandler(Method.GET, "/slow/:id", blocking(release));
+    router.addHandler(Method.GET, "/admin/status", blocking(new CountDownLatch(0)));
+    router.addHandler(
+      Method.GET,
+      "/batch/:id",
+      blocking(new CountDownLatch(0)),
+      server.filter(ConcurrencyLimiter.Priority.SHEDDABLE)
+    );
+
+    ExecutorService pool = Executors.newFixedThreadPool(2);
+    try {
+      submit(pool, router, "/slow/1");
+      submit(pool, router, "/slow/2");
+      awaitInFlight(server, 2);
+
+      // Half the limit is in use: sheddable requests are rejected, the others are let through.
+      Response batch = router.handleRequest(null, new StubSession(Method.GET, "/batch/1"));
+      assertEquals(503, batch.getStatus().getRequestStatus());
+
+      Response admin = router.handleRequest(null, new StubSession(Method.GET, "/admin/status"));
+      assertEquals(Response.Status.OK, admin.getStatus());
+    } finally {
+      release.countDown();
+      pool.shutdown();
+      pool.awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    assertEquals(0, server.getInFlight());
+  }
+
+  @Test
+  public void test_ConcurrencyLimiter_Adapts() {
+    final long[] delayNanos = new long[] { 0 };
+    ConcurrencyLimiter limiter = ConcurrencyLimiter.adaptive(1, 1, 8);
+
+    Router router = new Router();
+    router.addHandler(
+      Method.GET,
+      "/work",
+      new Handler() {
+
+        @Override
+        public Response handle(RequestContext ctx) {
+          long end = System.nanoTime() + delayNanos[0];
+          while (System.nanoTime() < end) Thread.yield();
+          return NanoHTTPD.newFixedLengthResponse("done");
+        }
+      },
+      limiter.filter(ConcurrencyLimiter.Priority.CRITICAL)
+    );
+
+    // Every request fills the limit of 1, and latency is steady: the limit grows.
+    for (int i = 0; i < 100; ++i) router.handleRequest(null, new StubSession(Method.GET, "/work"));
+    assertEquals(2, limiter.getLimit());
+
+    // Latency jumps: the limit shrinks.
+    delayNanos[0] = TimeUnit.MILLISECONDS.toNanos(2);
+    for (int i = 0; i < 100; ++i) router.handleRequest(null, new StubSession(Method.GET, "/work"));
+    assertEquals(1, limiter.getLimit());
+  }
+}
@@ -0,0 +1,104 @@
+package com.github.sb.nanorouter;
+
+import static org.junit.Assert.*;
+
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.NanoHTTPD.Method;
+import fi.iki.elonen.NanoHTTPD.Response;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class ConnectionRunnerTest {
+
+  @Test
+  public void test_RouterServer_ServesThroughRunner() throws IOException {
+    Router router = new Router();
+    router.addHandler(
+      Method.GET,
+      "/books",
+      new Handler() {
+
+        @Override
+        public Response handle(RequestContext ctx) {
+          return NanoHTTPD.newFixedLengthResponse(Thread.currentThread().isDaemon() ? "daemon" : "user");
+        }
+      }
+    );
+
+    ConnectionRunner runner = ConnectionRunner.create();
+    RouterServer s = new RouterServer("127.0.0.1", 9123, router, runner);
+    try {
+      s.start();
+      HttpClient.Response resp = HttpClient.get("http://localhost:9123/books");
+      assertEquals(200, resp.statusCode);
+      assertEquals("daemon", resp.body);
+    } finally {
+      s.stop();
+      runner.shutdown();
+    }
+  }
+
+  @Test
+  public void test_Bounded_RejectsWhenFull() throws Exception {
+    final CountDownLatch entered = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+
+    Router router = new Router();
+    router.addHandler(
+      Method.GET,
+      "/slow",
+      new Handler() {
+
+        @Override
+        public Response handle(RequestContext ctx) {
+          entered.countDown();
+          try {
+            release.await(5, TimeUnit.SECONDS);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          return NanoHTTPD.newFixedLengthResponse("slow");
+        }
+      }
+    );
+
+    // One connection at a time, nothing queued.
+    ConnectionRunner runner = ConnectionRunner.bounded(1, 0);
+    RouterServer s = new RouterServer("127.0.0.1", 9124, router, runner);
+    try {
+      s.start();
+
+      Thread first = new Thread() {
+
+        @Override
+        public void run() {
+          HttpClient.get("http://localhost:9124/slow");
+        }
+      };
+      first.start();
+      assertTrue(entered.await(3, TimeUnit.SECONDS));
+
+      try {
+        HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:9124/slow").openConnection();
+        conn.setReadTimeout(3000);
+        conn.getResponseCode();
+        fail("expected the connection to be closed");
+      } catch (IOException expected) {
+        // The second connection was closed without a response.
+      }
+      // HttpURLConnection retries idempotent requests once, so this may count twice.
+      assertTrue(runner.getRejected() >= 1);
+
+      release.countDown();
+      first.join(3000);
+    } finally {
+      release.countDown();
+      s.stop();
+      runner.shutdown();
+    }
+  }
+}
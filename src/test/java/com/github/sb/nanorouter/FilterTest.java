@@ -0,0 +1,117 @@
+package com.github.sb.nanorouter;
+
+import static org.junit.Assert.*;
+
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.NanoHTTPD.Method;
+import fi.iki.elonen.NanoHTTPD.Response;
+import org.junit.Test;
+
+public class FilterTest {
+
+  // Appends 'tag' to the "X-Trace" header of the response on the way out.
+  private static Filter trace(final String tag) {
+    return new Filter() {
+
+      @Override
+      public Response filter(RequestContext ctx) {
+        Response r = ctx.next();
+        String trace = r.getHeader("X-Trace");
+        r.addHeader("X-Trace", trace == null ? tag : tag + "," + trace);
+        return r;
+      }
+    };
+  }
+
+  private static Handler reply(final String body) {
+    return new Handler() {
+
+      @Override
+      public Response handle(RequestContext ctx) {
+        return NanoHTTPD.newFixedLengthResponse(body);
+      }
+    };
+  }
+
+  @Test
+  public void test_Filters_RunInScopeOrder() {
+    Router router = new Router();
+    router.addFilter("/admin", trace("prefix"));
+    router.addFilter(trace("global"));
+    router.addHandler(Method.GET, "/admin/users/:id", reply("user"), trace("route1"), trace("route2"));
+    router.addHandler(Method.GET, "/books", reply("books"));
+
+    Response resp = router.handleRequest(null, new StubSession(Method.GET, "/admin/users/1"));
+    assertEquals("user", StubSession.body(resp));
+    assertEquals("global,prefix,route1,route2", resp.getHeader("X-Trace"));
+
+    resp = router.handleRequest(null, new StubSession(Method.GET, "/books"));
+    assertEquals("global", resp.getHeader("X-Trace"));
+
+    // Global filters also see requests that match nothing
+    resp = router.handleRequest(null, new StubSession(Method.GET, "/missing"));
+    assertEquals(Response.Status.NOT_FOUND, resp.getStatus());
+    assertEquals("global", resp.getHeader("X-Trace"));
+  }
+
+  @Test
+  public void test_Filters_PrefixMatchesWholeSegments() {
+    Router router = new Router();
+    router.addFilter("/admin", trace("admin"));
+    router.addHandler(Method.GET, "/admin", reply("admin"));
+    router.addHandler(Method.GET, "/administrators", reply("administrators"));
+
+    Response resp = router.handleRequest(null, new StubSession(Method.GET, "/admin"));
+    assertEquals("admin", resp.getHeader("X-Trace"));
+
+    resp = router.handleRequest(null, new StubSession(Method.GET, "/administrators"));
+    assertNull(resp.getHeader("X-Trace"));
+  }
+
+  @Test
+  public void test_Filters_ShortCircuit() {
+    Filter deny = new Filter() {
+
+      @Override
+      public Response filter(RequestContext ctx) {
+        if (ctx.session.getHeaders().containsKey("authorization")) return ctx.next();
+        return NanoHTTPD.newFixedLengthResponse(Response.Status.UNAUTHORIZED, NanoHTTPD.MIME_PLAINTEXT, "denied");
+      }
+    };
+
+    Router router = new Router();
+    router.addHandler(Method.GET, "/secret", reply("secret"), deny, trace("inner"));
+
+    Response resp = router.handleRequest(null, new StubSession(Method.GET, "/secret"));
+    assertEquals(Response.Status.UNAUTHORIZED, resp.getStatus());
+    assertNull(resp.getHeader("X-Trace"));
+
+    StubSession authorized = new StubSession(Method.GET, "/secret");
+    authorized.headers.put("authorization", "token");
+    resp = router.handleRequest(null, authorized);
+    assertEquals("secret", StubSession.body(resp));
+    assertEquals("inner", resp.getHeader("X-Trace"));
+
+    // HEAD goes through the GET route's chain
+    resp = router.handleRequest(null, new StubSession(Method.HEAD, "/secret"));
+    assertEquals(Response.Status.UNAUTHORIZED, resp.getStatus());
+  }
+
+  @Test
+  public void test_Filters_SurviveToBuilder() {
+    RouteTable table = new RouteTable.Builder()
+      .addFilter(trace("global"))
+      .addFilter("/books", trace("books"))
+      .add(Method.GET, "/books/:id", reply("book"))
+      .build();
+
+    Router router = new Router();
+    router.setRoutes(table.toBuilder().add(Method.GET, "/books", reply("books")).build());
+
+    Response resp = router.handleRequest(null, new StubSession(Method.GET, "/books/1"));
+    assertEquals("global,books", resp.getHeader("X-Trace"));
+
+    resp = router.handleRequest(null, new StubSession(Method.GET, "/books"));
+    assertEquals("global,books", resp.getHeader("X-Trace"));
+  }
+}
@@ -0,0 +1,109 @@
+package com.github.sb.nanorouter;
+
+import static org.junit.Assert.*;
+
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.NanoHTTPD.Method;
+import fi.iki.elonen.NanoHTTPD.Response;
+import org.junit.Test;
+
+public class MountTest {
+
+  // Replies with the route's registered URI and its parameters.
+  private static final Handler ECHO = new Handler() {
+
+    @Override
+    public Response handle(RequestContext ctx) {
+      return NanoHTTPD.newFixedLengthResponse(ctx.registeredUri + " " + ctx.params);
+    }
+  };
+
+  private static Filter tag(final String tag) {
+    return new Filter() {
+
+      @Override
+      public Response filter(RequestContext ctx) {
+        Response r = ctx.next();
+        String trace = r.getHeader("X-Trace");
+        r.addHeader("X-Trace", trace == null ? tag : tag + "," + trace);
+        return r;
+      }
+    };
+  }
+
+  private static Response get(Router router, String uri) {
+    return router.handleRequest(null, new StubSession(Method.GET, uri));
+  }
+
+  @Test
+  public void test_Mount_MergesRoutes() {
+    Router books = new Router();
+    books.addHandler(Method.GET, "/", ECHO);
+    books.addHandler(Method.GET, "/books/:id", ECHO);
+    books.addHandler(Method.GET, "/books/:id/*rest", ECHO);
+
+    Router api = new Router();
+    api.addHandler(Method.GET, "/health", ECHO);
+    api.mount("/api/:version/", books);
+
+    assertEquals("/api/:version {version=v1}", StubSession.body(get(api, "/api/v1")));
+    assertEquals("/api/:version/books/:id {version=v2, id=7}", StubSession.body(get(api, "/api/v2/books/7")));
+    assertEquals(
+      "/api/:version/books/:id/*rest {version=v1, id=7, rest=a/b}",
+      StubSession.body(get(api, "/api/v1/books/7/a/b"))
+    );
+    assertEquals("/health {}", StubSession.body(get(api, "/health")));
+    assertEquals(Response.Status.NOT_FOUND, get(api, "/books/7").getStatus());
+
+    // One table, with the implicit HEAD and OPTIONS routes of the mounted URIs
+    assertEquals(4, api.getRoutes().size());
+    Response r = api.handleRequest(null, new StubSession(Method.OPTIONS, "/api/v1/books/7"));
+    assertEquals("GET, HEAD, OPTIONS", r.getHeader("Allow"));
+
+    // Later changes to the child are not seen
+    books.addHandler(Method.GET, "/authors", ECHO);
+    assertEquals(Response.Status.NOT_FOUND, get(api, "/api/v1/authors").getStatus());
+  }
+
+  @Test
+  public void test_Mount_ScopesFilters() {
+    Router admin = new Router();
+    admin.addFilter(tag("child"));
+    admin.addFilter("/users", tag("users"));
+    admin.addHandler(Method.GET, "/users/:id", ECHO, tag("route"));
+    admin.addHandler(Method.GET, "/stats", ECHO);
+
+    Router app = new Router();
+    app.addFilter(tag("global"));
+    app.addFilter("/admin", tag("prefix"));
+    app.addHandler(Method.GET, "/users/:id", ECHO);
+    app.mount("/admin", admin);
+
+    assertEquals("global,prefix,child,users,route", get(app, "/admin/users/1").getHeader("X-Trace"));
+    assertEquals("global,prefix,child", get(app, "/admin/stats").getHeader("X-Trace"));
+    // The child's filters do not leak onto the parent's routes
+    assertEquals("global", get(app, "/users/1").getHeader("X-Trace"));
+  }
+
+  @Test
+  public void test_Mount_Conflicts() {
+    Router child = new Router();
+    child.addHandler(Method.GET, "/books", ECHO);
+
+    Router parent = new Router();
+    parent.setStrictRoutes(true);
+    parent.addHandler(Method.GET, "/api/books", ECHO);
+    parent.mount("/api", child);
+    try {
+      parent.compile();
+      fail();
+    } catch (RouteConflictException e) {
+      assertEquals(1, e.getConflicts().size());
+    }
+
+    try {
+      parent.mount("api", child);
+      fail();
+    } catch (IllegalArgumentException e) {}
+  }
+}
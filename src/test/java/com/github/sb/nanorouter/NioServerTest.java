@@ -0,0 +1,279 @@
+package com.github.sb.nanorouter;
+
+import static org.junit.Assert.*;
+
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.NanoHTTPD.Method;
+import fi.iki.elonen.NanoHTTPD.Response;
+import fi.iki.elonen.NanoHTTPD.Response.Status;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Test;
+
+public class NioServerTest {
+
+  private static Router router() {
+    Router router = new Router();
+    router.addHandler(
+      Method.GET,
+      "/books/:id",
+      new Handler() {
+
+        @Override
+        public Response handle(RequestContext ctx) {
+          String q = ctx.session.getParms().get("q");
+          return NanoHTTPD.newFixedLengthResponse("book " + ctx.params.get("id") + (q != null ? " " + q : ""));
+        }
+      }
+    );
+    router.addHandler(
+      Method.POST,
+      "/echo",
+      new Handler() {
+
+        @Override
+        public Response handle(RequestContext ctx) {
+          try {
+            return NanoHTTPD.newFixedLengthResponse(ctx.bodyAsString(1 << 20));
+          } catch (IOException e) {
+            throw new RuntimeException(e);
+          }
+        }
+      }
+    );
+    router.addHandler(
+      Method.POST,
+      "/form",
+      new Handler() {
+
+        @Override
+        public Response handle(RequestContext ctx) {
+          Map<String, String> files = new HashMap<>();
+          try {
+            ctx.session.parseBody(files);
+          } catch (Exception e) {
+            throw new RuntimeException(e);
+          }
+          return NanoHTTPD.newFixedLengthResponse(ctx.session.getParms().get("name"));
+        }
+      }
+    );
+    router.addHandler(
+      Method.GET,
+      "/error",
+      new Handler() {
+
+        @Override
+        public Response handle(RequestContext ctx) {
+          throw new AssertionError("not a RuntimeException");
+        }
+      }
+    );
+    router.addHandler(
+      Method.GET,
+      "/lines",
+      new Handler() {
+
+        @Override
+        public Response handle(RequestContext ctx) {
+          return StreamingResponses.chunked(
+            Status.OK,
+            "text/plain",
+            new ChunkGenerator() {
+              private int next = 0;
+
+              @Override
+              public boolean next(OutputStream out) throws IOException {
+                out.write(("line " + this.next++ + "\n").getBytes(StandardCharsets.UTF_8));
+                return this.next < 200000;
+              }
+            }
+          );
+        }
+      }
+    );
+    return router;
+  }
+
+  private static String[] request(String url, String method, String body, String contentType) throws IOException {
+    HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+    conn.setRequestMethod(method);
+    conn.setConnectTimeout(3000);
+    conn.setReadTimeout(5000);
+    if (body != null) {
+      conn.setDoOutput(true);
+      conn.setRequestProperty("Content-Type", contentType);
+      OutputStream out = conn.getOutputStream();
+      out.write(body.getBytes(StandardCharsets.UTF_8));
+      out.close();
+    }
+
+    int status = conn.getResponseCode();
+    InputStream in = status < 400 ? conn.getInputStream() : conn.getErrorStream();
+    String text = in == null ? "" : new String(readAll(in), StandardCharsets.UTF_8);
+    return new String[] { Integer.toString(status), conn.getHeaderField("Content-Type"), text };
+  }
+
+  private static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buf = new byte[8192];
+    for (int n; (n = in.read(buf)) >= 0; ) out.write(buf, 0, n);
+    in.close();
+    return out.toByteArray();
+  }
+
+  // Sends 'raw' over a new connection and returns everything until the server closes it.
+  private static String exchange(int port, String raw) throws IOException {
+    Socket socket = new Socket("127.0.0.1", port);
+    try {
+      socket.setSoTimeout(5000);
+      socket.getOutputStream().write(raw.getBytes(StandardCharsets.ISO_8859_1));
+      return new String(readAll(socket.getInputStream()), StandardCharsets.ISO_8859_1);
+    } finally {
+      socket.close();
+    }
+  }
+
+  @Test
+  public void test_Nio_ServesLikeRouterServer() throws IOException {
+    Router router = router();
+    RouterServer blocking = new RouterServer("127.0.0.1", 9127, router);
+    NioServer nio = new NioServer("127.0.0.1", 9128, router);
+    blocking.start();
+    nio.start();
+    try {
+      for (String[] r : new String[][] {
+        { "/books/12?q=a%20b", "GET", null, null },
+        { "/books/12", "HEAD", null, null },
+        { "/missing", "GET", null, null },
+        { "/books/12", "DELETE", null, null },
+        { "/echo", "POST", "hello, world", "text/plain" },
+        { "/form", "POST", "name=J%C3%BCrgen&x=1", "application/x-www-form-urlencoded" },
+      }) {
+        String[] expected = request("http://127.0.0.1:9127" + r[0], r[1], r[2], r[3]);
+        String[] actual = request("http://127.0.0.1:9128" + r[0], r[1], r[2], r[3]);
+        assertArrayEquals(r[1] + " " + r[0], expected, actual);
+      }
+
+      String[] lines = request("http://127.0.0.1:9128/lines", "GET", null, null);
+      assertTrue(lines[2].endsWith("line 199999\n"));
+
+      assertTrue(nio.getRequests() >= 7);
+    } finally {
+      nio.stop();
+      blocking.stop();
+    }
+    assertFalse(nio.isAlive());
+  }
+
+  @Test
+  public void test_Nio_KeepAliveAndPipelining() throws IOException {
+    NioServer nio = new NioServer("127.0.0.1", 0, router());
+    nio.setEventLoops(2);
+    nio.start();
+    try {
+      int port = nio.getListeningPort();
+
+      // Three requests in one write, answered in order on the same connection
+      String responses = exchange(
+        port,
+        "GET /books/1 HTTP/1.1\r\nHost: x\r\n\r\n" +
+        "POST /echo HTTP/1.1\r\nHost: x\r\nContent-Length: 5\r\n\r\nabcde" +
+        "GET /books/3 HTTP/1.1\r\nHost: x\r\nConnection: close\r\n\r\n"
+      );
+      int first = responses.indexOf("book 1");
+      int second = responses.indexOf("abcde");
+      int third = responses.indexOf("book 3");
+      assertTrue(first > 0 && second > first && third > second);
+      assertEquals(3, responses.split("HTTP/1.1 200 OK").length - 1);
+      assertTrue(responses.contains("Connection: close"));
+      assertEquals(1, nio.getAccepted());
+
+      // HTTP/1.0 is closed after the response
+      assertTrue(exchange(port, "GET /books/4 HTTP/1.0\r\n\r\n").endsWith("book 4"));
+    } finally {
+      nio.stop();
+    }
+  }
+
+  @Test
+  public void test_Nio_ErrorsAndContinue() throws IOException {
+    NioServer nio = new NioServer("127.0.0.1", 0, router());
+    nio.start();
+    try {
+      int port = nio.getListeningPort();
+
+      // An Error from the handler is answered, and the connection is not left hanging
+      String responses = exchange(port, "GET /error HTTP/1.1\r\nHost: x\r\n\r\nGET /books/1 HTTP/1.1\r\nHost: x\r\n\r\n");
+      assertTrue(responses, responses.startsWith("HTTP/1.1 500 "));
+      assertFalse(responses.contains("book 1"));
+
+      // "100 Continue" is sent once the requests before the one that asked for it are answered
+      Socket socket = new Socket("127.0.0.1", port);
+      try {
+        socket.setSoTimeout(5000);
+        OutputStream out = socket.getOutputStream();
+        out.write(
+          (
+            "GET /books/1 HTTP/1.1\r\nHost: x\r\n\r\n" +
+            "POST /echo HTTP/1.1\r\nHost: x\r\nContent-Length: 5\r\nExpect: 100-continue\r\nConnection: close\r\n\r\n"
+          ).getBytes(StandardCharsets.ISO_8859_1)
+        );
+
+        InputStream in = socket.getInputStream();
+        StringBuilder received = new StringBuilder();
+        while (received.indexOf("HTTP/1.1 100 Continue\r\n\r\n") < 0) {
+          int b = in.read();
+          assertTrue(received.toString(), b >= 0);
+          received.append((char) b);
+        }
+        assertTrue(received.indexOf("book 1") > 0);
+
+        out.write("abcde".getBytes(StandardCharsets.ISO_8859_1));
+        assertTrue(new String(readAll(in), StandardCharsets.ISO_8859_1).endsWith("abcde"));
+      } finally {
+        socket.close();
+      }
+    } finally {
+      nio.stop();
+    }
+  }
+
+  @Test
+  public void test_Nio_RejectsMalformedRequests() throws IOException {
+    NioServer nio = new NioServer("127.0.0.1", 0, router());
+    nio.setRequestLimits(1024, 16);
+    nio.start();
+    try {
+      int port = nio.getListeningPort();
+
+      assertTrue(exchange(port, "NONSENSE\r\n\r\n").startsWith("HTTP/1.1 400 "));
+      assertTrue(exchange(port, "BREW /pot HTTP/1.1\r\n\r\n").startsWith("HTTP/1.1 501 "));
+      assertTrue(exchange(port, "GET / HTTP/2.0\r\n\r\n").startsWith("HTTP/1.1 505 "));
+      assertTrue(
+        exchange(port, "POST /echo HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n5\r\nabcde\r\n0\r\n\r\n")
+          .startsWith("HTTP/1.1 411 ")
+      );
+      assertTrue(exchange(port, "POST /echo HTTP/1.1\r\nContent-Length: 17\r\n\r\n").startsWith("HTTP/1.1 413 "));
+
+      StringBuilder huge = new StringBuilder("GET /books/1 HTTP/1.1\r\n");
+      for (int i = 0; i < 100; ++i) huge.append("X-Filler-").append(i).append(": 0123456789\r\n");
+      assertTrue(exchange(port, huge.append("\r\n").toString()).startsWith("HTTP/1.1 431 "));
+
+      // Requests before a malformed one are still answered
+      String responses = exchange(port, "GET /books/1 HTTP/1.1\r\n\r\nNONSENSE\r\n\r\n");
+      assertTrue(responses.startsWith("HTTP/1.1 200 OK"));
+      assertTrue(responses.contains("HTTP/1.1 400 "));
+    } finally {
+      nio.stop();
+    }
+  }
+}
@@ -0,0 +1,154 @@
+package com.github.sb.nanorouter;
+
+import static org.junit.Assert.*;
+
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.NanoHTTPD.Method;
+import fi.iki.elonen.NanoHTTPD.Response;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class RateLimiterTest {
+  private static final Handler OK = new Handler() {
+
+    @Override
+    public Response handle(RequestContext ctx) {
+      return NanoHTTPD.newFixedLengthResponse("ok");
+    }
+  };
+
+  private static int status(Router router, String uri, String header, String value) {
+    StubSession session = new StubSession(Method.GET, uri);
+    if (header != null) session.headers.put(header, value);
+    return router.handleRequest(null, session).getStatus().getRequestStatus();
+  }
+
+  @Test
+  public void test_RateLimiter_RejectsPastTheBurst() {
+    RateLimiter limiter = RateLimiter.perRemoteAddress(1, 3);
+    Router router = new Router();
+    router.addFilter(limiter.filter());
+    router.addHandler(Method.GET, "/books", OK);
+
+    for (int i = 0; i < 3; ++i) assertEquals(200, status(router, "/books", "remote-addr", "10.0.0.1"));
+
+    StubSession session = new StubSession(Method.GET, "/books");
+    session.headers.put("remote-addr", "10.0.0.1");
+    Response rejected = router.handleRequest(null, session);
+    assertEquals(429, rejected.getStatus().getRequestStatus());
+    assertEquals("1", rejected.getHeader("Retry-After"));
+
+    // Other clients have buckets of their own
+    assertEquals(200, status(router, "/books", "remote-addr", "10.0.0.2"));
+
+    assertEquals(4, limiter.getAccepted());
+    assertEquals(1, limiter.getRejected());
+    assertEquals(2, limiter.getKeys());
+  }
+
+  @Test
+  public void test_RateLimiter_Refills() throws Exception {
+    RateLimiter limiter = RateLimiter.perHeader("X-Api-Key", 50, 1);
+    Router router = new Router();
+    router.addHandler(Method.GET, "/books", OK, limiter.filter());
+
+    assertEquals(200, status(router, "/books", "x-api-key", "k"));
+    assertEquals(429, status(router, "/books", "x-api-key", "k"));
+
+    // One token every 20ms
+    Thread.sleep(50);
+    assertEquals(200, status(router, "/books", "x-api-key", "k"));
+
+    // Requests without a key share one bucket
+    assertEquals(200, status(router, "/books", null, null));
+    assertEquals(429, status(router, "/books", null, null));
+  }
+
+  @Test
+  public void test_RateLimiter_KeysByRouteParam() {
+    RateLimiter limiter = RateLimiter.perParam("tenant", 1, 1);
+    Router router = new Router();
+    router.addFilter("/tenants/:tenant", limiter.filter());
+    router.addHandler(Method.GET, "/tenants/:tenant/reports", OK);
+
+    assertEquals(200, status(router, "/tenants/a/reports", null, null));
+    assertEquals(429, status(router, "/tenants/a/reports", null, null));
+    assertEquals(200, status(router, "/tenants/b/reports", null, null));
+    assertEquals(2, limiter.getKeys());
+  }
+
+  @Test
+  public void test_RateLimiter_EvictsIdleKeys() throws Exception {
+    // Every bucket is full again 1ms after its request
+    RateLimiter limiter = RateLimiter.perRemoteAddress(1000, 1);
+    limiter.setMaxKeys(100);
+    Router router = new Router();
+    router.addFilter(limiter.filter());
+    router.addHandler(Method.GET, "/books", OK);
+
+    for (int i = 0; i < 100; ++i) assertEquals(200, status(router, "/books", "remote-addr", "10.0.0." + i));
+    assertEquals(100, limiter.getKeys());
+
+    // The table is full of active keys: new ones share a bucket meanwhile
+    assertEquals(200, status(router, "/books", "remote-addr", "10.0.1.1"));
+    assertEquals(429, status(router, "/books", "remote-addr", "10.0.1.2"));
+    assertEquals(100, limiter.getKeys());
+
+    // Once they are idle, they are swept to make room
+    Thread.sleep(150);
+    assertEquals(200, status(router, "/books", "remote-addr", "10.0.1.3"));
+    assertEquals(1, limiter.getKeys());
+    assertEquals(100, limiter.getEvictions());
+  }
+
+  @Test
+  public void test_RateLimiter_ConcurrentRequests() throws Exception {
+    final RateLimiter limiter = RateLimiter.perRemoteAddress(1, 100);
+    final Router router = new Router();
+    router.addFilter(limiter.filter());
+    router.addHandler(Method.GET, "/books", OK);
+
+    int threads = 8;
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<Void>> futures = new ArrayList<>();
+      for (int t = 0; t < threads; ++t) {
+        final int thread = t;
+        futures.add(
+          pool.submit(
+            new Callable<Void>() {
+
+              @Override
+              public Void call() {
+                for (int i = 0; i < 20000; ++i) {
+                  // One hot key, and many distinct ones
+                  String address = i % 2 == 0 ? "10.0.0.1" : "11." + thread + "." + (i >> 8) + "." + (i & 255);
+                  status(router, "/books", "remote-addr", address);
+                }
+                return null;
+              }
+            }
+          )
+        );
+      }
+      long start = System.nanoTime();
+      for (Future<Void> f : futures) f.get(30, TimeUnit.SECONDS);
+      long seconds = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start) + 1;
+
+      // Every distinct key got its request; the hot key no more than its burst plus its rate
+      long distinct = threads * 10000;
+      assertEquals(distinct + threads * 10000, limiter.getAccepted() + limiter.getRejected());
+      assertTrue(limiter.getAccepted() >= distinct + 100);
+      assertTrue(limiter.getAccepted() <= distinct + 100 + seconds);
+      assertEquals(distinct + 1, limiter.getKeys());
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+}
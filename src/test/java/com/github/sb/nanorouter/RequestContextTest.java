@@ -0,0 +1,124 @@
+package com.github.sb.nanorouter;
+
+import static org.junit.Assert.*;
+
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.NanoHTTPD.Method;
+import fi.iki.elonen.NanoHTTPD.Response;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import org.junit.Test;
+
+public class RequestContextTest {
+
+  // Serves the session with a route for 'pattern', and returns the context its handler saw.
+  private static RequestContext capture(String pattern, StubSession session) {
+    final RequestContext[] seen = new RequestContext[1];
+    Router router = new Router();
+    router.setRecycleContexts(false);
+    router.addHandler(
+      session.method,
+      pattern,
+      new Handler() {
+
+        @Override
+        public Response handle(RequestContext ctx) {
+          seen[0] = ctx;
+          return NanoHTTPD.newFixedLengthResponse("ok");
+        }
+      }
+    );
+    router.handleRequest(null, session);
+    return seen[0];
+  }
+
+  @Test
+  public void test_RequestContext_TypedParams() {
+    String id = "123e4567-e89b-12d3-a456-426614174000";
+    RequestContext ctx = capture(
+      "/users/:n/orders/:big/items/:id/:neg",
+      new StubSession(Method.GET, "/users/42/orders/9223372036854775807/items/" + id + "/-9223372036854775808")
+    );
+
+    assertEquals(42, ctx.params.getInt("n"));
+    assertEquals(Long.MAX_VALUE, ctx.params.getLong("big"));
+    assertEquals(Long.MIN_VALUE, ctx.params.getLong("neg"));
+    assertEquals(UUID.fromString(id), ctx.params.getUUID("id"));
+
+    try {
+      ctx.params.getInt("big");
+      fail();
+    } catch (NumberFormatException e) {}
+    try {
+      ctx.params.getLong("id");
+      fail();
+    } catch (NumberFormatException e) {}
+    try {
+      ctx.params.getUUID("n");
+      fail();
+    } catch (IllegalArgumentException e) {}
+    try {
+      ctx.params.getInt("missing");
+      fail();
+    } catch (IllegalArgumentException e) {}
+
+    ctx = capture("/n/:n", new StubSession(Method.GET, "/n/92233720368547758070"));
+    try {
+      ctx.params.getLong("n");
+      fail();
+    } catch (NumberFormatException e) {}
+  }
+
+  @Test
+  public void test_RequestContext_QueryAndHeaders() {
+    StubSession session = new StubSession(Method.GET, "/search");
+    session.queryString = "q=hello+world&page=2&empty&tag=a%26b&ta%67=second&page=3";
+    session.headers.put("x-request-id", "abc");
+    RequestContext ctx = capture("/search", session);
+
+    assertEquals("hello world", ctx.query("q"));
+    assertEquals("2", ctx.query("page"));
+    assertEquals("", ctx.query("empty"));
+    assertEquals("a&b", ctx.query("tag"));
+    assertNull(ctx.query("missing"));
+    assertNull(ctx.query("pag"));
+    assertEquals("abc", ctx.header("X-Request-Id"));
+    assertNull(ctx.header("Accept"));
+
+    session = new StubSession(Method.GET, "/search");
+    assertNull(capture("/search", session).query("q"));
+  }
+
+  @Test
+  public void test_RequestContext_Body() throws IOException {
+    byte[] stream = "{\"a\":1}GET /next HTTP/1.1".getBytes(StandardCharsets.UTF_8);
+
+    StubSession session = new StubSession(Method.POST, "/items");
+    session.headers.put("content-length", "7");
+    session.body = new ByteArrayInputStream(stream);
+    RequestContext ctx = capture("/items", session);
+
+    // The body ends at the Content-Length, leaving the rest of the connection's stream alone.
+    assertEquals("{\"a\":1}", ctx.bodyAsString(1024));
+    assertSame(ctx.body(1024), ctx.body(1024));
+    assertEquals('G', session.body.read());
+
+    session = new StubSession(Method.POST, "/items");
+    session.headers.put("content-length", "7");
+    session.body = new ByteArrayInputStream(stream);
+    ctx = capture("/items", session);
+    try {
+      ctx.body(4);
+      fail();
+    } catch (IOException e) {}
+
+    // Without a Content-Length the body is empty
+    session = new StubSession(Method.POST, "/items");
+    session.body = new ByteArrayInputStream(stream);
+    InputStream in = capture("/items", session).body(1024);
+    assertEquals(-1, in.read());
+  }
+}
@@ -0,0 +1,117 @@
+package com.github.sb.nanorouter;
+
+import static org.junit.Assert.*;
+
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.NanoHTTPD.Method;
+import fi.iki.elonen.NanoHTTPD.Response;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class RequestTracerTest {
+
+  private static Handler sleeping(final long millis) {
+    return new Handler() {
+
+      @Override
+      public Response handle(RequestContext ctx) {
+        try {
+          Thread.sleep(millis);
+        } catch (InterruptedException e) {
+          throw new AssertionError(e);
+        }
+        return NanoHTTPD.newFixedLengthResponse("book " + ctx.params.get("id"));
+      }
+    };
+  }
+
+  @Test
+  public void test_RequestTracer_SampledRequestsAreTimedUntilWritten() throws Exception {
+    RequestTracer tracer = new RequestTracer(1, 1, TimeUnit.MINUTES);
+    Router router = new Router();
+    router.setTracer(tracer);
+    router.addHandler(Method.GET, "/books/:id", sleeping(5));
+
+    Response r = router.handleRequest(null, new StubSession(Method.GET, "/books/12"));
+    // Not recorded before the server is done with the response
+    assertTrue(tracer.getRecent().isEmpty());
+
+    assertEquals("book 12", StubSession.body(r));
+    r.close();
+
+    List<RequestTracer.Trace> recent = tracer.getRecent();
+    assertEquals(1, recent.size());
+    assertEquals(1, tracer.getSampled());
+
+    RequestTracer.Trace t = recent.get(0);
+    assertEquals(Method.GET, t.getMethod());
+    assertEquals("/books/12", t.getUri());
+    assertEquals("/books/:id", t.getRoute());
+    assertEquals(Collections.singletonMap("id", "12"), t.getParams());
+    assertEquals(200, t.getStatus());
+    assertTrue(t.getHandlerNanos() >= TimeUnit.MILLISECONDS.toNanos(5));
+    assertTrue(t.getRoutingNanos() >= 0);
+    assertTrue(t.getWriteNanos() >= 0);
+    assertEquals(
+      t.getRoutingNanos() + t.getHandlerNanos() + t.getResponseNanos() + t.getWriteNanos(),
+      t.getTotalNanos()
+    );
+
+    assertTrue(tracer.getSlow().isEmpty());
+  }
+
+  @Test
+  public void test_RequestTracer_LogsSlowRequests() {
+    RequestTracer tracer = new RequestTracer(0, 20, TimeUnit.MILLISECONDS, 16, 2);
+    Router router = new Router();
+    router.setRecycleContexts(true);
+    router.setTracer(tracer);
+    router.addHandler(Method.GET, "/books/:id", sleeping(0));
+    router.addHandler(Method.GET, "/slow/:id", sleeping(30));
+
+    router.handleRequest(null, new StubSession(Method.GET, "/books/1"));
+    assertTrue(tracer.getSlow().isEmpty());
+
+    for (int i = 1; i <= 3; ++i) {
+      router.handleRequest(null, new StubSession(Method.GET, "/slow/" + i));
+      // The context is recycled, the logged parameters are not
+      router.handleRequest(null, new StubSession(Method.GET, "/books/x"));
+    }
+
+    // The log keeps the most recent ones
+    List<RequestTracer.Trace> slow = tracer.getSlow();
+    assertEquals(2, slow.size());
+    assertEquals(3, tracer.getSlowCount());
+    assertEquals(0, tracer.getSampled());
+    assertTrue(tracer.getRecent().isEmpty());
+
+    RequestTracer.Trace t = slow.get(1);
+    assertEquals("/slow/:id", t.getRoute());
+    assertEquals("3", t.getParams().get("id"));
+    assertTrue(t.getHandlerNanos() >= TimeUnit.MILLISECONDS.toNanos(30));
+    assertEquals(-1, t.getWriteNanos());
+  }
+
+  @Test
+  public void test_TraceHandler_ServesTraces() throws Exception {
+    RequestTracer tracer = new RequestTracer(1, 1, TimeUnit.MINUTES);
+    Router router = new Router();
+    router.setTracer(tracer);
+    router.addHandler(Method.GET, "/books/:id", sleeping(0));
+    router.addHandler(Method.GET, "/debug/traces", new TraceHandler(tracer));
+
+    router.handleRequest(null, new StubSession(Method.GET, "/books/7")).close();
+    router.handleRequest(null, new StubSession(Method.GET, "/missing")).close();
+
+    String body = StubSession.body(router.handleRequest(null, new StubSession(Method.GET, "/debug/traces")));
+    assertTrue(body, body.contains("# Slow requests (over 60000ms): 0 in the log, 0 in total"));
+    assertTrue(body, body.contains("GET /books/7 route=/books/:id params={id=7} status=200 total="));
+    assertTrue(body, body.contains("GET /missing route=null params={} status=404 total="));
+
+    StubSession slowOnly = new StubSession(Method.GET, "/debug/traces");
+    slowOnly.queryString = "only=slow";
+    assertFalse(StubSession.body(router.handleRequest(null, slowOnly)).contains("/books/7"));
+  }
+}
@@ -0,0 +1,130 @@
+package com.github.sb.nanorouter;
+
+import static org.junit.Assert.*;
+
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.NanoHTTPD.Method;
+import fi.iki.elonen.NanoHTTPD.Response;
+import org.junit.Test;
+
+public class ResolutionCacheTest {
+
+  private static Router router(int cacheSize) {
+    Router router = new Router();
+    router.setResolutionCacheSize(cacheSize);
+    router.addHandler(
+      Method.GET,
+      "/books/:id",
+      new Handler() {
+
+        @Override
+        public Response handle(RequestContext ctx) {
+          return NanoHTTPD.newFixedLengthResponse(ctx.registeredUri + " " + ctx.params);
+        }
+      }
+    );
+    return router;
+  }
+
+  private static String get(Router router, String uri) {
+    return StubSession.body(router.handleRequest(null, new StubSession(Method.GET, uri)));
+  }
+
+  @Test
+  public void test_Cache_HitsAfterRepeatedRequests() {
+    Router router = router(16);
+
+    assertEquals("/books/:id {id=1}", get(router, "/books/1"));
+    assertEquals("/books/:id {id=1}", get(router, "/books/1")); // admitted on the second request
+    assertEquals("/books/:id {id=1}", get(router, "/books/1"));
+    assertEquals("/books/:id {id=22}", get(router, "/books/22"));
+
+    ResolutionCache cache = router.getResolutionCache();
+    assertEquals(3, cache.getMisses());
+    assertEquals(1, cache.getSize());
+
+    // Hits are sampled: the count is an estimate
+    for (int i = 0; i < 1600; ++i) get(router, "/books/1");
+    assertEquals(3, cache.getMisses());
+    assertTrue(String.valueOf(cache.getHits()), cache.getHits() > 800 && cache.getHits() < 2400);
+
+    // Misses are never cached
+    for (int i = 0; i < 5; ++i) get(router, "/authors");
+    assertEquals(1, cache.getSize());
+  }
+
+  @Test
+  public void test_Cache_InvalidatedWhenRoutesChange() {
+    Router router = router(16);
+    get(router, "/books/1");
+    get(router, "/books/1");
+    assertEquals(1, router.getResolutionCache().getSize());
+
+    router.addHandler(
+      Method.GET,
+      "/books/1",
+      new Handler() {
+
+        @Override
+        public Response handle(RequestContext ctx) {
+          return NanoHTTPD.newFixedLengthResponse("static");
+        }
+      }
+    );
+
+    assertEquals("static", get(router, "/books/1"));
+    assertEquals(0, router.getResolutionCache().getHits());
+  }
+
+  @Test
+  public void test_Cache_ScanResistant() {
+    Router router = router(64);
+
+    // A hot set, requested repeatedly
+    for (int round = 0; round < 10; ++round) {
+      for (int i = 0; i < 64; ++i) get(router, "/books/hot" + i);
+    }
+    ResolutionCache cache = router.getResolutionCache();
+    assertEquals(64, cache.getSize());
+
+    // A scan over many URIs that are each requested twice, while the hot set keeps being used
+    for (int i = 0; i < 2000; ++i) {
+      get(router, "/books/cold" + i);
+      get(router, "/books/cold" + i);
+      get(router, "/books/hot" + (i % 64));
+    }
+
+    long misses = cache.getMisses();
+    for (int i = 0; i < 64; ++i) get(router, "/books/hot" + i);
+    assertTrue("hot set was flushed", cache.getMisses() - misses <= 4);
+  }
+
+  @Test
+  public void test_Cache_AdmitsNewHotUris() {
+    Router router = router(4);
+    for (int i = 0; i < 4; ++i) {
+      get(router, "/books/old" + i);
+      get(router, "/books/old" + i);
+    }
+
+    for (int round = 0; round < 10; ++round) get(router, "/books/new");
+
+    assertTrue(router.getResolutionCache().getEvictions() > 0);
+    long misses = router.getResolutionCache().getMisses();
+    get(router, "/books/new");
+    assertEquals(misses, router.getResolutionCache().getMisses());
+  }
+
+  @Test
+  public void test_Cache_StepsAsideForUniformTraffic() {
+    Router router = router(64);
+
+    for (int i = 0; i < 20000; ++i) get(router, "/books/" + i);
+    ResolutionCache cache = router.getResolutionCache();
+    assertTrue(cache.isBypassed());
+
+    // Traffic becomes skewed again: the sampled URIs bring the hit ratio back up
+    for (int i = 0; i < 200000; ++i) get(router, "/books/hot" + (i % 32));
+    assertFalse(cache.isBypassed());
+  }
+}
@@ -0,0 +1,269 @@
+package com.github.sb.nanorouter;
+
+import static org.junit.Assert.*;
+
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.NanoHTTPD.Method;
+import fi.iki.elonen.NanoHTTPD.Response;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+public class ResponseCacheTest {
+
+  // Replies with the "id" parameter and the number of times it ran.
+  private static Handler counting(final AtomicInteger calls) {
+    return new Handler() {
+
+      @Override
+      public Response handle(RequestContext ctx) {
+        int n = calls.incrementAndGet();
+        Response r = NanoHTTPD.newFixedLengthResponse(ctx.params.get("id") + "#" + n);
+        r.addHeader("ETag", "\"" + n + "\"");
+        return r;
+      }
+    };
+  }
+
+  private static Response get(Router router, String uri, String... headers) {
+    StubSession session = new StubSession(Method.GET, uri);
+    for (int i = 0; i < headers.length; i += 2) session.headers.put(headers[i], headers[i + 1]);
+    return router.handleRequest(null, session);
+  }
+
+  @Test
+  public void test_ResponseCache_KeyedByParamsAndHeaders() {
+    AtomicInteger calls = new AtomicInteger();
+    ResponseCache cache = new ResponseCache(1, TimeUnit.MINUTES, 1024 * 1024);
+    cache.setKeyHeaders("Accept-Language");
+
+    Router router = new Router();
+    router.addHandler(Method.GET, "/books/:id", counting(calls), cache);
+
+    assertEquals("1#1", StubSession.body(get(router, "/books/1")));
+    Response replayed = get(router, "/books/1");
+    assertEquals("1#1", StubSession.body(replayed));
+    assertEquals("\"1\"", replayed.getHeader("ETag"));
+    assertEquals("text/html", replayed.getMimeType());
+
+    assertEquals("2#2", StubSession.body(get(router, "/books/2")));
+    assertEquals("1#3", StubSession.body(get(router, "/books/1", "accept-language", "fr")));
+    assertEquals("1#3", StubSession.body(get(router, "/books/1", "accept-language", "fr")));
+
+    // Implicit HEAD is answered from the GET entries, without the body
+    Response head = router.handleRequest(null, new StubSession(Method.HEAD, "/books/2"));
+    assertEquals("", StubSession.body(head));
+    assertEquals("3", head.getHeader("content-length"));
+    assertEquals("\"2\"", head.getHeader("ETag"));
+
+    assertEquals(3, calls.get());
+    assertEquals(3, cache.getMisses());
+    assertEquals(3, cache.getHits());
+    assertEquals(3, cache.getSize());
+    assertEquals(0.5, cache.getHitRatio(), 1e-9);
+
+    cache.clear();
+    assertEquals(0, cache.getSize());
+    assertEquals(0, cache.getBytes());
+    assertEquals("1#4", StubSession.body(get(router, "/books/1")));
+  }
+
+  @Test
+  public void test_ResponseCache_HeadDoesNotStoreAnEmptyBody() {
+    AtomicInteger calls = new AtomicInteger();
+    ResponseCache cache = new ResponseCache(1, TimeUnit.MINUTES, 1024 * 1024);
+
+    Router router = new Router();
+    router.addHandler(Method.GET, "/books/:id", counting(calls), cache);
+
+    Response head = router.handleRequest(null, new StubSession(Method.HEAD, "/books/1"));
+    assertEquals("", StubSession.body(head));
+    assertEquals("3", head.getHeader("content-length"));
+    assertEquals(0, cache.getSize());
+
+    // The GET after it is not served the HEAD's empty body
+    assertEquals("1#2", StubSession.body(get(router, "/books/1")));
+    assertEquals("1#2", StubSession.body(get(router, "/books/1")));
+    assertEquals(2, calls.get());
+    assertEquals(2, cache.getMisses());
+    assertEquals(1, cache.getHits());
+  }
+
+  @Test
+  public void test_ResponseCache_GlobalFilterPassesUnroutedRequests() {
+    AtomicInteger calls = new AtomicInteger();
+    ResponseCache cache = new ResponseCache(1, TimeUnit.MINUTES, 1024 * 1024);
+
+    Router router = new Router();
+    router.addFilter(cache);
+    router.addHandler(Method.GET, "/books/:id", counting(calls));
+
+    assertEquals(404, get(router, "/missing").getStatus().getRequestStatus());
+    Response r = router.handleRequest(null, new StubSession(Method.DELETE, "/books/1"));
+    assertEquals(405, r.getStatus().getRequestStatus());
+
+    assertEquals("1#1", StubSession.body(get(router, "/books/1")));
+    assertEquals("1#1", StubSession.body(get(router, "/books/1")));
+    assertEquals(1, cache.getHits());
+    assertEquals(1, cache.getSize());
+  }
+
+  @Test
+  public void test_ResponseCache_OnlyCachesCacheableResponses() throws InterruptedException {
+    final AtomicInteger calls = new AtomicInteger();
+    ResponseCache cache = new ResponseCache(50, TimeUnit.MILLISECONDS, 1024 * 1024);
+    cache.setMaxEntryBytes(16);
+
+    Router router = new Router();
+    router.addHandler(Method.GET, "/books/:id", counting(calls), cache);
+    router.addHandler(
+      Method.GET,
+      "/private/:id",
+      new Handler() {
+
+        @Override
+        public Response handle(RequestContext ctx) {
+          calls.incrementAndGet();
+          Response r = NanoHTTPD.newFixedLengthResponse("private");
+          r.addHeader("Cache-Control", "private, max-age=60");
+          return r;
+        }
+      },
+      cache
+    );
+    router.addHandler(
+      Method.GET,
+      "/missing/:id",
+      new Handler() {
+
+        @Override
+        public Response handle(RequestContext ctx) {
+          calls.incrementAndGet();
+          return NanoHTTPD.newFixedLengthResponse(Response.Status.NOT_FOUND, "text/plain", "no");
+        }
+      },
+      cache
+    );
+    router.addHandler(
+      Method.GET,
+      "/large/:id",
+      new Handler() {
+
+        @Override
+        public Response handle(RequestContext ctx) {
+          calls.incrementAndGet();
+          return NanoHTTPD.newFixedLengthResponse("0123456789abcdefghij");
+        }
+      },
+      cache
+    );
+
+    for (int i = 0; i < 2; ++i) {
+      get(router, "/private/1");
+      get(router, "/missing/1");
+      // Too large bodies are passed through intact
+      assertEquals("0123456789abcdefghij", StubSession.body(get(router, "/large/1")));
+    }
+    assertEquals(6, calls.get());
+    assertEquals(0, cache.getSize());
+
+    // Entries expire
+    get(router, "/books/1");
+    get(router, "/books/1");
+    assertEquals(7, calls.get());
+    Thread.sleep(100);
+    assertEquals("1#8", StubSession.body(get(router, "/books/1")));
+  }
+
+  @Test
+  public void test_ResponseCache_EvictsToFit() {
+    AtomicInteger calls = new AtomicInteger();
+    // Room for about three entries
+    ResponseCache cache = new ResponseCache(1, TimeUnit.MINUTES, 3 * 200);
+
+    Router router = new Router();
+    router.addHandler(Method.GET, "/books/:id", counting(calls), cache);
+
+    for (int i = 0; i < 20; ++i) {
+      get(router, "/books/" + i);
+      assertTrue(cache.getBytes() <= 3 * 200);
+    }
+    assertTrue(cache.getSize() > 0);
+    assertEquals(20 - cache.getSize(), cache.getEvictions());
+
+    // Entries that are hit survive the next sweep
+    get(router, "/books/19");
+    get(router, "/books/20");
+    long evictions = cache.getEvictions();
+    get(router, "/books/19");
+    assertEquals(evictions, cache.getEvictions());
+    assertEquals(2, cache.getHits());
+  }
+
+  @Test
+  public void test_ResponseCache_CoalescesMisses() throws Exception {
+    final AtomicInteger calls = new AtomicInteger();
+    final CountDownLatch release = new CountDownLatch(1);
+    final ResponseCache cache = new ResponseCache(1, TimeUnit.MINUTES, 1024 * 1024);
+
+    final Router router = new Router();
+    router.addHandler(
+      Method.GET,
+      "/slow/:id",
+      new Handler() {
+
+        @Override
+        public Response handle(RequestContext ctx) {
+          calls.incrementAndGet();
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            throw new AssertionError(e);
+          }
+          return NanoHTTPD.newFixedLengthResponse("slow " + ctx.params.get("id"));
+        }
+      },
+      cache
+    );
+
+    int threads = 8;
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<String>> results = new ArrayList<>();
+      for (int i = 0; i < threads; ++i) {
+        results.add(
+          pool.submit(
+            new Callable<String>() {
+
+              @Override
+              public String call() {
+                return StubSession.body(get(router, "/slow/1"));
+              }
+            }
+          )
+        );
+      }
+
+      // Give every request time to reach the cache while the leader is blocked.
+      long deadline = System.currentTimeMillis() + 5000;
+      while (calls.get() == 0 && System.currentTimeMillis() < deadline) Thread.sleep(10);
+      Thread.sleep(200);
+      release.countDown();
+
+      for (Future<String> f : results) assertEquals("slow 1", f.get(5, TimeUnit.SECONDS));
+    } finally {
+      pool.shutdownNow();
+    }
+
+    assertEquals(1, calls.get());
+    assertEquals(1, cache.getMisses());
+    assertEquals(threads - 1, cache.getCoalesced() + cache.getHits());
+  }
+}
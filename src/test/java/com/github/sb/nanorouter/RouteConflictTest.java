@@ -0,0 +1,100 @@
+package com.github.sb.nanorouter;
+
+import static org.junit.Assert.*;
+
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.NanoHTTPD.Method;
+import fi.iki.elonen.NanoHTTPD.Response;
+import java.util.List;
+import org.junit.Test;
+
+public class RouteConflictTest {
+  private static final Handler OK = new Handler() {
+
+    @Override
+    public Response handle(RequestContext ctx) {
+      return NanoHTTPD.newFixedLengthResponse("ok");
+    }
+  };
+
+  @Test
+  public void test_Validate_FindsConflicts() {
+    RouteTable.Builder b = new RouteTable.Builder()
+      .add(Method.GET, "/books/:id", OK)
+      .add(Method.GET, "/books/:bookId", OK)
+      .add(Method.DELETE, "/books/:bookId", OK)
+      .add(Method.GET, "/books", OK)
+      .add(Method.GET, "/books", OK)
+      .add(Method.GET, "/files/:id{[0-9]+}/raw", OK)
+      .add(Method.GET, "/files/:n{\\d{1,3}}/raw", OK)
+      .add(Method.GET, "/files/:word{[a-z]+}/raw", OK)
+      .add(Method.GET, "/tags/:word{[a-z]+}", OK)
+      .add(Method.GET, "/tags/:hex{[0-9a-f]+}", OK)
+      .add(Method.POST, "/files/:n{\\d{1,3}}", OK);
+
+    List<RouteConflict> conflicts = b.validate();
+    assertEquals(conflicts.toString(), 4, conflicts.size());
+
+    RouteConflict names = conflicts.get(0);
+    assertEquals(RouteConflict.Kind.DUPLICATE, names.getKind());
+    assertEquals("/books/:id", names.getUri());
+    assertEquals("/books/:bookId", names.getOtherUri());
+
+    RouteConflict same = conflicts.get(1);
+    assertEquals(RouteConflict.Kind.DUPLICATE, same.getKind());
+    assertEquals("/books", same.getUri());
+
+    RouteConflict shadowed = conflicts.get(2);
+    assertEquals(RouteConflict.Kind.SHADOWED, shadowed.getKind());
+    assertEquals(Method.GET, shadowed.getMethod());
+    assertEquals("/files/:n{\\d{1,3}}/raw", shadowed.getUri());
+    assertEquals("/files/:id{[0-9]+}/raw", shadowed.getOtherUri());
+
+    // "cafe" goes to ':word', but "c0ffee" to ':hex'
+    RouteConflict ambiguous = conflicts.get(3);
+    assertEquals(RouteConflict.Kind.AMBIGUOUS, ambiguous.getKind());
+    assertEquals("/tags/:hex{[0-9a-f]+}", ambiguous.getUri());
+    assertEquals("/tags/:word{[a-z]+}", ambiguous.getOtherUri());
+  }
+
+  @Test
+  public void test_Strict_RejectsConflicts() {
+    Router router = new Router();
+    router.setStrictRoutes(true);
+    router.addHandler(Method.GET, "/books/:id", OK);
+    router.addHandler(Method.POST, "/books/:bookId", OK);
+    router.compile();
+
+    router.addHandler(Method.GET, "/books/:bookId", OK);
+    try {
+      router.compile();
+      fail("expected a conflict");
+    } catch (RouteConflictException e) {
+      assertEquals(1, e.getConflicts().size());
+      assertTrue(e.getMessage(), e.getMessage().contains("GET /books/:id duplicates GET /books/:bookId"));
+    }
+
+    // Strictness survives toBuilder
+    try {
+      new RouteTable.Builder().setStrict(true).build().toBuilder().add(Method.GET, "/a", OK).add(Method.GET, "/a", OK).build();
+      fail("expected a conflict");
+    } catch (RouteConflictException expected) {}
+  }
+
+  @Test
+  public void test_Summary() {
+    RouteTable table = new RouteTable.Builder()
+      .add(Method.GET, "/books", OK)
+      .add(Method.GET, "/books/:id", OK)
+      .add(Method.GET, "/bookmarks", OK)
+      .build();
+
+    RouteTable.Summary s = table.getSummary();
+    assertEquals(3, s.getRoutes());
+    // root, "/book", "s", "marks", ":id", plus the "/" between "s" and ":id"
+    assertEquals(6, s.getNodes());
+    assertEquals(4, s.getDepth());
+    assertTrue(s.getEstimatedBytes() > 0);
+    assertTrue(s.toString(), s.toString().startsWith("3 routes, 6 nodes, depth 4"));
+  }
+}
@@ -0,0 +1,86 @@
+package com.github.sb.nanorouter;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.NanoHTTPD.Method;
+import fi.iki.elonen.NanoHTTPD.Response;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import org.junit.Test;
+
+/**
+ * Measures the heap retained by a large, multi-tenant style route table, and checks the shape that
+ * its summary reports.
+ */
+public class RouteTableFootprintTest {
+  private static final int TENANTS = 4000;
+
+  // Budget for everything a table retains per registered route, metrics included.
+  private static final long MAX_BYTES_PER_ROUTE = 1024;
+
+  // Budget for the compiled trie and its routes alone, as estimated by the table's summary.
+  private static final long MAX_ESTIMATED_BYTES_PER_ROUTE = 256;
+
+  private static final Handler OK = new Handler() {
+
+    @Override
+    public Response handle(RequestContext ctx) {
+      return NanoHTTPD.newFixedLengthResponse("ok");
+    }
+  };
+
+  private static RouteTable build() {
+    RouteTable.Builder b = new RouteTable.Builder();
+    for (int t = 0; t < TENANTS; ++t) {
+      String tenant = "/api/v2/organizations/org-" + t;
+      b.add(Method.GET, tenant + "/projects", OK);
+      b.add(Method.POST, tenant + "/projects", OK);
+      b.add(Method.GET, tenant + "/projects/:project", OK);
+      b.add(Method.DELETE, tenant + "/projects/:project", OK);
+      b.add(Method.GET, tenant + "/projects/:project/issues/:issue", OK);
+    }
+    return b.build();
+  }
+
+  @Test
+  public void test_Footprint_BytesPerRoute() {
+    MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+    // Warm up class loading and the JIT so they do not count against the table.
+    assertNotNull(build());
+
+    long before = usedAfterGc(memory);
+    RouteTable table = build();
+    long after = usedAfterGc(memory);
+
+    long perRoute = (after - before) / table.size();
+    RouteTable.Summary summary = table.getSummary();
+
+    // Measurements taken while other threads allocate are meaningless.
+    assumeTrue(after > before);
+    assertTrue("retained " + perRoute + " bytes per route: " + summary, perRoute < MAX_BYTES_PER_ROUTE);
+    assertEquals(5 * TENANTS, table.size());
+  }
+
+  @Test
+  public void test_Footprint_Summary() {
+    RouteTable.Summary summary = build().getSummary();
+
+    assertEquals(5 * TENANTS, summary.getRoutes());
+    // The shared prefixes and the routes of every method share nodes.
+    assertTrue(summary.toString(), summary.getNodes() < 6 * TENANTS);
+    assertTrue(summary.toString(), summary.getDepth() < 12);
+    assertTrue(summary.toString(), summary.getEstimatedBytes() / summary.getRoutes() < MAX_ESTIMATED_BYTES_PER_ROUTE);
+  }
+
+  private static long usedAfterGc(MemoryMXBean memory) {
+    long used = Long.MAX_VALUE;
+    for (int i = 0; i < 5; ++i) {
+      System.gc();
+      used = Math.min(used, memory.getHeapMemoryUsage().getUsed());
+    }
+    return used;
+  }
+}
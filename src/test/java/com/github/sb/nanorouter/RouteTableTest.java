@@ -0,0 +1,145 @@
+package com.github.sb.nanorouter;
+
+import static org.junit.Assert.*;
+
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.NanoHTTPD.Method;
+import fi.iki.elonen.NanoHTTPD.Response;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+
+public class RouteTableTest {
+
+  private static Handler reply(final String body) {
+    return new Handler() {
+
+      @Override
+      public Response handle(RequestContext ctx) {
+        return NanoHTTPD.newFixedLengthResponse(body);
+      }
+    };
+  }
+
+  @Test
+  public void test_Lookup_MatchesRouterTrie() {
+    String[] uris = new String[] {
+      "/books",
+      "/bookmarks",
+      "/books/:id",
+      "/books/book/:id",
+      "/books/:bookId/pages/:page",
+      "/files/report-:name",
+      "/files/:id{[0-9]+}",
+      "/files/:id{[0-9]+}/raw",
+      "/files/*path",
+      "/",
+    };
+    String[] requests = new String[] {
+      "/books",
+      "/bookmarks",
+      "/books/12",
+      "/books/book",
+      "/books/book/12",
+      "/books/bookkeeping",
+      "/books/7/pages/3",
+      "/files/report-q3",
+      "/files/q3",
+      "/files/12",
+      "/files/12/raw",
+      "/files/12/raw/more",
+      "/files/",
+      "/",
+      "/bo",
+      "/books/",
+      "",
+    };
+
+    RouterTrie trie = new RouterTrie();
+    RouteTable.Builder b = new RouteTable.Builder();
+    for (String u : uris) {
+      trie.insert(u);
+      b.add(Method.GET, u, reply(u));
+    }
+    RouteTable table = b.build();
+
+    for (String r : requests) {
+      RouterTrie.Path expected = trie.search(r);
+      Params params = new Params();
+      Route actual = table.lookup(Method.GET, r, params);
+
+      if (expected == null) {
+        assertNull(r, actual);
+      } else {
+        assertNotNull(r, actual);
+        assertEquals(r, expected.uri, actual.uri);
+        assertEquals(r, expected.params, params);
+      }
+    }
+  }
+
+  @Test
+  public void test_Builder_MethodsAndRemoval() {
+    RouteTable table = new RouteTable.Builder()
+      .add(Method.GET, "/books", reply("get"))
+      .add(Method.POST, "/books", reply("post"))
+      .add(Method.GET, "/books/:id", reply("one"))
+      .build();
+
+    assertEquals(3, table.size());
+    assertEquals("/books", table.lookup(Method.POST, "/books", new Params()).uri);
+    assertNull(table.lookup(Method.DELETE, "/books", new Params()));
+
+    RouteTable next = table.toBuilder().remove(Method.GET, "/books/:id").build();
+    assertEquals(2, next.size());
+    assertNull(next.lookup(Method.GET, "/books/1", new Params()));
+
+    // The original table is unaffected
+    assertNotNull(table.lookup(Method.GET, "/books/1", new Params()));
+  }
+
+  @Test
+  public void test_Router_SwapUnderLoad() throws Exception {
+    final Router router = new Router();
+    router.addHandler(Method.GET, "/books/:id", reply("v1"));
+    router.compile();
+
+    final RouteTable v1 = router.getRoutes();
+    final RouteTable v2 = v1.toBuilder().add(Method.GET, "/books/:id", reply("v2")).build();
+
+    final AtomicBoolean done = new AtomicBoolean(false);
+    final AtomicReference<Throwable> failure = new AtomicReference<>();
+    Thread[] readers = new Thread[4];
+    for (int t = 0; t < readers.length; ++t) {
+      final int seed = t;
+      readers[t] = new Thread() {
+
+        @Override
+        public void run() {
+          Random random = new Random(seed);
+          try {
+            while (!done.get()) {
+              String uri = "/books/" + random.nextInt(1000);
+              Response r = router.handleRequest(null, new StubSession(Method.GET, uri));
+              assertEquals(Response.Status.OK, r.getStatus());
+            }
+          } catch (Throwable e) {
+            failure.set(e);
+          }
+        }
+      };
+      readers[t].start();
+    }
+
+    for (int i = 0; i < 2000; ++i) {
+      router.setRoutes(i % 2 == 0 ? v2 : v1);
+      if (i % 100 == 0) router.addHandler(Method.GET, "/authors/" + i, reply("a"));
+    }
+
+    done.set(true);
+    for (Thread t : readers) t.join();
+
+    assertNull(failure.get());
+  }
+}
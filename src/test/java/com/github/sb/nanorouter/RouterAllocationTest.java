@@ -0,0 +1,115 @@
+package com.github.sb.nanorouter;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.NanoHTTPD.Method;
+import fi.iki.elonen.NanoHTTPD.Response;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class RouterAllocationTest {
+  private static final int WARMUP = 20000;
+  private static final int ITERATIONS = 100000;
+
+  // Allow for the measurement itself, but not for anything proportional to the request count.
+  private static final long SLACK_BYTES = 4096;
+
+  @Test
+  public void test_Dispatch_RecycledContexts_DoesNotAllocate() {
+    assertDoesNotAllocate(null);
+  }
+
+  @Test
+  public void test_Dispatch_UnsampledTracing_DoesNotAllocate() {
+    assertDoesNotAllocate(new RequestTracer(0, 1, TimeUnit.MINUTES));
+  }
+
+  private static void assertDoesNotAllocate(RequestTracer tracer) {
+    com.sun.management.ThreadMXBean bean = threadBean();
+    assumeTrue(bean != null);
+
+    final Response ok = NanoHTTPD.newFixedLengthResponse("ok");
+    Handler h = new Handler() {
+
+      @Override
+      public Response handle(RequestContext ctx) {
+        return ok;
+      }
+    };
+
+    Filter pass = new Filter() {
+
+      @Override
+      public Response filter(RequestContext ctx) {
+        return ctx.next();
+      }
+    };
+
+    Router router = new Router();
+    router.setRecycleContexts(true);
+    router.setTracer(tracer);
+    router.setDefaultHandler(h);
+    router.addFilter("/author", pass);
+    router.addHandler(Method.GET, "/books", h);
+    router.addHandler(Method.GET, "/books/:id", h);
+    router.addHandler(Method.GET, "/author/:authorId/books/:bookId", h);
+    router.addHandler(Method.POST, "/books", h);
+
+    StubSession[] sessions = new StubSession[] {
+      new StubSession(Method.GET, "/books"),
+      new StubSession(Method.GET, "/books/123"),
+      new StubSession(Method.GET, "/author/xyz/books/abc"),
+      new StubSession(Method.POST, "/books"),
+      new StubSession(Method.GET, "/missing/route"),
+    };
+
+    for (int i = 0; i < WARMUP; ++i) {
+      router.handleRequest(null, sessions[i % sessions.length]);
+    }
+
+    long tid = Thread.currentThread().getId();
+    long before = bean.getThreadAllocatedBytes(tid);
+    for (int i = 0; i < ITERATIONS; ++i) {
+      assertSame(ok, router.handleRequest(null, sessions[i % sessions.length]));
+    }
+    long allocated = bean.getThreadAllocatedBytes(tid) - before;
+
+    assertTrue("dispatch allocated " + allocated + " bytes", allocated < SLACK_BYTES);
+  }
+
+  @Test
+  public void test_Dispatch_RecycledContexts_ParamsAreFresh() {
+    Router router = new Router();
+    router.setRecycleContexts(true);
+    router.addHandler(
+      Method.GET,
+      "/author/:authorId/books/:bookId",
+      new Handler() {
+
+        @Override
+        public Response handle(RequestContext ctx) {
+          return NanoHTTPD.newFixedLengthResponse(
+            ctx.params.get("authorId") + "-" + ctx.params.get("bookId")
+          );
+        }
+      }
+    );
+
+    assertEquals("a-1", StubSession.body(router.handleRequest(null, new StubSession(Method.GET, "/author/a/books/1"))));
+    assertEquals("bb-22", StubSession.body(router.handleRequest(null, new StubSession(Method.GET, "/author/bb/books/22"))));
+  }
+
+  private static com.sun.management.ThreadMXBean threadBean() {
+    java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (!(bean instanceof com.sun.management.ThreadMXBean)) return null;
+
+    com.sun.management.ThreadMXBean sun = (com.sun.management.ThreadMXBean) bean;
+    if (!sun.isThreadAllocatedMemorySupported()) return null;
+
+    sun.setThreadAllocatedMemoryEnabled(true);
+    return sun;
+  }
+}
@@ -0,0 +1,114 @@
+package com.github.sb.nanorouter;
+
+import static org.junit.Assert.*;
+
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.NanoHTTPD.Method;
+import fi.iki.elonen.NanoHTTPD.Response;
+import org.junit.Test;
+
+public class RouterMetricsTest {
+
+  private static RouteMetrics find(Router router, Method m, String uri) {
+    for (RouteMetrics rm : router.getMetrics().getRoutes()) {
+      if (rm.getMethod() == m && rm.getUri().equals(uri)) return rm;
+    }
+    return null;
+  }
+
+  @Test
+  public void test_Histogram_Buckets() {
+    for (long v : new long[] { 0, 1, 7, 8, 9, 15, 16, 17, 1000, 123456789L, 1L << 39 }) {
+      int b = LatencyHistogram.bucket(v);
+      assertTrue(v + " above its bucket", v <= LatencyHistogram.upperBound(b));
+      assertTrue(v + " below its bucket", b == 0 || v > LatencyHistogram.upperBound(b - 1));
+      assertTrue(v + " imprecise", LatencyHistogram.upperBound(b) - v <= v / 8 + 1);
+    }
+    assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.bucket(Long.MAX_VALUE));
+  }
+
+  @Test
+  public void test_Histogram_Percentiles() {
+    LatencyHistogram h = new LatencyHistogram();
+    for (int i = 1; i <= 1000; ++i) h.record(i * 1000L);
+
+    LatencyHistogram.Snapshot s = h.snapshot();
+    assertEquals(1000, s.count());
+    assertEquals(500500000L, s.sum());
+
+    long p50 = s.percentile(0.5);
+    assertTrue(p50 >= 500000 && p50 <= 500000 * 1.125);
+    long p99 = s.percentile(0.99);
+    assertTrue(p99 >= 990000 && p99 <= 990000 * 1.125);
+    assertEquals(0, new LatencyHistogram().snapshot().percentile(0.99));
+  }
+
+  @Test
+  public void test_Router_CountsRequests() {
+    Router router = new Router();
+    router.setMetricsEnabled(true);
+    router.addHandler(
+      Method.GET,
+      "/books/:id",
+      new Handler() {
+
+        @Override
+        public Response handle(RequestContext ctx) {
+          if (ctx.params.get("id").equals("boom")) throw new IllegalStateException("boom");
+          return NanoHTTPD.newFixedLengthResponse("ok");
+        }
+      }
+    );
+
+    router.handleRequest(null, new StubSession(Method.GET, "/books/1"));
+    router.handleRequest(null, new StubSession(Method.GET, "/books/2"));
+    router.handleRequest(null, new StubSession(Method.HEAD, "/books/2"));
+    router.handleRequest(null, new StubSession(Method.POST, "/books/2"));
+    router.handleRequest(null, new StubSession(Method.GET, "/authors"));
+    try {
+      router.handleRequest(null, new StubSession(Method.GET, "/books/boom"));
+      fail();
+    } catch (IllegalStateException expected) {}
+
+    RouteMetrics get = find(router, Method.GET, "/books/:id");
+    assertEquals(3, get.getHits());
+    assertEquals(1, get.getErrors());
+    assertEquals(3, get.getLatency().count());
+    assertEquals(1, find(router, Method.HEAD, "/books/:id").getHits());
+    assertEquals(1, router.getMetrics().getNotFound());
+    assertEquals(1, router.getMetrics().getMethodNotAllowed());
+
+    // Metrics survive recompilation
+    router.addHandler(Method.GET, "/authors", new MetricsHandler(router));
+    router.handleRequest(null, new StubSession(Method.GET, "/books/3"));
+    assertEquals(4, find(router, Method.GET, "/books/:id").getHits());
+
+    String text = StubSession.body(router.handleRequest(null, new StubSession(Method.GET, "/authors")));
+    assertTrue(text, text.contains("nanorouter_requests_total{method=\"GET\",route=\"/books/:id\"} 4\n"));
+    assertTrue(text, text.contains("nanorouter_errors_total{method=\"GET\",route=\"/books/:id\"} 1\n"));
+    assertTrue(text, text.contains("nanorouter_request_duration_seconds_count{method=\"GET\",route=\"/books/:id\"} 4\n"));
+    assertTrue(text, text.contains("nanorouter_not_found_total 1\n"));
+  }
+
+  @Test
+  public void test_Router_DisabledByDefault() {
+    Router router = new Router();
+    router.addHandler(
+      Method.GET,
+      "/books",
+      new Handler() {
+
+        @Override
+        public Response handle(RequestContext ctx) {
+          return NanoHTTPD.newFixedLengthResponse("ok");
+        }
+      }
+    );
+
+    router.handleRequest(null, new StubSession(Method.GET, "/books"));
+    router.handleRequest(null, new StubSession(Method.GET, "/authors"));
+
+    assertEquals(0, find(router, Method.GET, "/books").getHits());
+    assertEquals(0, router.getMetrics().getNotFound());
+  }
+}
@@ -101,4 +101,61 @@ public class RouterTest {
       if (s.isAlive()) s.stop();
     }
   }
+
+  private static Handler reply(final String body) {
+    return new Handler() {
+
+      @Override
+      public Response handle(RequestContext ctx) {
+        return NanoHTTPD.newFixedLengthResponse(body + ctx.params);
+      }
+    };
+  }
+
+  @Test
+  public void test_Routing_MethodNotAllowed() {
+    Router router = new Router();
+    router.addHandler(Method.GET, "/books/:id", reply("get"));
+    router.addHandler(Method.DELETE, "/books/:bookId", reply("delete"));
+
+    Response resp = router.handleRequest(null, new StubSession(Method.POST, "/books/1"));
+    assertEquals(Response.Status.METHOD_NOT_ALLOWED, resp.getStatus());
+    assertEquals("GET, DELETE, HEAD, OPTIONS", resp.getHeader("Allow"));
+
+    // Parameter names are per method
+    resp = router.handleRequest(null, new StubSession(Method.DELETE, "/books/1"));
+    assertEquals("delete{bookId=1}", StubSession.body(resp));
+
+    resp = router.handleRequest(null, new StubSession(Method.POST, "/authors"));
+    assertEquals(Response.Status.NOT_FOUND, resp.getStatus());
+  }
+
+  @Test
+  public void test_Routing_MethodSpecificBacktracking() {
+    Router router = new Router();
+    router.addHandler(Method.GET, "/books/:id", reply("get"));
+    router.addHandler(Method.POST, "/books/book", reply("post"));
+
+    Response resp = router.handleRequest(null, new StubSession(Method.GET, "/books/book"));
+    assertEquals("get{id=book}", StubSession.body(resp));
+
+    resp = router.handleRequest(null, new StubSession(Method.POST, "/books/book"));
+    assertEquals("post{}", StubSession.body(resp));
+  }
+
+  @Test
+  public void test_Routing_ImplicitHeadAndOptions() {
+    Router router = new Router();
+    router.addHandler(Method.GET, "/books", reply("books"));
+    router.addHandler(Method.POST, "/books", reply("created"));
+
+    Response head = router.handleRequest(null, new StubSession(Method.HEAD, "/books"));
+    assertEquals(Response.Status.OK, head.getStatus());
+    assertEquals("7", head.getHeader("content-length"));
+    assertEquals("", StubSession.body(head));
+
+    Response options = router.handleRequest(null, new StubSession(Method.OPTIONS, "/books"));
+    assertEquals(Response.Status.OK, options.getStatus());
+    assertEquals("GET, POST, HEAD, OPTIONS", options.getHeader("Allow"));
+  }
 }
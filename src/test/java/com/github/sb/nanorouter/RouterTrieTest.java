@@ -50,4 +50,142 @@ public class RouterTrieTest {
     RouterTrie.Path node3 = rt.search("/123/456");
     assert (node3 == null);
   }
+
+  @Test
+  public void test_CheckInsertSearch_SplitEdges() {
+    RouterTrie rt = new RouterTrie();
+    rt.insert("/books");
+    rt.insert("/bookmarks");
+    rt.insert("/boo");
+    rt.insert("/books/:id");
+
+    assertEquals("/books", rt.search("/books").uri);
+    assertEquals("/bookmarks", rt.search("/bookmarks").uri);
+    assertEquals("/boo", rt.search("/boo").uri);
+    assertEquals("12", rt.search("/books/12").params.get("id"));
+
+    assert (rt.search("/bo") == null);
+    assert (rt.search("/bookmark") == null);
+    assert (rt.search("/books/") == null); // parameters cannot be empty
+  }
+
+  @Test
+  public void test_CheckInsertSearch_StaticBeforeParam() {
+    RouterTrie rt = new RouterTrie();
+    rt.insert("/books/book/:id");
+    rt.insert("/books/:id");
+
+    RouterTrie.Path node = rt.search("/books/book");
+    assert (node != null);
+    assertEquals("/books/:id", node.uri);
+    assertEquals("book", node.params.get("id"));
+
+    RouterTrie.Path node2 = rt.search("/books/book/12");
+    assert (node2 != null);
+    assertEquals("/books/book/:id", node2.uri);
+    assertEquals("12", node2.params.get("id"));
+
+    // Backtracks from the static "book" branch into the parameter
+    RouterTrie.Path node3 = rt.search("/books/bookkeeping");
+    assert (node3 != null);
+    assertEquals("/books/:id", node3.uri);
+    assertEquals("bookkeeping", node3.params.get("id"));
+  }
+
+  @Test
+  public void test_CheckInsertSearch_ParamNamesPerUri() {
+    RouterTrie rt = new RouterTrie();
+    rt.insert("/books/:bookId/pages/:page");
+    rt.insert("/books/:id");
+    rt.insert("/files/report-:name");
+
+    RouterTrie.Path node = rt.search("/books/7/pages/3");
+    assertEquals("7", node.params.get("bookId"));
+    assertEquals("3", node.params.get("page"));
+    assertEquals(2, node.params.size());
+
+    RouterTrie.Path node2 = rt.search("/books/7");
+    assertEquals("7", node2.params.get("id"));
+    assertEquals(1, node2.params.size());
+
+    RouterTrie.Path node3 = rt.search("/files/report-q3");
+    assertEquals("q3", node3.params.get("name"));
+    assert (rt.search("/files/q3") == null);
+  }
+
+  @Test
+  public void test_CheckInsertSearch_Priority() {
+    RouterTrie rt = new RouterTrie();
+    rt.insert("/files/*path");
+    rt.insert("/files/:name");
+    rt.insert("/files/:id{[0-9]+}");
+    rt.insert("/files/latest");
+    rt.insert("/files/:year{\\d{4}}/summary");
+
+    assertEquals("/files/latest", rt.search("/files/latest").uri);
+
+    RouterTrie.Path node = rt.search("/files/42");
+    assertEquals("/files/:id{[0-9]+}", node.uri);
+    assertEquals("42", node.params.get("id"));
+
+    node = rt.search("/files/report");
+    assertEquals("/files/:name", node.uri);
+    assertEquals("report", node.params.get("name"));
+
+    node = rt.search("/files/2019/summary");
+    assertEquals("/files/:year{\\d{4}}/summary", node.uri);
+    assertEquals("2019", node.params.get("year"));
+
+    // Backtracks from the constrained and plain parameters into the catch-all
+    node = rt.search("/files/2019/q3/report.pdf");
+    assertEquals("/files/*path", node.uri);
+    assertEquals("2019/q3/report.pdf", node.params.get("path"));
+
+    node = rt.search("/files/");
+    assertEquals("/files/*path", node.uri);
+    assertEquals("", node.params.get("path"));
+
+    assert (rt.search("/files") == null);
+  }
+
+  @Test
+  public void test_CheckInsertSearch_Constraints() {
+    RouterTrie rt = new RouterTrie();
+    rt.insert("/hex/:h{[a-f0-9]{2,4}}");
+    rt.insert("/slug/:s{[\\w-]+}");
+    rt.insert("/regex/:r{(ab)+}");
+    rt.insert("/name/:n{[A-Z][a-z]*}");
+
+    assertEquals("ff0", rt.search("/hex/ff0").params.get("h"));
+    assert (rt.search("/hex/f") == null);
+    assert (rt.search("/hex/ff0ff") == null);
+    assert (rt.search("/hex/xyz") == null);
+
+    assertEquals("my-post_2", rt.search("/slug/my-post_2").params.get("s"));
+    assert (rt.search("/slug/caf\u00e9") == null);
+
+    assertEquals("abab", rt.search("/regex/abab").params.get("r"));
+    assert (rt.search("/regex/aba") == null);
+
+    assertEquals("Alice", rt.search("/name/Alice").params.get("n"));
+    assert (rt.search("/name/alice") == null);
+  }
+
+  @Test
+  public void test_Insert_RejectsMalformedUris() {
+    String[] bad = new String[] {
+      "/files/*path/more",
+      "/books/:id{[0-9]+",
+      "/books/:id{[0-9]+}x",
+      "/books/:id{(}",
+      "/books/:id{[]+}",
+    };
+
+    for (String uri : bad) {
+      try {
+        new RouterTrie().insert(uri);
+        fail(uri);
+      } catch (IllegalArgumentException expected) {}
+    }
+  }
 }
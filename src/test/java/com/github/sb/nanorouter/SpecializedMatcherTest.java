@@ -0,0 +1,203 @@
+package com.github.sb.nanorouter;
+
+import static org.junit.Assert.*;
+
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.NanoHTTPD.Method;
+import fi.iki.elonen.NanoHTTPD.Response;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+
+public class SpecializedMatcherTest {
+  private static final String[] SEGMENTS = new String[] {
+    "a", "ab", "abc", "b", "ba", "book", "books", "bookmarks", "x", "y-1", "y-2", "12", "123", "",
+  };
+
+  private static final Method[] METHODS = new Method[] { Method.GET, Method.POST, Method.DELETE };
+
+  private static Handler reply(final String body) {
+    return new Handler() {
+
+      @Override
+      public Response handle(RequestContext ctx) {
+        return NanoHTTPD.newFixedLengthResponse(body);
+      }
+    };
+  }
+
+  private static String segment(Random random) {
+    return SEGMENTS[random.nextInt(SEGMENTS.length)];
+  }
+
+  // A registered URI: mostly static segments, with some parameters, constrained parameters and
+  // catch-alls. Parameter names depend on the depth only, so that sibling routes agree on them.
+  private static String route(Random random) {
+    StringBuilder uri = new StringBuilder();
+    int depth = 1 + random.nextInt(4);
+    for (int d = 0; d < depth; ++d) {
+      int kind = random.nextInt(20);
+      if (kind < 14) {
+        uri.append('/').append(segment(random));
+      } else if (kind < 17) {
+        uri.append("/:p").append(d);
+      } else if (kind < 19) {
+        uri.append("/:n").append(d).append("{[0-9]+}");
+      } else {
+        uri.append("/*rest");
+        break;
+      }
+    }
+    return uri.toString();
+  }
+
+  // A request URI: an instance of a route, or random segments, slightly mutated at times.
+  private static String request(Random random, List<String> routes) {
+    StringBuilder uri = new StringBuilder();
+    if (random.nextBoolean()) {
+      for (String s : routes.get(random.nextInt(routes.size())).substring(1).split("/", -1)) {
+        uri.append('/');
+        if (s.startsWith(":n")) {
+          uri.append(random.nextInt(1000));
+        } else if (s.startsWith(":p") || s.startsWith("*")) {
+          uri.append(segment(random));
+        } else {
+          uri.append(s);
+        }
+      }
+    } else {
+      int depth = 1 + random.nextInt(4);
+      for (int d = 0; d < depth; ++d) uri.append('/').append(segment(random));
+    }
+
+    switch (random.nextInt(8)) {
+      case 0:
+        uri.append('/');
+        break;
+      case 1:
+        if (uri.length() > 1) uri.setLength(uri.length() - 1);
+        break;
+      case 2:
+        uri.setCharAt(random.nextInt(uri.length()), 'b');
+        break;
+      default:
+        break;
+    }
+    return uri.toString();
+  }
+
+  @Test
+  public void test_SpecializedMatcher_MatchesRouterTrie() {
+    for (int seed = 0; seed < 200; ++seed) {
+      Random random = new Random(seed);
+
+      List<String> routes = new ArrayList<>();
+      RouterTrie trie = new RouterTrie();
+      RouteTable.Builder b = new RouteTable.Builder().setSpecializedMatching(true);
+      for (int i = 0, n = 1 + random.nextInt(60); i < n; ++i) {
+        String uri = route(random);
+        routes.add(uri);
+        trie.insert(uri);
+        b.add(Method.GET, uri, reply(uri));
+      }
+      RouteTable table = b.build();
+      assertTrue(table.isSpecialized() || !hasStaticRoute(routes));
+
+      for (int i = 0; i < 500; ++i) {
+        String r = request(random, routes);
+        RouterTrie.Path expected = trie.search(r);
+        Params params = new Params();
+        Route actual = table.lookup(Method.GET, r, params);
+
+        String message = "seed " + seed + ": " + r;
+        if (expected == null) {
+          assertNull(message, actual);
+        } else {
+          assertNotNull(message, actual);
+          assertEquals(message, expected.uri, actual.uri);
+          assertEquals(message, expected.params, params);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void test_SpecializedMatcher_MatchesTrieAcrossMethods() {
+    for (int seed = 0; seed < 200; ++seed) {
+      Random random = new Random(seed);
+
+      List<String> routes = new ArrayList<>();
+      RouteTable.Builder b = new RouteTable.Builder();
+      for (int i = 0, n = 1 + random.nextInt(60); i < n; ++i) {
+        String uri = route(random);
+        routes.add(uri);
+        b.add(METHODS[random.nextInt(METHODS.length)], uri, reply(uri));
+      }
+      RouteTable interpreted = b.build();
+      RouteTable specialized = b.setSpecializedMatching(true).build();
+
+      for (int i = 0; i < 500; ++i) {
+        String r = request(random, routes);
+        String message = "seed " + seed + ": " + r;
+
+        for (Method m : new Method[] { Method.GET, Method.POST, Method.DELETE, Method.HEAD, Method.OPTIONS }) {
+          Params expectedParams = new Params();
+          Route expected = interpreted.lookup(m, r, expectedParams);
+          Params params = new Params();
+          Route actual = specialized.lookup(m, r, params);
+
+          if (expected == null) {
+            assertNull(message + " " + m, actual);
+          } else {
+            assertNotNull(message + " " + m, actual);
+            assertEquals(message + " " + m, expected.uri, actual.uri);
+            // Implicit HEAD and OPTIONS handlers are created for every table
+            assertEquals(message + " " + m, expected.method, actual.method);
+            assertEquals(message + " " + m, expected.handler.getClass(), actual.handler.getClass());
+            assertEquals(message + " " + m, expectedParams, params);
+          }
+        }
+        assertEquals(message, interpreted.allowed(r, new Params()), specialized.allowed(r, new Params()));
+      }
+    }
+  }
+
+  @Test
+  public void test_SpecializedMatcher_FallsBackForOtherMethods() {
+    Router router = new Router();
+    router.setSpecializedMatching(true);
+    router.addHandler(Method.POST, "/books/new", reply("create"));
+    router.addHandler(Method.GET, "/books/:id", reply("book"));
+    router.addHandler(Method.GET, "/books", reply("books"));
+    assertTrue(router.compile().isSpecialized());
+
+    assertEquals("books", StubSession.body(router.handleRequest(null, new StubSession(Method.GET, "/books"))));
+    assertEquals("create", StubSession.body(router.handleRequest(null, new StubSession(Method.POST, "/books/new"))));
+    // The static route is for POST only: GET goes on to the parameter
+    assertEquals("book", StubSession.body(router.handleRequest(null, new StubSession(Method.GET, "/books/new"))));
+
+    Response r = router.handleRequest(null, new StubSession(Method.DELETE, "/books"));
+    assertEquals(Response.Status.METHOD_NOT_ALLOWED, r.getStatus());
+    assertEquals(404, router.handleRequest(null, new StubSession(Method.GET, "/bookz")).getStatus().getRequestStatus());
+  }
+
+  @Test
+  public void test_SpecializedMatcher_LargeStaticTable() {
+    RouteTable.Builder b = new RouteTable.Builder().setSpecializedMatching(true);
+    for (int i = 0; i < 10000; ++i) b.add(Method.GET, "/api/v" + (i % 3) + "/resource" + i + "/items", reply("r" + i));
+    RouteTable table = b.build();
+    assertTrue(table.isSpecialized());
+
+    for (int i = 0; i < 10000; ++i) {
+      String uri = "/api/v" + (i % 3) + "/resource" + i + "/items";
+      assertEquals(uri, table.lookup(Method.GET, uri, new Params()).uri);
+      assertNull(table.lookup(Method.GET, "/api/v" + ((i + 1) % 3) + "/resource" + i + "/items", new Params()));
+    }
+  }
+
+  private static boolean hasStaticRoute(List<String> routes) {
+    for (String r : routes) if (!r.contains(":") && !r.contains("*")) return true;
+    return false;
+  }
+}
@@ -0,0 +1,194 @@
+package com.github.sb.nanorouter;
+
+import static org.junit.Assert.*;
+
+import fi.iki.elonen.NanoHTTPD.Method;
+import fi.iki.elonen.NanoHTTPD.Response;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class StaticFileHandlerTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private Router router;
+  private StaticFileHandler files;
+
+  private void write(String path, String content) throws IOException {
+    File f = new File(this.folder.getRoot(), path);
+    f.getParentFile().mkdirs();
+    Files.write(f.toPath(), content.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private Response get(String uri, String... headers) {
+    StubSession session = new StubSession(Method.GET, uri);
+    for (int i = 0; i < headers.length; i += 2) session.headers.put(headers[i], headers[i + 1]);
+    return this.router.handleRequest(null, session);
+  }
+
+  @Before
+  public void setUp() throws IOException {
+    File root = this.folder.newFolder("public");
+    write("public/index.html", "<h1>home</h1>");
+    write("public/css/site.css", "body { color: red; }");
+    write("public/css/site.css.gz", "gzipped");
+    write("public/css/site.css.br", "brotli");
+    write("secret.txt", "secret");
+
+    this.router = new Router();
+    this.files = this.router.addStaticFiles("/assets", root);
+  }
+
+  @Test
+  public void test_StaticFiles_Serve() {
+    Response resp = get("/assets/css/site.css");
+    assertEquals(Response.Status.OK, resp.getStatus());
+    assertEquals("text/css", resp.getMimeType());
+    assertEquals("body { color: red; }", StubSession.body(resp));
+    assertEquals("bytes", resp.getHeader("Accept-Ranges"));
+    assertNotNull(resp.getHeader("ETag"));
+    assertNotNull(resp.getHeader("Last-Modified"));
+
+    // Directories are served their index
+    resp = get("/assets/");
+    assertEquals("<h1>home</h1>", StubSession.body(resp));
+
+    // HEAD is answered by the implicit route, without a body
+    StubSession head = new StubSession(Method.HEAD, "/assets/index.html");
+    assertEquals(Response.Status.OK, this.router.handleRequest(null, head).getStatus());
+
+    assertEquals(Response.Status.NOT_FOUND, get("/assets/missing.js").getStatus());
+  }
+
+  @Test
+  public void test_StaticFiles_RejectTraversal() {
+    assertEquals(Response.Status.NOT_FOUND, get("/assets/../secret.txt").getStatus());
+    assertEquals(Response.Status.NOT_FOUND, get("/assets/css/../../secret.txt").getStatus());
+    assertEquals(Response.Status.NOT_FOUND, get("/assets/..\\secret.txt").getStatus());
+  }
+
+  @Test
+  public void test_StaticFiles_Conditional() {
+    Response resp = get("/assets/css/site.css");
+    String etag = resp.getHeader("ETag");
+    String lastModified = resp.getHeader("Last-Modified");
+
+    resp = get("/assets/css/site.css", "if-none-match", etag);
+    assertEquals(Response.Status.NOT_MODIFIED, resp.getStatus());
+    assertEquals(etag, resp.getHeader("ETag"));
+
+    resp = get("/assets/css/site.css", "if-none-match", "\"other\", W/" + etag);
+    assertEquals(Response.Status.NOT_MODIFIED, resp.getStatus());
+
+    resp = get("/assets/css/site.css", "if-none-match", "\"other\"");
+    assertEquals(Response.Status.OK, resp.getStatus());
+
+    resp = get("/assets/css/site.css", "if-modified-since", lastModified);
+    assertEquals(Response.Status.NOT_MODIFIED, resp.getStatus());
+
+    resp = get("/assets/css/site.css", "if-modified-since", "Thu, 01 Jan 1970 00:00:00 GMT");
+    assertEquals(Response.Status.OK, resp.getStatus());
+  }
+
+  @Test
+  public void test_StaticFiles_Ranges() {
+    Response resp = get("/assets/css/site.css", "range", "bytes=0-3");
+    assertEquals(Response.Status.PARTIAL_CONTENT, resp.getStatus());
+    assertEquals("body", StubSession.body(resp));
+    assertEquals("bytes 0-3/20", resp.getHeader("Content-Range"));
+
+    resp = get("/assets/css/site.css", "range", "bytes=14-");
+    assertEquals("red; }", StubSession.body(resp));
+
+    resp = get("/assets/css/site.css", "range", "bytes=-2");
+    assertEquals(" }", StubSession.body(resp));
+
+    resp = get("/assets/css/site.css", "range", "bytes=20-");
+    assertEquals(Response.Status.RANGE_NOT_SATISFIABLE, resp.getStatus());
+    assertEquals("bytes */20", resp.getHeader("Content-Range"));
+
+    // Several ranges, or a stale If-Range, get the whole file
+    resp = get("/assets/css/site.css", "range", "bytes=0-1,4-5");
+    assertEquals(Response.Status.OK, resp.getStatus());
+    resp = get("/assets/css/site.css", "range", "bytes=0-3", "if-range", "\"stale\"");
+    assertEquals(Response.Status.OK, resp.getStatus());
+  }
+
+  @Test
+  public void test_StaticFiles_Precompressed() {
+    Response resp = get("/assets/css/site.css", "accept-encoding", "gzip, br");
+    assertEquals("brotli", StubSession.body(resp));
+    assertEquals("br", resp.getHeader("Content-Encoding"));
+    assertEquals("text/css", resp.getMimeType());
+    assertEquals("Accept-Encoding", resp.getHeader("Vary"));
+
+    resp = get("/assets/css/site.css", "accept-encoding", "gzip, br;q=0");
+    assertEquals("gzipped", StubSession.body(resp));
+    assertEquals("gzip", resp.getHeader("Content-Encoding"));
+
+    resp = get("/assets/css/site.css");
+    assertEquals("body { color: red; }", StubSession.body(resp));
+    assertNull(resp.getHeader("Content-Encoding"));
+
+    // Variants have their own validators
+    assertNotEquals(get("/assets/css/site.css", "accept-encoding", "gzip").getHeader("ETag"), resp.getHeader("ETag"));
+  }
+
+  @Test
+  public void test_StaticFiles_Cache() throws IOException {
+    get("/assets/css/site.css");
+    get("/assets/css/site.css");
+    get("/assets/css/site.css");
+    assertEquals(1, this.files.getCacheMisses());
+    assertEquals(2, this.files.getCacheHits());
+    assertEquals(20, this.files.getCachedBytes());
+
+    // Large files are streamed from disk, and the cache stays within its bounds
+    this.files.setCacheLimits(16, 32);
+    assertEquals(0, this.files.getCachedBytes());
+    Response resp = get("/assets/css/site.css");
+    assertEquals("body { color: red; }", StubSession.body(resp));
+    assertEquals(0, this.files.getCachedBytes());
+
+    get("/assets/index.html");
+    get("/assets/css/site.css", "accept-encoding", "gzip");
+    get("/assets/css/site.css", "accept-encoding", "br");
+    assertTrue(this.files.getCachedBytes() <= 32);
+
+    // Changes are picked up once the metadata has expired
+    this.files.setMetadataTtl(0);
+    write("public/index.html", "<h1>changed</h1>");
+    new File(this.folder.getRoot(), "public/index.html").setLastModified(System.currentTimeMillis() + 5000);
+    assertEquals("<h1>changed</h1>", StubSession.body(get("/assets/index.html")));
+  }
+
+  @Test
+  public void test_StaticFiles_ChangedWithinMetadataTtl() throws IOException {
+    this.files.setMetadataTtl(60000);
+    // Resolved, but not read yet
+    assertEquals(Response.Status.NOT_MODIFIED, get("/assets/index.html", "if-none-match", "*").getStatus());
+    assertEquals(Response.Status.NOT_MODIFIED, get("/assets/css/site.css", "if-none-match", "*").getStatus());
+
+    // Replaced: the small file is read as it is now, rather than answered 404
+    write("public/index.html", "<h1>replaced</h1>");
+    Response resp = get("/assets/index.html");
+    assertEquals(Response.Status.OK, resp.getStatus());
+    assertEquals("<h1>replaced</h1>", StubSession.body(resp));
+
+    // Truncated: the streamed file is sent with its current length
+    this.files.setCacheLimits(0, 0);
+    write("public/css/site.css", "body {}");
+    resp = get("/assets/css/site.css");
+    assertEquals("body {}", StubSession.body(resp));
+    assertEquals("\"7-", resp.getHeader("ETag").substring(0, 3));
+
+    new File(this.folder.getRoot(), "public/css/site.css").delete();
+    assertEquals(Response.Status.NOT_FOUND, get("/assets/css/site.css").getStatus());
+  }
+}
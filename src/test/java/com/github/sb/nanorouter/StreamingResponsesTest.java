@@ -0,0 +1,232 @@
+package com.github.sb.nanorouter;
+
+import static org.junit.Assert.*;
+
+import fi.iki.elonen.NanoHTTPD.Method;
+import fi.iki.elonen.NanoHTTPD.Response;
+import fi.iki.elonen.NanoHTTPD.Response.Status;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+
+public class StreamingResponsesTest {
+
+  // Generates 'lines' numbered lines, one per piece.
+  private static ChunkGenerator lines(final int lines) {
+    return new ChunkGenerator() {
+      private int next = 0;
+
+      @Override
+      public boolean next(OutputStream out) throws IOException {
+        out.write(("line " + this.next++ + "\n").getBytes(StandardCharsets.UTF_8));
+        return this.next < lines;
+      }
+    };
+  }
+
+  @Test
+  public void test_Streaming_Chunked() {
+    BufferPool pool = new BufferPool(1024, 4);
+    Response r = StreamingResponses.chunked(Status.OK, "text/plain", lines(100000), pool);
+
+    // About 1.3 MB streamed through a single pooled buffer
+    String body = StubSession.body(r);
+    assertTrue(body.startsWith("line 0\nline 1\n"));
+    assertTrue(body.endsWith("line 99999\n"));
+    assertEquals(1, pool.getAllocated());
+
+    r = StreamingResponses.chunked(Status.OK, "text/plain", lines(1), pool);
+    assertEquals("line 0\n", StubSession.body(r));
+    assertEquals(1, pool.getAllocated());
+    assertEquals(1, pool.getReused());
+
+    // Pieces larger than the buffer still go through
+    final byte[] large = new byte[5000];
+    r = StreamingResponses.chunked(
+      Status.OK,
+      "application/octet-stream",
+      new ChunkGenerator() {
+
+        @Override
+        public boolean next(OutputStream out) throws IOException {
+          out.write(large);
+          return false;
+        }
+      },
+      pool
+    );
+    assertEquals(5000, StubSession.bytes(r).length);
+  }
+
+  @Test
+  public void test_Streaming_Piped() throws Exception {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    BufferPool pool = new BufferPool(1024, 8);
+    try {
+      Response r = StreamingResponses.piped(
+        Status.OK,
+        "text/plain",
+        new BodyWriter() {
+
+          @Override
+          public void writeTo(OutputStream out) throws IOException {
+            for (int i = 0; i < 100000; ++i) out.write(("line " + i + "\n").getBytes(StandardCharsets.UTF_8));
+          }
+        },
+        executor,
+        pool
+      );
+      String body = StubSession.body(r);
+      assertTrue(body.endsWith("line 99999\n"));
+      // The writer only runs a few buffers ahead of the reader
+      assertTrue(pool.getAllocated() <= 8);
+
+      // A failing writer aborts the response
+      r = StreamingResponses.piped(
+        Status.OK,
+        "text/plain",
+        new BodyWriter() {
+
+          @Override
+          public void writeTo(OutputStream out) throws IOException {
+            out.write('x');
+            out.flush();
+            throw new IllegalStateException("database went away");
+          }
+        },
+        executor,
+        pool
+      );
+      InputStream in = r.getData();
+      assertEquals('x', in.read());
+      try {
+        in.read();
+        fail();
+      } catch (IOException e) {
+        assertEquals("database went away", e.getCause().getMessage());
+      }
+
+      // A writer whose client is gone is told so
+      final CountDownLatch done = new CountDownLatch(1);
+      final AtomicReference<IOException> failure = new AtomicReference<>();
+      r = StreamingResponses.piped(
+        Status.OK,
+        "text/plain",
+        new BodyWriter() {
+
+          @Override
+          public void writeTo(OutputStream out) {
+            try {
+              while (true) out.write(new byte[1024]);
+            } catch (IOException e) {
+              failure.set(e);
+            } finally {
+              done.countDown();
+            }
+          }
+        },
+        executor,
+        pool
+      );
+      r.getData().read();
+      r.getData().close();
+      assertTrue(done.await(5, TimeUnit.SECONDS));
+      assertNotNull(failure.get());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void test_Streaming_EventStream() throws IOException {
+    EventStream events = new EventStream(2, 1, TimeUnit.MINUTES);
+    Response r = events.response();
+    assertEquals(EventStream.MIME_TYPE, r.getMimeType());
+    assertEquals("no-cache", r.getHeader("Cache-Control"));
+
+    assertTrue(events.send("price", "7", "{\"a\":1}\n{\"b\":2}"));
+    assertTrue(events.send("hello"));
+    // The client is too far behind: it is disconnected
+    assertFalse(events.send("dropped"));
+    assertFalse(events.isOpen());
+
+    assertEquals("id: 7\nevent: price\ndata: {\"a\":1}\ndata: {\"b\":2}\n\ndata: hello\n\n", StubSession.body(r));
+
+    try {
+      new EventStream().send("bad\nname", null, "x");
+      fail();
+    } catch (IllegalArgumentException e) {}
+  }
+
+  @Test
+  public void test_Streaming_OverHttp() throws Exception {
+    final EventStream events = new EventStream(16, 50, TimeUnit.MILLISECONDS);
+
+    Router router = new Router();
+    router.addHandler(
+      Method.GET,
+      "/lines",
+      new Handler() {
+
+        @Override
+        public Response handle(RequestContext ctx) {
+          return StreamingResponses.chunked(Status.OK, "text/plain", lines(1000));
+        }
+      }
+    );
+    router.addHandler(
+      Method.GET,
+      "/events",
+      new Handler() {
+
+        @Override
+        public Response handle(RequestContext ctx) {
+          events.send("first");
+          return events.response();
+        }
+      }
+    );
+
+    RouterServer server = new RouterServer("127.0.0.1", 9125, router);
+    server.start();
+    try {
+      HttpURLConnection conn = (HttpURLConnection) new URL("http://127.0.0.1:9125/lines").openConnection();
+      assertEquals("chunked", conn.getHeaderField("Transfer-Encoding"));
+      BufferedReader in = new BufferedReader(new InputStreamReader(conn.getInputStream(), StandardCharsets.UTF_8));
+      int count = 0;
+      while (in.readLine() != null) count++;
+      assertEquals(1000, count);
+
+      // Events arrive as they are sent, uncompressed, with heartbeats in between
+      conn = (HttpURLConnection) new URL("http://127.0.0.1:9125/events").openConnection();
+      conn.setRequestProperty("Accept-Encoding", "gzip");
+      conn.setReadTimeout(3000);
+      assertNull(conn.getHeaderField("Content-Encoding"));
+      in = new BufferedReader(new InputStreamReader(conn.getInputStream(), StandardCharsets.UTF_8));
+      assertEquals("data: first", in.readLine());
+      assertEquals("", in.readLine());
+      assertEquals(":", in.readLine());
+
+      events.send("second");
+      String line;
+      while ((line = in.readLine()).startsWith(":") || line.isEmpty()) {}
+      assertEquals("data: second", line);
+
+      events.close();
+      while ((line = in.readLine()) != null) assertTrue(line.startsWith(":") || line.isEmpty());
+    } finally {
+      server.stop();
+    }
+  }
+}
@@ -0,0 +1,93 @@
+package com.github.sb.nanorouter;
+
+import fi.iki.elonen.NanoHTTPD;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An in-memory IHTTPSession, used to drive the Router without a socket.
+ */
+public class StubSession implements NanoHTTPD.IHTTPSession {
+  public NanoHTTPD.Method method;
+  public String uri;
+  public String queryString;
+  public Map<String, String> headers = new HashMap<>();
+  public Map<String, String> parms = new HashMap<>();
+  public InputStream body;
+
+  public StubSession(NanoHTTPD.Method method, String uri) {
+    this.method = method;
+    this.uri = uri;
+  }
+
+  @Override
+  public void execute() {}
+
+  @Override
+  public NanoHTTPD.CookieHandler getCookies() {
+    return null;
+  }
+
+  @Override
+  public Map<String, String> getHeaders() {
+    return this.headers;
+  }
+
+  @Override
+  public InputStream getInputStream() {
+    return this.body;
+  }
+
+  @Override
+  public NanoHTTPD.Method getMethod() {
+    return this.method;
+  }
+
+  @Override
+  public Map<String, String> getParms() {
+    return this.parms;
+  }
+
+  @Override
+  public String getQueryParameterString() {
+    return this.queryString;
+  }
+
+  @Override
+  public String getUri() {
+    return this.uri;
+  }
+
+  @Override
+  public void parseBody(Map<String, String> files) {}
+
+  /**
+   * Reads the body of a response produced for a stub session.
+   */
+  public static String body(NanoHTTPD.Response r) {
+    try {
+      return new String(bytes(r), "UTF-8");
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * Reads the raw body of a response produced for a stub session.
+   */
+  public static byte[] bytes(NanoHTTPD.Response r) {
+    try {
+      InputStream in = r.getData();
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buf = new byte[4096];
+      for (int n; (n = in.read(buf)) >= 0; ) out.write(buf, 0, n);
+      in.close();
+      return out.toByteArray();
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+  }
+}